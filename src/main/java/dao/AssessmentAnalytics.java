@@ -0,0 +1,604 @@
+package dao;
+
+import model.*;
+import utils.ColumnDictionary;
+import utils.ColumnarTable;
+import utils.DatabaseUtility;
+import utils.JdbcTemplate;
+import utils.Metrics;
+import utils.ParameterBinder;
+import java.sql.*;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory columnar copy of the assessments for trend reporting: counts and
+ * score statistics grouped by product, equipment, month, assessment type and
+ * assessed severity, answered without a query to the database.
+ *
+ * <p>
+ * Each assessment is one row of a {@link ColumnarTable}, held off-heap: the
+ * score as a {@code double} and every dimension as a dictionary code (see
+ * {@link ColumnDictionary}), with the product and equipment of the assessed
+ * deviation and the month of the assessment date. An aggregation scans the
+ * table in parallel on a {@link ForkJoinPool} of {@code analytics.parallelism}
+ * threads, one task per segment: filters are lookups in a flag array per
+ * dimension and each group is a mixed-radix number over the codes of the
+ * grouping dimensions, so the scan allocates nothing per row. Ten million
+ * assessments take about 450 MB of direct memory.
+ * </p>
+ *
+ * <p>
+ * The copy is extracted through {@link JdbcTemplate#inReadOnlyTransaction},
+ * from a read replica when one is configured. It is loaded in full at start,
+ * every {@code analytics.reloadMinutes}, and when deleted rows make up a
+ * quarter of the table; the new copy replaces the old one once complete.
+ * Every {@code analytics.refreshSeconds} in between, the deviations whose
+ * {@code updated_at} is at most {@code analytics.overlapSeconds} older than
+ * the newest change seen so far are read again with all their assessments,
+ * which replace the ones held; every change to an assessment changes its
+ * deviation's {@code updated_at} (see {@link DeviationWorkflow#TOUCH}), and
+ * the overlap covers transactions that commit after later-starting ones.
+ * A refresh is published at once, so an aggregation sees all of it or none.
+ * Full loads include archived deviations when archiving is enabled; archived
+ * deviations no longer change.
+ * </p>
+ */
+public final class AssessmentAnalytics {
+
+    /**
+     * A dimension assessments can be filtered and grouped by.
+     */
+    public enum Dimension {
+        PRODUCT("productId"), EQUIPMENT("equipmentId"), MONTH("month"), ASSESSMENT_TYPE("assessmentType"), SEVERITY("deviationSeverity");
+
+        private final String label;
+
+        Dimension(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the key of the dimension in {@link AssessmentAggregate#getGroup()}
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AssessmentAnalytics.class.getName());
+
+    private static final String SELECT = "SELECT d.id, d.product_id, d.equipment_id, a.id, a.assessment_date, a.assessment_type::text,"
+            + " a.deviation_severity::text, a.assessment_score";
+    private static final String LOAD_SQL = SELECT + " FROM " + DeviationArchiver.withArchive("deviations") + " d JOIN "
+            + DeviationArchiver.withArchive("deviation_assessments") + " a ON a.deviations_id = d.id";
+    private static final String REFRESH_SQL = SELECT + ", d.updated_at FROM deviations d"
+            + " LEFT JOIN deviation_assessments a ON a.deviations_id = d.id WHERE d.updated_at >= ?";
+    private static final String WATERMARK_SQL = "SELECT max(updated_at) FROM deviations";
+    private static final int FETCH_SIZE = 10000;
+
+    private static final int DEVIATION = 0;
+    private static final int NEXT = 1;
+    private static final int FIRST_DIMENSION = 2;
+    private static final int SCORE = 0;
+
+    private static final AssessmentAnalytics INSTANCE = new AssessmentAnalytics();
+
+    private final long refreshMillis = Math.max(1, DatabaseUtility.getIntProperty("analytics.refreshSeconds", 60)) * 1000L;
+    private final long reloadMillis = Math.max(1, DatabaseUtility.getIntProperty("analytics.reloadMinutes", 1440)) * 60000L;
+    private final long overlapMillis = Math.max(0, DatabaseUtility.getIntProperty("analytics.overlapSeconds", 300)) * 1000L;
+    private final int parallelism = Math.max(1,
+            DatabaseUtility.getIntProperty("analytics.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    private final LongAdder refreshes = Metrics.counter("analytics.refreshes");
+    private final LongAdder failures = Metrics.counter("analytics.failures");
+    private final Metrics.Timer queries = Metrics.timer("analytics.query");
+
+    private volatile Store store;
+    private volatile ForkJoinPool pool;
+    private long reloadAt;
+    private ScheduledExecutorService executor;
+
+    private AssessmentAnalytics() {
+        Metrics.gauge("analytics.rows", () -> {
+            Store current = store;
+            return current == null ? 0L : current.table.getRows();
+        });
+        Metrics.gauge("analytics.bytes", () -> {
+            Store current = store;
+            return current == null ? 0L : current.table.getMemoryBytes();
+        });
+    }
+
+    /**
+     * @return the node-wide store
+     */
+    public static AssessmentAnalytics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Loads the assessments and starts refreshing them, unless
+     * {@code analytics.enabled} is {@code false}. Does nothing if the store
+     * is already running.
+     */
+    public synchronized void start() {
+        if (executor != null || !Boolean.parseBoolean(DatabaseUtility.getProperty("analytics.enabled", "true").trim())) {
+            return;
+        }
+        pool = new ForkJoinPool(parallelism);
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "assessment-analytics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::update, 0L, refreshMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Assessment analytics started");
+    }
+
+    /**
+     * Stops refreshing and scanning, and releases the copy.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            pool.shutdown();
+        }
+        store = null;
+    }
+
+    /**
+     * @return whether the assessments have been loaded, so that
+     *         {@link #aggregate} can answer
+     */
+    public boolean isLoaded() {
+        return store != null;
+    }
+
+    /**
+     * Counts the assessments matching a filter and summarizes their scores,
+     * per combination of the grouping dimensions.
+     *
+     * @param filter  the criteria, or {@code null} for all assessments
+     * @param groupBy the grouping dimensions, possibly empty for a single
+     *                group; duplicates are ignored
+     * @return the non-empty groups, ordered by the values of the grouping
+     *         dimensions in order, missing values last
+     * @throws IllegalStateException    if the assessments are still loading
+     * @throws IllegalArgumentException if the grouping has too many
+     *                                  combinations to number
+     */
+    public List<AssessmentAggregate> aggregate(AssessmentFilter filter, Collection<Dimension> groupBy) {
+        Store current = store;
+        if (current == null) {
+            throw new IllegalStateException("The assessment analytics are still loading");
+        }
+        long start = queries.start();
+        try {
+            // Every code used by the snapshot's rows is in the dictionaries read after it
+            ColumnarTable.Snapshot snapshot = current.table.snapshot();
+            Aggregation aggregation = new Aggregation(current, filter == null ? new AssessmentFilter() : filter, new ArrayList<>(new LinkedHashSet<>(groupBy)));
+            return aggregation.results(current.table.scan(pool, snapshot, aggregation));
+        } finally {
+            queries.stop(start);
+        }
+    }
+
+    private void update() {
+        try {
+            Store current = store;
+            if (current == null || System.currentTimeMillis() >= reloadAt || current.table.getDeadRows() > current.table.getRows() / 4) {
+                load();
+            } else {
+                refresh(current);
+            }
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not update the assessment analytics, retrying at the next refresh", e);
+        }
+    }
+
+    private void load() throws SQLException {
+        long started = System.currentTimeMillis();
+        Store loaded = new Store();
+        JdbcTemplate.inReadOnlyTransaction(session -> {
+            // Read first: the load then sees at least every change up to it
+            loaded.watermark = session.queryOne(WATERMARK_SQL, ParameterBinder.NONE, resultSet -> resultSet.getTimestamp(1));
+            return session.forEach(LOAD_SQL, ParameterBinder.NONE, FETCH_SIZE, resultSet -> new Extracted(resultSet, false), loaded::add);
+        });
+        loaded.table.publish();
+        store = loaded;
+        reloadAt = started + reloadMillis;
+        LOGGER.info("Loaded " + loaded.table.getRows() + " assessments into the analytics store in " + (System.currentTimeMillis() - started)
+                + " ms, using " + loaded.table.getMemoryBytes() / (1024 * 1024) + " MB of direct memory");
+    }
+
+    private void refresh(Store current) throws SQLException {
+        Timestamp since = new Timestamp(current.watermark == null ? 0L : current.watermark.getTime() - overlapMillis);
+        Map<Integer, List<Extracted>> changed = new LinkedHashMap<>();
+        JdbcTemplate.inReadOnlyTransaction(session -> session.forEach(REFRESH_SQL, ParameterBinder.of(since), FETCH_SIZE, resultSet -> new Extracted(resultSet, true),
+                extracted -> changed.computeIfAbsent(extracted.deviationId, id -> new ArrayList<>()).add(extracted)));
+        for (Map.Entry<Integer, List<Extracted>> entry : changed.entrySet()) {
+            current.remove(entry.getKey());
+            for (Extracted extracted : entry.getValue()) {
+                current.add(extracted);
+            }
+        }
+        current.table.publish();
+        refreshes.increment();
+    }
+
+    /**
+     * One row read from the database: an assessment, or a deviation without
+     * one when refreshing.
+     */
+    private static final class Extracted {
+        private final int deviationId;
+        private final Integer productId;
+        private final Integer equipmentId;
+        private final boolean assessed;
+        private final YearMonth month;
+        private final String assessmentType;
+        private final String deviationSeverity;
+        private final double score;
+        private final Timestamp updatedAt;
+
+        private Extracted(ResultSet resultSet, boolean refreshed) throws SQLException {
+            deviationId = resultSet.getInt(1);
+            productId = (Integer) resultSet.getObject(2);
+            equipmentId = (Integer) resultSet.getObject(3);
+            resultSet.getInt(4);
+            assessed = !resultSet.wasNull();
+            Date assessmentDate = resultSet.getDate(5);
+            month = assessmentDate == null ? null : YearMonth.from(assessmentDate.toLocalDate());
+            assessmentType = resultSet.getString(6);
+            deviationSeverity = resultSet.getString(7);
+            double value = resultSet.getDouble(8);
+            score = resultSet.wasNull() ? Double.NaN : value;
+            updatedAt = refreshed ? resultSet.getTimestamp(9) : null;
+        }
+    }
+
+    /**
+     * One generation of the copy: the table, its dictionaries, the newest
+     * change seen and, per deviation, its most recently added row. The rows
+     * of a deviation are chained through the {@code NEXT} column. Changed
+     * only on the refresh thread.
+     */
+    private static final class Store {
+        private final ColumnarTable table = new ColumnarTable(FIRST_DIMENSION + Dimension.values().length, 1);
+        private final List<ColumnDictionary<Object>> dictionaries = new ArrayList<>();
+        private final IntIntMap heads = new IntIntMap();
+        private final int[] ints = new int[FIRST_DIMENSION + Dimension.values().length];
+        private final double[] doubles = new double[1];
+        private Timestamp watermark;
+
+        private Store() {
+            for (int i = 0; i < Dimension.values().length; i++) {
+                dictionaries.add(new ColumnDictionary<>());
+            }
+        }
+
+        private ColumnDictionary<Object> dictionary(Dimension dimension) {
+            return dictionaries.get(dimension.ordinal());
+        }
+
+        private void add(Extracted extracted) {
+            if (extracted.updatedAt != null && (watermark == null || extracted.updatedAt.after(watermark))) {
+                watermark = extracted.updatedAt;
+            }
+            if (!extracted.assessed) {
+                return;
+            }
+            ints[DEVIATION] = extracted.deviationId;
+            ints[NEXT] = heads.get(extracted.deviationId);
+            ints[FIRST_DIMENSION + Dimension.PRODUCT.ordinal()] = dictionary(Dimension.PRODUCT).encode(extracted.productId);
+            ints[FIRST_DIMENSION + Dimension.EQUIPMENT.ordinal()] = dictionary(Dimension.EQUIPMENT).encode(extracted.equipmentId);
+            ints[FIRST_DIMENSION + Dimension.MONTH.ordinal()] = dictionary(Dimension.MONTH).encode(extracted.month);
+            ints[FIRST_DIMENSION + Dimension.ASSESSMENT_TYPE.ordinal()] = dictionary(Dimension.ASSESSMENT_TYPE).encode(extracted.assessmentType);
+            ints[FIRST_DIMENSION + Dimension.SEVERITY.ordinal()] = dictionary(Dimension.SEVERITY).encode(extracted.deviationSeverity);
+            doubles[SCORE] = extracted.score;
+            heads.put(extracted.deviationId, table.append(ints, doubles));
+        }
+
+        private void remove(int deviationId) {
+            for (int row = heads.get(deviationId); row >= 0; row = table.getInt(row, NEXT)) {
+                table.delete(row);
+            }
+            heads.put(deviationId, -1);
+        }
+    }
+
+    /**
+     * One aggregation: its filters and grouping as codes, and the scan that
+     * applies them.
+     */
+    private static final class Aggregation implements ColumnarTable.Scanner<Groups> {
+        private final Store store;
+        private final List<Dimension> groupBy;
+        private final int[] filterColumns;
+        private final boolean[][] allowed;
+        private final int[] groupColumns;
+        private final long[] radixes;
+
+        private Aggregation(Store store, AssessmentFilter filter, List<Dimension> groupBy) {
+            this.store = store;
+            this.groupBy = groupBy;
+            List<Dimension> filtered = new ArrayList<>();
+            List<boolean[]> flags = new ArrayList<>();
+            if (filter.getProductId() != null) {
+                filtered.add(Dimension.PRODUCT);
+                flags.add(store.dictionary(Dimension.PRODUCT).matching(value -> filter.getProductId().equals(value)));
+            }
+            if (filter.getEquipmentId() != null) {
+                filtered.add(Dimension.EQUIPMENT);
+                flags.add(store.dictionary(Dimension.EQUIPMENT).matching(value -> filter.getEquipmentId().equals(value)));
+            }
+            if (filter.getAssessmentType() != null) {
+                filtered.add(Dimension.ASSESSMENT_TYPE);
+                flags.add(store.dictionary(Dimension.ASSESSMENT_TYPE).matching(value -> filter.getAssessmentType().name().equals(value)));
+            }
+            if (filter.getDeviationSeverity() != null) {
+                filtered.add(Dimension.SEVERITY);
+                flags.add(store.dictionary(Dimension.SEVERITY).matching(value -> filter.getDeviationSeverity().name().equals(value)));
+            }
+            if (filter.getAssessedFrom() != null || filter.getAssessedTo() != null) {
+                YearMonth from = month(filter.getAssessedFrom());
+                YearMonth to = month(filter.getAssessedTo());
+                Predicate<Object> inRange = value -> value != null && (from == null || !((YearMonth) value).isBefore(from))
+                        && (to == null || !((YearMonth) value).isAfter(to));
+                filtered.add(Dimension.MONTH);
+                flags.add(store.dictionary(Dimension.MONTH).matching(inRange));
+            }
+            filterColumns = new int[filtered.size()];
+            for (int i = 0; i < filterColumns.length; i++) {
+                filterColumns[i] = FIRST_DIMENSION + filtered.get(i).ordinal();
+            }
+            allowed = flags.toArray(new boolean[0][]);
+            groupColumns = new int[groupBy.size()];
+            radixes = new long[groupBy.size()];
+            long combinations = 1L;
+            for (int i = 0; i < groupColumns.length; i++) {
+                groupColumns[i] = FIRST_DIMENSION + groupBy.get(i).ordinal();
+                radixes[i] = Math.max(1, store.dictionary(groupBy.get(i)).size());
+                try {
+                    combinations = Math.multiplyExact(combinations, radixes[i]);
+                } catch (ArithmeticException e) {
+                    throw new IllegalArgumentException("Too many combinations of " + groupBy + " to group by", e);
+                }
+            }
+        }
+
+        private static YearMonth month(java.util.Date date) {
+            return date == null ? null : YearMonth.from(new java.sql.Date(date.getTime()).toLocalDate());
+        }
+
+        @Override
+        public Groups newResult() {
+            return new Groups();
+        }
+
+        @Override
+        public void scan(ColumnarTable.Segment segment, Groups groups) {
+            int rows = segment.getRows();
+            rows:
+            for (int row = 0; row < rows; row++) {
+                if (!segment.isVisible(row)) {
+                    continue;
+                }
+                for (int i = 0; i < filterColumns.length; i++) {
+                    if (!allowed[i][segment.getInt(filterColumns[i], row)]) {
+                        continue rows;
+                    }
+                }
+                long key = 0L;
+                for (int i = 0; i < groupColumns.length; i++) {
+                    key = key * radixes[i] + segment.getInt(groupColumns[i], row);
+                }
+                groups.add(key, 1L, segment.getDouble(SCORE, row));
+            }
+        }
+
+        @Override
+        public Groups combine(Groups left, Groups right) {
+            return left.merge(right);
+        }
+
+        private List<AssessmentAggregate> results(Groups groups) {
+            List<Object[]> decoded = new ArrayList<>();
+            for (int slot = 0; slot < groups.keys.length; slot++) {
+                if (groups.keys[slot] == 0L) {
+                    continue;
+                }
+                Object[] values = new Object[groupBy.size() + 1];
+                long key = groups.keys[slot] - 1L;
+                for (int i = groupBy.size() - 1; i >= 0; i--) {
+                    values[i] = store.dictionary(groupBy.get(i)).decode((int) (key % radixes[i]));
+                    key /= radixes[i];
+                }
+                values[groupBy.size()] = slot;
+                decoded.add(values);
+            }
+            decoded.sort((left, right) -> {
+                for (int i = 0; i < groupBy.size(); i++) {
+                    int comparison = compare(left[i], right[i]);
+                    if (comparison != 0) {
+                        return comparison;
+                    }
+                }
+                return 0;
+            });
+            List<AssessmentAggregate> results = new ArrayList<>(decoded.size());
+            for (Object[] values : decoded) {
+                Map<String, Object> group = new LinkedHashMap<>();
+                for (int i = 0; i < groupBy.size(); i++) {
+                    group.put(groupBy.get(i).getLabel(), values[i] instanceof YearMonth ? values[i].toString() : values[i]);
+                }
+                int slot = (Integer) values[groupBy.size()];
+                results.add(new AssessmentAggregate(group, groups.counts[slot], groups.scored[slot], groups.sums[slot], groups.mins[slot],
+                        groups.maxs[slot]));
+            }
+            return results;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static int compare(Object left, Object right) {
+            if (Objects.equals(left, right)) {
+                return 0;
+            }
+            if (left == null || right == null) {
+                return left == null ? 1 : -1;
+            }
+            return ((Comparable) left).compareTo(right);
+        }
+    }
+
+    /**
+     * Per-group accumulators in an open-addressing table keyed by group
+     * number plus one, so that zero marks a free slot.
+     */
+    private static final class Groups {
+        private long[] keys = new long[16];
+        private long[] counts = new long[16];
+        private long[] scored = new long[16];
+        private double[] sums = new double[16];
+        private double[] mins = new double[16];
+        private double[] maxs = new double[16];
+        private int size;
+
+        private void add(long key, long count, double score) {
+            int slot = slot(key + 1L);
+            counts[slot] += count;
+            if (!Double.isNaN(score)) {
+                scored[slot]++;
+                sums[slot] += score;
+                mins[slot] = Math.min(mins[slot], score);
+                maxs[slot] = Math.max(maxs[slot], score);
+            }
+        }
+
+        private Groups merge(Groups other) {
+            for (int slot = 0; slot < other.keys.length; slot++) {
+                if (other.keys[slot] != 0L) {
+                    int target = slot(other.keys[slot]);
+                    counts[target] += other.counts[slot];
+                    scored[target] += other.scored[slot];
+                    sums[target] += other.sums[slot];
+                    mins[target] = Math.min(mins[target], other.mins[slot]);
+                    maxs[target] = Math.max(maxs[target], other.maxs[slot]);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Finds the slot of a stored key, claiming a free one if it is new.
+         */
+        private int slot(long stored) {
+            int mask = keys.length - 1;
+            int slot = Long.hashCode(stored * 0x9E3779B97F4A7C15L) & mask;
+            while (keys[slot] != stored) {
+                if (keys[slot] == 0L) {
+                    if (size + 1 > keys.length / 2) {
+                        grow();
+                        return slot(stored);
+                    }
+                    keys[slot] = stored;
+                    mins[slot] = Double.POSITIVE_INFINITY;
+                    maxs[slot] = Double.NEGATIVE_INFINITY;
+                    size++;
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            Groups larger = new Groups();
+            int capacity = keys.length * 2;
+            larger.keys = new long[capacity];
+            larger.counts = new long[capacity];
+            larger.scored = new long[capacity];
+            larger.sums = new double[capacity];
+            larger.mins = new double[capacity];
+            larger.maxs = new double[capacity];
+            larger.merge(this);
+            keys = larger.keys;
+            counts = larger.counts;
+            scored = larger.scored;
+            sums = larger.sums;
+            mins = larger.mins;
+            maxs = larger.maxs;
+        }
+    }
+
+    /**
+     * Open-addressing map from deviation id to row number, without boxing;
+     * {@code -1} stands for no row.
+     */
+    private static final class IntIntMap {
+        private static final int FREE = Integer.MIN_VALUE;
+
+        private int[] keys = newKeys(1024);
+        private int[] values = new int[1024];
+        private int size;
+
+        private static int[] newKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            return keys;
+        }
+
+        private int get(int key) {
+            int mask = keys.length - 1;
+            for (int slot = Integer.hashCode(key * 0x9E3779B9) & mask; keys[slot] != FREE; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        private void put(int key, int value) {
+            if (size + 1 > keys.length / 2) {
+                int[] oldKeys = keys;
+                int[] oldValues = values;
+                keys = newKeys(oldKeys.length * 2);
+                values = new int[oldKeys.length * 2];
+                size = 0;
+                for (int slot = 0; slot < oldKeys.length; slot++) {
+                    if (oldKeys[slot] != FREE) {
+                        put(oldKeys[slot], oldValues[slot]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int slot = Integer.hashCode(key * 0x9E3779B9) & mask;
+            while (keys[slot] != FREE && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == FREE) {
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] = value;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package dao;
+
+import model.*;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Coalesces individual assessment lookups into batched queries, in the style
+ * of a DataLoader. Meant to live for one request: code that renders many
+ * deviations calls {@link #load(int)} for each of them, and the first
+ * {@link Handle#get()} on any returned handle fetches every deviation queued
+ * so far with one call to
+ * {@link DeviationAssessmentDAO#viewAssessments(Collection)}. Results are
+ * memoized for the lifetime of the loader; a batch that fails throws and
+ * stays queued, so the next read tries it again. {@code RequestScope} in the
+ * servlet package binds one loader to each request.
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * AssessmentBatchLoader loader = new AssessmentBatchLoader(new DeviationAssessmentDAO());
+ * Map<Deviation, AssessmentBatchLoader.Handle> rows = new LinkedHashMap<>();
+ * for (Deviation deviation : deviations) {
+ *     rows.put(deviation, loader.load(deviation.getId()));
+ * }
+ * // the first get() runs one query for all queued deviations
+ * for (Map.Entry<Deviation, AssessmentBatchLoader.Handle> row : rows.entrySet()) {
+ *     render(row.getKey(), row.getValue().get());
+ * }
+ * }</pre>
+ */
+public class AssessmentBatchLoader {
+
+    /**
+     * The assessments of one deviation, loaded on the first read.
+     */
+    @FunctionalInterface
+    public interface Handle {
+
+        /**
+         * @return the assessments, or an empty list if there are none
+         * @throws SQLException if the batch cannot be loaded
+         */
+        List<DeviationAssessment> get() throws SQLException;
+    }
+
+    private final DeviationAssessmentDAO dao;
+    private final Set<Integer> pending = new LinkedHashSet<>();
+    private final Map<Integer, List<DeviationAssessment>> loaded = new HashMap<>();
+
+    /**
+     * Creates a loader backed by the given DAO.
+     *
+     * @param dao the DAO used to run the batched queries
+     */
+    public AssessmentBatchLoader(DeviationAssessmentDAO dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Queues a deviation for the next batch and returns a handle to its
+     * assessments. Nothing is queried until a handle is read or
+     * {@link #dispatch()} is called.
+     *
+     * @param deviationsId the deviation ID
+     * @return a handle whose {@code get()} returns the assessments of the deviation
+     */
+    public synchronized Handle load(int deviationsId) {
+        if (!loaded.containsKey(deviationsId)) {
+            pending.add(deviationsId);
+        }
+        return () -> get(deviationsId);
+    }
+
+    /**
+     * Returns the assessments of a deviation, dispatching the queued batch
+     * (including this deviation) if they are not loaded yet.
+     *
+     * @param deviationsId the deviation ID
+     * @return the assessments, or an empty list if there are none
+     * @throws SQLException if the batch cannot be loaded
+     */
+    public synchronized List<DeviationAssessment> get(int deviationsId) throws SQLException {
+        if (!loaded.containsKey(deviationsId)) {
+            pending.add(deviationsId);
+            dispatch();
+        }
+        return loaded.get(deviationsId);
+    }
+
+    /**
+     * Loads every queued deviation with a single query. If it fails, the
+     * deviations stay queued and nothing is memoized.
+     *
+     * @throws SQLException if the batch cannot be loaded
+     */
+    public synchronized void dispatch() throws SQLException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        loaded.putAll(dao.viewAssessments(new ArrayList<>(pending)));
+        pending.clear();
+    }
+}
@@ -0,0 +1,139 @@
+package dao;
+
+import model.*;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import utils.DatabaseUtility;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.*;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Streams {@code deviation_assessments} in and out of the database with the
+ * PostgreSQL {@code COPY} protocol, backing
+ * {@link DeviationAssessmentDAO#importAssessments(InputStream, DeviationAssessmentDAO.CopyFormat)}
+ * and
+ * {@link DeviationAssessmentDAO#exportAssessments(OutputStream, DeviationAssessmentDAO.CopyFormat)}.
+ *
+ * <p>
+ * Both directions hand the caller's stream straight to the driver, which
+ * copies it through a fixed-size buffer, so memory use does not depend on the
+ * number of rows. Imports land in a transaction-scoped staging table first;
+ * the assessments are then inserted and the affected deviations moved to
+ * {@code PENDING_QA_REVIEW} with one set-based statement each. Only
+ * deviations whose status {@link DeviationWorkflow} allows to move there are
+ * moved, as for {@link DeviationAssessmentDAO#createAssessment}; the others,
+ * such as approved, dropped or closed ones when backfilling historical
+ * assessments, keep their status and are only marked as changed.
+ * </p>
+ */
+class AssessmentCopyTransfer {
+
+    private static final Logger LOGGER = Logger.getLogger(AssessmentCopyTransfer.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Columns of the transfer layout; {@code id} is exported but ignored on import. */
+    private static final String COLUMNS = "id, probability_of_recurrence, assessment_date, deviation_closer_date, assessment_result, assessment_score, deviations_id, assessment_type, deviation_severity, is_the_deviation_repeated, historical_deviations, any_market_actions_required, comments, file_attachment";
+    private static final String INSERT_COLUMNS = COLUMNS.substring("id, ".length());
+
+    private static final String CREATE_STAGING_SQL = "CREATE TEMP TABLE deviation_assessments_staging ON COMMIT DROP AS SELECT " + COLUMNS + " FROM deviation_assessments WITH NO DATA";
+    private static final String INSERT_FROM_STAGING_SQL = "INSERT INTO deviation_assessments (" + INSERT_COLUMNS + ") SELECT " + INSERT_COLUMNS + " FROM deviation_assessments_staging";
+    private static final String STAGED_DEVIATIONS = " FROM (SELECT DISTINCT deviations_id FROM deviation_assessments_staging) s WHERE d.id = s.deviations_id";
+    private static final String TOUCH_UNMOVED_SQL = "UPDATE deviations d SET " + DeviationWorkflow.TOUCH + STAGED_DEVIATIONS + " AND (upper(d.status::text) = ANY(?)) IS NOT TRUE";
+    private static final String UPDATE_STATUS_SQL = "UPDATE deviations d SET status = ?::deviation_status, " + DeviationWorkflow.TOUCH + STAGED_DEVIATIONS + " AND upper(d.status::text) = ANY(?)";
+
+    /**
+     * Imports assessments from a stream in the transfer layout.
+     *
+     * @param input  the CSV (with header) or binary COPY stream
+     * @param format the stream format
+     * @return the number of assessments imported
+     * @throws SQLException if the load is rejected; nothing is imported then
+     * @throws IOException  if the stream cannot be read
+     */
+    long importAssessments(InputStream input, DeviationAssessmentDAO.CopyFormat format) throws SQLException, IOException {
+        Connection connection = DatabaseUtility.connect();
+        try {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_STAGING_SQL);
+            }
+
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+            long staged = copyManager.copyIn("COPY deviation_assessments_staging (" + COLUMNS + ") FROM STDIN WITH " + options(format), input, BUFFER_SIZE);
+
+            int inserted;
+            try (Statement statement = connection.createStatement()) {
+                inserted = statement.executeUpdate(INSERT_FROM_STAGING_SQL);
+            }
+            Array sources = connection.createArrayOf("text", sourceNames());
+            // Touch the deviations that stay put first; the moved ones are not in a source status afterwards
+            int deviationsUnchanged;
+            try (PreparedStatement statement = connection.prepareStatement(TOUCH_UNMOVED_SQL)) {
+                statement.setArray(1, sources);
+                deviationsUnchanged = statement.executeUpdate();
+            }
+            int deviationsUpdated;
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_STATUS_SQL)) {
+                statement.setString(1, Enums.DeviationStatus.PENDING_QA_REVIEW.name());
+                statement.setArray(2, sources);
+                deviationsUpdated = statement.executeUpdate();
+            }
+            DeviationCache.evictAll(connection);
+            connection.commit();
+
+            LOGGER.info("Imported " + inserted + " of " + staged + " staged assessments; " + deviationsUpdated + " deviations moved to pending QA review, "
+                    + deviationsUnchanged + " left in a status that cannot move there");
+            return inserted;
+        } catch (SQLException | IOException | RuntimeException | Error e) {
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            throw e;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } finally {
+                DatabaseUtility.disconnect(connection);
+            }
+        }
+    }
+
+    /**
+     * Exports every assessment to a stream in the transfer layout, ordered by id.
+     *
+     * @param output the stream to write to; it is flushed but not closed
+     * @param format the stream format
+     * @return the number of assessments exported
+     * @throws SQLException if the export fails
+     * @throws IOException  if the stream cannot be written
+     */
+    long exportAssessments(OutputStream output, DeviationAssessmentDAO.CopyFormat format) throws SQLException, IOException {
+        try (Connection connection = DatabaseUtility.connect()) {
+            CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+            long exported = copyManager.copyOut("COPY (SELECT " + COLUMNS + " FROM deviation_assessments ORDER BY id) TO STDOUT WITH " + options(format), output);
+            output.flush();
+            return exported;
+        }
+    }
+
+    private static Object[] sourceNames() {
+        Set<Enums.DeviationStatus> sources = DeviationWorkflow.sourcesOf(Enums.DeviationStatus.PENDING_QA_REVIEW);
+        Object[] names = new Object[sources.size()];
+        int i = 0;
+        for (Enums.DeviationStatus source : sources) {
+            names[i++] = source.name().toUpperCase(Locale.ROOT);
+        }
+        return names;
+    }
+
+    private static String options(DeviationAssessmentDAO.CopyFormat format) {
+        return format == DeviationAssessmentDAO.CopyFormat.BINARY ? "(FORMAT binary)" : "(FORMAT csv, HEADER true)";
+    }
+}
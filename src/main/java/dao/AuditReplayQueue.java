@@ -0,0 +1,118 @@
+package dao;
+
+import model.AuditEntry;
+import utils.BoundedMpscQueue;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The entries {@link AuditTrailWriter} has yet to store, in sequence order.
+ *
+ * <p>
+ * Entries are appended to the {@link AuditSpillLog} and offered to a bounded
+ * in-memory queue. Batches come from the queue while it holds every entry past
+ * the flushed sequence; an entry that overflowed the queue, and every entry
+ * after a restart, is read back from the spill log instead. Queued entries at
+ * or below the flushed sequence were already written by such a replay and are
+ * skipped. Only the flusher thread calls {@link #fill(List, int)} and
+ * {@link #completed(List)}.
+ * </p>
+ */
+final class AuditReplayQueue {
+
+    private final AuditSpillLog spillLog;
+    private final BoundedMpscQueue<AuditEntry> queue;
+    private volatile boolean replayPending = true;
+    private long flushedSequence;
+
+    /**
+     * Creates a queue that continues after the checkpoint of the spill log.
+     *
+     * @param spillLog the spill log
+     * @param capacity the capacity of the in-memory queue
+     */
+    AuditReplayQueue(AuditSpillLog spillLog, int capacity) {
+        this.spillLog = spillLog;
+        this.queue = new BoundedMpscQueue<>(capacity);
+        this.flushedSequence = spillLog.getCheckpoint();
+    }
+
+    /**
+     * Appends an entry to the spill log and queues it.
+     *
+     * @param recordedAt  when the action completed
+     * @param userId      the acting user
+     * @param actionType  the action type
+     * @param description the description
+     * @return {@code false} if the queue was full and the entry will be
+     *         replayed from the spill log
+     * @throws IOException if the entry cannot be written to the spill log
+     */
+    boolean append(long recordedAt, int userId, String actionType, String description) throws IOException {
+        synchronized (spillLog) {
+            AuditEntry entry = spillLog.append(recordedAt, userId, actionType, description);
+            if (!queue.offer(entry)) {
+                replayPending = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Collects the next batch: entries past the flushed sequence from the
+     * spill log while a replay is pending, otherwise from the queue. A gap in
+     * the queued sequence numbers switches back to replay.
+     *
+     * @param batch receives the entries; empty when called
+     * @param max   the maximum number of entries
+     * @throws IOException if the spill log cannot be read
+     */
+    void fill(List<AuditEntry> batch, int max) throws IOException {
+        if (replayPending) {
+            replayPending = false;
+            List<AuditEntry> replay = spillLog.readAfter(flushedSequence, max);
+            if (!replay.isEmpty()) {
+                batch.addAll(replay);
+                replayPending = true;
+                return;
+            }
+        }
+        queue.drain(entry -> {
+            long expected = batch.isEmpty() ? flushedSequence + 1 : batch.get(batch.size() - 1).getSequence() + 1;
+            if (entry.getSequence() == expected) {
+                batch.add(entry);
+            } else if (entry.getSequence() > expected) {
+                // an entry in between overflowed the queue; everything from
+                // here on is read back from the spill log instead
+                replayPending = true;
+            }
+        }, max);
+    }
+
+    /**
+     * Records that a batch from {@link #fill(List, int)} is stored and
+     * checkpoints it in the spill log.
+     *
+     * @param batch the stored batch, not empty
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void completed(List<AuditEntry> batch) throws IOException {
+        flushedSequence = batch.get(batch.size() - 1).getSequence();
+        spillLog.checkpoint(flushedSequence);
+    }
+
+    /**
+     * @return whether the next batch is read from the spill log
+     */
+    boolean isReplayPending() {
+        return replayPending;
+    }
+
+    /**
+     * @return the approximate number of queued entries
+     */
+    int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,313 @@
+package dao;
+
+import model.AuditEntry;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead log behind {@link AuditTrailWriter}.
+ *
+ * <p>
+ * Every audit entry is appended to {@code audit-spill.log} before it is queued
+ * for the database, and the sequence number of the last entry known to be in
+ * {@code audit_trails} is kept in {@code audit-spill.checkpoint}. Entries past
+ * the checkpoint are replayed after a restart or whenever the in-memory queue
+ * overflowed. Each record is framed with its length and a CRC32 so a record
+ * torn by a crash is detected and dropped on open; once the checkpoint catches
+ * up with the last appended entry the log is truncated.
+ * </p>
+ *
+ * <p>
+ * Appends reach the operating system immediately, which covers a JVM that
+ * stops or is killed; {@link #force()} additionally syncs them to disk and is
+ * called once per flushed batch. A checkpoint is synced to disk, together with
+ * the rename that publishes it, before the log is truncated, so a power loss
+ * cannot leave an empty log behind an older checkpoint and lose the entries in
+ * between. The log holds an exclusive file lock, so two
+ * JVMs cannot share a spill directory.
+ * </p>
+ */
+class AuditSpillLog implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AuditSpillLog.class.getName());
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    private final Path logFile;
+    private final Path checkpointFile;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private long lastSequence;
+    private long checkpoint;
+    private long replayOffset;
+    private long replaySequence;
+
+    /**
+     * Opens or creates the log in the given directory, dropping any torn
+     * record at its end.
+     *
+     * @param directory the spill directory
+     * @throws IOException if the log cannot be opened or is locked by another
+     *                     process
+     */
+    AuditSpillLog(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.logFile = directory.resolve("audit-spill.log");
+        this.checkpointFile = directory.resolve("audit-spill.checkpoint");
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock acquired = null;
+        try {
+            acquired = channel.tryLock();
+            if (acquired == null) {
+                throw new IOException("Audit spill log " + logFile + " is locked by another process");
+            }
+            this.lock = acquired;
+            this.checkpoint = readCheckpoint();
+            recover();
+        } catch (IOException | RuntimeException e) {
+            if (acquired != null) {
+                acquired.release();
+            }
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends an entry and assigns its sequence number.
+     *
+     * @param recordedAt  when the action completed
+     * @param userId      the acting user
+     * @param actionType  the action type
+     * @param description the description
+     * @return the appended entry
+     * @throws IOException if the entry cannot be written
+     */
+    synchronized AuditEntry append(long recordedAt, int userId, String actionType, String description) throws IOException {
+        AuditEntry entry = new AuditEntry(lastSequence + 1, recordedAt, userId, actionType, description);
+        byte[] payload = encode(entry);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long position = channel.size();
+        try {
+            while (frame.hasRemaining()) {
+                channel.write(frame, position + frame.position());
+            }
+        } catch (IOException e) {
+            channel.truncate(position);
+            throw e;
+        }
+        lastSequence = entry.getSequence();
+        return entry;
+    }
+
+    /**
+     * Syncs appended entries to disk.
+     *
+     * @throws IOException if the sync fails
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Reads entries appended after the given sequence number, in order.
+     *
+     * @param afterSequence the last sequence number not to return
+     * @param max           the maximum number of entries to return
+     * @return the entries, empty if there are none
+     * @throws IOException if the log cannot be read
+     */
+    synchronized List<AuditEntry> readAfter(long afterSequence, int max) throws IOException {
+        long offset = 0L;
+        if (afterSequence >= replaySequence) {
+            offset = replayOffset;
+        }
+        List<AuditEntry> entries = new ArrayList<>();
+        long end = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(offset))));
+        while (offset < end && entries.size() < max) {
+            int length = in.readInt();
+            int crc = in.readInt();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            AuditEntry entry = decode(payload, crc);
+            offset += 8 + length;
+            if (entry.getSequence() > afterSequence) {
+                entries.add(entry);
+                replayOffset = offset;
+                replaySequence = entry.getSequence();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Records that every entry up to {@code sequence} is in the database and
+     * truncates the log if nothing after it is pending.
+     *
+     * @param sequence the sequence number of the last stored entry
+     * @throws IOException if the checkpoint cannot be written
+     */
+    synchronized void checkpoint(long sequence) throws IOException {
+        if (sequence <= checkpoint) {
+            return;
+        }
+        Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(Long.toString(sequence).getBytes(StandardCharsets.US_ASCII));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(true);
+        }
+        Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        checkpoint = sequence;
+        if (checkpoint >= lastSequence && channel.size() > 0) {
+            channel.truncate(0L);
+            channel.force(true);
+            replayOffset = 0L;
+            replaySequence = 0L;
+        }
+    }
+
+    /**
+     * @return the sequence number of the last stored entry
+     */
+    synchronized long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return the number of appended entries not yet stored
+     */
+    synchronized long getBacklog() {
+        return lastSequence - checkpoint;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Syncs the spill directory so the rename of the checkpoint is durable.
+     * Directories cannot be opened for syncing on every platform; where they
+     * cannot, the rename is left to the file system.
+     */
+    private void forceDirectory() throws IOException {
+        FileChannel directory;
+        try {
+            directory = FileChannel.open(checkpointFile.getParent(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot open " + checkpointFile.getParent() + " to sync it", e);
+            return;
+        }
+        try (FileChannel opened = directory) {
+            opened.force(true);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0L;
+        }
+        String value = new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt audit checkpoint " + checkpointFile + ": " + value, e);
+        }
+    }
+
+    private void recover() throws IOException {
+        long size = channel.size();
+        long offset = 0L;
+        lastSequence = checkpoint;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0L))));
+        try {
+            while (offset < size) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_BYTES || offset + 8 + length > size) {
+                    break;
+                }
+                int crc = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                AuditEntry entry = decode(payload, crc);
+                lastSequence = Math.max(lastSequence, entry.getSequence());
+                offset += 8 + length;
+            }
+        } catch (EOFException | IllegalStateException e) {
+            // torn or corrupt tail, handled below
+        }
+        if (offset < size) {
+            LOGGER.warning("Dropping " + (size - offset) + " bytes of incomplete audit records from " + logFile);
+            channel.truncate(offset);
+        }
+        if (lastSequence > checkpoint) {
+            LOGGER.info((lastSequence - checkpoint) + " audit entries in " + logFile + " are pending replay");
+        }
+    }
+
+    private static byte[] encode(AuditEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entry.getDescription().length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(entry.getSequence());
+            out.writeLong(entry.getRecordedAt());
+            out.writeInt(entry.getUserId());
+            writeString(out, entry.getActionType());
+            writeString(out, entry.getDescription());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static AuditEntry decode(byte[] payload, int expectedCrc) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IllegalStateException("Audit record checksum mismatch");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long sequence = buffer.getLong();
+        long recordedAt = buffer.getLong();
+        int userId = buffer.getInt();
+        return new AuditEntry(sequence, recordedAt, userId, readString(buffer), readString(buffer));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,251 @@
+package dao;
+
+import model.*;
+import utils.DatabaseUtility;
+import utils.Metrics;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous writer for the {@code audit_trails} table.
+ *
+ * <p>
+ * DAO methods call {@link #record(int, Enums.ActionType, String)} once their
+ * transaction has committed. The entry is appended to a local write-ahead
+ * spill log ({@link AuditSpillLog}) and placed on a bounded lock-free queue
+ * ({@link AuditReplayQueue}); the caller never waits for the database. The
+ * time of the call is stored in the {@code timestamp} column, so an entry
+ * written late keeps the time of its action. A single flusher thread drains the
+ * queue and inserts the entries in batches on its own dedicated connection,
+ * flushing when {@code audit.batchSize} entries are waiting or every
+ * {@code audit.flushIntervalMillis}, whichever comes first.
+ * </p>
+ *
+ * <p>
+ * Nothing recorded is lost while the database is unavailable or the JVM
+ * stops: a batch is only checkpointed in the spill log after its insert has
+ * committed, the flusher retries a failed batch until it succeeds, and entries
+ * past the checkpoint are replayed from the log on the next start. If the
+ * queue fills up during an outage, further entries are only kept in the log
+ * and are read back from it once the database is reachable again. A crash
+ * between the insert and the checkpoint can replay the last batch a second
+ * time, so delivery is at least once. If the spill log itself cannot be
+ * written, the entry is inserted synchronously instead.
+ * </p>
+ *
+ * <p>
+ * The {@code audit.spillDirectory}, {@code audit.batchSize},
+ * {@code audit.flushIntervalMillis}, {@code audit.queueCapacity} and
+ * {@code audit.retryDelayMillis} keys of {@code application.properties}
+ * configure the writer.
+ * </p>
+ */
+public final class AuditTrailWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(AuditTrailWriter.class.getName());
+    private static final String INSERT_SQL = "INSERT INTO audit_trails (user_id, action_type, description, timestamp) VALUES (?, ?, ?, ?)";
+
+    private static final AuditTrailWriter INSTANCE = new AuditTrailWriter();
+
+    private final int batchSize = Math.max(1, DatabaseUtility.getIntProperty("audit.batchSize", 200));
+    private final long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DatabaseUtility.getIntProperty("audit.flushIntervalMillis", 200));
+    private final long retryDelayNanos = TimeUnit.MILLISECONDS.toNanos(DatabaseUtility.getIntProperty("audit.retryDelayMillis", 1000));
+
+    private final LongAdder recorded = Metrics.counter("audit.recorded");
+    private final LongAdder written = Metrics.counter("audit.written");
+    private final LongAdder overflows = Metrics.counter("audit.queue.overflows");
+    private final LongAdder flushFailures = Metrics.counter("audit.flush.failures");
+    private final Metrics.Timer flushTimer = Metrics.timer("audit.flush");
+
+    private final AuditSpillLog spillLog;
+    private final AuditReplayQueue queue;
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private Connection connection;
+
+    private AuditTrailWriter() {
+        spillLog = openSpillLog();
+        if (spillLog == null) {
+            queue = null;
+            flusher = null;
+            return;
+        }
+        queue = new AuditReplayQueue(spillLog, DatabaseUtility.getIntProperty("audit.queueCapacity", 8192));
+        Metrics.gauge("audit.queue.depth", queue::size);
+        Metrics.gauge("audit.spill.backlog", spillLog::getBacklog);
+        flusher = new Thread(this::run, "audit-trail-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @return the node-wide writer
+     */
+    public static AuditTrailWriter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records an audit entry. Call after the audited transaction has
+     * committed; the entry is durable in the local spill log when this method
+     * returns and reaches {@code audit_trails} asynchronously.
+     *
+     * @param userId      the user who performed the action
+     * @param actionType  the action type
+     * @param description a description of the action
+     */
+    public void record(int userId, Enums.ActionType actionType, String description) {
+        long now = System.currentTimeMillis();
+        recorded.increment();
+        if (spillLog != null && running) {
+            try {
+                if (!queue.append(now, userId, actionType.name(), description)) {
+                    overflows.increment();
+                }
+                if (queue.size() >= batchSize) {
+                    LockSupport.unpark(flusher);
+                }
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Cannot append to the audit spill log, writing the audit entry synchronously", e);
+            }
+        }
+        writeSynchronously(new AuditEntry(0L, now, userId, actionType.name(), description));
+    }
+
+    /**
+     * Stops accepting entries into the queue, flushes what is queued and
+     * stops the flusher. Entries that cannot be flushed stay in the spill log
+     * for the next start.
+     *
+     * @param timeoutMillis how long to wait for the final flush
+     */
+    public void shutdown(long timeoutMillis) {
+        running = false;
+        if (flusher == null) {
+            return;
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private AuditSpillLog openSpillLog() {
+        Path directory = Paths.get(DatabaseUtility.getProperty("audit.spillDirectory",
+                Paths.get(System.getProperty("java.io.tmpdir"), "qms-audit").toString()));
+        try {
+            return new AuditSpillLog(directory);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Cannot open the audit spill log in " + directory + ", audit entries will be written synchronously", e);
+            return null;
+        }
+    }
+
+    private void run() {
+        List<AuditEntry> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    queue.fill(batch, batchSize);
+                }
+                if (batch.isEmpty()) {
+                    if (!running) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, flushIntervalNanos);
+                    continue;
+                }
+                write(batch);
+                boolean partial = batch.size() < batchSize;
+                batch.clear();
+                if (partial && running && !queue.isReplayPending()) {
+                    LockSupport.parkNanos(this, flushIntervalNanos);
+                }
+            } catch (SQLException | IOException | RuntimeException e) {
+                flushFailures.increment();
+                LOGGER.log(Level.WARNING, "Audit flush of " + batch.size() + " entries failed, retrying", e);
+                closeConnection();
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(this, retryDelayNanos);
+            }
+        }
+        closeConnection();
+        try {
+            spillLog.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing the audit spill log", e);
+        }
+    }
+
+    private void write(List<AuditEntry> batch) throws SQLException, IOException {
+        long start = flushTimer.start();
+        try {
+            spillLog.force();
+            if (connection == null) {
+                connection = DatabaseUtility.openDedicatedConnection();
+                connection.setAutoCommit(false);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+                for (AuditEntry entry : batch) {
+                    bind(statement, entry);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            connection.commit();
+        } finally {
+            flushTimer.stop(start);
+        }
+        written.add(batch.size());
+        queue.completed(batch);
+    }
+
+    private void writeSynchronously(AuditEntry entry) {
+        Connection pooled = null;
+        try {
+            pooled = DatabaseUtility.connect();
+            try (PreparedStatement statement = pooled.prepareStatement(INSERT_SQL)) {
+                bind(statement, entry);
+                statement.executeUpdate();
+            }
+            written.increment();
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Audit entry could not be stored: " + entry, e);
+        } finally {
+            DatabaseUtility.disconnect(pooled);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, AuditEntry entry) throws SQLException {
+        statement.setInt(1, entry.getUserId());
+        statement.setString(2, entry.getActionType());
+        statement.setString(3, entry.getDescription());
+        statement.setTimestamp(4, new Timestamp(entry.getRecordedAt()));
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                // the connection is being discarded
+            }
+            DatabaseUtility.disconnect(connection);
+            connection = null;
+        }
+    }
+}
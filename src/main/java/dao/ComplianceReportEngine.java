@@ -0,0 +1,519 @@
+package dao;
+
+import model.*;
+import utils.DatabaseUtility;
+import utils.ReadRoute;
+import utils.Metrics;
+import utils.ReportWriter;
+import java.io.IOException;
+import java.sql.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Builds compliance reports behind
+ * {@link DeviationDAO#writeComplianceReport(Date, Date, ReportWriter)} and
+ * {@link DeviationDAO#generateComplianceReport(Date, Date, int, Date, Date)}.
+ *
+ * <p>
+ * A report covers the deviations that occurred in a period and their reviews,
+ * approvals, assessments, CAPAs (investigations) and remarks. Each section is
+ * a single set-based query that joins its table to a {@code scope} CTE
+ * selecting the deviations in the period, so the cost does not grow with
+ * per-deviation round trips. The summary counts for every section come from
+ * one {@code UNION ALL} query over the same CTE. When archiving is enabled
+ * every query reads the views spanning the hot and archive tables (see
+ * {@link DeviationArchiver#withArchive(String)}), so a report on a past
+ * period does not change when its deviations are archived.
+ * </p>
+ *
+ * <p>
+ * The summary runs on a coordinating connection that opens a
+ * {@code REPEATABLE READ} transaction and exports its snapshot; the other
+ * sections run in parallel on their own pooled connections, each importing
+ * that snapshot, so every section sees the same data. Rows are fetched with a
+ * cursor and passed to the {@link ReportWriter} through a small bounded buffer
+ * per section: sections are written in order while later ones are already
+ * executing, and memory use does not depend on the size of the report.
+ * All of a report's connections come from one {@link ReadRoute}, a read
+ * replica when one is available, since a snapshot can only be imported on the
+ * server that exported it. A report on a single deviation is small: it runs
+ * every query in turn on one connection and one transaction instead, without
+ * taking a report permit.
+ * </p>
+ *
+ * <p>
+ * {@code report.parallelism} bounds the number of section queries per report,
+ * so a report holds at most {@code 1 + report.parallelism} connections;
+ * {@code report.maxConcurrent} bounds the number of reports generated at once
+ * and {@code report.fetchSize} is the cursor fetch size.
+ * </p>
+ */
+class ComplianceReportEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(ComplianceReportEngine.class.getName());
+    private static final Pattern SNAPSHOT_ID = Pattern.compile("[0-9A-F-]+");
+    private static final String TITLE = "Deviation Compliance Report";
+    private static final Object END = new Object();
+
+    private static final int PARALLELISM = Math.max(1, DatabaseUtility.getIntProperty("report.parallelism", 2));
+    private static final int FETCH_SIZE = Math.max(1, DatabaseUtility.getIntProperty("report.fetchSize", 1000));
+    private static final int BUFFER_ROWS = FETCH_SIZE * 2;
+    private static final Semaphore PERMITS = new Semaphore(Math.max(1, DatabaseUtility.getIntProperty("report.maxConcurrent", 2)), true);
+    private static final long PERMIT_TIMEOUT_SECONDS = 30L;
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+
+    private static final String DEVIATIONS = DeviationArchiver.withArchive("deviations");
+    private static final String APPROVALS = DeviationArchiver.withArchive("approvals");
+    private static final String ASSESSMENTS = DeviationArchiver.withArchive("deviation_assessments");
+    private static final String INVESTIGATIONS = DeviationArchiver.withArchive("investigations");
+    private static final String REMARKS = DeviationArchiver.withArchive("deviation_remarks");
+    private static final String CFT_REVIEWERS = DeviationArchiver.withArchive("cft_reviewers");
+    private static final String SUMMARY_SQL = "SELECT 'deviations by status' AS dimension, coalesce(status::text, 'none') AS key, count(*) AS count FROM scope GROUP BY 2"
+            + " UNION ALL SELECT 'deviations by severity', coalesce(deviation_severity::text, 'none'), count(*) FROM scope GROUP BY 2"
+            + " UNION ALL SELECT 'approvals by status', coalesce(a.approval_status::text, 'none'), count(*) FROM " + APPROVALS + " a JOIN scope s ON s.id = a.deviations_id%s GROUP BY 2"
+            + " UNION ALL SELECT 'assessments by type', coalesce(da.assessment_type::text, 'none'), count(*) FROM " + ASSESSMENTS + " da JOIN scope s ON s.id = da.deviations_id GROUP BY 2"
+            + " UNION ALL SELECT 'capas', 'total', count(*) FROM " + INVESTIGATIONS + " i JOIN scope s ON s.id = i.deviations_id"
+            + " UNION ALL SELECT 'remarks', 'total', count(*) FROM " + REMARKS + " r JOIN scope s ON s.id = r.deviations_id"
+            + " ORDER BY 1, 2";
+    private static final String APPROVALS_FILTER = " WHERE a.approval_date >= ?";
+
+    /**
+     * A report section: a query over the {@code scope} CTE. A {@code %s} in
+     * the query marks where the approval date filter goes.
+     */
+    private static final class Section {
+        private final String name;
+        private final String sql;
+
+        private Section(String name, String sql) {
+            this.name = name;
+            this.sql = sql;
+        }
+    }
+
+    private static final List<Section> SECTIONS = Collections.unmodifiableList(Arrays.asList(
+            new Section("Deviations", "SELECT d.id, d.deviation_number, d.date_of_occurrence, d.deviation_type, d.deviation_severity,"
+                    + " d.status, d.description, d.risk_assessment FROM " + DEVIATIONS + " d JOIN scope s ON s.id = d.id ORDER BY d.id"),
+            new Section("Reviews", ", cft AS (SELECT c.deviation_id, string_agg(c.user_id::text, ',' ORDER BY c.user_id) AS cft_reviewers"
+                    + " FROM " + CFT_REVIEWERS + " c JOIN scope s ON s.id = c.deviation_id GROUP BY c.deviation_id)"
+                    + " SELECT d.id AS deviation_id, d.status, d.review_decision, d.review_comment, d.justification_for_returning, cft.cft_reviewers"
+                    + " FROM " + DEVIATIONS + " d JOIN scope s ON s.id = d.id LEFT JOIN cft ON cft.deviation_id = d.id ORDER BY d.id"),
+            new Section("Approvals", "SELECT a.deviations_id, a.id, a.approval_date, a.approval_status, a.approver, a.approver_name,"
+                    + " a.approver_role, a.approval_comments FROM " + APPROVALS + " a JOIN scope s ON s.id = a.deviations_id%s ORDER BY a.deviations_id, a.id"),
+            new Section("Assessments", "SELECT da.deviations_id, da.id, da.assessment_date, da.assessment_type, da.deviation_severity,"
+                    + " da.assessment_result, da.assessment_score, da.probability_of_recurrence FROM " + ASSESSMENTS + " da"
+                    + " JOIN scope s ON s.id = da.deviations_id ORDER BY da.deviations_id, da.id"),
+            new Section("CAPAs", "SELECT i.* FROM " + INVESTIGATIONS + " i JOIN scope s ON s.id = i.deviations_id ORDER BY i.deviations_id, i.id"),
+            new Section("Remarks", "SELECT r.deviations_id, r.created_at, r.content FROM " + REMARKS + " r"
+                    + " JOIN scope s ON s.id = r.deviations_id ORDER BY r.deviations_id, r.created_at")));
+
+    /**
+     * Collects a report in memory, for reports small enough to return as a
+     * {@link ComplianceReport}.
+     */
+    static final class Collector implements ReportWriter {
+        private final Map<String, List<Map<String, Object>>> sections = new LinkedHashMap<>();
+        private List<String> columns;
+        private List<Map<String, Object>> rows;
+
+        Map<String, List<Map<String, Object>>> getSections() {
+            return sections;
+        }
+
+        @Override
+        public void beginReport(String title, Map<String, String> attributes) {
+        }
+
+        @Override
+        public void beginSection(String name, List<String> columns) {
+            this.columns = columns;
+            this.rows = new ArrayList<>();
+            sections.put(name, rows);
+        }
+
+        @Override
+        public void row(Object[] values) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                row.put(columns.get(i), values[i]);
+            }
+            rows.add(row);
+        }
+
+        @Override
+        public void endSection() {
+        }
+
+        @Override
+        public void endReport() {
+        }
+    }
+
+    private final Date startDate;
+    private final Date endDate;
+    private final Integer deviationId;
+    private final Date approvalsSince;
+    private volatile boolean cancelled;
+
+    /**
+     * @param startDate      the first day of the period, or {@code null} for
+     *                       no lower bound
+     * @param endDate        the last day of the period, or {@code null} for no
+     *                       upper bound
+     * @param deviationId    restricts the report to one deviation, or
+     *                       {@code null}
+     * @param approvalsSince only approvals given on or after this date are
+     *                       reported, or {@code null} for all
+     */
+    ComplianceReportEngine(Date startDate, Date endDate, Integer deviationId, Date approvalsSince) {
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.deviationId = deviationId;
+        this.approvalsSince = approvalsSince;
+    }
+
+    /**
+     * Generates the report into {@code writer}.
+     *
+     * @param writer receives the report
+     * @return the summary of the written report
+     * @throws SQLException if a query fails or too many reports are in
+     *                      progress
+     * @throws IOException  if the writer fails
+     */
+    ComplianceReport write(ReportWriter writer) throws SQLException, IOException {
+        if (deviationId != null) {
+            return writeSingle(writer);
+        }
+        try {
+            if (!PERMITS.tryAcquire(PERMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new SQLTransientException("Too many compliance reports in progress");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientException("Interrupted while waiting to generate a compliance report", e);
+        }
+        Metrics.Timer timer = Metrics.timer("report.compliance");
+        long start = timer.start();
+        ExecutorService executor = null;
+        Connection coordinator = null;
+        ReadRoute route = DatabaseUtility.readRoute();
+        try {
+            coordinator = route.connect();
+            beginRepeatableRead(coordinator);
+            String snapshot = exportSnapshot(coordinator);
+
+            executor = Executors.newFixedThreadPool(Math.min(PARALLELISM, SECTIONS.size()), runnable -> {
+                Thread thread = new Thread(runnable, "compliance-report-" + THREAD_NUMBER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            List<BlockingQueue<Object>> buffers = new ArrayList<>();
+            for (Section section : SECTIONS) {
+                BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(BUFFER_ROWS);
+                buffers.add(buffer);
+                executor.execute(() -> produce(route, section, snapshot, buffer));
+            }
+
+            ComplianceReport report = newReport();
+            writer.beginReport(TITLE, attributes(report));
+            writeSummary(coordinator, report, writer);
+            for (int i = 0; i < SECTIONS.size(); i++) {
+                report.getSectionRowCounts().put(SECTIONS.get(i).name, consume(buffers.get(i), writer));
+            }
+            writer.endReport();
+            coordinator.commit();
+            return report;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while generating a compliance report", e);
+        } finally {
+            cancelled = true;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (coordinator != null) {
+                try {
+                    coordinator.rollback();
+                } catch (SQLException e) {
+                    LOGGER.log(Level.FINE, "Error ending the report transaction", e);
+                }
+                DatabaseUtility.disconnect(coordinator);
+            }
+            timer.stop(start);
+            PERMITS.release();
+        }
+    }
+
+    /**
+     * Writes a single-deviation report from one connection: the summary and
+     * then each section, all in one read-only transaction.
+     */
+    private ComplianceReport writeSingle(ReportWriter writer) throws SQLException, IOException {
+        Metrics.Timer timer = Metrics.timer("report.compliance");
+        long start = timer.start();
+        Connection connection = null;
+        try {
+            connection = DatabaseUtility.readRoute().connect();
+            beginRepeatableRead(connection);
+            ComplianceReport report = newReport();
+            writer.beginReport(TITLE, attributes(report));
+            writeSummary(connection, report, writer);
+            for (Section section : SECTIONS) {
+                report.getSectionRowCounts().put(section.name, writeSection(connection, section, writer));
+            }
+            writer.endReport();
+            connection.commit();
+            return report;
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.rollback();
+                } catch (SQLException e) {
+                    LOGGER.log(Level.FINE, "Error ending the report transaction", e);
+                }
+                DatabaseUtility.disconnect(connection);
+            }
+            timer.stop(start);
+        }
+    }
+
+    /**
+     * Starts a read-only {@code REPEATABLE READ} transaction. The isolation
+     * level is set for the transaction only, so the connection goes back to
+     * the pool with its session defaults.
+     */
+    private static void beginRepeatableRead(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+        }
+    }
+
+    private ComplianceReport newReport() {
+        ComplianceReport report = new ComplianceReport();
+        report.setStartDate(startDate);
+        report.setEndDate(endDate);
+        report.setDeviationId(deviationId);
+        report.setGeneratedAt(new Timestamp(System.currentTimeMillis()));
+        return report;
+    }
+
+    private static String exportSnapshot(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT pg_export_snapshot()")) {
+            resultSet.next();
+            String snapshot = resultSet.getString(1);
+            if (!SNAPSHOT_ID.matcher(snapshot).matches()) {
+                throw new SQLException("Unexpected snapshot id " + snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    private Map<String, String> attributes(ComplianceReport report) {
+        SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("Period", (startDate == null ? "..." : day.format(startDate)) + " to " + (endDate == null ? "..." : day.format(endDate)));
+        if (deviationId != null) {
+            attributes.put("Deviation", deviationId.toString());
+        }
+        if (approvalsSince != null) {
+            attributes.put("Approvals since", day.format(approvalsSince));
+        }
+        attributes.put("Generated at", report.getGeneratedAt().toString());
+        return attributes;
+    }
+
+    private void writeSummary(Connection connection, ComplianceReport report, ReportWriter writer) throws SQLException, IOException {
+        try (PreparedStatement statement = prepare(connection, SUMMARY_SQL)) {
+            writer.beginSection("Summary", Arrays.asList("dimension", "key", "count"));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String dimension = resultSet.getString(1);
+                    String key = resultSet.getString(2);
+                    long count = resultSet.getLong(3);
+                    report.getSummary().computeIfAbsent(dimension, d -> new LinkedHashMap<>()).put(key, count);
+                    writer.row(new Object[] { dimension, key, count });
+                }
+            }
+            writer.endSection();
+        }
+    }
+
+    private long writeSection(Connection connection, Section section, ReportWriter writer) throws SQLException, IOException {
+        long rows = 0;
+        try (PreparedStatement statement = prepare(connection, section.sql)) {
+            statement.setFetchSize(FETCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                int columnCount = metaData.getColumnCount();
+                writer.beginSection(section.name, columns(metaData));
+                while (resultSet.next()) {
+                    Object[] row = new Object[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        row[i] = resultSet.getObject(i + 1);
+                    }
+                    writer.row(row);
+                    rows++;
+                }
+            }
+        }
+        writer.endSection();
+        return rows;
+    }
+
+    private static List<String> columns(ResultSetMetaData metaData) throws SQLException {
+        List<String> columns = new ArrayList<>(metaData.getColumnCount());
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            columns.add(metaData.getColumnLabel(i));
+        }
+        return columns;
+    }
+
+    /**
+     * Runs one section on its own connection inside the exported snapshot and
+     * feeds the column labels, the rows and finally {@link #END} (or the
+     * failure) into {@code buffer}.
+     */
+    private void produce(ReadRoute route, Section section, String snapshot, BlockingQueue<Object> buffer) {
+        Connection connection = null;
+        try {
+            connection = route.connect();
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+                statement.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            }
+            try (PreparedStatement statement = prepare(connection, section.sql)) {
+                statement.setFetchSize(FETCH_SIZE);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    ResultSetMetaData metaData = resultSet.getMetaData();
+                    int columnCount = metaData.getColumnCount();
+                    put(buffer, new Header(section.name, columns(metaData)));
+                    while (resultSet.next()) {
+                        Object[] row = new Object[columnCount];
+                        for (int i = 0; i < columnCount; i++) {
+                            row[i] = resultSet.getObject(i + 1);
+                        }
+                        if (!put(buffer, row)) {
+                            return;
+                        }
+                    }
+                }
+            }
+            put(buffer, END);
+        } catch (SQLException | RuntimeException e) {
+            put(buffer, new SectionFailure(section.name, e));
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.rollback();
+                } catch (SQLException e) {
+                    LOGGER.log(Level.FINE, "Error ending the section transaction", e);
+                }
+                DatabaseUtility.disconnect(connection);
+            }
+        }
+    }
+
+    private long consume(BlockingQueue<Object> buffer, ReportWriter writer) throws SQLException, IOException, InterruptedException {
+        long rows = 0;
+        while (true) {
+            Object item = buffer.take();
+            if (item == END) {
+                writer.endSection();
+                return rows;
+            } else if (item instanceof Header) {
+                writer.beginSection(((Header) item).name, ((Header) item).columns);
+            } else if (item instanceof SectionFailure) {
+                SectionFailure failure = (SectionFailure) item;
+                throw new SQLException("Error generating report section " + failure.section, failure.cause);
+            } else {
+                writer.row((Object[]) item);
+                rows++;
+            }
+        }
+    }
+
+    private boolean put(BlockingQueue<Object> buffer, Object item) {
+        try {
+            while (!cancelled) {
+                if (buffer.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private PreparedStatement prepare(Connection connection, String body) throws SQLException {
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("WITH scope AS (SELECT id, status, deviation_severity FROM " + DEVIATIONS + " WHERE TRUE");
+        if (startDate != null) {
+            sql.append(" AND date_of_occurrence >= ?");
+            parameters.add(new java.sql.Date(startDate.getTime()));
+        }
+        if (endDate != null) {
+            sql.append(" AND date_of_occurrence <= ?");
+            parameters.add(new java.sql.Date(endDate.getTime()));
+        }
+        if (deviationId != null) {
+            sql.append(" AND id = ?");
+            parameters.add(deviationId);
+        }
+        sql.append(body.startsWith(",") ? ")" : ") ");
+        if (body.contains("%s")) {
+            sql.append(String.format(body, approvalsSince == null ? "" : APPROVALS_FILTER));
+            if (approvalsSince != null) {
+                parameters.add(new java.sql.Date(approvalsSince.getTime()));
+            }
+        } else {
+            sql.append(body);
+        }
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setObject(i + 1, parameters.get(i));
+        }
+        return statement;
+    }
+
+    private static final class Header {
+        private final String name;
+        private final List<String> columns;
+
+        private Header(String name, List<String> columns) {
+            this.name = name;
+            this.columns = columns;
+        }
+    }
+
+    private static final class SectionFailure {
+        private final String section;
+        private final Exception cause;
+
+        private SectionFailure(String section, Exception cause) {
+            this.section = section;
+            this.cause = cause;
+        }
+    }
+}
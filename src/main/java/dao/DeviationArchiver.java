@@ -0,0 +1,293 @@
+package dao;
+
+import utils.DatabaseUtility;
+import utils.JdbcSession;
+import utils.JdbcTemplate;
+import utils.Metrics;
+import utils.ParameterBinder;
+import utils.RowMapper;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves closed deviations out of the hot tables, so that years of finished
+ * work do not bloat the indexes every workflow {@code UPDATE} maintains.
+ *
+ * <p>
+ * Every {@code archive.intervalMinutes} the archiver moves the deviations
+ * closed with {@link DeviationDAO#closeDeviation} and unchanged for
+ * {@code archive.retentionDays}, oldest first, into
+ * {@code deviations_archive}, together with their assessments, approvals,
+ * remarks, investigations, CFT reviewers and notifications, each into the
+ * {@code _archive} table of the same name. A batch of
+ * {@code archive.batchSize} deviations is locked with
+ * {@code FOR UPDATE SKIP LOCKED} and moved with one
+ * {@code DELETE ... RETURNING} feeding an {@code INSERT} per table, in a
+ * single transaction, so a deviation is always in exactly one place and
+ * several nodes can archive at once without moving the same rows. Batches are
+ * separated by {@code archive.batchPauseMillis} and a run stops after
+ * {@code archive.maxBatchesPerRun}, which bounds the load the moves put on
+ * the primary and its replicas. The move publishes a {@link DeviationCache}
+ * invalidation for every deviation, so caches, indexes and push subscribers
+ * drop it as they would a deleted one.
+ * </p>
+ *
+ * <p>
+ * {@code deviations_archive} is partitioned by year of occurrence. The
+ * partition for a year is created before the first deviation of that year is
+ * moved; deviations without a date of occurrence go to the default
+ * partition. Every {@code archive.maintenanceIntervalMinutes} a maintenance
+ * run creates the partitions that the closed deviations still in the hot
+ * table will need, and vacuums and analyzes the tables that rows were moved
+ * out of and into since the previous run, so the space and the planner
+ * statistics of the hot tables follow the moves.
+ * </p>
+ *
+ * <p>
+ * Reads that ask for historical data go through views spanning both, such as
+ * {@code deviations_all}. The archive tables copy the columns of the hot
+ * tables in the same order, and a column added to a hot table must be added
+ * to its archive table too:
+ * </p>
+ *
+ * <pre>{@code
+ * CREATE INDEX deviations_updated_at_idx ON deviations (updated_at);
+ * CREATE TABLE deviations_archive (LIKE deviations INCLUDING DEFAULTS) PARTITION BY RANGE (date_of_occurrence);
+ * CREATE TABLE deviations_archive_default PARTITION OF deviations_archive DEFAULT;
+ * CREATE INDEX ON deviations_archive (id);
+ * CREATE INDEX ON deviations_archive (deviation_number);
+ * CREATE INDEX ON deviations_archive ((coalesce(date_of_occurrence, '-infinity'::date)) DESC, id DESC);
+ * CREATE VIEW deviations_all AS SELECT * FROM deviations UNION ALL SELECT * FROM deviations_archive;
+ * CREATE TABLE deviation_assessments_archive (LIKE deviation_assessments INCLUDING DEFAULTS);
+ * CREATE INDEX ON deviation_assessments_archive (deviations_id);
+ * CREATE VIEW deviation_assessments_all AS SELECT * FROM deviation_assessments UNION ALL SELECT * FROM deviation_assessments_archive;
+ * -- likewise for approvals, deviation_remarks, investigations, notifications (deviations_id)
+ * -- and cft_reviewers (deviation_id)
+ * }</pre>
+ */
+public final class DeviationArchiver {
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationArchiver.class.getName());
+
+    /** The tables moved with each deviation and their column referencing it, in the order they are moved. */
+    private static final Map<String, String> CHILD_TABLES = new LinkedHashMap<>();
+
+    static {
+        CHILD_TABLES.put("notifications", "deviations_id");
+        CHILD_TABLES.put("cft_reviewers", "deviation_id");
+        CHILD_TABLES.put("deviation_remarks", "deviations_id");
+        CHILD_TABLES.put("approvals", "deviations_id");
+        CHILD_TABLES.put("investigations", "deviations_id");
+        CHILD_TABLES.put("deviation_assessments", "deviations_id");
+    }
+
+    private static final String CANDIDATES_SQL = "SELECT id, extract(year FROM date_of_occurrence)::integer AS year FROM deviations"
+            + " WHERE upper(status::text) = ANY(?) AND updated_at < now() - make_interval(days => ?)"
+            + " ORDER BY updated_at, id LIMIT ? FOR UPDATE SKIP LOCKED";
+    private static final String MOVE_CHILDREN_SQL = "WITH moved AS (DELETE FROM %1$s WHERE %2$s = ANY(?) RETURNING *)"
+            + " INSERT INTO %1$s_archive SELECT * FROM moved";
+    private static final String MOVE_DEVIATIONS_SQL = "WITH moved AS (DELETE FROM deviations WHERE id = ANY(?) RETURNING *),"
+            + " archived AS (INSERT INTO deviations_archive SELECT * FROM moved RETURNING id),"
+            + " notified AS (" + String.format(DeviationCache.NOTIFY_EACH_SQL, "archived") + ")"
+            + " SELECT count(*) FROM notified";
+    private static final String PENDING_YEARS_SQL = "SELECT DISTINCT extract(year FROM date_of_occurrence)::integer FROM deviations"
+            + " WHERE upper(status::text) = ANY(?) AND date_of_occurrence IS NOT NULL";
+    private static final String CREATE_PARTITION_SQL = "CREATE TABLE IF NOT EXISTS deviations_archive_%1$d PARTITION OF deviations_archive"
+            + " FOR VALUES FROM ('%1$d-01-01') TO ('%2$d-01-01')";
+
+    private static final DeviationArchiver INSTANCE = new DeviationArchiver();
+
+    private final int retentionDays = Math.max(1, DatabaseUtility.getIntProperty("archive.retentionDays", 730));
+    private final int batchSize = Math.max(1, DatabaseUtility.getIntProperty("archive.batchSize", 200));
+    private final long batchPauseMillis = Math.max(0, DatabaseUtility.getIntProperty("archive.batchPauseMillis", 1000));
+    private final int maxBatchesPerRun = Math.max(1, DatabaseUtility.getIntProperty("archive.maxBatchesPerRun", 100));
+    private final long intervalMillis = Math.max(1, DatabaseUtility.getIntProperty("archive.intervalMinutes", 60)) * 60000L;
+    private final long maintenanceIntervalMillis = Math.max(1, DatabaseUtility.getIntProperty("archive.maintenanceIntervalMinutes", 1440)) * 60000L;
+
+    private final String[] closedStatuses = DeviationWorkflow.closedStatuses();
+    /** Years known to have a partition; only used on the archiver thread. */
+    private final Set<Integer> partitions = new HashSet<>();
+    /** Tables rows were moved out of or into since the last maintenance; only used on the archiver thread. */
+    private final Set<String> changedTables = new LinkedHashSet<>();
+    private final LongAdder moved = Metrics.counter("archive.deviations");
+    private final LongAdder batches = Metrics.counter("archive.batches");
+    private final LongAdder failures = Metrics.counter("archive.failures");
+
+    private ScheduledExecutorService executor;
+
+    private DeviationArchiver() {
+    }
+
+    /**
+     * @return the node-wide archiver
+     */
+    public static DeviationArchiver getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Names the relation to read a table from when historical data is
+     * wanted: the view spanning its hot and archive tables if archiving is
+     * enabled, the table itself otherwise.
+     *
+     * @param table a table moved by the archiver, such as {@code deviations}
+     * @return the table or view name
+     */
+    static String withArchive(String table) {
+        return isEnabled() ? table + "_all" : table;
+    }
+
+    /**
+     * @return whether {@code archive.enabled} is set, and so whether the
+     *         archive tables and views exist
+     */
+    static boolean isEnabled() {
+        return Boolean.parseBoolean(DatabaseUtility.getProperty("archive.enabled", "false").trim());
+    }
+
+    /**
+     * Starts archiving and partition maintenance if
+     * {@code archive.enabled} is {@code true}; the archive tables must exist
+     * first. Does nothing if the archiver is already running.
+     */
+    public synchronized void start() {
+        if (executor != null || !isEnabled()) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deviation-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::maintain, 0L, maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::archive, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Deviation archiver started; deviations closed for " + retentionDays + " days are archived");
+    }
+
+    /**
+     * Stops the archiver. A batch in progress is rolled back.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void archive() {
+        int total = 0;
+        try {
+            for (int batch = 0; batch < maxBatchesPerRun && !Thread.currentThread().isInterrupted(); batch++) {
+                int count = JdbcTemplate.inTransaction(this::moveBatch);
+                total += count;
+                if (count < batchSize) {
+                    break;
+                }
+                Thread.sleep(batchPauseMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException | RuntimeException e) {
+            // A partition created by the failed batch was rolled back with it
+            partitions.clear();
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Error archiving closed deviations; the batch was rolled back and is retried on the next run", e);
+        }
+        if (total > 0) {
+            LOGGER.info("Archived " + total + " closed deviations");
+        }
+    }
+
+    /**
+     * Moves one batch of deviations and the rows referencing them.
+     *
+     * @return the number of deviations moved
+     */
+    private int moveBatch(JdbcSession session) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        Set<Integer> years = new HashSet<>();
+        session.forEach(CANDIDATES_SQL, ParameterBinder.of(session.getConnection().createArrayOf("text", closedStatuses), retentionDays, batchSize), 0,
+                resultSet -> {
+                    int year = resultSet.getInt(2);
+                    if (!resultSet.wasNull()) {
+                        years.add(year);
+                    }
+                    return resultSet.getInt(1);
+                }, ids::add);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        for (int year : years) {
+            ensurePartition(session, year);
+        }
+        Array idArray = session.getConnection().createArrayOf("integer", ids.toArray());
+        for (Map.Entry<String, String> table : CHILD_TABLES.entrySet()) {
+            if (session.update(String.format(MOVE_CHILDREN_SQL, table.getKey(), table.getValue()), ParameterBinder.of(idArray)) > 0) {
+                changedTables.add(table.getKey());
+                changedTables.add(table.getKey() + "_archive");
+            }
+        }
+        int count = session.queryOne(MOVE_DEVIATIONS_SQL, ParameterBinder.of(idArray, DeviationCache.channel()), RowMapper.FIRST_INT);
+        changedTables.add("deviations");
+        changedTables.add("deviations_archive");
+        for (int id : ids) {
+            DeviationCache.evictLocal(id);
+        }
+        moved.add(count);
+        batches.increment();
+        return count;
+    }
+
+    private void ensurePartition(JdbcSession session, int year) throws SQLException {
+        if (!partitions.contains(year)) {
+            try (Statement statement = session.getConnection().createStatement()) {
+                statement.execute(String.format(CREATE_PARTITION_SQL, year, year + 1));
+            }
+            partitions.add(year);
+        }
+    }
+
+    private void maintain() {
+        try {
+            List<Integer> years = JdbcTemplate.execute(session -> session.query(PENDING_YEARS_SQL,
+                    ParameterBinder.of(session.getConnection().createArrayOf("text", closedStatuses)), RowMapper.FIRST_INT));
+            for (int year : years) {
+                JdbcTemplate.execute(session -> {
+                    ensurePartition(session, year);
+                    return null;
+                });
+            }
+            List<String> tables = new ArrayList<>(changedTables);
+            changedTables.clear();
+            Collections.sort(tables);
+            JdbcTemplate.execute(session -> {
+                try (Statement statement = session.getConnection().createStatement()) {
+                    for (String table : tables) {
+                        // VACUUM cannot run in a transaction; the session is in auto-commit mode
+                        statement.execute(table.endsWith("_archive") ? "ANALYZE " + table : "VACUUM (ANALYZE) " + table);
+                    }
+                }
+                return null;
+            });
+            if (!tables.isEmpty()) {
+                LOGGER.info("Archive maintenance vacuumed and analyzed " + tables);
+            }
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Error maintaining the deviation archive partitions", e);
+        }
+    }
+}
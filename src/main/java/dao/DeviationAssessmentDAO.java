@@ -3,44 +3,122 @@ package dao;
 
 import model.*;
 import java.util.logging.Logger;
-import utils.DatabaseUtility;
+import com.google.gson.stream.JsonWriter;
+import utils.JdbcSession;
+import utils.JdbcTemplate;
+import utils.ParameterBinder;
+import utils.RowMapper;
 import java.sql.*;
 import java.util.logging.*;
 import java.util.*;
+import java.util.Date;
 
 public class DeviationAssessmentDAO {
 
+    /**
+     * Stream formats supported by {@link #importAssessments(java.io.InputStream, CopyFormat)}
+     * and {@link #exportAssessments(java.io.OutputStream, CopyFormat)}.
+     */
+    public enum CopyFormat {
+        /** CSV with a header row. */
+        CSV,
+        /** PostgreSQL binary COPY format. */
+        BINARY
+    }
 
 /**
      * Retrieves a list of DeviationAssessment objects associated with a specific deviation.
+     * Results are served from {@link DeviationCache} when possible and loaded from the
+     * database on a miss.
      *
      * @param deviationsId The ID of the deviation for which to retrieve assessments.
      * @return A list of DeviationAssessment objects linked to the specified deviation, or an empty list if no assessments are found.
      */
     public List<DeviationAssessment> viewAssessments(int deviationsId) {
-        String sql = "SELECT * FROM deviation_assessments WHERE deviations_id = ?";
-        List<DeviationAssessment> assessments = new ArrayList<>();
-
-        try (Connection connection = DatabaseUtility.connect();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-
-            statement.setInt(1, deviationsId);
-            ResultSet resultSet = statement.executeQuery();
-
-            while (resultSet.next()) {
-                DeviationAssessment assessment = new DeviationAssessment();
-                assessment.setId(resultSet.getInt("id"));
-                assessment.setAssessmentDate(resultSet.getDate("assessment_date"));
-                assessment.setAssessmentResult(resultSet.getString("assessment_result"));
-                assessment.setAssessmentScore(resultSet.getDouble("assessment_score"));
-                assessment.setAssessmentType(Enums.AssessmentType.valueOf(resultSet.getString("assessment_type")));
-                assessment.setDeviationsId(resultSet.getInt("deviations_id"));
-                assessments.add(assessment);
-            }
+        try {
+            return DeviationCache.assessments().get(deviationsId, this::loadAssessments);
         } catch (SQLException ex) {
             Logger.getLogger(this.getClass().getName()).severe("Error retrieving deviation assessments: " + ex.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+/**
+     * Retrieves the assessments of a deviation, optionally looking in the archive
+     * when the deviation is no longer in the hot tables (see {@link DeviationArchiver}).
+     * A deviation's assessments are always archived together with it.
+     *
+     * @param deviationsId    The ID of the deviation for which to retrieve assessments.
+     * @param includeArchived {@code true} to read historical data from the archive as well.
+     * @return The assessments of the deviation, or an empty list if none are found or an error occurred.
+     */
+    public List<DeviationAssessment> viewAssessments(int deviationsId, boolean includeArchived) {
+        List<DeviationAssessment> assessments = viewAssessments(deviationsId);
+        if (!assessments.isEmpty() || !includeArchived || !DeviationArchiver.isEnabled()) {
+            return assessments;
+        }
+        try {
+            String sql = "SELECT * FROM deviation_assessments_archive WHERE deviations_id = ? ORDER BY id";
+            return JdbcTemplate.query(sql, ParameterBinder.of(deviationsId), RowMappers.ASSESSMENT);
+        } catch (SQLException ex) {
+            Logger.getLogger(this.getClass().getName()).severe("Error retrieving archived deviation assessments: " + ex.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private List<DeviationAssessment> loadAssessments(int deviationsId) throws SQLException {
+        String sql = "SELECT * FROM deviation_assessments WHERE deviations_id = ?";
+        return Collections.unmodifiableList(JdbcTemplate.query(sql, ParameterBinder.of(deviationsId), RowMappers.ASSESSMENT));
+    }
+
+/**
+     * Writes the assessments of a deviation as a JSON array straight from the
+     * result set, without building {@link DeviationAssessment} objects.
+     *
+     * @param deviationsId The ID of the deviation whose assessments to write.
+     * @param json         Receives the array.
+     * @return The number of assessments written.
+     * @throws SQLException If a database access error occurs.
+     * @throws java.io.IOException If the writer fails.
+     */
+    public long writeAssessments(int deviationsId, JsonWriter json) throws SQLException, java.io.IOException {
+        String sql = "SELECT * FROM deviation_assessments WHERE deviations_id = ? ORDER BY id";
+        return JsonRowWriters.writeArray(sql, ParameterBinder.of(deviationsId), 0, JsonRowWriters.ASSESSMENT, json);
+    }
+
+/**
+     * Retrieves the assessments of several deviations with a single query, for
+     * screens that show many deviations at once. Deviations already held in
+     * {@link DeviationCache} are served from it; the rest are fetched together
+     * with {@code deviations_id = ANY(?)}.
+     *
+     * @param deviationsIds The IDs of the deviations for which to retrieve assessments.
+     * @return The assessments keyed by deviation ID, in the iteration order of {@code deviationsIds}; every requested
+     *         ID is present, with an empty list if it has no assessments.
+     * @throws SQLException If a database access error occurs.
+     */
+    public Map<Integer, List<DeviationAssessment>> viewAssessments(Collection<Integer> deviationsIds) throws SQLException {
+        Map<Integer, List<DeviationAssessment>> result = new LinkedHashMap<>(DeviationCache.assessments().getAll(new LinkedHashSet<>(deviationsIds),
+                this::loadAssessments));
+        for (Integer deviationsId : deviationsIds) {
+            result.putIfAbsent(deviationsId, Collections.emptyList());
+        }
+        return result;
+    }
+
+    private Map<Integer, List<DeviationAssessment>> loadAssessments(Collection<Integer> deviationsIds) throws SQLException {
+        String sql = "SELECT * FROM deviation_assessments WHERE deviations_id = ANY(?) ORDER BY deviations_id, id";
+        Map<Integer, List<DeviationAssessment>> assessments = new HashMap<>();
+        for (Integer deviationsId : deviationsIds) {
+            assessments.put(deviationsId, new ArrayList<>());
         }
 
+        try (JdbcSession session = JdbcTemplate.open()) {
+            session.forEach(sql, statement -> statement.setArray(1, statement.getConnection().createArrayOf("integer", deviationsIds.toArray())),
+                    0, RowMappers.ASSESSMENT, assessment -> assessments.get(assessment.getDeviationsId()).add(assessment));
+        }
+
+        assessments.replaceAll((deviationsId, list) -> Collections.unmodifiableList(list));
         return assessments;
     }
 
@@ -51,24 +129,20 @@ public class DeviationAssessmentDAO {
      * @return A boolean indicating whether the update was successful or not.
      */
     public boolean updateAssessment(DeviationAssessment deviationAssessment) {
-        Connection connection = DatabaseUtility.connect();
-        try (PreparedStatement statement = connection.prepareStatement(
-                "UPDATE deviation_assessments SET assessment_date = ?, assessment_result = ?, assessment_score = ?, assessment_type = ? WHERE id = ? AND deviations_id = ?")) {
-
-            statement.setDate(1, new java.sql.Date(deviationAssessment.getAssessmentDate().getTime()));
-            statement.setString(2, deviationAssessment.getAssessmentResult());
-            statement.setDouble(3, deviationAssessment.getAssessmentScore());
-            statement.setString(4, deviationAssessment.getAssessmentType().name());
-            statement.setInt(5, deviationAssessment.getId());
-            statement.setInt(6, deviationAssessment.getDeviationsId());
-
-            int rowsUpdated = statement.executeUpdate();
-            return rowsUpdated > 0;
+        // Update the assessment, mark its deviation as changed and publish the invalidation in one statement
+        String sql = "WITH changed AS (UPDATE deviation_assessments SET assessment_date = ?, assessment_result = ?, assessment_score = ?, assessment_type = ? WHERE id = ? AND deviations_id = ? RETURNING deviations_id), "
+                + String.format(DeviationWorkflow.TOUCH_AND_NOTIFY_EACH_SQL, "changed") + " SELECT id, (SELECT count(*) FROM notified) FROM touched";
+        try (JdbcSession session = JdbcTemplate.open()) {
+            List<Integer> deviationsIds = session.query(sql, ParameterBinder.of(deviationAssessment.getAssessmentDate(), deviationAssessment.getAssessmentResult(),
+                    deviationAssessment.getAssessmentScore(), deviationAssessment.getAssessmentType(), deviationAssessment.getId(),
+                    deviationAssessment.getDeviationsId(), DeviationCache.channel()), RowMapper.FIRST_INT);
+            for (int deviationsId : deviationsIds) {
+                DeviationCache.evictLocal(deviationsId);
+            }
+            return !deviationsIds.isEmpty();
         } catch (SQLException ex) {
             Logger.getLogger(this.getClass().getName()).severe("Error updating deviation assessment: " + ex.getMessage());
             return false;
-        } finally {
-            DatabaseUtility.disconnect(connection);
         }
     }
 
@@ -78,11 +152,15 @@ public class DeviationAssessmentDAO {
      * @return boolean
      */
     public boolean deleteAssessment(int id) {
-        String sql = "DELETE FROM deviation_assessments WHERE id = ?";
-        try (Connection connection = DatabaseUtility.connect();
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setInt(1, id);
-            int rowsAffected = statement.executeUpdate();
+        // Delete the assessment, mark its deviation as changed and publish the invalidation in one statement
+        String sql = "WITH deleted AS (DELETE FROM deviation_assessments WHERE id = ? RETURNING deviations_id), "
+                + String.format(DeviationWorkflow.TOUCH_AND_NOTIFY_EACH_SQL, "deleted") + " SELECT id, (SELECT count(*) FROM notified) FROM touched";
+        try (JdbcSession session = JdbcTemplate.open()) {
+            List<Integer> deviationsIds = session.query(sql, ParameterBinder.of(id, DeviationCache.channel()), RowMapper.FIRST_INT);
+            for (int deviationsId : deviationsIds) {
+                DeviationCache.evictLocal(deviationsId);
+            }
+            int rowsAffected = deviationsIds.size();
             Logger.getLogger(this.getClass().getName()).info("Rows affected: " + rowsAffected);
             return rowsAffected > 0;
         } catch (SQLException ex) {
@@ -92,7 +170,9 @@ public class DeviationAssessmentDAO {
     }
 
 /**
- * This method is used to create a new deviation assessment and update the deviation status.
+ * This method is used to create a new deviation assessment and update the deviation status. The assessment is
+ * always stored; the deviation moves to {@code PENDING_QA_REVIEW} in the same statement only if the workflow allows
+ * it from its current status, and otherwise keeps its status and is only marked as changed.
  *
  * @param probabilityOfRecurrence The likelihood of the deviation recurring.
  * @param assessmentDate The date the assessment was conducted.
@@ -102,54 +182,73 @@ public class DeviationAssessmentDAO {
  * @param deviationsId The ID of the deviation associated with this assessment.
  * @param assessmentType The type of assessment conducted (e.g., cause, impact).
  * @param deviationSeverity The severity level of the deviation.
- * @param isTheDeviationRepeated Whether the deviation has occurred before.
- * @param historicalDeviations The number of previous occurrences of the deviation.
+ * @param isTheDeviationRepeated Whether the deviation has occurred before, or {@code null} to take it from {@link #suggestRecurrence(int)}.
+ * @param historicalDeviations The number of previous occurrences of the deviation, or {@code null} to take it from {@link #suggestRecurrence(int)}.
  * @param anyMarketActionsRequired Any necessary actions related to the market.
  * @param comments Additional comments or notes about the assessment.
  * @param fileAttachment The ID of any attached file related to the assessment.
- * @return The ID of the newly created deviation assessment.
+ * @return The new assessment and the outcome of the status change, or {@code null} if the deviation does not exist.
  * @throws SQLException If a database error occurs.
  */
-public Integer createAssessment(Integer probabilityOfRecurrence, Date assessmentDate, Date deviationCloserDate, String assessmentResult, Double assessmentScore, Integer deviationsId, Enums.AssessmentType assessmentType, Enums.DeviationSeverity deviationSeverity, Boolean isTheDeviationRepeated, Integer historicalDeviations, String anyMarketActionsRequired, String comments, Integer fileAttachment) throws SQLException {
+public AssessmentCreation createAssessment(Integer probabilityOfRecurrence, Date assessmentDate, Date deviationCloserDate, String assessmentResult, Double assessmentScore, Integer deviationsId, Enums.AssessmentType assessmentType, Enums.DeviationSeverity deviationSeverity, Boolean isTheDeviationRepeated, Integer historicalDeviations, String anyMarketActionsRequired, String comments, Integer fileAttachment) throws SQLException {
     Logger.getLogger(this.getClass().getName()).severe("Creating a new deviation assessment");
-    Connection connection = DatabaseUtility.connect();
-    try {
-        String sql = "INSERT INTO deviation_assessments (probability_of_recurrence, assessment_date, deviation_closer_date, assessment_result, assessment_score, deviations_id, assessment_type, deviation_severity, is_the_deviation_repeated, historical_deviations, any_market_actions_required, comments, file_attachment) VALUES (?, ?, ?, ?, ?, ?, ?::assessment_type, ?::deviation_severity, ?, ?, ?, ?, ?)";
-        PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-        statement.setObject(1, probabilityOfRecurrence);
-        statement.setDate(2, new java.sql.Date(assessmentDate.getTime()));
-        statement.setDate(3, new java.sql.Date(deviationCloserDate.getTime()));
-        statement.setString(4, assessmentResult);
-        statement.setObject(5, assessmentScore);
-        statement.setObject(6, deviationsId);
-        statement.setString(7, assessmentType.name());
-        statement.setString(8, deviationSeverity.name());
-        statement.setObject(9, isTheDeviationRepeated);
-        statement.setObject(10, historicalDeviations);
-        statement.setString(11, anyMarketActionsRequired);
-        statement.setString(12, comments);
-        statement.setObject(13, fileAttachment);
-
-        int rowsInserted = statement.executeUpdate();
-        if (rowsInserted > 0) {
-            ResultSet generatedKeys = statement.getGeneratedKeys();
-            if (generatedKeys.next()) {
-                Integer newAssessmentId = generatedKeys.getInt(1);
-
-                // Update deviation status
-                sql = "UPDATE deviations SET status = ?::deviation_status WHERE id = ?";
-                statement = connection.prepareStatement(sql);
-                statement.setString(1, Enums.DeviationStatus.PENDING_QA_REVIEW.name());
-                statement.setInt(2, deviationsId);
-                statement.executeUpdate();
-
-                return newAssessmentId;
-            }
+    if ((isTheDeviationRepeated == null || historicalDeviations == null) && deviationsId != null && DeviationSimilarity.getInstance().isReady()) {
+        RecurrenceSuggestion suggestion = DeviationSimilarity.getInstance().suggestRecurrence(deviationsId, 1);
+        if (isTheDeviationRepeated == null) {
+            isTheDeviationRepeated = suggestion.isRepeated();
+        }
+        if (historicalDeviations == null) {
+            historicalDeviations = suggestion.getHistoricalDeviations();
         }
-    } finally {
-        DatabaseUtility.disconnect(connection);
     }
-    return null;
+    // Insert the assessment and update the deviation status in one statement; the insert happens whether or not the transition does
+    String sql = "INSERT INTO deviation_assessments (probability_of_recurrence, assessment_date, deviation_closer_date, assessment_result, assessment_score, deviations_id, assessment_type, deviation_severity, is_the_deviation_repeated, historical_deviations, any_market_actions_required, comments, file_attachment) "
+            + "SELECT ?::integer, ?::date, ?::date, ?::text, ?::double precision, id, ?::assessment_type, ?::deviation_severity, ?::boolean, ?::integer, ?::text, ?::text, ?::integer FROM deviations WHERE id = ? RETURNING id";
+    DeviationWorkflow.Transition transition = DeviationWorkflow.to(Enums.DeviationStatus.PENDING_QA_REVIEW)
+            .alongside("assessment", sql,
+                    probabilityOfRecurrence,
+                    new java.sql.Date(assessmentDate.getTime()),
+                    new java.sql.Date(deviationCloserDate.getTime()),
+                    assessmentResult,
+                    assessmentScore,
+                    assessmentType.name(),
+                    deviationSeverity.name(),
+                    isTheDeviationRepeated,
+                    historicalDeviations,
+                    anyMarketActionsRequired,
+                    comments,
+                    fileAttachment,
+                    deviationsId);
+    TransitionResult result = JdbcTemplate.execute(session -> transition.apply(session, deviationsId));
+    Integer id = (Integer) transition.returned("assessment");
+    if (id == null) {
+        Logger.getLogger(this.getClass().getName()).warning("Assessment not created, deviation " + deviationsId + " does not exist");
+        return null;
+    }
+    if (!result.isApplied()) {
+        Logger.getLogger(this.getClass().getName()).info("Assessment " + id + " created, deviation " + deviationsId + " keeps its status: " + result);
+    }
+    return new AssessmentCreation(id, result);
+}
+
+/**
+ * Suggests whether a deviation is a repeat, and how many times it occurred before, from the prior deviations
+ * whose description, root cause, product, material and equipment resemble it (see {@link DeviationSimilarity}).
+ *
+ * @param deviationsId The ID of the deviation.
+ * @return The suggestion with the most similar prior deviations, or {@code null} if the similarity index is still
+ *         loading or an error occurred.
+ */
+public RecurrenceSuggestion suggestRecurrence(int deviationsId) {
+    try {
+        return DeviationSimilarity.getInstance().suggestRecurrence(deviationsId, 10);
+    } catch (IllegalStateException e) {
+        Logger.getLogger(this.getClass().getName()).info("Recurrence not suggested for deviation " + deviationsId + ": " + e.getMessage());
+        return null;
+    } catch (SQLException e) {
+        Logger.getLogger(this.getClass().getName()).severe("Error suggesting recurrence: " + e.getMessage());
+        return null;
+    }
 }
 
 /**
@@ -158,35 +257,62 @@ public Integer createAssessment(Integer probabilityOfRecurrence, Date assessment
  * @param deviationsId The ID of the deviation for which to assign the final approver.
  * @param id           The ID of the approval record (presumably a serial type).
  * @param userId        The ID of the user assigned as the final approver.
- * @return A boolean value indicating the success or failure of the operation.
+ * @return A boolean value indicating the success or failure of the operation; {@code false} if the deviation is not pending QA review or the approval record does not exist.
  * @throws SQLException If an error occurs during database interaction.
  */
 public boolean assignFinalApprover(int deviationsId, int id, int userId) throws SQLException {
-    Connection connection = DatabaseUtility.connect();
     try {
-        String query = "UPDATE approvals SET approval_status = 'approved', approver = ? WHERE deviations_id = ? AND id = ?";
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setInt(1, userId);
-        statement.setInt(2, deviationsId);
-        statement.setInt(3, id);
-
-        int rowsAffected = statement.executeUpdate();
-
-        if (rowsAffected > 0) {
-            // Update the deviation status to 'pending_final_approval'
-            query = "UPDATE deviations SET status = 'pending_final_approval' WHERE id = ?";
-            statement = connection.prepareStatement(query);
-            statement.setInt(1, deviationsId);
-            statement.executeUpdate();
-            return true;
+        // Approve the approval record and update the deviation status to 'pending_final_approval' in one statement
+        TransitionResult result = JdbcTemplate.execute(session -> DeviationWorkflow.toPendingFinalApproval()
+                .require("EXISTS (SELECT 1 FROM approvals a WHERE a.deviations_id = deviations.id AND a.id = ?)", id)
+                .with("approval", "UPDATE approvals SET approval_status = 'approved', approver = ? WHERE id = ? AND deviations_id IN (SELECT id FROM updated) RETURNING id", userId, id)
+                .apply(session, deviationsId));
+        if (!result.isApplied()) {
+            Logger.getLogger(this.getClass().getName()).warning("Final approver not assigned to deviation " + deviationsId + ": " + result);
         }
+        return result.isApplied();
     } catch (SQLException e) {
         Logger.getLogger(this.getClass().getName()).severe("Error assigning final approver: " + e.getMessage());
         throw e;
-    } finally {
-        DatabaseUtility.disconnect(connection);
     }
-    return false;
+}
+
+/**
+ * Imports assessments in bulk from a CSV or binary COPY stream, for backfills.
+ * Rows are staged with {@code COPY}, inserted with one set-based statement, and
+ * every deviation that received an assessment and whose status allows it is
+ * moved to {@code PENDING_QA_REVIEW} with a single UPDATE; approved, dropped
+ * and closed deviations keep their status. The import is atomic and runs in
+ * constant memory regardless of the stream size.
+ *
+ * <p>
+ * The stream must use the layout written by
+ * {@link #exportAssessments(java.io.OutputStream, CopyFormat)}; its {@code id}
+ * column is ignored and new ids are assigned.
+ * </p>
+ *
+ * @param input  the stream to read; it is not closed
+ * @param format the stream format
+ * @return the number of assessments imported
+ * @throws SQLException if the import is rejected, in which case nothing is imported
+ * @throws java.io.IOException if the stream cannot be read
+ */
+public long importAssessments(java.io.InputStream input, CopyFormat format) throws SQLException, java.io.IOException {
+    return new AssessmentCopyTransfer().importAssessments(input, format);
+}
+
+/**
+ * Exports all assessments, ordered by id, as a CSV or binary COPY stream in
+ * constant memory.
+ *
+ * @param output the stream to write to; it is flushed but not closed
+ * @param format the stream format
+ * @return the number of assessments exported
+ * @throws SQLException if the export fails
+ * @throws java.io.IOException if the stream cannot be written
+ */
+public long exportAssessments(java.io.OutputStream output, CopyFormat format) throws SQLException, java.io.IOException {
+    return new AssessmentCopyTransfer().exportAssessments(output, format);
 }
 
 }
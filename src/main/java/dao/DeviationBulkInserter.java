@@ -0,0 +1,330 @@
+package dao;
+
+import model.*;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import utils.DatabaseUtility;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Bulk insert path behind {@link DeviationDAO#createDeviations(java.util.Collection)}.
+ *
+ * <p>
+ * Rows are validated up front, then written on a single connection in chunks,
+ * each chunk committed on its own. Small loads insert each chunk with one
+ * multi-row {@code INSERT ... SELECT FROM unnest(...)} that binds every column
+ * as an array, so a chunk costs one statement and one round trip whatever the
+ * driver's {@code reWriteBatchedInserts} setting; loads of at least {@code bulk.deviation.copyThreshold} rows
+ * reserve their ids from the {@code deviations} sequence and stream each chunk
+ * through the PostgreSQL {@code COPY} protocol. If a chunk is rejected, it is
+ * rolled back and retried one row at a time under savepoints so only the
+ * offending rows are reported as failures. The cache invalidations for the new
+ * ids are published by the inserting statements themselves, or by one
+ * statement per chunk after a {@code COPY}, so they commit with the rows.
+ * </p>
+ *
+ * <p>
+ * Deviation numbers for all valid rows are reserved from
+ * {@link DeviationNumberAllocator} before the first chunk and kept across the
+ * row-by-row retry; the numbers of rows that end up failing are recorded as
+ * gaps, all in one statement.
+ * </p>
+ */
+class DeviationBulkInserter {
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationBulkInserter.class.getName());
+
+    private static final String COLUMNS = "deviation_number, time_of_identification, date_of_occurrence, description, risk_assessment, standard_procedure, remarks, deviation_type, reason_or_root_cause_for_deviation, immediate_actions, product_id, batch_id, impact_on_batches_involved, material_id, equipment_id, justification_for_delay";
+    private static final String INSERT_SQL = "WITH inserted AS (INSERT INTO deviations (" + COLUMNS + ")"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?::deviation_type, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING id),"
+            + " notified AS (" + String.format(DeviationCache.NOTIFY_EACH_SQL, "inserted") + ")"
+            + " SELECT id FROM inserted, (SELECT count(*) FROM notified) n";
+    private static final String INSERT_CHUNK_SQL = "WITH inserted AS (INSERT INTO deviations (" + COLUMNS + ") SELECT * FROM unnest(?::text[], ?::timestamp[],"
+            + " ?::date[], ?::text[], ?::text[], ?::text[], ?::text[], ?::deviation_type[], ?::text[], ?::text[], ?::integer[], ?::integer[], ?::boolean[],"
+            + " ?::integer[], ?::integer[], ?::text[]) RETURNING id, deviation_number),"
+            + " notified AS (" + String.format(DeviationCache.NOTIFY_EACH_SQL, "inserted") + ")"
+            + " SELECT id, deviation_number FROM inserted, (SELECT count(*) FROM notified) n";
+    /** Publishes the invalidations for the ids a {@code COPY} chunk wrote. */
+    private static final String NOTIFY_IDS_SQL = String.format(DeviationCache.NOTIFY_EACH_SQL, "unnest(?::integer[]) id");
+    /** The element types of the arrays bound to {@link #INSERT_CHUNK_SQL}, in column order. */
+    private static final String[] CHUNK_ARRAY_TYPES = { "text", "timestamp", "date", "text", "text", "text", "text", "text", "text", "text", "integer",
+            "integer", "bool", "integer", "integer", "text" };
+    private static final String RESERVE_IDS_SQL = "SELECT nextval(pg_get_serial_sequence('deviations', 'id')) FROM generate_series(1, ?)";
+    private static final String COPY_SQL = "COPY deviations (id, " + COLUMNS + ") FROM STDIN WITH (FORMAT csv)";
+
+    private final int batchSize = DatabaseUtility.getIntProperty("bulk.deviation.batchSize", 500);
+    private final int copyThreshold = DatabaseUtility.getIntProperty("bulk.deviation.copyThreshold", 5000);
+    private final int copyChunkSize = DatabaseUtility.getIntProperty("bulk.deviation.copyChunkSize", 10000);
+
+    /**
+     * Inserts the given deviations.
+     *
+     * @param deviations the rows to insert
+     * @return the generated ids in input order and the per-row failures
+     * @throws SQLException if the connection itself fails
+     */
+    BulkInsertResult insert(List<Deviation> deviations) throws SQLException {
+        BulkInsertResult result = new BulkInsertResult(deviations.size());
+        List<Integer> valid = new ArrayList<>(deviations.size());
+        for (int i = 0; i < deviations.size(); i++) {
+            String error = validate(deviations.get(i));
+            if (error == null) {
+                valid.add(i);
+            } else {
+                result.addFailure(i, error);
+            }
+        }
+        if (valid.isEmpty()) {
+            return result;
+        }
+
+        DeviationNumberAllocator allocator = DeviationNumberAllocator.getInstance();
+        long[] reserved = allocator.reserve(valid.size());
+        String[] numbers = new String[deviations.size()];
+        for (int i = 0; i < reserved.length; i++) {
+            numbers[valid.get(i)] = allocator.format(reserved[i], deviations.get(valid.get(i)).getDeviationType());
+        }
+
+        boolean useCopy = valid.size() >= copyThreshold;
+        int chunkSize = useCopy ? copyChunkSize : batchSize;
+        try {
+            Connection connection = DatabaseUtility.connect();
+            try {
+                connection.setAutoCommit(false);
+                for (int from = 0; from < valid.size(); from += chunkSize) {
+                    List<Integer> chunk = valid.subList(from, Math.min(from + chunkSize, valid.size()));
+                    try {
+                        int[] ids = useCopy ? copyChunk(connection, deviations, numbers, chunk) : batchChunk(connection, deviations, numbers, chunk);
+                        connection.commit();
+                        for (int i = 0; i < chunk.size(); i++) {
+                            result.setId(chunk.get(i), ids[i]);
+                        }
+                    } catch (SQLException e) {
+                        connection.rollback();
+                        LOGGER.warning("Bulk deviation chunk rejected, retrying row by row: " + e.getMessage());
+                        insertRowByRow(connection, deviations, numbers, chunk, result);
+                    }
+                }
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } finally {
+                    DatabaseUtility.disconnect(connection);
+                }
+            }
+        } finally {
+            // also covers a failed connect, which leaves every reserved number unused
+            List<Integer> ids = result.getIds();
+            long[] lost = new long[reserved.length];
+            int lostCount = 0;
+            for (int i = 0; i < reserved.length; i++) {
+                if (ids.get(valid.get(i)) == null) {
+                    lost[lostCount++] = reserved[i];
+                }
+            }
+            allocator.recordGaps(Arrays.copyOf(lost, lostCount), "bulk insert rows failed");
+        }
+        LOGGER.info("Bulk deviation insert finished: " + result);
+        return result;
+    }
+
+    private int[] batchChunk(Connection connection, List<Deviation> deviations, String[] numbers, List<Integer> chunk) throws SQLException {
+        Object[][] columns = new Object[CHUNK_ARRAY_TYPES.length][chunk.size()];
+        for (int i = 0; i < chunk.size(); i++) {
+            Object[] row = values(numbers[chunk.get(i)], deviations.get(chunk.get(i)));
+            for (int column = 0; column < row.length; column++) {
+                columns[column][i] = row[column];
+            }
+        }
+        Map<String, Integer> idsByNumber = new HashMap<>(chunk.size() * 2);
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_CHUNK_SQL)) {
+            for (int column = 0; column < columns.length; column++) {
+                statement.setArray(column + 1, connection.createArrayOf(CHUNK_ARRAY_TYPES[column], columns[column]));
+            }
+            statement.setString(columns.length + 1, DeviationCache.channel());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    idsByNumber.put(resultSet.getString(2), resultSet.getInt(1));
+                }
+            }
+        }
+        // RETURNING does not promise input order; the deviation numbers are unique
+        int[] ids = new int[chunk.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Integer id = idsByNumber.get(numbers[chunk.get(i)]);
+            if (id == null) {
+                throw new SQLException("Bulk insert returned fewer ids than rows.");
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private int[] copyChunk(Connection connection, List<Deviation> deviations, String[] numbers, List<Integer> chunk) throws SQLException {
+        int[] ids = new int[chunk.size()];
+        try (PreparedStatement statement = connection.prepareStatement(RESERVE_IDS_SQL)) {
+            statement.setInt(1, chunk.size());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                for (int i = 0; i < ids.length && resultSet.next(); i++) {
+                    ids[i] = resultSet.getInt(1);
+                }
+            }
+        }
+
+        CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL);
+        try {
+            StringBuilder line = new StringBuilder(512);
+            for (int i = 0; i < ids.length; i++) {
+                line.setLength(0);
+                appendCsvRow(line, ids[i], numbers[chunk.get(i)], deviations.get(chunk.get(i)));
+                byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+                copyIn.writeToCopy(bytes, 0, bytes.length);
+            }
+            copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(NOTIFY_IDS_SQL)) {
+            statement.setString(1, DeviationCache.channel());
+            statement.setArray(2, connection.createArrayOf("integer", Arrays.stream(ids).boxed().toArray()));
+            statement.execute();
+        }
+        return ids;
+    }
+
+    private void insertRowByRow(Connection connection, List<Deviation> deviations, String[] numbers, List<Integer> chunk, BulkInsertResult result) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+            for (int index : chunk) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    bind(statement, numbers[index], deviations.get(index));
+                    statement.setString(17, DeviationCache.channel());
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (!resultSet.next()) {
+                            throw new SQLException("Creating deviation failed, no ID obtained.");
+                        }
+                        result.setId(index, resultSet.getInt(1));
+                    }
+                    connection.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    connection.rollback(savepoint);
+                    result.addFailure(index, e.getMessage());
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            for (int index : chunk) {
+                result.addFailure(index, e.getMessage());
+            }
+        }
+    }
+
+    private static String validate(Deviation deviation) {
+        if (deviation == null) {
+            return "Deviation is null.";
+        }
+        if (deviation.getDateOfOccurrence() == null) {
+            return "Date of occurrence is required.";
+        }
+        if (deviation.getDeviationType() == null) {
+            return "Deviation type is required.";
+        }
+        if (deviation.getImpactOnBatchesInvolved() == null) {
+            return "Impact on batches involved is required.";
+        }
+        return null;
+    }
+
+    private static void bind(PreparedStatement statement, String number, Deviation deviation) throws SQLException {
+        statement.setString(1, number);
+        statement.setTimestamp(2, deviation.getTimeOfIdentification());
+        statement.setDate(3, new java.sql.Date(deviation.getDateOfOccurrence().getTime()));
+        statement.setString(4, deviation.getDescription());
+        statement.setString(5, deviation.getRiskAssessment());
+        statement.setString(6, deviation.getStandardProcedure());
+        statement.setString(7, deviation.getRemarks());
+        statement.setString(8, deviation.getDeviationType().name());
+        statement.setString(9, deviation.getReasonOrRootCauseForDeviation());
+        statement.setString(10, deviation.getImmediateActions());
+        setNullableInt(statement, 11, deviation.getProductId());
+        setNullableInt(statement, 12, deviation.getBatchId());
+        statement.setBoolean(13, deviation.getImpactOnBatchesInvolved());
+        setNullableInt(statement, 14, deviation.getMaterialId());
+        setNullableInt(statement, 15, deviation.getEquipmentId());
+        statement.setString(16, deviation.getJustificationForDelay());
+    }
+
+    /**
+     * Returns the column values of a row in {@link #COLUMNS} order.
+     */
+    private static Object[] values(String number, Deviation deviation) {
+        return new Object[] { number, deviation.getTimeOfIdentification(), new java.sql.Date(deviation.getDateOfOccurrence().getTime()),
+                deviation.getDescription(), deviation.getRiskAssessment(), deviation.getStandardProcedure(), deviation.getRemarks(),
+                deviation.getDeviationType().name(), deviation.getReasonOrRootCauseForDeviation(), deviation.getImmediateActions(),
+                deviation.getProductId(), deviation.getBatchId(), deviation.getImpactOnBatchesInvolved(), deviation.getMaterialId(),
+                deviation.getEquipmentId(), deviation.getJustificationForDelay() };
+    }
+
+    private static void setNullableInt(PreparedStatement statement, int index, Integer value) throws SQLException {
+        if (value != null) {
+            statement.setInt(index, value);
+        } else {
+            statement.setNull(index, Types.INTEGER);
+        }
+    }
+
+    private static void appendCsvRow(StringBuilder line, int id, String number, Deviation deviation) {
+        line.append(id).append(',');
+        appendCsv(line, number).append(',');
+        appendCsv(line, deviation.getTimeOfIdentification()).append(',');
+        appendCsv(line, new java.sql.Date(deviation.getDateOfOccurrence().getTime())).append(',');
+        appendCsv(line, deviation.getDescription()).append(',');
+        appendCsv(line, deviation.getRiskAssessment()).append(',');
+        appendCsv(line, deviation.getStandardProcedure()).append(',');
+        appendCsv(line, deviation.getRemarks()).append(',');
+        appendCsv(line, deviation.getDeviationType().name()).append(',');
+        appendCsv(line, deviation.getReasonOrRootCauseForDeviation()).append(',');
+        appendCsv(line, deviation.getImmediateActions()).append(',');
+        appendCsv(line, deviation.getProductId()).append(',');
+        appendCsv(line, deviation.getBatchId()).append(',');
+        appendCsv(line, deviation.getImpactOnBatchesInvolved()).append(',');
+        appendCsv(line, deviation.getMaterialId()).append(',');
+        appendCsv(line, deviation.getEquipmentId()).append(',');
+        appendCsv(line, deviation.getJustificationForDelay()).append('\n');
+    }
+
+    /**
+     * Appends a CSV field. {@code null} is written as an empty unquoted field,
+     * which COPY reads as NULL; strings are always quoted so that an empty
+     * string stays distinct from NULL.
+     */
+    private static StringBuilder appendCsv(StringBuilder line, Object value) {
+        if (value == null) {
+            return line;
+        }
+        if (!(value instanceof String)) {
+            return line.append(value);
+        }
+        String text = (String) value;
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        return line.append('"');
+    }
+}
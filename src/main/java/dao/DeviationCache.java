@@ -0,0 +1,207 @@
+package dao;
+
+import model.*;
+import utils.BoundedCache;
+import utils.DatabaseUtility;
+import utils.Metrics;
+import utils.PgNotificationListener;
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Node-local read-through cache for deviations and their assessments, shared by
+ * {@link DeviationDAO} and {@link DeviationAssessmentDAO}.
+ *
+ * <p>
+ * Deviations are cached by id, with a secondary index from deviation number to
+ * id; the number of a deviation never changes, so that index needs no
+ * invalidation beyond its TTL. Assessment lists are cached by deviation id.
+ * Mutating DAO statements publish the invalidation of each deviation they
+ * change on the {@code cache.invalidation.channel} channel themselves, with
+ * {@link #NOTIFY_EACH_SQL}, so every other node drops its entries once the
+ * change commits, and call {@link #evictLocal(int)} to drop this node's. The
+ * publishing node also receives its own notification, which removes any
+ * value a concurrent reader loaded between the local eviction and the
+ * commit.
+ * </p>
+ *
+ * <p>
+ * Cached objects are shared between callers and must be treated as read-only.
+ * </p>
+ */
+public final class DeviationCache {
+
+    /**
+     * Observes invalidations after they have been applied, on this node and
+     * on every other node. Called on the notification listener thread, so
+     * implementations must return quickly.
+     */
+    interface InvalidationListener {
+
+        /**
+         * @param id the id of the deviation that changed
+         */
+        void onEvict(int id);
+
+        /**
+         * Called when any number of deviations may have changed.
+         */
+        void onEvictAll();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationCache.class.getName());
+    private static final String ID_PREFIX = "id:";
+    private static final String ALL_PAYLOAD = "*";
+
+    private static final String CHANNEL = DatabaseUtility.getProperty("cache.invalidation.channel", "deviation_cache_invalidation");
+
+    /**
+     * Publishes an invalidation for each row of the relation substituted for
+     * {@code %s}, which must have an {@code id} column, with the channel bound
+     * as the only parameter. Embedding it in a mutating statement saves the
+     * separate {@code pg_notify} round trip; the statement must reference its
+     * result so that it runs.
+     */
+    static final String NOTIFY_EACH_SQL = "SELECT pg_notify(?, '" + ID_PREFIX + "' || id) FROM %s";
+
+    private static final int MAX_ENTRIES = DatabaseUtility.getIntProperty("cache.deviation.maxEntries", 10000);
+    private static final long TTL_MILLIS = DatabaseUtility.getIntProperty("cache.deviation.ttlSeconds", 300) * 1000L;
+
+    private static final BoundedCache<Integer, Deviation> DEVIATIONS = new BoundedCache<>("deviations", MAX_ENTRIES, TTL_MILLIS);
+    private static final BoundedCache<String, Integer> NUMBERS = new BoundedCache<>("deviationNumbers", MAX_ENTRIES, TTL_MILLIS);
+    private static final BoundedCache<Integer, List<DeviationAssessment>> ASSESSMENTS = new BoundedCache<>("deviationAssessments", MAX_ENTRIES, TTL_MILLIS);
+    private static final List<InvalidationListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    static {
+        registerGauges("cache.deviations", DEVIATIONS);
+        registerGauges("cache.deviationNumbers", NUMBERS);
+        registerGauges("cache.deviationAssessments", ASSESSMENTS);
+        PgNotificationListener.getInstance().subscribe(CHANNEL, new PgNotificationListener.Handler() {
+            @Override
+            public void onNotification(String payload) {
+                applyRemote(payload);
+            }
+
+            @Override
+            public void onReconnect() {
+                invalidateAll();
+                for (InvalidationListener listener : LISTENERS) {
+                    listener.onEvictAll();
+                }
+            }
+        });
+    }
+
+    private DeviationCache() {
+    }
+
+    /**
+     * Registers a listener for invalidations published by any node, including
+     * this one. Invalidations are delivered once the mutating transaction has
+     * committed.
+     *
+     * @param listener the listener
+     */
+    static void addListener(InvalidationListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    static BoundedCache<Integer, Deviation> deviations() {
+        return DEVIATIONS;
+    }
+
+    static BoundedCache<String, Integer> numbers() {
+        return NUMBERS;
+    }
+
+    static BoundedCache<Integer, List<DeviationAssessment>> assessments() {
+        return ASSESSMENTS;
+    }
+
+    /**
+     * Drops every cached entry on this node and publishes a full invalidation
+     * to the other nodes on {@code connection}. Used by set-based mutations
+     * that touch too many deviations to evict one by one.
+     *
+     * @param connection the connection used by the mutation
+     */
+    static void evictAll(Connection connection) {
+        invalidateAll();
+        publish(connection, ALL_PAYLOAD);
+    }
+
+    /**
+     * Drops every cached entry on this node only.
+     */
+    public static void invalidateAll() {
+        DEVIATIONS.invalidateAll();
+        NUMBERS.invalidateAll();
+        ASSESSMENTS.invalidateAll();
+    }
+
+    /**
+     * @return hit/miss statistics for each of the underlying caches
+     */
+    public static String stats() {
+        return DEVIATIONS + ", " + NUMBERS + ", " + ASSESSMENTS;
+    }
+
+    private static void registerGauges(String prefix, BoundedCache<?, ?> cache) {
+        Metrics.gauge(prefix + ".size", cache::size);
+        Metrics.gauge(prefix + ".hits", cache::getHitCount);
+        Metrics.gauge(prefix + ".misses", cache::getMissCount);
+        Metrics.gauge(prefix + ".evictions", cache::getEvictionCount);
+    }
+
+    /**
+     * Gets the channel invalidations are published on, for statements that
+     * publish them themselves with {@link #NOTIFY_EACH_SQL}.
+     *
+     * @return the channel
+     */
+    static String channel() {
+        return CHANNEL;
+    }
+
+    /**
+     * Drops the cached entries of a deviation on this node only, for
+     * statements that publish the invalidation themselves.
+     *
+     * @param id the deviation id
+     */
+    static void evictLocal(int id) {
+        DEVIATIONS.invalidate(id);
+        ASSESSMENTS.invalidate(id);
+    }
+
+    private static void applyRemote(String payload) {
+        if (payload.startsWith(ID_PREFIX)) {
+            int id;
+            try {
+                id = Integer.parseInt(payload.substring(ID_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring malformed cache invalidation: " + payload);
+                return;
+            }
+            evictLocal(id);
+            for (InvalidationListener listener : LISTENERS) {
+                listener.onEvict(id);
+            }
+        } else {
+            invalidateAll();
+            for (InvalidationListener listener : LISTENERS) {
+                listener.onEvictAll();
+            }
+        }
+    }
+
+    private static void publish(Connection connection, String payload) {
+        try {
+            PgNotificationListener.publish(connection, CHANNEL, payload);
+        } catch (SQLException e) {
+            LOGGER.severe("Error publishing cache invalidation " + payload + ": " + e.getMessage());
+        }
+    }
+}
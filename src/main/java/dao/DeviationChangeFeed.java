@@ -0,0 +1,275 @@
+package dao;
+
+import model.DeviationChange;
+import utils.DatabaseUtility;
+import utils.Metrics;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Committed deviation changes, for pushing to clients.
+ *
+ * <p>
+ * Every method of {@link DeviationDAO} and {@link DeviationAssessmentDAO}
+ * that changes a deviation already publishes a {@link DeviationCache}
+ * invalidation once it commits, and every node receives it on its one
+ * {@code LISTEN} connection. This feed collects the invalidated ids and, on a
+ * single background thread, reads their status, CFT department and version in
+ * batches, then hands one {@link DeviationChange} per deviation to the
+ * registered subscribers. Ids invalidated again before they are read are
+ * read once. A full invalidation, or a reconnect of the notification
+ * listener, cannot say what changed, so subscribers are told to resync
+ * instead.
+ * </p>
+ *
+ * <p>
+ * The status and department each deviation had at its previous change are
+ * remembered for the most recently changed deviations, so that a client
+ * following a status or department learns that a deviation has left it.
+ * Nothing is read while no subscriber is registered.
+ * </p>
+ */
+public final class DeviationChangeFeed {
+
+    /**
+     * Receives changes on the feed's thread; it must not block.
+     */
+    public interface Subscriber {
+        /**
+         * @param changes the changed deviations, one change per deviation
+         */
+        void onChanges(List<DeviationChange> changes);
+
+        /**
+         * Called when changes may have been missed, so that anything derived
+         * from the feed must be read again.
+         */
+        void onResync();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationChangeFeed.class.getName());
+
+    private static final String REFRESH_SQL = "SELECT id, deviation_number, status, cft_department_id, version FROM deviations WHERE id = ANY(?)";
+    private static final int REFRESH_BATCH_SIZE = 1000;
+
+    private static final DeviationChangeFeed INSTANCE = new DeviationChangeFeed();
+
+    private final int rememberedStates = Math.max(0, DatabaseUtility.getIntProperty("push.rememberedStates", 10000));
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean resyncRequested = new AtomicBoolean();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final LongAdder published = Metrics.counter("push.feed.changes");
+    private final LongAdder failures = Metrics.counter("push.feed.failures");
+
+    /** Only touched by the feed's thread. */
+    private final Map<Integer, State> previous = new LinkedHashMap<Integer, State>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, State> eldest) {
+            return size() > rememberedStates;
+        }
+    };
+
+    private ExecutorService executor;
+
+    private DeviationChangeFeed() {
+        Metrics.gauge("push.feed.pending", () -> dirty.size());
+        DeviationCache.addListener(new DeviationCache.InvalidationListener() {
+            @Override
+            public void onEvict(int id) {
+                if (!subscribers.isEmpty()) {
+                    dirty.add(id);
+                    scheduleRefresh();
+                }
+            }
+
+            @Override
+            public void onEvictAll() {
+                if (!subscribers.isEmpty()) {
+                    resyncRequested.set(true);
+                    scheduleRefresh();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the node-wide feed
+     */
+    public static DeviationChangeFeed getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts reading changes. Does nothing if the feed is already running.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deviation-change-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOGGER.info("Deviation change feed started");
+    }
+
+    /**
+     * Stops reading changes; pending ones are dropped.
+     */
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        executor = null;
+        dirty.clear();
+    }
+
+    /**
+     * Registers a subscriber for the changes committed from now on.
+     *
+     * @param subscriber the subscriber
+     */
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * @param subscriber a registered subscriber
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    private void scheduleRefresh() {
+        ExecutorService current = executor;
+        if (current != null && refreshScheduled.compareAndSet(false, true)) {
+            try {
+                current.execute(this::refresh);
+            } catch (RuntimeException e) {
+                refreshScheduled.set(false);
+            }
+        }
+    }
+
+    private void refresh() {
+        refreshScheduled.set(false);
+        if (resyncRequested.getAndSet(false)) {
+            // A full invalidation supersedes the individual changes pending so far
+            dirty.clear();
+            previous.clear();
+            for (Subscriber subscriber : subscribers) {
+                deliverResync(subscriber);
+            }
+        }
+        while (!dirty.isEmpty()) {
+            List<Integer> batch = new ArrayList<>(REFRESH_BATCH_SIZE);
+            Iterator<Integer> iterator = dirty.iterator();
+            while (iterator.hasNext() && batch.size() < REFRESH_BATCH_SIZE) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+            List<DeviationChange> changes;
+            try {
+                changes = read(batch);
+            } catch (SQLException | RuntimeException e) {
+                // The changes of this batch are lost, so subscribers must read again
+                failures.increment();
+                LOGGER.log(Level.WARNING, "Could not read " + batch.size() + " changed deviation(s), asking subscribers to resync", e);
+                for (Integer id : batch) {
+                    previous.remove(id);
+                }
+                for (Subscriber subscriber : subscribers) {
+                    deliverResync(subscriber);
+                }
+                continue;
+            }
+            published.add(changes.size());
+            for (Subscriber subscriber : subscribers) {
+                try {
+                    subscriber.onChanges(changes);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Deviation change subscriber failed", e);
+                }
+            }
+        }
+    }
+
+    private List<DeviationChange> read(List<Integer> ids) throws SQLException {
+        Map<Integer, DeviationChange> current = new HashMap<>();
+        Connection connection = DatabaseUtility.connect();
+        try (PreparedStatement statement = connection.prepareStatement(REFRESH_SQL)) {
+            statement.setArray(1, connection.createArrayOf("integer", ids.toArray()));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    int id = resultSet.getInt(1);
+                    String status = resultSet.getString(3);
+                    int department = resultSet.getInt(4);
+                    Integer departmentId = resultSet.wasNull() ? null : department;
+                    current.put(id, change(id, resultSet.getString(2), status == null ? null : status.toUpperCase(Locale.ROOT),
+                            departmentId, resultSet.getInt(5)));
+                }
+            }
+        } finally {
+            DatabaseUtility.disconnect(connection);
+        }
+        List<DeviationChange> changes = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            DeviationChange change = current.get(id);
+            if (change == null) {
+                State before = previous.remove(id);
+                change = new DeviationChange(id, null, null, before == null ? null : before.status, null,
+                        before == null ? null : before.departmentId, 0, true);
+            }
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    private DeviationChange change(int id, String deviationNumber, String status, Integer departmentId, int version) {
+        State before = previous.put(id, new State(status, departmentId));
+        return new DeviationChange(id, deviationNumber, status, before == null ? null : before.status, departmentId,
+                before == null ? null : before.departmentId, version, false);
+    }
+
+    private static void deliverResync(Subscriber subscriber) {
+        try {
+            subscriber.onResync();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Deviation change subscriber failed", e);
+        }
+    }
+
+    /**
+     * The status and department of a deviation at its last change.
+     */
+    private static final class State {
+        private final String status;
+        private final Integer departmentId;
+
+        private State(String status, Integer departmentId) {
+            this.status = status;
+            this.departmentId = departmentId;
+        }
+    }
+}
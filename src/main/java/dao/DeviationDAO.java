@@ -3,16 +3,46 @@ package dao;
 
 import model.*;
 import java.util.logging.Logger;
+import com.google.gson.stream.JsonWriter;
 import utils.DatabaseUtility;
+import utils.JdbcSession;
+import utils.JdbcTemplate;
+import utils.ParameterBinder;
+import utils.ReportWriter;
+import utils.RowMapper;
+import java.io.IOException;
 import java.sql.*;
 import java.util.logging.*;
 import java.util.*;import java.util.Calendar;
+import java.util.function.Consumer;
 import java.util.Date;
 
 
 
 public class DeviationDAO {
 
+    /** Upper bound for the page size of {@link #listDeviations(DeviationFilter, String, int)}. */
+    public static final int MAX_PAGE_SIZE = 500;
+
+    private static final int STREAM_FETCH_SIZE = DatabaseUtility.getIntProperty("listing.fetchSize", 1000);
+
+/**
+ * Moves a deviation from one status to another if, and only if, it is still in
+ * {@code from} at {@code expectedVersion}, as read from {@link Deviation#getVersion()}.
+ * The check and the update are a single statement, so no lock is held between
+ * reading the deviation and deciding on it.
+ *
+ * @param id              The unique identifier of the deviation.
+ * @param from            The status the caller read.
+ * @param to              The new status.
+ * @param expectedVersion The version the caller read.
+ * @return {@code APPLIED} with the new version, {@code CONFLICT} with the status and version found,
+ *         {@code NOT_FOUND}, or {@code ILLEGAL} if the workflow does not allow the transition.
+ * @throws SQLException If a database error occurs.
+ */
+public TransitionResult transition(int id, Enums.DeviationStatus from, Enums.DeviationStatus to, int expectedVersion) throws SQLException {
+    return JdbcTemplate.execute(session -> DeviationWorkflow.to(to).from(from).expectVersion(expectedVersion).apply(session, id));
+}
 
 /**
  * Initiates the CFT review process for a specific deviation.
@@ -21,39 +51,21 @@ public class DeviationDAO {
  * @param reviewerComments Comments from the reviewer.
  * @param reviewDecision The decision made by the reviewer.
  * @param justificationForReturning Justification text for returning the deviation.
- * @return {@code true} if the update is successful, otherwise {@code false}.
+ * @return {@code true} if the update is successful, otherwise {@code false}, including when the deviation is no longer in {@code status}.
  */
 public Boolean initiateCFTReview(Enums.DeviationStatus status, int id, String reviewerComments, Boolean reviewDecision, String justificationForReturning) {
-  Connection connection = null;
-  PreparedStatement preparedStatement = null;
-  int result = 0;
   try {
-    connection = DatabaseUtility.connect();
-    connection.setAutoCommit(false);
-    String query = "UPDATE deviations SET status = ?, review_comment = ?, review_decision = ?, justification_for_returning = ? WHERE id = ? AND status = ?::deviation_status";
-    preparedStatement = connection.prepareStatement(query);
-    preparedStatement.setString(1, Enums.DeviationStatus.ONGOING_CFT_REVIEW.name());
-    preparedStatement.setString(2, reviewerComments);
-    preparedStatement.setBoolean(3, reviewDecision);
-    preparedStatement.setString(4, justificationForReturning);
-    preparedStatement.setInt(5, id);
-    preparedStatement.setString(6, status.name());
-    result = preparedStatement.executeUpdate();
-    connection.commit();
+    return JdbcTemplate.execute(session -> DeviationWorkflow.to(Enums.DeviationStatus.ONGOING_CFT_REVIEW)
+        .from(status)
+        .set("review_comment", reviewerComments)
+        .set("review_decision", reviewDecision)
+        .set("justification_for_returning", justificationForReturning)
+        .apply(session, id)
+        .isApplied());
   } catch (SQLException e) {
     Logger.getLogger(this.getClass().getName()).severe("Error while initiating CFT review: " + e.getMessage());
-    if (connection != null) {
-      try {
-        connection.rollback();
-      } catch (SQLException ex) {
-        Logger.getLogger(this.getClass().getName()).severe("Rollback failed: " + ex.getMessage());
-      }
-    }
     return false;
-  } finally {
-    DatabaseUtility.disconnect(connection);
   }
-  return result > 0;
 }
 
 /**
@@ -71,17 +83,7 @@ public boolean escalateToQAReview(int id, Enums.DeviationStatus status) throws S
         return false;
     }
 
-    Connection connection = DatabaseUtility.connect();
-    try {
-        String sql = "UPDATE deviations SET status = ?::deviation_status WHERE id = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setString(1, Enums.DeviationStatus.PENDING_QA_REVIEW.name());
-        statement.setInt(2, id);
-        int rowsUpdated = statement.executeUpdate();
-        return rowsUpdated > 0;
-    } finally {
-        DatabaseUtility.disconnect(connection);
-    }
+    return JdbcTemplate.execute(session -> DeviationWorkflow.to(Enums.DeviationStatus.PENDING_QA_REVIEW).from(status).apply(session, id).isApplied());
 }
 
 /**
@@ -94,27 +96,25 @@ public boolean escalateToQAReview(int id, Enums.DeviationStatus status) throws S
  * @return {@code true} if the update is successful, {@code false} otherwise
  */
 public boolean linkInvestigationOutcome(String findings, String conclusion, int deviationsId, String riskAssessment) {
-    Connection connection = DatabaseUtility.connect();
-    try {
-        String sql = "UPDATE deviations SET remarks = ?, review_comment = ?, risk_assessment = ? WHERE id = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setString(1, findings);
-        statement.setString(2, conclusion);
-        statement.setString(3, riskAssessment);
-        statement.setInt(4, deviationsId);
-
-        int rowsUpdated = statement.executeUpdate();
-        return rowsUpdated > 0;
+    // Update the deviation and publish its invalidation in one statement
+    String sql = "WITH changed AS (UPDATE deviations SET remarks = ?, review_comment = ?, risk_assessment = ?, " + DeviationWorkflow.TOUCH + " WHERE id = ? RETURNING id),"
+            + " notified AS (" + String.format(DeviationCache.NOTIFY_EACH_SQL, "changed") + ") SELECT id, (SELECT count(*) FROM notified) FROM changed";
+    try (JdbcSession session = JdbcTemplate.open()) {
+        List<Integer> updated = session.query(sql, ParameterBinder.of(findings, conclusion, riskAssessment, deviationsId, DeviationCache.channel()), RowMapper.FIRST_INT);
+        for (int id : updated) {
+            DeviationCache.evictLocal(id);
+        }
+        return !updated.isEmpty();
     } catch (SQLException e) {
         Logger.getLogger(this.getClass().getName()).severe("Error linking investigation outcome: " + e.getMessage());
         return false;
-    } finally {
-        DatabaseUtility.disconnect(connection);
     }
 }
 
 /**
  * Set Review Reminder: Schedules a reminder for upcoming reviews or actions that need to be taken on a deviation, ensuring that all stakeholders are notified in advance to prevent delays in the deviation handling process.
+ * One reminder is created for each CFT reviewer and approver of the deviation; if none is assigned yet, a single
+ * reminder is created whose recipients are resolved when it is sent. The reminders are dispatched by {@link ReminderScheduler}.
  *
  * @param deviationId The ID of the deviation for which the reminder is being set.
  * @param reviewDate The date on which the review or action is due.
@@ -122,33 +122,33 @@ public boolean linkInvestigationOutcome(String findings, String conclusion, int
  * @return A boolean value indicating whether the reminder was successfully set.
  */
 public boolean setReviewReminder(int deviationId, Date reviewDate, int reminderDays) {
-    Connection connection = null;
     try {
-        connection = DatabaseUtility.connect();
         // Calculate the reminder date based on the review date and reminder days.
         Calendar calendar = Calendar.getInstance();
         calendar.setTime(reviewDate);
         calendar.add(Calendar.DATE, -reminderDays);
         Date reminderDate = calendar.getTime();
 
-        // Prepare the SQL statement to insert the reminder into the notifications table.
-        String sql = "INSERT INTO notifications (notification_type, message_content, timestamp, user_recipient_id, deviations_id) VALUES (?, ?, ?, ?, ?)";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setString(1, Enums.NotificationType.REMINDER.name());
-        statement.setString(2, "Reminder: Review for Deviation " + deviationId + " is due on " + reviewDate);
-        statement.setTimestamp(3, new Timestamp(reminderDate.getTime()));
-        // TODO: Set the user_recipient_id based on the assigned reviewer or responsible person.
-        statement.setInt(4, 1); // Replace with actual user ID
-        statement.setInt(5, deviationId);
-
-        // Execute the statement and return true if successful.
-        int rowsInserted = statement.executeUpdate();
-        return rowsInserted > 0;
+        // Insert one reminder per CFT reviewer and approver, or a single unaddressed one if there are none yet.
+        String sql = "WITH recipients AS ("
+                + "SELECT user_id FROM cft_reviewers WHERE deviation_id = ? "
+                + "UNION SELECT approver FROM approvals WHERE deviations_id = ? AND approver IS NOT NULL) "
+                + "INSERT INTO notifications (notification_type, message_content, timestamp, user_recipient_id, deviations_id) "
+                + "SELECT ?, ?, ?, r.user_id, ? FROM (SELECT user_id FROM recipients "
+                + "UNION ALL SELECT NULL::integer WHERE NOT EXISTS (SELECT 1 FROM recipients)) r "
+                + "RETURNING id";
+        ParameterBinder binder = ParameterBinder.of(deviationId, deviationId, Enums.NotificationType.REMINDER,
+                "Reminder: Review for Deviation " + deviationId + " is due on " + reviewDate, new Timestamp(reminderDate.getTime()), deviationId);
+
+        // Execute the statement and hand the new reminders to the scheduler.
+        List<Integer> reminderIds = JdbcTemplate.query(sql, binder, RowMapper.FIRST_INT);
+        for (int reminderId : reminderIds) {
+            ReminderScheduler.getInstance().schedule(reminderId, reminderDate.getTime());
+        }
+        return !reminderIds.isEmpty();
     } catch (SQLException e) {
         Logger.getLogger(this.getClass().getName()).severe("Error setting review reminder: " + e.getMessage());
         return false;
-    } finally {
-        DatabaseUtility.disconnect(connection);
     }
 }
 
@@ -162,23 +162,15 @@ public boolean setReviewReminder(int deviationId, Date reviewDate, int reminderD
  * @param deviationId The unique identifier of the deviation being reviewed.
  * @param newStatus The updated status of the deviation (complete_department_review, deviation_returned, deviation_dropped).
  * @param reviewComment The reviewer's comments on the deviation.
- * @return A boolean indicating the success or failure of the operation.
+ * @return A boolean indicating the success or failure of the operation; {@code false} if the deviation is no longer pending department review.
  * @throws SQLException If a database error occurs.
  */
 public boolean completeDepartmentReview(int deviationId, Enums.DeviationStatus newStatus, String reviewComment) throws SQLException {
-    Connection connection = DatabaseUtility.connect();
-    try {
-        String sql = "UPDATE deviations SET status = ?::deviation_status, review_comment = ? WHERE id = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setString(1, newStatus.name());
-        statement.setString(2, reviewComment);
-        statement.setInt(3, deviationId);
-
-        int rowsUpdated = statement.executeUpdate();
-        return rowsUpdated > 0;
-    } finally {
-        DatabaseUtility.disconnect(connection);
-    }
+    return JdbcTemplate.execute(session -> DeviationWorkflow.to(newStatus)
+            .from(Enums.DeviationStatus.PENDING_DEPARTMENT_REVIEW)
+            .set("review_comment", reviewComment)
+            .apply(session, deviationId)
+            .isApplied());
 }
 
 /**
@@ -190,58 +182,31 @@ public boolean completeDepartmentReview(int deviationId, Enums.DeviationStatus n
  * @param crossFunctionalAssessmentRequired True if a CFT assessment is needed, false otherwise
  * @param cftDepartmentSelection       The ID of the chosen CFT department (if applicable)
  * @param userSelection                The ID of the selected user for CFT review (if applicable)
- * @return True if the operation was successful, false otherwise
+ * @return True if the operation was successful, false if the department review of the deviation is not completed
  * @throws SQLException If a database error occurs
  */
 public boolean assignCFTReviewer(int userId, int deviationId, Integer departmentId, boolean crossFunctionalAssessmentRequired,
         Integer cftDepartmentSelection, Integer userSelection) throws SQLException {
-    Connection connection = DatabaseUtility.connect();
     try {
-        connection.setAutoCommit(false);
-
-        // Update deviation status based on CFT assessment requirement
-        String updateDeviationStatusSql = "UPDATE deviations SET status = ? WHERE id = ?";
-        PreparedStatement updateDeviationStatusStatement = connection.prepareStatement(updateDeviationStatusSql);
-        if (crossFunctionalAssessmentRequired) {
-            updateDeviationStatusStatement.setString(1, Enums.DeviationStatus.PENDING_CFT_REVIEW.name());
-        } else {
-            updateDeviationStatusStatement.setString(1, Enums.DeviationStatus.APPROVED_BY_QA.name()); // Assuming bypass to QA
-        }
-        updateDeviationStatusStatement.setInt(2, deviationId);
-        updateDeviationStatusStatement.executeUpdate();
-
-        if (crossFunctionalAssessmentRequired) {
-            // Update deviation with selected CFT department
-            String updateCFTDepartmentSql = "UPDATE deviations SET cft_department_id = ? WHERE id = ?";
-            PreparedStatement updateCFTDepartmentStatement = connection.prepareStatement(updateCFTDepartmentSql);
-            updateCFTDepartmentStatement.setInt(1, cftDepartmentSelection);
-            updateCFTDepartmentStatement.setInt(2, deviationId);
-            updateCFTDepartmentStatement.executeUpdate();
-
-            // Assign CFT reviewer
-            String assignReviewerSql = "INSERT INTO cft_reviewers (deviation_id, user_id) VALUES (?, ?)";
-            PreparedStatement assignReviewerStatement = connection.prepareStatement(assignReviewerSql);
-            assignReviewerStatement.setInt(1, deviationId);
-            assignReviewerStatement.setInt(2, userSelection);
-            assignReviewerStatement.executeUpdate();
+        // Update deviation status based on CFT assessment requirement; with CFT assessment, set the selected
+        // CFT department and assign the CFT reviewer in the same statement
+        DeviationWorkflow.Transition transition = crossFunctionalAssessmentRequired
+                ? DeviationWorkflow.to(Enums.DeviationStatus.PENDING_CFT_REVIEW)
+                        .set("cft_department_id", cftDepartmentSelection)
+                        .with("reviewer", "INSERT INTO cft_reviewers (deviation_id, user_id) SELECT id, ?::integer FROM updated RETURNING user_id", userSelection)
+                : DeviationWorkflow.to(Enums.DeviationStatus.APPROVED_BY_QA); // Assuming bypass to QA
+        TransitionResult result = JdbcTemplate.execute(session -> transition.from(Enums.DeviationStatus.DEPARTMENT_REVIEW_COMPLETED).apply(session, deviationId));
+        if (!result.isApplied()) {
+            Logger.getLogger(this.getClass().getName()).warning("CFT Reviewer not assigned to deviation " + deviationId + ": " + result);
+            return false;
         }
 
-        // Create audit trail entry
-        String auditTrailSql = "INSERT INTO audit_trails (user_id, action_type, description) VALUES (?, ?, ?)";
-        PreparedStatement auditTrailStatement = connection.prepareStatement(auditTrailSql);
-        auditTrailStatement.setInt(1, userId);
-        auditTrailStatement.setString(2, Enums.ActionType.UPDATE.name());
-        auditTrailStatement.setString(3, "CFT Reviewer assigned to deviation: " + deviationId);
-        auditTrailStatement.executeUpdate();
-
-        connection.commit();
+        // Create audit trail entry; written asynchronously, outside the round trip
+        AuditTrailWriter.getInstance().record(userId, Enums.ActionType.UPDATE, "CFT Reviewer assigned to deviation: " + deviationId);
         return true;
     } catch (SQLException e) {
-        connection.rollback();
         Logger.getLogger(this.getClass().getName()).severe("Error assigning CFT Reviewer: " + e.getMessage());
         throw e; // Re-throw exception for further handling
-    } finally {
-        DatabaseUtility.disconnect(connection);
     }
 }
 
@@ -252,53 +217,58 @@ public boolean assignCFTReviewer(int userId, int deviationId, Integer department
  * @param timestamp    The timestamp of the retry action
  * @param remarks      Additional remarks regarding the retry
  * @param deviationsId The ID of the deviation to retry
- * @return True if the operation was successful, false otherwise
+ * @return True if the operation was successful, false if the deviation is not returned
  * @throws SQLException If a database error occurs
  */
 public boolean retryDepartmentReview(Enums.DeviationStatus status, Timestamp timestamp, String remarks, int deviationsId) throws SQLException {
-    Connection connection = DatabaseUtility.connect();
-    try {
-        String sql = "UPDATE deviations SET status = ?::deviation_status, remarks = ?, updated_at = ? WHERE id = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setString(1, status.name());
-        statement.setString(2, remarks);
-        statement.setTimestamp(3, timestamp);
-        statement.setInt(4, deviationsId);
-
-        int rowsUpdated = statement.executeUpdate();
-        return rowsUpdated > 0;
-    } finally {
-        DatabaseUtility.disconnect(connection);
-    }
+    return JdbcTemplate.execute(session -> DeviationWorkflow.to(status)
+            .from(Enums.DeviationStatus.DEVIATION_RETURNED)
+            .set("remarks", remarks)
+            .set("updated_at", timestamp)
+            .apply(session, deviationsId)
+            .isApplied());
 }
 
 /**
  * Generates a compliance report for a specific deviation, providing a comprehensive overview of the deviation handling process including reviews, approvals, and corrective actions.
+ * The report is built in memory by {@link ComplianceReportEngine}; use {@link #writeComplianceReport(Date, Date, ReportWriter)}
+ * for reports over many deviations.
  * 
- * @param approvalDate       The approval date for filtering approvals.
+ * @param approvalDate       The approval date for filtering approvals: only approvals given on or after it are included; {@code null} for all.
  * @param endDate            The end date for the reporting period.
  * @param deviationsId      The ID of the deviation for which to generate the report.
- * @param completionDate    The completion date for filtering CAPAs.
+ * @param completionDate    The completion date for filtering CAPAs. Not applied: CAPAs are reported from {@code investigations}, which records no completion date.
  * @param startDate          The start date for the reporting period.
  * @return A compliance report containing relevant deviation details and related activities.
  * @throws SQLException If a database access error occurs.
  */
 public ComplianceReport generateComplianceReport(Date approvalDate, Date endDate, int deviationsId, Date completionDate, Date startDate) throws SQLException {
-    Connection connection = DatabaseUtility.connect();
+    ComplianceReportEngine.Collector collector = new ComplianceReportEngine.Collector();
     try {
-        // Implement logic to retrieve and compile compliance report data using provided parameters and database connection
-        // ...
-
-        ComplianceReport report = new ComplianceReport(); // Assuming a 'ComplianceReport' class exists to structure the report data
-        // Populate the report object with retrieved data
-        // ...
-
+        ComplianceReport report = new ComplianceReportEngine(startDate, endDate, deviationsId, approvalDate).write(collector);
+        report.getSections().putAll(collector.getSections());
         return report;
-    } finally {
-        DatabaseUtility.disconnect(connection);
+    } catch (IOException e) {
+        throw new SQLException("Error collecting compliance report", e);
     }
 }
 
+/**
+ * Writes a compliance report over every deviation that occurred in a period, with its summary, reviews, approvals,
+ * assessments, CAPAs and remarks, streaming it to {@code writer} (for example a {@link utils.JsonReportWriter} or
+ * {@link utils.PdfReportWriter}) as it is produced.
+ *
+ * @param startDate The first day of the period, or {@code null} for no lower bound.
+ * @param endDate   The last day of the period, or {@code null} for no upper bound.
+ * @param writer    Receives the report.
+ * @return The summary of the written report.
+ * @throws SQLException If a database access error occurs.
+ * @throws IOException  If the writer fails.
+ */
+public ComplianceReport writeComplianceReport(Date startDate, Date endDate, ReportWriter writer) throws SQLException, IOException {
+    return new ComplianceReportEngine(startDate, endDate, null, null).write(writer);
+}
+
 /**
  * Captures the outcome of an investigation and updates the associated deviation record.
  *
@@ -308,13 +278,16 @@ public ComplianceReport generateComplianceReport(Date approvalDate, Date endDate
  * @return {@code true} if the update was successful, {@code false} otherwise.
  */
 public boolean captureInvestigationOutcome(String remediationActionTaken, String riskAssessment, int investigationId) {
-    String query = "UPDATE deviations SET risk_assessment = ?, remarks = ? WHERE id = (SELECT deviations_id FROM investigations WHERE id = ?)";
-    try (Connection connection = DatabaseUtility.connect();
-         PreparedStatement statement = connection.prepareStatement(query)) {
-        statement.setString(1, riskAssessment);
-        statement.setString(2, remediationActionTaken);
-        statement.setInt(3, investigationId);
-        return statement.executeUpdate() > 0;
+    String query = "WITH changed AS (UPDATE deviations SET risk_assessment = ?, remarks = ?, " + DeviationWorkflow.TOUCH
+            + " WHERE id = (SELECT deviations_id FROM investigations WHERE id = ?) RETURNING id),"
+            + " notified AS (" + String.format(DeviationCache.NOTIFY_EACH_SQL, "changed") + ") SELECT id, (SELECT count(*) FROM notified) FROM changed";
+    try (JdbcSession session = JdbcTemplate.open()) {
+        List<Integer> updated = session.query(query, ParameterBinder.of(riskAssessment, remediationActionTaken, investigationId, DeviationCache.channel()),
+                RowMapper.FIRST_INT);
+        for (int id : updated) {
+            DeviationCache.evictLocal(id);
+        }
+        return !updated.isEmpty();
     } catch (SQLException ex) {
         Logger.getLogger(this.getClass().getName()).severe("Error capturing investigation outcome: " + ex.getMessage());
         return false;
@@ -335,35 +308,28 @@ public boolean captureInvestigationOutcome(String remediationActionTaken, String
  */
 public int recordApproval(Date approvalDate, Enums.ApprovalStatus approvalStatus, int approverId,
         String approverRole, String approvalComments, String approverName, int deviationId) {
-    int approvalId = -1;
-    Connection connection = null;
-    try {
-        connection = DatabaseUtility.connect();
-        String sql = "INSERT INTO approvals (approval_date, approval_status, approver, approver_role, approval_comments, approver_name, deviations_id) VALUES (?, ?::approval_status, ?, ?, ?, ?, ?)"
-                + " RETURNING id;";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setDate(1, new java.sql.Date(approvalDate.getTime()));
-        statement.setString(2, approvalStatus.name());
-        statement.setInt(3, approverId);
-        statement.setString(4, approverRole);
-        statement.setString(5, approvalComments);
-        statement.setString(6, approverName);
-        statement.setInt(7, deviationId);
-
-        ResultSet resultSet = statement.executeQuery();
-        if (resultSet.next()) {
-            approvalId = resultSet.getInt("id");
+    // Insert the approval, mark its deviation as changed and publish the invalidation in one statement
+    String sql = "WITH approval AS (INSERT INTO approvals (approval_date, approval_status, approver, approver_role, approval_comments, approver_name, deviations_id) VALUES (?, ?::approval_status, ?, ?, ?, ?, ?)"
+            + " RETURNING id, deviations_id), " + String.format(DeviationWorkflow.TOUCH_AND_NOTIFY_EACH_SQL, "approval")
+            + " SELECT id, (SELECT count(*) FROM notified) FROM approval";
+    try (JdbcSession session = JdbcTemplate.open()) {
+        Integer approvalId = session.queryOne(sql, ParameterBinder.of(approvalDate, approvalStatus, approverId, approverRole,
+                approvalComments, approverName, deviationId, DeviationCache.channel()), RowMapper.FIRST_INT);
+        if (approvalId == null) {
+            return -1;
         }
+        DeviationCache.evictLocal(deviationId);
+        return approvalId;
     } catch (SQLException e) {
         Logger.getLogger(this.getClass().getName()).severe("Error recording approval: " + e.getMessage());
-    } finally {
-        DatabaseUtility.disconnect(connection);
+        return -1;
     }
-    return approvalId;
 }
 
 /**
-     * Creates a new deviation in the database.
+     * Creates a new deviation in the database. The deviation number is taken
+     * from {@link DeviationNumberAllocator} and written by the same INSERT; if
+     * the INSERT fails, the number is recorded as a gap.
      *
      * @param timeOfIdentification The time the deviation was identified
      * @param dateOfOccurrence The date the deviation occurred
@@ -385,58 +351,45 @@ public int recordApproval(Date approvalDate, Enums.ApprovalStatus approvalStatus
      */
     public Integer createDeviation(Timestamp timeOfIdentification, Date dateOfOccurrence, String description, String riskAssessment, String standardProcedure, String remarks, Enums.DeviationType deviationType, String reasonOrRootCauseForDeviation, String immediateActions, Integer productSelection, Integer batch, Boolean impactOnBatchesInvolved, Integer material, Integer equipment, String justificationForDelay) throws SQLException {
         Logger.getLogger(this.getClass().getName()).info("Creating deviation");
-        Connection connection = DatabaseUtility.connect();
-        try {
-            String sql = "INSERT INTO deviations (time_of_identification, date_of_occurrence, description, risk_assessment, standard_procedure, remarks, deviation_type, reason_or_root_cause_for_deviation, immediate_actions, product_id, batch_id, impact_on_batches_involved, material_id, equipment_id, justification_for_delay) VALUES (?, ?, ?, ?, ?, ?, ?::deviation_type, ?, ?, ?, ?, ?, ?, ?, ?)";
-            PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            statement.setTimestamp(1, timeOfIdentification);
-            statement.setDate(2, new java.sql.Date(dateOfOccurrence.getTime()));
-            statement.setString(3, description);
-            statement.setString(4, riskAssessment);
-            statement.setString(5, standardProcedure);
-            statement.setString(6, remarks);
-            statement.setString(7, deviationType.name());
-            statement.setString(8, reasonOrRootCauseForDeviation);
-            statement.setString(9, immediateActions);
-            if (productSelection != null) {
-                statement.setInt(10, productSelection);
-            } else {
-                statement.setNull(10, Types.INTEGER);
-            }
-            if (batch != null) {
-                statement.setInt(11, batch);
-            } else {
-                statement.setNull(11, Types.INTEGER);
+        String sql = "WITH inserted AS (INSERT INTO deviations (deviation_number, time_of_identification, date_of_occurrence, description, risk_assessment, standard_procedure, remarks, deviation_type, reason_or_root_cause_for_deviation, immediate_actions, product_id, batch_id, impact_on_batches_involved, material_id, equipment_id, justification_for_delay) VALUES (?, ?, ?, ?, ?, ?, ?, ?::deviation_type, ?, ?, ?, ?, ?, ?, ?, ?)"
+                + " RETURNING id), notified AS (" + String.format(DeviationCache.NOTIFY_EACH_SQL, "inserted") + ") SELECT id, (SELECT count(*) FROM notified) FROM inserted";
+        DeviationNumberAllocator allocator = DeviationNumberAllocator.getInstance();
+        long number = allocator.reserve();
+        ParameterBinder binder = ParameterBinder.of(allocator.format(number, deviationType), timeOfIdentification, dateOfOccurrence, description, riskAssessment, standardProcedure, remarks,
+                deviationType, reasonOrRootCauseForDeviation, immediateActions, productSelection, batch, impactOnBatchesInvolved, material, equipment,
+                justificationForDelay, DeviationCache.channel());
+        Integer id = null;
+        try (JdbcSession session = JdbcTemplate.open()) {
+            id = session.queryOne(sql, binder, RowMapper.FIRST_INT);
+            if (id == null) {
+                throw new SQLException("Creating deviation failed, no ID obtained.");
             }
-            statement.setBoolean(12, impactOnBatchesInvolved);
-            if (material != null) {
-                statement.setInt(13, material);
-            } else {
-                statement.setNull(13, Types.INTEGER);
+            return id;
+        } catch (SQLException | RuntimeException e) {
+            // covers a failed checkout too; once the row exists the number is used
+            if (id == null) {
+                allocator.recordGap(number, number, "insert failed: " + e.getMessage());
             }
-            if (equipment != null) {
-                statement.setInt(14, equipment);
-            } else {
-                statement.setNull(14, Types.INTEGER);
-            }
-            statement.setString(15, justificationForDelay);
-
-            int rowsInserted = statement.executeUpdate();
-            if (rowsInserted > 0) {
-                ResultSet generatedKeys = statement.getGeneratedKeys();
-                if (generatedKeys.next()) {
-                    return generatedKeys.getInt(1);
-                } else {
-                    throw new SQLException("Creating deviation failed, no ID obtained.");
-                }
-            } else {
-                throw new SQLException("Creating deviation failed, no rows affected.");
-            }
-        } finally {
-            DatabaseUtility.disconnect(connection);
+            throw e;
         }
     }
 
+/**
+ * Creates many deviations in one call, for legacy migrations and MES feeds.
+ * All rows are written on a single connection: small sets use batched INSERTs,
+ * large sets are streamed with {@code COPY}. A row that fails validation or is
+ * rejected by the database is reported in the result without aborting the
+ * remaining rows.
+ *
+ * @param deviations the deviations to create; ids, numbers and statuses on the
+ *                   input objects are ignored
+ * @return the generated ids in input order and the per-row failures
+ * @throws SQLException if the database connection fails
+ */
+public BulkInsertResult createDeviations(Collection<Deviation> deviations) throws SQLException {
+    return new DeviationBulkInserter().insert(new ArrayList<>(deviations));
+}
+
 /**
  * Updates specific fields of an existing deviation record.
  *
@@ -449,19 +402,17 @@ public int recordApproval(Date approvalDate, Enums.ApprovalStatus approvalStatus
  */
 public boolean updateDeviationDetails(int id, String description, String riskAssessment, String standardProcedure, String remediationActionTaken) {
     boolean updateSuccessful = false;
-    String sql = "UPDATE deviations SET description = ?, risk_assessment = ?, standard_procedure = ?, remarks = ? WHERE id = ?";
-
-    try (Connection connection = DatabaseUtility.connect();
-         PreparedStatement statement = connection.prepareStatement(sql)) {
-
-        statement.setString(1, description);
-        statement.setString(2, riskAssessment);
-        statement.setString(3, standardProcedure);
-        statement.setString(4, remediationActionTaken);
-        statement.setInt(5, id);
-
-        int rowsUpdated = statement.executeUpdate();
-        updateSuccessful = rowsUpdated > 0;
+    String sql = "WITH changed AS (UPDATE deviations SET description = ?, risk_assessment = ?, standard_procedure = ?, remarks = ?, " + DeviationWorkflow.TOUCH
+            + " WHERE id = ? RETURNING id), notified AS (" + String.format(DeviationCache.NOTIFY_EACH_SQL, "changed") + ")"
+            + " SELECT id, (SELECT count(*) FROM notified) FROM changed";
+
+    try (JdbcSession session = JdbcTemplate.open()) {
+        List<Integer> updated = session.query(sql, ParameterBinder.of(description, riskAssessment, standardProcedure, remediationActionTaken, id,
+                DeviationCache.channel()), RowMapper.FIRST_INT);
+        updateSuccessful = !updated.isEmpty();
+        if (updateSuccessful) {
+            DeviationCache.evictLocal(id);
+        }
     } catch (SQLException e) {
         Logger.getLogger(this.getClass().getName()).severe("Error updating deviation details: " + e.getMessage());
     }
@@ -476,15 +427,11 @@ public boolean updateDeviationDetails(int id, String description, String riskAss
  * @param id     the unique identifier of the deviation to close
  * @param status the status to set for the deviation (should be 'closed')
  * @return {@code true} if the deviation was successfully closed, {@code false}
- *         otherwise
+ *         otherwise, including when it is neither approved by QA nor dropped
  */
 public boolean closeDeviation(int id, Enums.DeviationHandlingStatus status) {
-    String sql = "UPDATE deviations SET status = ?::deviation_handling_status WHERE id = ?";
-    try (Connection connection = DatabaseUtility.connect();
-         PreparedStatement statement = connection.prepareStatement(sql)) {
-        statement.setString(1, status.name());
-        statement.setInt(2, id);
-        return statement.executeUpdate() > 0;
+    try {
+        return JdbcTemplate.execute(session -> DeviationWorkflow.close(status).apply(session, id).isApplied());
     } catch (SQLException e) {
         Logger.getLogger(this.getClass().getName()).severe("Error closing deviation: " + e.getMessage());
         return false;
@@ -502,26 +449,22 @@ public boolean closeDeviation(int id, Enums.DeviationHandlingStatus status) {
  */
 public boolean reviewByCloserDepartment(String deviation_number, Enums.DeviationStatus status, String description, String risk_assessment, String remarks) {
     boolean success = false;
-    Connection connection = DatabaseUtility.connect();
     try {
-        String sql = "UPDATE deviations SET status = ?::deviation_status, description = ?, risk_assessment = ?, remarks = ? WHERE deviation_number = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setString(1, status.name());
-        statement.setString(2, description);
-        statement.setString(3, risk_assessment);
-        statement.setString(4, remarks);
-        statement.setString(5, deviation_number);
-        int rowsUpdated = statement.executeUpdate();
-        if (rowsUpdated > 0) {
+        TransitionResult result = JdbcTemplate.execute(session -> DeviationWorkflow.to(status)
+                .set("description", description)
+                .set("risk_assessment", risk_assessment)
+                .set("remarks", remarks)
+                .applyByNumber(session, deviation_number));
+        if (result.isApplied()) {
             success = true;
             Logger.getLogger(this.getClass().getName()).info("Deviation review by closer department updated successfully for deviation number: " + deviation_number);
-        } else {
+        } else if (result.getOutcome() == TransitionResult.Outcome.NOT_FOUND) {
             Logger.getLogger(this.getClass().getName()).warning("Deviation review update failed. Deviation number " + deviation_number + " not found.");
+        } else {
+            Logger.getLogger(this.getClass().getName()).warning("Deviation review update failed for deviation number " + deviation_number + ": " + result);
         }
     } catch (SQLException e) {
         Logger.getLogger(this.getClass().getName()).severe("Error during deviation review update: " + e.getMessage());
-    } finally {
-        DatabaseUtility.disconnect(connection);
     }
     return success;
 }
@@ -536,30 +479,190 @@ public boolean reviewByCloserDepartment(String deviation_number, Enums.Deviation
  * @return                  True if the review was successfully submitted, false otherwise
  */
 public boolean initiateDepartmentReview(String reviewComments, Enums.DeviationStatus deviationStatus, int deviationId, String justification) {
-    Connection connection = DatabaseUtility.connect();
     try {
-        String sql = "UPDATE deviations SET review_comment = ?, status = ? WHERE id = ?";
-        PreparedStatement statement = connection.prepareStatement(sql);
-        statement.setString(1, reviewComments);
-        statement.setString(2, deviationStatus.name());
-        statement.setInt(3, deviationId);
-        int rowsUpdated = statement.executeUpdate();
-
+        DeviationWorkflow.Transition transition = DeviationWorkflow.to(deviationStatus)
+                .from(Enums.DeviationStatus.PENDING_DEPARTMENT_REVIEW)
+                .set("review_comment", reviewComments);
         if (deviationStatus == Enums.DeviationStatus.DEVIATION_RETURNED || deviationStatus == Enums.DeviationStatus.DEVIATION_DROPPED) {
-            sql = "INSERT INTO deviation_remarks (deviations_id, content, created_at) VALUES (?, ?, ?)";
-            statement = connection.prepareStatement(sql);
-            statement.setInt(1, deviationId);
-            statement.setString(2, justification);
-            statement.setTimestamp(3, new Timestamp(new Date().getTime()));
-            statement.executeUpdate();
+            // Record the justification in the same statement as the review
+            transition.with("remark", "INSERT INTO deviation_remarks (deviations_id, content, created_at) SELECT id, ?::text, ?::timestamp FROM updated RETURNING id",
+                    justification, new Timestamp(new Date().getTime()));
         }
-
-        return rowsUpdated > 0;
+        return JdbcTemplate.execute(session -> transition.apply(session, deviationId).isApplied());
     } catch (SQLException ex) {
         Logger.getLogger(this.getClass().getName()).severe("Error initiating department review: " + ex.getMessage());
         return false;
-    } finally {
-        DatabaseUtility.disconnect(connection);
     }
 }
+
+/**
+ * Retrieves a deviation by its id. Reads are served from {@link DeviationCache}
+ * when possible and loaded from the database on a miss.
+ *
+ * @param id the unique identifier of the deviation
+ * @return the deviation, or {@code null} if none exists or an error occurred
+ */
+public Deviation getDeviationById(int id) {
+    try {
+        return DeviationCache.deviations().get(id, this::loadDeviationById);
+    } catch (SQLException e) {
+        Logger.getLogger(this.getClass().getName()).severe("Error retrieving deviation: " + e.getMessage());
+        return null;
+    }
+}
+
+/**
+ * Retrieves a deviation by its id, optionally looking in the archive when it
+ * is no longer in the hot table (see {@link DeviationArchiver}). Archived
+ * deviations do not change and are read from the database, not the cache.
+ *
+ * @param id              the unique identifier of the deviation
+ * @param includeArchived {@code true} to read historical data from the
+ *                        archive as well
+ * @return the deviation, or {@code null} if none exists or an error occurred
+ */
+public Deviation getDeviationById(int id, boolean includeArchived) {
+    Deviation deviation = getDeviationById(id);
+    if (deviation != null || !includeArchived || !DeviationArchiver.isEnabled()) {
+        return deviation;
+    }
+    try {
+        return JdbcTemplate.queryOne("SELECT * FROM deviations_archive WHERE id = ?", ParameterBinder.of(id), RowMappers.DEVIATION);
+    } catch (SQLException e) {
+        Logger.getLogger(this.getClass().getName()).severe("Error retrieving archived deviation: " + e.getMessage());
+        return null;
+    }
+}
+
+/**
+ * Reads only the row version of a deviation, always from the database, so
+ * that a client can tell whether its copy of the deviation or of its
+ * assessments is still current without the row being read or serialized.
+ *
+ * @param id the unique identifier of the deviation
+ * @return the version, or {@code null} if no such deviation exists
+ * @throws SQLException if a database access error occurs
+ */
+public DeviationVersion getDeviationVersion(int id) throws SQLException {
+    return JdbcTemplate.queryOne("SELECT version, updated_at FROM deviations WHERE id = ?", ParameterBinder.of(id),
+            resultSet -> new DeviationVersion(id, resultSet.getInt(1), resultSet.getTimestamp(2)));
+}
+
+/**
+ * Retrieves a deviation by its human-facing deviation number. Reads are served
+ * from {@link DeviationCache} when possible and loaded from the database on a
+ * miss.
+ *
+ * @param deviationNumber the deviation number
+ * @return the deviation, or {@code null} if none exists or an error occurred
+ */
+public Deviation getDeviationByNumber(String deviationNumber) {
+    try {
+        Integer id = DeviationCache.numbers().get(deviationNumber, this::loadDeviationIdByNumber);
+        return id == null ? null : getDeviationById(id);
+    } catch (SQLException e) {
+        Logger.getLogger(this.getClass().getName()).severe("Error retrieving deviation by number: " + e.getMessage());
+        return null;
+    }
+}
+
+/**
+ * Lists deviations matching a filter, newest occurrence first, one page at a
+ * time. Pages are addressed by keyset rather than offset, so deep pages cost
+ * the same as the first one. The page is read from a read replica when one is
+ * available.
+ *
+ * @param filter    the listing criteria, or {@code null} for all deviations
+ * @param pageToken the token returned with the previous page, or {@code null} for the first page
+ * @param pageSize  the maximum number of deviations per page, between 1 and {@value #MAX_PAGE_SIZE}
+ * @return the page, with the token for the next page if there is one
+ * @throws SQLException if a database access error occurs
+ * @throws IllegalArgumentException if the page token is malformed
+ */
+public DeviationPage listDeviations(DeviationFilter filter, String pageToken, int pageSize) throws SQLException {
+    int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    DeviationListQuery query = new DeviationListQuery(filter);
+    if (pageToken != null && !pageToken.isEmpty()) {
+        query.after(pageToken);
+    }
+    List<Deviation> deviations = JdbcTemplate.queryReadOnly(query.toSql(limit + 1), query::bind, RowMappers.DEVIATION);
+    boolean more = deviations.size() > limit;
+    if (more) {
+        deviations.remove(limit);
+    }
+    String nextPageToken = more ? DeviationListQuery.encodeToken(deviations.get(deviations.size() - 1)) : null;
+    return new DeviationPage(deviations, nextPageToken);
+}
+
+/**
+ * Searches the description, remarks, risk assessment, review comment and standard procedure of every
+ * deviation, best match first. See {@link DeviationSearch} for the query syntax and backends.
+ *
+ * @param query the search terms; the last one also matches as a prefix unless the query ends with a separator
+ * @param limit the maximum number of hits, at most {@value DeviationSearch#MAX_HITS}
+ * @return the hits, best first
+ * @throws SQLException if the PostgreSQL search backend fails
+ * @throws IllegalStateException if the in-memory search index is still loading
+ */
+public List<SearchHit> searchDeviations(String query, int limit) throws SQLException {
+    return DeviationSearch.getInstance().search(query, limit);
+}
+
+/**
+ * Streams every deviation matching a filter to a consumer, newest occurrence
+ * first, without building a list. Rows are fetched through a server-side
+ * cursor in chunks of {@code listing.fetchSize} rows, so memory use stays flat
+ * for exports and reports over the whole table. The rows are read from a read
+ * replica when one is available.
+ *
+ * @param filter   the listing criteria, or {@code null} for all deviations
+ * @param consumer receives each deviation in order; it runs while the cursor is open
+ * @return the number of deviations passed to the consumer
+ * @throws SQLException if a database access error occurs
+ */
+public long streamDeviations(DeviationFilter filter, Consumer<Deviation> consumer) throws SQLException {
+    DeviationListQuery query = new DeviationListQuery(filter);
+    // pgjdbc only uses a cursor for setFetchSize outside autocommit
+    return JdbcTemplate.inReadOnlyTransaction(session -> session.forEach(query.toSql(0), query::bind, STREAM_FETCH_SIZE, RowMappers.DEVIATION, consumer));
+}
+
+/**
+ * Writes every deviation matching a filter as a JSON array, newest occurrence
+ * first, straight from the result set: no {@link Deviation} objects or lists
+ * are built, and rows are fetched through a server-side cursor as for
+ * {@link #streamDeviations(DeviationFilter, Consumer)}.
+ *
+ * @param filter the listing criteria, or {@code null} for all deviations
+ * @param json   receives the array
+ * @return the number of deviations written
+ * @throws SQLException if a database access error occurs
+ * @throws IOException  if the writer fails
+ */
+public long writeDeviations(DeviationFilter filter, JsonWriter json) throws SQLException, IOException {
+    DeviationListQuery query = new DeviationListQuery(filter);
+    return JsonRowWriters.writeArray(query.toSql(0), query::bind, STREAM_FETCH_SIZE, JsonRowWriters.DEVIATION, json);
+}
+
+/**
+ * Writes the remarks on a deviation as a JSON array of {@link Comment}s, oldest
+ * first, straight from the result set.
+ *
+ * @param deviationsId the deviation
+ * @param json         receives the array
+ * @return the number of remarks written
+ * @throws SQLException if a database access error occurs
+ * @throws IOException  if the writer fails
+ */
+public long writeComments(int deviationsId, JsonWriter json) throws SQLException, IOException {
+    return JsonRowWriters.writeArray("SELECT id, content, created_at, updated_at, deviations_id FROM deviation_remarks WHERE deviations_id = ? ORDER BY created_at, id",
+            ParameterBinder.of(deviationsId), STREAM_FETCH_SIZE, JsonRowWriters.COMMENT, json);
+}
+
+private Deviation loadDeviationById(int id) throws SQLException {
+    return JdbcTemplate.queryOne("SELECT * FROM deviations WHERE id = ?", ParameterBinder.of(id), RowMappers.DEVIATION);
+}
+
+private Integer loadDeviationIdByNumber(String deviationNumber) throws SQLException {
+    return JdbcTemplate.queryOne("SELECT id FROM deviations WHERE deviation_number = ?", ParameterBinder.of(deviationNumber), RowMapper.FIRST_INT);
+}
 }
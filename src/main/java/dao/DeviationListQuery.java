@@ -0,0 +1,144 @@
+package dao;
+
+import model.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Builds the filtered, keyset-ordered {@code SELECT} behind the deviation
+ * listing methods of {@link DeviationDAO}.
+ *
+ * <p>
+ * Rows are ordered by {@code (date_of_occurrence, id)} descending, deviations
+ * without an occurrence date last: the date is read as {@code -infinity} when
+ * it is missing, in the ordering and in the key alike, so a page can end on
+ * such a row and the next one still continues after it. A page continues
+ * strictly after the last key of the previous page, so the cost of a page does
+ * not grow with its depth as it does with {@code OFFSET}. The key is handed to
+ * callers as an opaque, URL-safe continuation token. An index on the same
+ * expression serves the ordering:
+ * {@code CREATE INDEX ON deviations ((coalesce(date_of_occurrence, '-infinity'::date)) DESC, id DESC)}.
+ * A filter that includes archived deviations reads the {@code deviations_all}
+ * view instead when archiving is enabled (see {@link DeviationArchiver}).
+ * </p>
+ */
+class DeviationListQuery {
+
+    private static final String OCCURRENCE_KEY = "coalesce(date_of_occurrence, '-infinity'::date)";
+    private static final String NO_OCCURRENCE = "-infinity";
+
+    private final StringBuilder sql = new StringBuilder("SELECT * FROM ");
+    private final List<Object> parameters = new ArrayList<>();
+
+    /**
+     * Creates a query for the given filter.
+     *
+     * @param filter the listing criteria, may be {@code null}
+     */
+    DeviationListQuery(DeviationFilter filter) {
+        sql.append(filter != null && filter.isIncludeArchived() ? DeviationArchiver.withArchive("deviations") : "deviations").append(" WHERE TRUE");
+        if (filter == null) {
+            return;
+        }
+        if (filter.getStatus() != null) {
+            condition(" AND status = ?::deviation_status", filter.getStatus().name());
+        }
+        if (filter.getDeviationType() != null) {
+            condition(" AND deviation_type = ?::deviation_type", filter.getDeviationType().name());
+        }
+        if (filter.getDeviationSeverity() != null) {
+            condition(" AND deviation_severity = ?::deviation_severity", filter.getDeviationSeverity().name());
+        }
+        if (filter.getProductId() != null) {
+            condition(" AND product_id = ?", filter.getProductId());
+        }
+        if (filter.getBatchId() != null) {
+            condition(" AND batch_id = ?", filter.getBatchId());
+        }
+        if (filter.getEquipmentId() != null) {
+            condition(" AND equipment_id = ?", filter.getEquipmentId());
+        }
+        if (filter.getOccurredFrom() != null) {
+            condition(" AND date_of_occurrence >= ?", new java.sql.Date(filter.getOccurredFrom().getTime()));
+        }
+        if (filter.getOccurredTo() != null) {
+            condition(" AND date_of_occurrence <= ?", new java.sql.Date(filter.getOccurredTo().getTime()));
+        }
+    }
+
+    /**
+     * Restricts the query to rows after the key encoded in a continuation token.
+     *
+     * @param pageToken a token from {@link #encodeToken(Deviation)}
+     * @return this query
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    DeviationListQuery after(String pageToken) {
+        String key;
+        try {
+            key = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token: " + pageToken, e);
+        }
+        int separator = key.indexOf('/');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid page token: " + pageToken);
+        }
+        try {
+            String date = key.substring(0, separator);
+            if (!NO_OCCURRENCE.equals(date)) {
+                date = java.sql.Date.valueOf(date).toString();
+            }
+            int id = Integer.parseInt(key.substring(separator + 1));
+            sql.append(" AND (").append(OCCURRENCE_KEY).append(", id) < (?::date, ?)");
+            parameters.add(date);
+            parameters.add(id);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token: " + pageToken, e);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the SQL text with ordering and an optional row limit.
+     *
+     * @param limit the maximum number of rows, or 0 for no limit
+     * @return the SQL text
+     */
+    String toSql(int limit) {
+        String ordered = sql + " ORDER BY " + OCCURRENCE_KEY + " DESC, id DESC";
+        return limit > 0 ? ordered + " LIMIT " + limit : ordered;
+    }
+
+    /**
+     * Binds the collected parameters to a statement prepared from {@link #toSql(int)}.
+     *
+     * @param statement the statement to bind
+     * @throws SQLException if a parameter cannot be set
+     */
+    void bind(PreparedStatement statement) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setObject(i + 1, parameters.get(i));
+        }
+    }
+
+    /**
+     * Encodes the keyset position of a deviation as an opaque continuation token.
+     *
+     * @param last the last deviation of a page
+     * @return the token
+     */
+    static String encodeToken(Deviation last) {
+        String date = last.getDateOfOccurrence() != null ? new java.sql.Date(last.getDateOfOccurrence().getTime()).toString() : NO_OCCURRENCE;
+        String key = date + "/" + last.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void condition(String clause, Object value) {
+        sql.append(clause);
+        parameters.add(value);
+    }
+}
@@ -0,0 +1,324 @@
+package dao;
+
+import model.Enums;
+import utils.DatabaseUtility;
+import utils.JdbcTemplate;
+import utils.Metrics;
+import utils.ParameterBinder;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.time.Year;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Allocates the human-facing deviation numbers without serializing deviation
+ * creation.
+ *
+ * <p>
+ * Numbers come from the {@code deviation_number_seq} sequence in blocks: one
+ * {@code nextval} reserves the {@code INCREMENT BY} numbers that follow it for
+ * this node, and the node hands them out with an atomic increment, taking a
+ * lock only to reserve the next block. Numbers therefore increase on each
+ * node but interleave between nodes, and a number is never handed out twice.
+ * </p>
+ *
+ * <p>
+ * A number is formatted with {@code deviation.number.pattern} (default
+ * {@code {site}-{year}-{type}-{seq:6}}): {@code {site}} is
+ * {@code deviation.number.site}, {@code {year}} the year the deviation is
+ * raised, {@code {type}} {@code deviation.number.type.<TYPE>} or else the first
+ * letter of the deviation type, and {@code {seq:N}} the sequence number padded
+ * to N digits. Numbers that are reserved but never stored, because the insert
+ * failed or because the node stopped before using its whole block, are
+ * recorded as gaps so that an auditor can account for every number:
+ * </p>
+ *
+ * <pre>
+ * CREATE SEQUENCE deviation_number_seq INCREMENT BY 50;
+ * CREATE TABLE deviation_number_gaps (
+ *     id serial PRIMARY KEY,
+ *     first_number bigint NOT NULL,
+ *     last_number bigint NOT NULL,
+ *     reason text NOT NULL,
+ *     node text NOT NULL,
+ *     recorded_at timestamp NOT NULL DEFAULT now()
+ * );
+ * </pre>
+ *
+ * <p>
+ * The {@code MAX()+1} trigger that used to number deviations under a table
+ * lock must be dropped once every writer assigns numbers here.
+ * </p>
+ */
+public final class DeviationNumberAllocator {
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationNumberAllocator.class.getName());
+
+    private static final String RESERVE_SQL = "SELECT nextval('deviation_number_seq'), (SELECT increment_by FROM pg_sequences "
+            + "WHERE schemaname = current_schema() AND sequencename = 'deviation_number_seq') FROM generate_series(1, ?)";
+    private static final String GAP_SQL = "INSERT INTO deviation_number_gaps (first_number, last_number, reason, node) VALUES (?, ?, ?, ?)";
+    private static final String GAPS_SQL = "INSERT INTO deviation_number_gaps (first_number, last_number, reason, node)"
+            + " SELECT g.first_number, g.last_number, ?, ? FROM unnest(?::bigint[], ?::bigint[]) g(first_number, last_number)";
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(site|year|type|seq(?::(\\d+))?)\\}");
+    private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+    private static final DeviationNumberAllocator INSTANCE = new DeviationNumberAllocator();
+
+    /**
+     * A placeholder of the pattern other than the sequence number.
+     */
+    private enum Field {
+        SITE, YEAR, TYPE
+    }
+
+    /**
+     * A reserved block of numbers: {@code next} up to, but excluding,
+     * {@code end}.
+     */
+    private static final class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private final String site = DatabaseUtility.getProperty("deviation.number.site", "SITE").trim();
+    private final List<Object> segments = parse(DatabaseUtility.getProperty("deviation.number.pattern", "{site}-{year}-{type}-{seq:6}").trim());
+    private final LongAdder reservations = Metrics.counter("deviation.numbers.blocks");
+    private final LongAdder gaps = Metrics.counter("deviation.numbers.gaps");
+
+    private volatile Block block = new Block(0L, 0L);
+
+    private DeviationNumberAllocator() {
+    }
+
+    /**
+     * @return the node-wide allocator
+     */
+    public static DeviationNumberAllocator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Takes the next number, reserving a new block first if this node has
+     * used up its block.
+     *
+     * @return the sequence number
+     * @throws SQLException if a new block cannot be reserved
+     */
+    long reserve() throws SQLException {
+        while (true) {
+            Block current = block;
+            long number = current.next.getAndIncrement();
+            if (number < current.end) {
+                return number;
+            }
+            refill(current);
+        }
+    }
+
+    /**
+     * Takes many numbers at once, for bulk inserts, in blocks of their own
+     * reserved with a single query. The unused end of the last block is
+     * recorded as a gap.
+     *
+     * @param count the number of numbers
+     * @return the sequence numbers
+     * @throws SQLException if the blocks cannot be reserved
+     */
+    long[] reserve(int count) throws SQLException {
+        long[] numbers = new long[count];
+        int filled = 0;
+        // The first block tells the increment, the second query takes the rest
+        int blocks = 1;
+        while (filled < count) {
+            long increment = 1L;
+            for (long[] reserved : reserveBlocks(blocks)) {
+                long end = reserved[0] + reserved[1];
+                for (long number = reserved[0]; number < end; number++) {
+                    if (filled == count) {
+                        recordGap(number, end - 1, "unused by a bulk insert");
+                        break;
+                    }
+                    numbers[filled++] = number;
+                }
+                increment = reserved[1];
+            }
+            blocks = (int) ((count - filled + increment - 1) / increment);
+        }
+        return numbers;
+    }
+
+    /**
+     * Formats a sequence number as a deviation number.
+     *
+     * @param number the sequence number
+     * @param type   the deviation type, or {@code null}
+     * @return the deviation number
+     */
+    String format(long number, Enums.DeviationType type) {
+        StringBuilder formatted = new StringBuilder(32);
+        for (Object segment : segments) {
+            if (segment instanceof Integer) {
+                String digits = Long.toString(number);
+                for (int i = digits.length(); i < (Integer) segment; i++) {
+                    formatted.append('0');
+                }
+                formatted.append(digits);
+            } else if (segment == Field.SITE) {
+                formatted.append(site);
+            } else if (segment == Field.YEAR) {
+                formatted.append(Year.now().getValue());
+            } else if (segment == Field.TYPE) {
+                formatted.append(typeCode(type));
+            } else {
+                formatted.append((String) segment);
+            }
+        }
+        return formatted.toString();
+    }
+
+    /**
+     * Records numbers that were reserved but will never be stored. Failures
+     * are logged, never thrown, so that recording a gap cannot hide the error
+     * that caused it.
+     *
+     * @param first  the first lost number
+     * @param last   the last lost number
+     * @param reason why the numbers were lost
+     */
+    void recordGap(long first, long last, String reason) {
+        gaps.add(last - first + 1);
+        LOGGER.info("Deviation numbers " + first + " to " + last + " will not be used: " + reason);
+        try {
+            JdbcTemplate.update(GAP_SQL, ParameterBinder.of(first, last, reason, NODE));
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.severe("Could not record deviation number gap " + first + " to " + last + " (" + reason + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records scattered numbers that were reserved but will never be stored,
+     * one gap per run of consecutive numbers, in a single statement. Failures
+     * are logged, never thrown, as for {@link #recordGap(long, long, String)}.
+     *
+     * @param numbers the lost numbers, in any order
+     * @param reason  why the numbers were lost
+     */
+    void recordGaps(long[] numbers, String reason) {
+        if (numbers.length == 0) {
+            return;
+        }
+        long[] sorted = numbers.clone();
+        Arrays.sort(sorted);
+        List<Long> firsts = new ArrayList<>();
+        List<Long> lasts = new ArrayList<>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1] + 1) {
+                firsts.add(sorted[i]);
+                lasts.add(sorted[i]);
+            } else {
+                lasts.set(lasts.size() - 1, sorted[i]);
+            }
+        }
+        gaps.add(sorted.length);
+        LOGGER.info(sorted.length + " deviation numbers in " + firsts.size() + " ranges from " + sorted[0] + " to " + sorted[sorted.length - 1]
+                + " will not be used: " + reason);
+        try {
+            JdbcTemplate.update(GAPS_SQL, statement -> {
+                statement.setString(1, reason);
+                statement.setString(2, NODE);
+                statement.setArray(3, statement.getConnection().createArrayOf("bigint", firsts.toArray()));
+                statement.setArray(4, statement.getConnection().createArrayOf("bigint", lasts.toArray()));
+            });
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.severe("Could not record deviation number gaps " + firsts + " to " + lasts + " (" + reason + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the rest of this node's block as a gap, since it will not be
+     * used after the application stops.
+     */
+    public synchronized void shutdown() {
+        Block current = block;
+        block = new Block(0L, 0L);
+        long next = current.next.getAndSet(current.end);
+        if (next < current.end) {
+            recordGap(next, current.end - 1, "unused at shutdown");
+        }
+    }
+
+    private synchronized void refill(Block exhausted) throws SQLException {
+        if (block != exhausted) {
+            return;
+        }
+        long[] reserved = reserveBlocks(1).get(0);
+        block = new Block(reserved[0], reserved[0] + reserved[1]);
+    }
+
+    /**
+     * Reserves blocks from the sequence.
+     *
+     * @return the first number and the size of each block
+     */
+    private List<long[]> reserveBlocks(int count) throws SQLException {
+        List<long[]> reserved = JdbcTemplate.query(RESERVE_SQL, ParameterBinder.of(count),
+                resultSet -> new long[] { resultSet.getLong(1), resultSet.getLong(2) });
+        if (reserved.size() != count || reserved.get(0)[1] < 1) {
+            throw new SQLException("deviation_number_seq must exist with a positive increment");
+        }
+        reservations.add(count);
+        return reserved;
+    }
+
+    private static String typeCode(Enums.DeviationType type) {
+        if (type == null) {
+            return "X";
+        }
+        String configured = DatabaseUtility.getProperty("deviation.number.type." + type.name(), "").trim();
+        return configured.isEmpty() ? type.name().substring(0, 1).toUpperCase(Locale.ROOT) : configured;
+    }
+
+    /**
+     * Splits a pattern into literal strings, {@link Field}s and, for
+     * {@code {seq:N}}, the padding width as an {@link Integer}.
+     */
+    private static List<Object> parse(String pattern) {
+        List<Object> segments = new ArrayList<>();
+        Matcher matcher = PLACEHOLDER.matcher(pattern);
+        int literalStart = 0;
+        boolean sequence = false;
+        while (matcher.find()) {
+            if (matcher.start() > literalStart) {
+                segments.add(pattern.substring(literalStart, matcher.start()));
+            }
+            String name = matcher.group(1);
+            if (name.startsWith("seq")) {
+                segments.add(matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2)));
+                sequence = true;
+            } else {
+                segments.add(Field.valueOf(name.toUpperCase(Locale.ROOT)));
+            }
+            literalStart = matcher.end();
+        }
+        if (literalStart < pattern.length()) {
+            segments.add(pattern.substring(literalStart));
+        }
+        if (!sequence) {
+            throw new IllegalArgumentException("deviation.number.pattern must contain {seq} or {seq:N}: " + pattern);
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,437 @@
+package dao;
+
+import model.SearchHit;
+import utils.DatabaseUtility;
+import utils.JdbcSession;
+import utils.JdbcTemplate;
+import utils.Metrics;
+import utils.ParameterBinder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Full-text search over the narrative fields of deviations: description,
+ * remarks, risk assessment, review comment and standard procedure. A search
+ * matches the deviations containing every term of the query, the last one
+ * also as a prefix while it is still being typed, best match first.
+ *
+ * <p>
+ * With {@code search.backend=memory} (the default) searches are served from an
+ * in-process {@link InvertedIndex} ranked with BM25 and never touch the
+ * database. The index is kept up to date by an {@link InvalidationFollower}.
+ * Every {@code search.reconcileSeconds} and after a full invalidation the
+ * index compares a hash of each row's text, computed by the database, with
+ * the hash it indexed and re-reads only the rows that differ.
+ * </p>
+ *
+ * <p>
+ * The index is written to {@code search.snapshotFile} (by default
+ * {@code deviation-search.idx} in the temporary directory, {@code none} to
+ * disable) when it is reconciled and when the application stops. On start the
+ * snapshot is loaded and reconciled instead of rebuilding the index from every
+ * row; searches are served from it as soon as it is loaded. Without a
+ * snapshot the index is built with a full scan, and {@link #isReady()} is
+ * {@code false} until it is done.
+ * </p>
+ *
+ * <p>
+ * With {@code search.backend=postgres} searches run against a
+ * {@code tsvector} column with a GIN index instead, and nothing is held in
+ * memory:
+ * </p>
+ *
+ * <pre>
+ * ALTER TABLE deviations ADD COLUMN search_vector tsvector GENERATED ALWAYS AS (to_tsvector('simple',
+ *     concat_ws(' ', description, remarks, risk_assessment, review_comment, standard_procedure))) STORED;
+ * CREATE INDEX deviations_search_vector_idx ON deviations USING GIN (search_vector);
+ * </pre>
+ */
+public final class DeviationSearch {
+
+    /**
+     * Where searches are answered.
+     */
+    public enum Backend {
+        /** The in-process inverted index. */
+        MEMORY,
+        /** The {@code search_vector} column of {@code deviations}. */
+        POSTGRES
+    }
+
+    /** Upper bound for the number of hits of one search. */
+    public static final int MAX_HITS = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationSearch.class.getName());
+
+    private static final String HASH = "('x' || substr(md5(concat_ws(chr(31), description, remarks, risk_assessment, review_comment, "
+            + "standard_procedure)), 1, 8))::bit(32)::int";
+    private static final String SCAN_SQL = "SELECT id, " + HASH + ", description, remarks, risk_assessment, review_comment, "
+            + "standard_procedure FROM deviations";
+    private static final String REFRESH_SQL = SCAN_SQL + " WHERE id = ANY(?)";
+    private static final String VERIFY_SQL = "SELECT id, " + HASH + " FROM deviations";
+    private static final String TSQUERY_SQL = "SELECT id, ts_rank_cd(search_vector, query) FROM deviations, to_tsquery('simple', ?) query "
+            + "WHERE search_vector @@ query ORDER BY 2 DESC, id LIMIT ?";
+    private static final int TEXT_COLUMNS = 5;
+    private static final int SCAN_FETCH_SIZE = 5000;
+
+    private static final DeviationSearch INSTANCE = new DeviationSearch();
+
+    private final Backend backend = Backend.valueOf(DatabaseUtility.getProperty("search.backend", "memory").trim().toUpperCase(Locale.ROOT));
+    private final long reconcileMillis = Math.max(1, DatabaseUtility.getIntProperty("search.reconcileSeconds", 900)) * 1000L;
+    private final Path snapshotFile = snapshotFile(DatabaseUtility.getProperty("search.snapshotFile", "").trim());
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Metrics.Timer searchTimer = Metrics.timer("search.query");
+    private final LongAdder drift = Metrics.counter("search.reconcile.drift");
+    private final LongAdder failures = Metrics.counter("search.failures");
+
+    private InvertedIndex index = new InvertedIndex();
+    private volatile boolean ready;
+    private ScheduledExecutorService executor;
+
+    private final InvalidationFollower follower = new InvalidationFollower("the deviation search index", "search", new InvalidationFollower.View() {
+        @Override
+        public boolean isLoaded() {
+            return ready;
+        }
+
+        @Override
+        public void resynchronize() throws SQLException {
+            verify(false);
+        }
+
+        @Override
+        public void refresh(List<Integer> ids) throws SQLException {
+            DeviationSearch.this.refresh(ids);
+        }
+    });
+
+    private DeviationSearch() {
+        Metrics.gauge("search.documents", () -> {
+            lock.readLock().lock();
+            try {
+                return index.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * @return the node-wide search
+     */
+    public static DeviationSearch getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Loads or builds the index and starts keeping it up to date. Does nothing
+     * if the search is already running or uses the PostgreSQL backend.
+     */
+    public synchronized void start() {
+        if (backend == Backend.POSTGRES) {
+            ready = true;
+            return;
+        }
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deviation-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        follower.start(executor);
+        executor.execute(this::load);
+        executor.scheduleWithFixedDelay(this::reconcile, reconcileMillis, reconcileMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Deviation search started");
+    }
+
+    /**
+     * Stops updating the index and writes its snapshot.
+     */
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        follower.stop();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        if (ready) {
+            writeSnapshot();
+        }
+        ready = false;
+    }
+
+    /**
+     * @return whether searches can be answered
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the backend searches are answered from
+     */
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Searches the narrative fields of deviations. Terms are the runs of
+     * letters and digits of the query, compared without case. If the query
+     * does not end with a separator its last term also matches as a prefix.
+     *
+     * @param query the query
+     * @param limit the maximum number of hits, at most {@value #MAX_HITS}
+     * @return the hits, best first; empty if the query has no terms
+     * @throws SQLException          if the PostgreSQL backend fails
+     * @throws IllegalStateException if the in-memory index is not ready
+     */
+    public List<SearchHit> search(String query, int limit) throws SQLException {
+        List<String> terms = new ArrayList<>();
+        InvertedIndex.tokenize(query, terms);
+        int max = Math.max(1, Math.min(limit, MAX_HITS));
+        if (terms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        boolean prefix = Character.isLetterOrDigit(query.charAt(query.length() - 1));
+        long start = searchTimer.start();
+        try {
+            return backend == Backend.POSTGRES ? searchPostgres(terms, prefix, max) : searchMemory(terms, prefix, max);
+        } finally {
+            searchTimer.stop(start);
+        }
+    }
+
+    private List<SearchHit> searchMemory(List<String> terms, boolean prefix, int limit) {
+        if (!ready) {
+            throw new IllegalStateException("The search index is still loading");
+        }
+        List<InvertedIndex.Hit> hits;
+        lock.readLock().lock();
+        try {
+            hits = index.search(terms, prefix, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<SearchHit> result = new ArrayList<>(hits.size());
+        for (InvertedIndex.Hit hit : hits) {
+            result.add(new SearchHit(hit.id, hit.score));
+        }
+        return result;
+    }
+
+    private List<SearchHit> searchPostgres(List<String> terms, boolean prefix, int limit) throws SQLException {
+        // Terms are letters and digits only, so they need no tsquery quoting
+        String tsquery = String.join(" & ", terms) + (prefix ? ":*" : "");
+        return JdbcTemplate.query(TSQUERY_SQL, ParameterBinder.of(tsquery, limit),
+                resultSet -> new SearchHit(resultSet.getInt(1), resultSet.getDouble(2)));
+    }
+
+    private void load() {
+        try {
+            InvertedIndex loaded = readSnapshot();
+            if (loaded != null) {
+                replace(loaded);
+                ready = true;
+                LOGGER.info("Deviation search index loaded from " + snapshotFile + " with " + loaded.size() + " deviation(s)");
+                verify(false);
+            } else {
+                rebuild();
+                ready = true;
+            }
+            follower.refresh();
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not load the deviation search index, retrying at the next reconciliation", e);
+        }
+    }
+
+    private void refresh(List<Integer> ids) throws SQLException {
+        List<Document> documents = JdbcTemplate.query(REFRESH_SQL,
+                statement -> statement.setArray(1, statement.getConnection().createArrayOf("integer", ids.toArray())), Document::new);
+        BitSet found = new BitSet();
+        lock.writeLock().lock();
+        try {
+            for (Document document : documents) {
+                index.put(document.id, document.hash, document.terms);
+                found.set(document.id);
+            }
+            for (Integer id : ids) {
+                if (!found.get(id)) {
+                    index.remove(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void reconcile() {
+        try {
+            if (!ready) {
+                load();
+                return;
+            }
+            follower.cancelResynchronize();
+            verify(true);
+            follower.refresh();
+            writeSnapshot();
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not reconcile the deviation search index", e);
+        }
+    }
+
+    /**
+     * Marks every row whose text hash differs from the indexed one as dirty
+     * and removes the deviations that no longer exist. Runs on the background
+     * thread, the only writer, so it reads the index without the lock.
+     */
+    private void verify(boolean measureDrift) throws SQLException {
+        BitSet seen = new BitSet();
+        List<Integer> changed = new ArrayList<>();
+        try (JdbcSession session = JdbcTemplate.open()) {
+            session.inTransaction(s -> s.forEach(VERIFY_SQL, ParameterBinder.NONE, SCAN_FETCH_SIZE, resultSet -> {
+                int id = resultSet.getInt(1);
+                seen.set(id);
+                Integer hash = index.hashOf(id);
+                if (hash == null || hash != resultSet.getInt(2)) {
+                    changed.add(id);
+                }
+                return null;
+            }, row -> {
+            }));
+        }
+        List<Integer> removed = new ArrayList<>();
+        for (int id : index.ids()) {
+            if (!seen.get(id)) {
+                removed.add(id);
+            }
+        }
+        if (!removed.isEmpty()) {
+            lock.writeLock().lock();
+            try {
+                for (int id : removed) {
+                    index.remove(id);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        int difference = changed.size() + removed.size();
+        if (measureDrift && difference != 0) {
+            drift.add(difference);
+            LOGGER.warning("Deviation search index drifted by " + difference + " deviation(s), corrected by reconciliation");
+        }
+        follower.markDirty(changed);
+    }
+
+    private void rebuild() throws SQLException {
+        InvertedIndex rebuilt = new InvertedIndex();
+        long count = JdbcTemplate.inTransaction(session -> session.forEach(SCAN_SQL, ParameterBinder.NONE, SCAN_FETCH_SIZE, Document::new,
+                document -> rebuilt.put(document.id, document.hash, document.terms)));
+        replace(rebuilt);
+        LOGGER.info("Deviation search index built from " + count + " deviation(s), " + rebuilt.terms() + " term(s)");
+    }
+
+    private void replace(InvertedIndex replacement) {
+        lock.writeLock().lock();
+        try {
+            index = replacement;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private InvertedIndex readSnapshot() {
+        if (snapshotFile == null) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(snapshotFile))))) {
+            return InvertedIndex.read(input);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable search index snapshot " + snapshotFile, e);
+            return null;
+        }
+    }
+
+    private void writeSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temporary))))) {
+            index.write(output);
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not write search index snapshot " + snapshotFile, e);
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not replace search index snapshot " + snapshotFile, e);
+        }
+    }
+
+    private static Path snapshotFile(String configured) {
+        if (configured.isEmpty()) {
+            return Paths.get(System.getProperty("java.io.tmpdir"), "deviation-search.idx");
+        }
+        return "none".equals(configured) ? null : Paths.get(configured);
+    }
+
+    /**
+     * A row read for indexing: its id, text hash and terms.
+     */
+    private static final class Document {
+        private final int id;
+        private final int hash;
+        private final List<String> terms = new ArrayList<>();
+
+        private Document(ResultSet resultSet) throws SQLException {
+            id = resultSet.getInt(1);
+            hash = resultSet.getInt(2);
+            for (int column = 3; column < 3 + TEXT_COLUMNS; column++) {
+                InvertedIndex.tokenize(resultSet.getString(column), terms);
+            }
+        }
+    }
+}
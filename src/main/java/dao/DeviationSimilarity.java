@@ -0,0 +1,352 @@
+package dao;
+
+import model.RecurrenceSuggestion;
+import model.SimilarDeviation;
+import utils.DatabaseUtility;
+import utils.JdbcSession;
+import utils.JdbcTemplate;
+import utils.Metrics;
+import utils.ParameterBinder;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the prior deviations that resemble a deviation, to suggest whether it
+ * is a repeat and how many times it has occurred before.
+ *
+ * <p>
+ * Each deviation is reduced to the set of words of its description and root
+ * cause plus tokens for its product, material and equipment, each weighted as
+ * {@value #ATTRIBUTE_WEIGHT} words, and the set to a MinHash signature held
+ * in a {@link MinHashIndex}. A lookup only compares the deviations that share
+ * an LSH band with the target, so it takes milliseconds whatever the size of
+ * the table, and a deviation is counted as a recurrence when its estimated
+ * similarity reaches {@code similarity.threshold} (default 0.5). Matches are
+ * therefore approximate: a similar deviation can be missed, with a probability
+ * that falls quickly as its similarity grows. "Prior" means an earlier date of
+ * occurrence, or the same date and a lower id.
+ * </p>
+ *
+ * <p>
+ * The signatures are built with a full scan when the application starts and
+ * kept up to date by an {@link InvalidationFollower}. Every
+ * {@code similarity.reconcileSeconds} and after a full invalidation, a hash
+ * of each row's fields, computed by the database, is compared with the hash
+ * the signature was built from.
+ * </p>
+ */
+public final class DeviationSimilarity {
+
+    /** Upper bound for the number of similar deviations returned. */
+    public static final int MAX_RESULTS = 50;
+
+    /** The number of words a shared product, material or equipment counts as. */
+    static final int ATTRIBUTE_WEIGHT = 3;
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationSimilarity.class.getName());
+
+    private static final String COLUMNS = "description, reason_or_root_cause_for_deviation, product_id, material_id, equipment_id, date_of_occurrence";
+    private static final String HASH = "('x' || substr(md5(concat_ws(chr(31), " + COLUMNS + ")), 1, 8))::bit(32)::int";
+    private static final String SCAN_SQL = "SELECT id, " + HASH + ", " + COLUMNS + " FROM deviations";
+    private static final String REFRESH_SQL = SCAN_SQL + " WHERE id = ANY(?)";
+    private static final String LOAD_SQL = SCAN_SQL + " WHERE id = ?";
+    private static final String VERIFY_SQL = "SELECT id, " + HASH + " FROM deviations";
+    private static final int SCAN_FETCH_SIZE = 5000;
+
+    private static final DeviationSimilarity INSTANCE = new DeviationSimilarity();
+
+    private final double threshold = Double.parseDouble(DatabaseUtility.getProperty("similarity.threshold", "0.5").trim());
+    private final long reconcileMillis = Math.max(1, DatabaseUtility.getIntProperty("similarity.reconcileSeconds", 900)) * 1000L;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Metrics.Timer lookupTimer = Metrics.timer("similarity.lookup");
+    private final LongAdder drift = Metrics.counter("similarity.reconcile.drift");
+    private final LongAdder failures = Metrics.counter("similarity.failures");
+
+    private MinHashIndex index = new MinHashIndex();
+    private volatile boolean ready;
+    private ScheduledExecutorService executor;
+
+    private final InvalidationFollower follower = new InvalidationFollower("deviation similarity", "similarity", new InvalidationFollower.View() {
+        @Override
+        public boolean isLoaded() {
+            return ready;
+        }
+
+        @Override
+        public void resynchronize() throws SQLException {
+            verify(false);
+        }
+
+        @Override
+        public void refresh(List<Integer> ids) throws SQLException {
+            DeviationSimilarity.this.refresh(ids);
+        }
+    });
+
+    private DeviationSimilarity() {
+    }
+
+    /**
+     * @return the node-wide similarity index
+     */
+    public static DeviationSimilarity getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Builds the signatures and starts keeping them up to date. Does nothing
+     * if the index is already running.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deviation-similarity");
+            thread.setDaemon(true);
+            return thread;
+        });
+        follower.start(executor);
+        executor.scheduleWithFixedDelay(this::reconcile, 0L, reconcileMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Deviation similarity started");
+    }
+
+    /**
+     * Stops updating the signatures.
+     */
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        follower.stop();
+        executor.shutdownNow();
+        executor = null;
+        ready = false;
+    }
+
+    /**
+     * @return whether the signatures have been built since the index started
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Finds the prior deviations most similar to a deviation.
+     *
+     * @param deviationId the deviation
+     * @param limit       the maximum number of results, at most {@value #MAX_RESULTS}
+     * @return the similar deviations at or above the threshold, best first;
+     *         empty if the deviation does not exist or has nothing to compare
+     * @throws SQLException          if the deviation cannot be read
+     * @throws IllegalStateException if the signatures are still being built
+     */
+    public List<SimilarDeviation> findSimilar(int deviationId, int limit) throws SQLException {
+        return suggestRecurrence(deviationId, limit).getSimilarDeviations();
+    }
+
+    /**
+     * Suggests the recurrence of a deviation from the prior deviations that
+     * resemble it.
+     *
+     * @param deviationId the deviation
+     * @param limit       the maximum number of similar deviations to return
+     *                    with the suggestion, at most {@value #MAX_RESULTS}
+     * @return the suggestion
+     * @throws SQLException          if the deviation cannot be read
+     * @throws IllegalStateException if the signatures are still being built
+     */
+    public RecurrenceSuggestion suggestRecurrence(int deviationId, int limit) throws SQLException {
+        if (!ready) {
+            throw new IllegalStateException("The deviation similarity index is still loading");
+        }
+        long start = lookupTimer.start();
+        try {
+            int[] signature;
+            long order;
+            lock.readLock().lock();
+            try {
+                signature = index.signatureOf(deviationId);
+                order = index.orderOf(deviationId);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (signature == null) {
+                // Not indexed yet, or indexed without tokens: read it directly
+                Signature target = JdbcTemplate.queryOne(LOAD_SQL, ParameterBinder.of(deviationId), Signature::new);
+                if (target == null || target.signature == null) {
+                    return new RecurrenceSuggestion(0, new ArrayList<>());
+                }
+                signature = target.signature;
+                order = target.order;
+            }
+
+            List<MinHashIndex.Match> matches;
+            lock.readLock().lock();
+            try {
+                matches = index.candidates(signature, deviationId, order, threshold);
+            } finally {
+                lock.readLock().unlock();
+            }
+            matches.sort(Comparator.comparingDouble((MinHashIndex.Match match) -> match.similarity).reversed()
+                    .thenComparingInt(match -> match.id));
+            int max = Math.max(1, Math.min(limit, MAX_RESULTS));
+            List<SimilarDeviation> similar = new ArrayList<>(Math.min(max, matches.size()));
+            for (MinHashIndex.Match match : matches) {
+                if (similar.size() == max) {
+                    break;
+                }
+                similar.add(new SimilarDeviation(match.id, match.similarity));
+            }
+            return new RecurrenceSuggestion(matches.size(), similar);
+        } finally {
+            lookupTimer.stop(start);
+        }
+    }
+
+    private void refresh(List<Integer> ids) throws SQLException {
+        List<Signature> signatures = JdbcTemplate.query(REFRESH_SQL,
+                statement -> statement.setArray(1, statement.getConnection().createArrayOf("integer", ids.toArray())), Signature::new);
+        BitSet found = new BitSet();
+        lock.writeLock().lock();
+        try {
+            for (Signature signature : signatures) {
+                index.put(signature.id, signature.hash, signature.order, signature.signature);
+                found.set(signature.id);
+            }
+            for (Integer id : ids) {
+                if (!found.get(id)) {
+                    index.remove(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void reconcile() {
+        try {
+            if (ready) {
+                follower.cancelResynchronize();
+                verify(true);
+            } else {
+                rebuild();
+                ready = true;
+            }
+            follower.refresh();
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not reconcile deviation similarity", e);
+        }
+    }
+
+    /**
+     * Marks every row whose hash differs from the indexed one as dirty and
+     * removes the deviations that no longer exist. Runs on the background
+     * thread, the only writer, so it reads the index without the lock.
+     */
+    private void verify(boolean measureDrift) throws SQLException {
+        BitSet seen = new BitSet();
+        List<Integer> changed = new ArrayList<>();
+        try (JdbcSession session = JdbcTemplate.open()) {
+            session.inTransaction(s -> s.forEach(VERIFY_SQL, ParameterBinder.NONE, SCAN_FETCH_SIZE, resultSet -> {
+                int id = resultSet.getInt(1);
+                seen.set(id);
+                Integer hash = index.hashOf(id);
+                if (hash == null || hash != resultSet.getInt(2)) {
+                    changed.add(id);
+                }
+                return null;
+            }, row -> {
+            }));
+        }
+        List<Integer> removed = new ArrayList<>();
+        for (int id : index.ids()) {
+            if (!seen.get(id)) {
+                removed.add(id);
+            }
+        }
+        if (!removed.isEmpty()) {
+            lock.writeLock().lock();
+            try {
+                for (int id : removed) {
+                    index.remove(id);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        int difference = changed.size() + removed.size();
+        if (measureDrift && difference != 0) {
+            drift.add(difference);
+            LOGGER.warning("Deviation similarity drifted by " + difference + " deviation(s), corrected by reconciliation");
+        }
+        follower.markDirty(changed);
+    }
+
+    private void rebuild() throws SQLException {
+        MinHashIndex rebuilt = new MinHashIndex();
+        long count = JdbcTemplate.inTransaction(session -> session.forEach(SCAN_SQL, ParameterBinder.NONE, SCAN_FETCH_SIZE, Signature::new,
+                signature -> rebuilt.put(signature.id, signature.hash, signature.order, signature.signature)));
+        lock.writeLock().lock();
+        try {
+            index = rebuilt;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOGGER.info("Deviation similarity built from " + count + " deviation(s)");
+    }
+
+    /**
+     * A row reduced to its id, field hash, order key and signature.
+     */
+    private static final class Signature {
+        private final int id;
+        private final int hash;
+        private final long order;
+        private final int[] signature;
+
+        private Signature(ResultSet resultSet) throws SQLException {
+            id = resultSet.getInt(1);
+            hash = resultSet.getInt(2);
+            Set<String> tokens = new HashSet<>();
+            List<String> words = new ArrayList<>();
+            InvertedIndex.tokenize(resultSet.getString(3), words);
+            InvertedIndex.tokenize(resultSet.getString(4), words);
+            tokens.addAll(words);
+            attribute(tokens, "product", resultSet, 5);
+            attribute(tokens, "material", resultSet, 6);
+            attribute(tokens, "equipment", resultSet, 7);
+            signature = MinHashIndex.signature(tokens);
+            Date occurred = resultSet.getDate(8);
+            long day = occurred == null ? Integer.MIN_VALUE : occurred.toLocalDate().toEpochDay();
+            order = (day << 32) | (id & 0xffffffffL);
+        }
+
+        private static void attribute(Set<String> tokens, String name, ResultSet resultSet, int column) throws SQLException {
+            int value = resultSet.getInt(column);
+            if (!resultSet.wasNull()) {
+                // Not letters and digits only, so no word of the narrative can collide with it
+                for (int i = 0; i < ATTRIBUTE_WEIGHT; i++) {
+                    tokens.add(name + ':' + value + '#' + i);
+                }
+            }
+        }
+    }
+}
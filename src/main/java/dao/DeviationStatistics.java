@@ -0,0 +1,376 @@
+package dao;
+
+import model.Enums;
+import utils.DatabaseUtility;
+import utils.JdbcTemplate;
+import utils.Metrics;
+import utils.ParameterBinder;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory deviation counts for the status dashboard, by status, type,
+ * severity and department and by every combination of the four.
+ *
+ * <p>
+ * The counts are seeded from a full scan of {@code deviations} when the
+ * store starts and then kept up to date by an {@link InvalidationFollower}:
+ * each re-read row is moved from its previous combination to its current
+ * one, and a full invalidation triggers a new scan. Every
+ * {@code dashboard.reconcileSeconds} the scan is repeated anyway and any
+ * difference from the incremental counts is logged and counted as drift.
+ * </p>
+ *
+ * <p>
+ * All updates run on a single background thread, so reads never block and
+ * are a {@link LongAdder} sum; only the previous combination of each
+ * deviation is kept, not the rows. Statuses are normalized to upper case
+ * because some updates store them in lower case. The department is the CFT
+ * department the deviation has been routed to.
+ * </p>
+ */
+public final class DeviationStatistics {
+
+    /**
+     * A dimension the counts can be broken down by.
+     */
+    public enum Dimension {
+        STATUS, TYPE, SEVERITY, DEPARTMENT
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationStatistics.class.getName());
+
+    private static final String SCAN_SQL = "SELECT id, status, deviation_type, deviation_severity, cft_department_id FROM deviations";
+    private static final String REFRESH_SQL = SCAN_SQL + " WHERE id = ANY(?)";
+    private static final String NONE = "NONE";
+    private static final int SCAN_FETCH_SIZE = 5000;
+
+    private static final DeviationStatistics INSTANCE = new DeviationStatistics();
+
+    private final long reconcileMillis = Math.max(1, DatabaseUtility.getIntProperty("dashboard.reconcileSeconds", 300)) * 1000L;
+
+    private final ConcurrentHashMap<Key, Key> keys = new ConcurrentHashMap<>();
+    private final LongAdder drift = Metrics.counter("dashboard.reconcile.drift");
+    private final LongAdder failures = Metrics.counter("dashboard.failures");
+
+    private volatile Counters counters = new Counters();
+    private volatile boolean seeded;
+    private Map<Integer, Key> known = new HashMap<>();
+    private ScheduledExecutorService executor;
+
+    private final InvalidationFollower follower = new InvalidationFollower("deviation statistics", "dashboard", new InvalidationFollower.View() {
+        @Override
+        public boolean isLoaded() {
+            return seeded;
+        }
+
+        @Override
+        public void resynchronize() throws SQLException {
+            rescan(false);
+        }
+
+        @Override
+        public void refresh(List<Integer> ids) throws SQLException {
+            DeviationStatistics.this.refresh(ids);
+        }
+    });
+
+    private DeviationStatistics() {
+    }
+
+    /**
+     * @return the node-wide store
+     */
+    public static DeviationStatistics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Seeds the counts and starts keeping them up to date. Does nothing if the
+     * store is already running.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "deviation-statistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        follower.start(executor);
+        executor.scheduleWithFixedDelay(this::reconcile, 0L, reconcileMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Deviation statistics started");
+    }
+
+    /**
+     * Stops updating the counts.
+     */
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        follower.stop();
+        executor.shutdownNow();
+        executor = null;
+        seeded = false;
+    }
+
+    /**
+     * @return whether the counts have been seeded since the store started
+     */
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * @return the number of deviations
+     */
+    public long getTotal() {
+        return counters.total.sum();
+    }
+
+    /**
+     * Gets the number of deviations with the given status.
+     *
+     * @param status the status
+     * @return the number of deviations
+     */
+    public long count(Enums.DeviationStatus status) {
+        LongAdder count = counters.by.get(Dimension.STATUS).get(status.name());
+        return count == null ? 0L : count.sum();
+    }
+
+    /**
+     * Gets the number of deviations with the given value of a dimension.
+     *
+     * @param dimension the dimension
+     * @param value     the value, as stored; {@code NONE} for deviations
+     *                  without one
+     * @return the number of deviations
+     */
+    public long count(Dimension dimension, String value) {
+        LongAdder count = counters.by.get(dimension).get(normalize(dimension, value));
+        return count == null ? 0L : count.sum();
+    }
+
+    /**
+     * Gets the number of deviations for each value of a dimension.
+     *
+     * @param dimension the dimension
+     * @return the non-zero counts by value, in value order
+     */
+    public Map<String, Long> countsBy(Dimension dimension) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.by.get(dimension).entrySet()) {
+            long count = entry.getValue().sum();
+            if (count != 0L) {
+                result.put(entry.getKey(), count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the number of deviations for each combination of status, type,
+     * severity and department.
+     *
+     * @return one map per non-empty combination, with the four dimensions and
+     *         {@code count}
+     */
+    public List<Map<String, Object>> breakdown() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map.Entry<Key, LongAdder> entry : counters.combinations.entrySet()) {
+            long count = entry.getValue().sum();
+            if (count == 0L) {
+                continue;
+            }
+            Key key = entry.getKey();
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("status", key.status);
+            row.put("type", key.type);
+            row.put("severity", key.severity);
+            row.put("department", key.department);
+            row.put("count", count);
+            result.add(row);
+        }
+        return result;
+    }
+
+    private void refresh(List<Integer> ids) throws SQLException {
+        Map<Integer, Key> current = new HashMap<>();
+        JdbcTemplate.execute(session -> session.forEach(REFRESH_SQL,
+                statement -> statement.setArray(1, statement.getConnection().createArrayOf("integer", ids.toArray())), 0, this::row,
+                row -> current.put(row.getKey(), row.getValue())));
+        Counters target = counters;
+        for (Integer id : ids) {
+            Key now = current.get(id);
+            Key before = now == null ? known.remove(id) : known.put(id, now);
+            if (before != now) {
+                if (before != null) {
+                    target.add(before, -1L);
+                }
+                if (now != null) {
+                    target.add(now, 1L);
+                }
+            }
+        }
+    }
+
+    private void reconcile() {
+        try {
+            follower.cancelResynchronize();
+            rescan(seeded);
+            seeded = true;
+            follower.refresh();
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not reconcile deviation statistics", e);
+        }
+    }
+
+    private void rescan(boolean measureDrift) throws SQLException {
+        Map<Integer, Key> scanned = new HashMap<>(Math.max(16, known.size() * 4 / 3));
+        Counters rebuilt = new Counters();
+        JdbcTemplate.inTransaction(session -> session.forEach(SCAN_SQL, ParameterBinder.NONE, SCAN_FETCH_SIZE, this::row, row -> {
+            scanned.put(row.getKey(), row.getValue());
+            rebuilt.add(row.getValue(), 1L);
+        }));
+        if (measureDrift) {
+            long difference = counters.difference(rebuilt);
+            if (difference != 0L) {
+                drift.add(difference);
+                LOGGER.warning("Deviation statistics drifted by " + difference + " deviation(s), corrected by reconciliation");
+            }
+        }
+        known = scanned;
+        counters = rebuilt;
+    }
+
+    private Map.Entry<Integer, Key> row(ResultSet resultSet) throws SQLException {
+        return Map.entry(resultSet.getInt(1), key(resultSet));
+    }
+
+    private Key key(ResultSet resultSet) throws SQLException {
+        int department = resultSet.getInt(5);
+        Key key = new Key(normalize(Dimension.STATUS, resultSet.getString(2)),
+                normalize(Dimension.TYPE, resultSet.getString(3)),
+                normalize(Dimension.SEVERITY, resultSet.getString(4)),
+                resultSet.wasNull() ? NONE : Integer.toString(department));
+        Key existing = keys.putIfAbsent(key, key);
+        return existing == null ? key : existing;
+    }
+
+    private static String normalize(Dimension dimension, String value) {
+        if (value == null) {
+            return NONE;
+        }
+        return dimension == Dimension.STATUS ? value.toUpperCase(Locale.ROOT) : value;
+    }
+
+    /**
+     * One combination of status, type, severity and department.
+     */
+    private static final class Key {
+        private final String status;
+        private final String type;
+        private final String severity;
+        private final String department;
+
+        private Key(String status, String type, String severity, String department) {
+            this.status = status;
+            this.type = type;
+            this.severity = severity;
+            this.department = department;
+        }
+
+        private String get(Dimension dimension) {
+            switch (dimension) {
+                case STATUS:
+                    return status;
+                case TYPE:
+                    return type;
+                case SEVERITY:
+                    return severity;
+                default:
+                    return department;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return status.equals(other.status) && type.equals(other.type) && severity.equals(other.severity)
+                    && department.equals(other.department);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(status, type, severity, department);
+        }
+    }
+
+    /**
+     * The counters for one generation of the store, replaced as a whole by
+     * each scan.
+     */
+    private static final class Counters {
+        private final LongAdder total = new LongAdder();
+        private final ConcurrentHashMap<Key, LongAdder> combinations = new ConcurrentHashMap<>();
+        private final Map<Dimension, ConcurrentHashMap<String, LongAdder>> by = new EnumMap<>(Dimension.class);
+
+        private Counters() {
+            for (Dimension dimension : Dimension.values()) {
+                by.put(dimension, new ConcurrentHashMap<>());
+            }
+        }
+
+        private void add(Key key, long delta) {
+            total.add(delta);
+            combinations.computeIfAbsent(key, k -> new LongAdder()).add(delta);
+            for (Dimension dimension : Dimension.values()) {
+                by.get(dimension).computeIfAbsent(key.get(dimension), k -> new LongAdder()).add(delta);
+            }
+        }
+
+        /**
+         * @return the number of deviations counted under a different
+         *         combination here than in {@code other}
+         */
+        private long difference(Counters other) {
+            long difference = 0L;
+            for (Map.Entry<Key, LongAdder> entry : other.combinations.entrySet()) {
+                LongAdder mine = combinations.get(entry.getKey());
+                difference += Math.abs(entry.getValue().sum() - (mine == null ? 0L : mine.sum()));
+            }
+            for (Map.Entry<Key, LongAdder> entry : combinations.entrySet()) {
+                if (!other.combinations.containsKey(entry.getKey())) {
+                    difference += Math.abs(entry.getValue().sum());
+                }
+            }
+            return difference / 2 + difference % 2;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package dao;
+
+import model.*;
+import utils.JdbcSession;
+import utils.Metrics;
+import utils.ParameterBinder;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * The deviation workflow: which status may follow which, and the
+ * compare-and-set update that moves a deviation along it.
+ *
+ * <p>
+ * Every transition is a single conditional {@code UPDATE} that changes the
+ * status only if the deviation is still in one of the statuses the transition
+ * may leave, and optionally still at the version the caller read, and
+ * increments {@code version}. Concurrent reviewers therefore never overwrite
+ * each other's decisions and never hold row locks across round trips: the
+ * loser gets a {@link TransitionResult.Outcome#CONFLICT} with the status and
+ * version that won. The update statement only sees the row as of its own
+ * snapshot, which predates a change committed while it waited for the row
+ * lock, so a conflict costs one more query that reads the row as committed.
+ * </p>
+ *
+ * <p>
+ * {@code version} and {@code updated_at} are the row version of the whole
+ * deviation: every DAO method that changes a deviation, its assessments or
+ * its approvals sets them with {@link #TOUCH}, so they can serve as HTTP
+ * validators. Rows are inserted with the column defaults:
+ * </p>
+ *
+ * <pre>{@code
+ * ALTER TABLE deviations ADD COLUMN version integer NOT NULL DEFAULT 0;
+ * ALTER TABLE deviations ALTER COLUMN updated_at SET DEFAULT now();
+ * }</pre>
+ *
+ * <p>
+ * Statuses are compared case-insensitively because some updates store them
+ * in lower case. The {@code pending_final_approval} status set when a final
+ * approver is assigned is not a {@link Enums.DeviationStatus}; it is treated
+ * as a form of {@code PENDING_QA_REVIEW}.
+ * </p>
+ */
+final class DeviationWorkflow {
+
+    /**
+     * The assignments that mark a {@code deviations} row as changed, for
+     * updates outside a transition.
+     */
+    static final String TOUCH = "version = version + 1, updated_at = now()";
+
+    /**
+     * Marks the deviations of the rows returned by a data-modifying
+     * {@code WITH} query named in place of {@code %s} as changed, returning
+     * their ids.
+     */
+    static final String TOUCH_EACH_SQL = "UPDATE deviations SET " + TOUCH + " WHERE id IN (SELECT deviations_id FROM %s) RETURNING id";
+
+    /**
+     * The {@code WITH} queries {@code touched}, which applies
+     * {@link #TOUCH_EACH_SQL} to the query named in place of {@code %s}, and
+     * {@code notified}, which publishes the invalidations of the touched
+     * deviations with {@link DeviationCache#NOTIFY_EACH_SQL}; the channel is
+     * bound after the parameters of the preceding queries.
+     */
+    static final String TOUCH_AND_NOTIFY_EACH_SQL = "touched AS (" + TOUCH_EACH_SQL + "), notified AS ("
+            + String.format(DeviationCache.NOTIFY_EACH_SQL, "touched") + ")";
+
+    /** Status stored by {@link DeviationAssessmentDAO#assignFinalApprover(int, int, int)}. */
+    static final String PENDING_FINAL_APPROVAL = "pending_final_approval";
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationWorkflow.class.getName());
+    private static final LongAdder CONFLICTS = Metrics.counter("workflow.conflicts");
+    private static final String CURRENT_SQL = "SELECT status::text, version FROM deviations WHERE id = ?";
+
+    private static final Map<Enums.DeviationStatus, Set<Enums.DeviationStatus>> TRANSITIONS = new EnumMap<>(Enums.DeviationStatus.class);
+    private static final Map<Enums.DeviationStatus, Set<Enums.DeviationStatus>> SOURCES = new EnumMap<>(Enums.DeviationStatus.class);
+
+    static {
+        allow(Enums.DeviationStatus.PENDING_DEPARTMENT_REVIEW, Enums.DeviationStatus.DEPARTMENT_REVIEW_COMPLETED,
+                Enums.DeviationStatus.DEVIATION_RETURNED, Enums.DeviationStatus.DEVIATION_DROPPED);
+        allow(Enums.DeviationStatus.DEPARTMENT_REVIEW_COMPLETED, Enums.DeviationStatus.PENDING_CFT_REVIEW,
+                Enums.DeviationStatus.PENDING_QA_REVIEW, Enums.DeviationStatus.APPROVED_BY_QA);
+        allow(Enums.DeviationStatus.PENDING_CFT_REVIEW, Enums.DeviationStatus.ONGOING_CFT_REVIEW,
+                Enums.DeviationStatus.DEVIATION_RETURNED);
+        allow(Enums.DeviationStatus.ONGOING_CFT_REVIEW, Enums.DeviationStatus.CFT_REVIEW_COMPLETE,
+                Enums.DeviationStatus.PENDING_QA_REVIEW, Enums.DeviationStatus.DEVIATION_RETURNED);
+        allow(Enums.DeviationStatus.CFT_REVIEW_COMPLETE, Enums.DeviationStatus.PENDING_QA_REVIEW);
+        allow(Enums.DeviationStatus.PENDING_QA_REVIEW, Enums.DeviationStatus.APPROVED_BY_QA,
+                Enums.DeviationStatus.DEVIATION_RETURNED, Enums.DeviationStatus.DEVIATION_DROPPED);
+        allow(Enums.DeviationStatus.DEVIATION_RETURNED, Enums.DeviationStatus.PENDING_DEPARTMENT_REVIEW);
+        allow(Enums.DeviationStatus.APPROVED_BY_QA);
+        allow(Enums.DeviationStatus.DEVIATION_DROPPED);
+    }
+
+    /** Statuses a deviation may be closed from. */
+    private static final Set<Enums.DeviationStatus> CLOSABLE = Collections.unmodifiableSet(
+            EnumSet.of(Enums.DeviationStatus.APPROVED_BY_QA, Enums.DeviationStatus.DEVIATION_DROPPED));
+
+    private DeviationWorkflow() {
+    }
+
+    private static void allow(Enums.DeviationStatus from, Enums.DeviationStatus... to) {
+        Set<Enums.DeviationStatus> targets = EnumSet.noneOf(Enums.DeviationStatus.class);
+        Collections.addAll(targets, to);
+        TRANSITIONS.put(from, Collections.unmodifiableSet(targets));
+        for (Enums.DeviationStatus target : to) {
+            SOURCES.computeIfAbsent(target, k -> EnumSet.noneOf(Enums.DeviationStatus.class)).add(from);
+        }
+    }
+
+    /**
+     * Tells whether the workflow allows moving from one status to another.
+     *
+     * @param from the current status
+     * @param to   the new status
+     * @return {@code true} if the transition is allowed
+     */
+    static boolean isAllowed(Enums.DeviationStatus from, Enums.DeviationStatus to) {
+        return from != null && TRANSITIONS.getOrDefault(from, Collections.emptySet()).contains(to);
+    }
+
+    /**
+     * Gets the statuses a deviation may move to {@code to} from.
+     *
+     * @param to the new status
+     * @return the allowed current statuses, possibly empty
+     */
+    static Set<Enums.DeviationStatus> sourcesOf(Enums.DeviationStatus to) {
+        Set<Enums.DeviationStatus> sources = SOURCES.get(to);
+        return sources == null ? Collections.emptySet() : Collections.unmodifiableSet(sources);
+    }
+
+    /**
+     * Starts a transition to {@code to}, from any status the workflow allows.
+     *
+     * @param to the new status
+     * @return the transition
+     */
+    static Transition to(Enums.DeviationStatus to) {
+        return new Transition("?::deviation_status", to.name(), sourcesOf(to));
+    }
+
+    /**
+     * Starts the transition that closes a deviation once it has been approved
+     * by QA or dropped.
+     *
+     * @param status the closing status
+     * @return the transition
+     */
+    static Transition close(Enums.DeviationHandlingStatus status) {
+        return new Transition("?::deviation_handling_status", status.name(), CLOSABLE);
+    }
+
+    /**
+     * Gets the statuses {@link #close(Enums.DeviationHandlingStatus)} may
+     * store, which end the workflow.
+     *
+     * @return the status names, in upper case
+     */
+    static String[] closedStatuses() {
+        Enums.DeviationHandlingStatus[] values = Enums.DeviationHandlingStatus.values();
+        String[] names = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            names[i] = values[i].name().toUpperCase(Locale.ROOT);
+        }
+        return names;
+    }
+
+    /**
+     * Starts the transition to {@link #PENDING_FINAL_APPROVAL}, allowed while
+     * the deviation awaits QA review.
+     *
+     * @return the transition
+     */
+    static Transition toPendingFinalApproval() {
+        return new Transition("?", PENDING_FINAL_APPROVAL, EnumSet.of(Enums.DeviationStatus.PENDING_QA_REVIEW));
+    }
+
+    /**
+     * A pending compare-and-set transition. Not thread-safe; build and apply
+     * it on one thread.
+     *
+     * <p>
+     * Besides the status change, a transition can carry further conditions
+     * and dependent statements. All of them, together with the cache
+     * invalidation, run as one statement: a single round trip that is atomic
+     * even in autocommit mode.
+     * </p>
+     */
+    static final class Transition {
+        private final String statusExpression;
+        private final String status;
+        private final Set<Enums.DeviationStatus> from;
+        private final Map<String, Object> assignments = new LinkedHashMap<>();
+        private final List<String> conditions = new ArrayList<>();
+        private final List<Object> conditionParameters = new ArrayList<>();
+        private final Map<String, String> dependents = new LinkedHashMap<>();
+        private final List<Object> dependentParameters = new ArrayList<>();
+        private final Map<String, String> unconditional = new LinkedHashMap<>();
+        private final List<Object> unconditionalParameters = new ArrayList<>();
+        private final Map<String, Object> returned = new HashMap<>();
+        private boolean illegal;
+        private Integer expectedVersion;
+
+        private Transition(String statusExpression, String status, Set<Enums.DeviationStatus> from) {
+            this.statusExpression = statusExpression;
+            this.status = status;
+            this.from = EnumSet.noneOf(Enums.DeviationStatus.class);
+            this.from.addAll(from);
+        }
+
+        /**
+         * Restricts the transition to deviations currently in
+         * {@code current}. The transition becomes illegal if the workflow
+         * does not allow it from there.
+         *
+         * @param current the status the caller expects the deviation to be in
+         * @return this transition
+         */
+        Transition from(Enums.DeviationStatus current) {
+            boolean allowed = current != null && from.contains(current);
+            from.clear();
+            if (allowed) {
+                from.add(current);
+            } else {
+                illegal = true;
+            }
+            return this;
+        }
+
+        /**
+         * Restricts the transition to deviations still at the given version.
+         *
+         * @param version the version the caller read
+         * @return this transition
+         */
+        Transition expectVersion(int version) {
+            this.expectedVersion = version;
+            return this;
+        }
+
+        /**
+         * Sets another column in the same update.
+         *
+         * @param column the column name, a constant
+         * @param value  the new value, or {@code null}
+         * @return this transition
+         */
+        Transition set(String column, Object value) {
+            assignments.put(column, value);
+            return this;
+        }
+
+        /**
+         * Adds a condition on the {@code deviations} row to the update. If it
+         * does not hold, the transition is reported as a
+         * {@link TransitionResult.Outcome#CONFLICT}.
+         *
+         * @param condition  the SQL condition, a constant
+         * @param parameters the values of its parameters
+         * @return this transition
+         */
+        Transition require(String condition, Object... parameters) {
+            conditions.add(condition);
+            Collections.addAll(conditionParameters, parameters);
+            return this;
+        }
+
+        /**
+         * Adds a data-modifying statement that runs in the same statement as
+         * the transition. It must select from {@code updated}, which holds
+         * the {@code id}, {@code status} and {@code version} of the
+         * transitioned deviations, so that it only takes effect if the
+         * transition does, and must return a single column, whose first
+         * value is available from {@link #returned(String)} after the
+         * transition has been applied.
+         *
+         * @param name       the name of the statement, a SQL identifier
+         * @param sql        the statement, a constant
+         * @param parameters the values of its parameters
+         * @return this transition
+         */
+        Transition with(String name, String sql, Object... parameters) {
+            dependents.put(name, sql);
+            Collections.addAll(dependentParameters, parameters);
+            return this;
+        }
+
+        /**
+         * Adds a data-modifying statement that runs in the same statement as
+         * the transition whether or not the transition applies, such as a
+         * record that belongs to the deviation regardless of its status. It
+         * must change the deviation it is applied to and return a single
+         * column, whose first value is available from
+         * {@link #returned(String)}. If the transition does not apply, the
+         * deviation is still marked as changed with {@link #TOUCH} and
+         * invalidated by the same statement. An illegal transition runs
+         * nothing.
+         *
+         * @param name       the name of the statement, a SQL identifier
+         * @param sql        the statement, a constant
+         * @param parameters the values of its parameters
+         * @return this transition
+         */
+        Transition alongside(String name, String sql, Object... parameters) {
+            unconditional.put(name, sql);
+            Collections.addAll(unconditionalParameters, parameters);
+            return this;
+        }
+
+        /**
+         * Gets the value returned by a dependent statement.
+         *
+         * @param name the name of the statement
+         * @return its first returned value, or {@code null} if the statement
+         *         returned no row or, for a statement added with
+         *         {@link #with(String, String, Object...)}, the transition was
+         *         not applied
+         */
+        Object returned(String name) {
+            return returned.get(name);
+        }
+
+        /**
+         * Applies the transition to the deviation with the given id. If it is
+         * applied, the deviation is evicted from {@link DeviationCache}; the
+         * invalidation is published by the same statement.
+         *
+         * @param session    the session, in the caller's transaction if any
+         * @param id         the deviation ID
+         * @return the outcome
+         * @throws SQLException if the update fails
+         */
+        TransitionResult apply(JdbcSession session, int id) throws SQLException {
+            List<TransitionResult> results = apply(session, "id", id);
+            return results.isEmpty() ? notFound(id) : results.get(0);
+        }
+
+        /**
+         * Applies the transition to the deviations with the given number.
+         *
+         * @param session         the session, in the caller's transaction if
+         *                        any
+         * @param deviationNumber the deviation number
+         * @return the outcome, the first applied one if several deviations
+         *         share the number
+         * @throws SQLException if the update fails
+         */
+        TransitionResult applyByNumber(JdbcSession session, String deviationNumber) throws SQLException {
+            List<TransitionResult> results = apply(session, "deviation_number", deviationNumber);
+            for (TransitionResult result : results) {
+                if (result.isApplied()) {
+                    return result;
+                }
+            }
+            return results.isEmpty() ? notFound(null) : results.get(0);
+        }
+
+        private List<TransitionResult> apply(JdbcSession session, String keyColumn, Object key) throws SQLException {
+            if (illegal || from.isEmpty()) {
+                LOGGER.warning("Illegal transition of deviation " + keyColumn + " " + key + " to " + status);
+                return Collections.singletonList(new TransitionResult(TransitionResult.Outcome.ILLEGAL,
+                        key instanceof Integer ? (Integer) key : null, null, 0));
+            }
+            StringBuilder sql = new StringBuilder("WITH updated AS (UPDATE deviations SET status = ")
+                    .append(statusExpression).append(", version = version + 1");
+            if (!assignments.containsKey("updated_at")) {
+                sql.append(", updated_at = now()");
+            }
+            for (String column : assignments.keySet()) {
+                sql.append(", ").append(column).append(" = ?");
+            }
+            sql.append(" WHERE ").append(keyColumn).append(" = ? AND upper(status::text) = ANY(?)");
+            if (expectedVersion != null) {
+                sql.append(" AND version = ?");
+            }
+            for (String condition : conditions) {
+                sql.append(" AND (").append(condition).append(')');
+            }
+            sql.append(" RETURNING id, status::text AS status, version)");
+            for (Map.Entry<String, String> dependent : dependents.entrySet()) {
+                sql.append(", ").append(dependent.getKey()).append(" AS (").append(dependent.getValue()).append(')');
+            }
+            for (Map.Entry<String, String> statement : unconditional.entrySet()) {
+                sql.append(", ").append(statement.getKey()).append(" AS (").append(statement.getValue()).append(')');
+            }
+            String changed = "updated";
+            if (!unconditional.isEmpty()) {
+                // Excluding the transitioned rows keeps the row from being updated twice in one statement
+                sql.append(", touched AS (UPDATE deviations SET ").append(TOUCH).append(" WHERE ").append(keyColumn)
+                        .append(" = ? AND id NOT IN (SELECT id FROM updated) RETURNING id)");
+                changed = "(SELECT id FROM updated UNION ALL SELECT id FROM touched) changed";
+            }
+            sql.append(", notified AS (").append(String.format(DeviationCache.NOTIFY_EACH_SQL, changed)).append(')')
+                    .append(" SELECT d.id, d.status::text, d.version, u.status, u.version, (SELECT count(*) FROM notified)");
+            for (String name : dependents.keySet()) {
+                sql.append(", (SELECT * FROM ").append(name).append(" LIMIT 1)");
+            }
+            for (String name : unconditional.keySet()) {
+                sql.append(", (SELECT * FROM ").append(name).append(" LIMIT 1)");
+            }
+            sql.append(" FROM deviations d LEFT JOIN updated u ON u.id = d.id WHERE d.").append(keyColumn).append(" = ?");
+
+            returned.clear();
+            ParameterBinder binder = statement -> {
+                int index = 1;
+                statement.setString(index++, status);
+                index = bind(statement, index, assignments.values());
+                statement.setObject(index++, key);
+                statement.setArray(index++, statement.getConnection().createArrayOf("text", sourceNames()));
+                if (expectedVersion != null) {
+                    statement.setInt(index++, expectedVersion);
+                }
+                index = bind(statement, index, conditionParameters);
+                index = bind(statement, index, dependentParameters);
+                index = bind(statement, index, unconditionalParameters);
+                if (!unconditional.isEmpty()) {
+                    statement.setObject(index++, key);
+                }
+                statement.setString(index++, DeviationCache.channel());
+                statement.setObject(index, key);
+            };
+            List<TransitionResult> results = session.query(sql.toString(), binder, resultSet -> {
+                int id = resultSet.getInt(1);
+                int newVersion = resultSet.getInt(5);
+                boolean applied = !resultSet.wasNull();
+                int column = 7;
+                for (String name : dependents.keySet()) {
+                    Object value = resultSet.getObject(column++);
+                    if (applied) {
+                        returned.putIfAbsent(name, value);
+                    }
+                }
+                for (String name : unconditional.keySet()) {
+                    returned.putIfAbsent(name, resultSet.getObject(column++));
+                }
+                if (!applied) {
+                    return new TransitionResult(TransitionResult.Outcome.CONFLICT, id, resultSet.getString(2), resultSet.getInt(3));
+                }
+                return new TransitionResult(TransitionResult.Outcome.APPLIED, id, resultSet.getString(4), newVersion);
+            });
+            for (int i = 0; i < results.size(); i++) {
+                TransitionResult result = results.get(i);
+                if (result.isApplied()) {
+                    DeviationCache.evictLocal(result.getDeviationId());
+                } else {
+                    result = current(session, result);
+                    results.set(i, result);
+                    if (!unconditional.isEmpty()) {
+                        DeviationCache.evictLocal(result.getDeviationId());
+                    }
+                    CONFLICTS.increment();
+                    LOGGER.info("Transition of deviation " + result.getDeviationId() + " to " + status + " lost to a concurrent change: found "
+                            + result.getCurrentStatus() + " at version " + result.getCurrentVersion());
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Reads the status and version of a deviation whose transition
+         * conflicted. Run as a statement of its own, it sees the change that
+         * won even if that committed after the update's snapshot was taken.
+         */
+        private static TransitionResult current(JdbcSession session, TransitionResult conflict) throws SQLException {
+            TransitionResult current = session.queryOne(CURRENT_SQL, ParameterBinder.of(conflict.getDeviationId()),
+                    resultSet -> new TransitionResult(TransitionResult.Outcome.CONFLICT, conflict.getDeviationId(), resultSet.getString(1),
+                            resultSet.getInt(2)));
+            return current != null ? current : new TransitionResult(TransitionResult.Outcome.NOT_FOUND, conflict.getDeviationId(), null, 0);
+        }
+
+        private static int bind(PreparedStatement statement, int index, Iterable<Object> values) throws SQLException {
+            for (Object value : values) {
+                ParameterBinder.bindValue(statement, index++, value);
+            }
+            return index;
+        }
+
+        private Object[] sourceNames() {
+            Set<String> names = new LinkedHashSet<>();
+            for (Enums.DeviationStatus source : from) {
+                names.add(source.name());
+            }
+            if (from.contains(Enums.DeviationStatus.PENDING_QA_REVIEW)) {
+                names.add(PENDING_FINAL_APPROVAL.toUpperCase(Locale.ROOT));
+            }
+            return names.toArray();
+        }
+
+        private TransitionResult notFound(Integer id) {
+            return new TransitionResult(TransitionResult.Outcome.NOT_FOUND, id, null, 0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package dao;
+
+import utils.Metrics;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an in-memory view of {@code deviations} up to date from
+ * {@link DeviationCache} invalidations.
+ *
+ * <p>
+ * Every method that changes a deviation publishes an invalidation once it
+ * commits. The follower collects the invalidated ids and has the view re-read
+ * them, in batches, on the view's single background thread; a full
+ * invalidation, or a reconnect of the notification listener, has the view
+ * resynchronize instead. Ids whose batch fails stay pending and are retried
+ * with the next refresh, which the view also runs after each periodic
+ * reconciliation.
+ * </p>
+ */
+final class InvalidationFollower {
+
+    /**
+     * The view kept up to date. Its methods are called on the background
+     * thread only.
+     */
+    interface View {
+
+        /**
+         * @return whether the view has been loaded; until then invalidations
+         *         are only collected
+         */
+        boolean isLoaded();
+
+        /**
+         * Brings the whole view up to date after a full invalidation.
+         *
+         * @throws SQLException if the rows cannot be read
+         */
+        void resynchronize() throws SQLException;
+
+        /**
+         * Re-reads the given deviations; those that no longer exist are
+         * removed from the view.
+         *
+         * @param ids the invalidated ids
+         * @throws SQLException if the rows cannot be read
+         */
+        void refresh(List<Integer> ids) throws SQLException;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InvalidationFollower.class.getName());
+
+    private static final int REFRESH_BATCH_SIZE = 1000;
+
+    private final String name;
+    private final View view;
+    private final LongAdder failures;
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean resynchronizeRequested = new AtomicBoolean();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * Creates a follower and registers it for invalidations.
+     *
+     * @param name         the name of the view, for log messages
+     * @param metricPrefix the prefix of the {@code pending} gauge and the
+     *                     {@code failures} counter
+     * @param view         the view
+     */
+    InvalidationFollower(String name, String metricPrefix, View view) {
+        this.name = name;
+        this.view = view;
+        this.failures = Metrics.counter(metricPrefix + ".failures");
+        Metrics.gauge(metricPrefix + ".pending", () -> dirty.size());
+        DeviationCache.addListener(new DeviationCache.InvalidationListener() {
+            @Override
+            public void onEvict(int id) {
+                dirty.add(id);
+                scheduleRefresh();
+            }
+
+            @Override
+            public void onEvictAll() {
+                resynchronizeRequested.set(true);
+                scheduleRefresh();
+            }
+        });
+    }
+
+    /**
+     * Starts refreshing the view on the given executor as invalidations
+     * arrive.
+     *
+     * @param executor the view's background thread
+     */
+    void start(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Stops refreshing the view. Invalidations are still collected.
+     */
+    void stop() {
+        executor = null;
+    }
+
+    /**
+     * Adds ids to re-read with the next refresh.
+     *
+     * @param ids the ids
+     */
+    void markDirty(Collection<Integer> ids) {
+        dirty.addAll(ids);
+    }
+
+    /**
+     * Drops a pending resynchronization, for a view about to reconcile
+     * anyway.
+     */
+    void cancelResynchronize() {
+        resynchronizeRequested.set(false);
+    }
+
+    /**
+     * Resynchronizes the view if requested and re-reads the pending ids.
+     * Failures are logged and counted, and left for the next refresh.
+     */
+    void refresh() {
+        refreshScheduled.set(false);
+        if (!view.isLoaded()) {
+            return;
+        }
+        try {
+            if (resynchronizeRequested.getAndSet(false)) {
+                view.resynchronize();
+            }
+            while (!dirty.isEmpty()) {
+                List<Integer> batch = new ArrayList<>(REFRESH_BATCH_SIZE);
+                Iterator<Integer> iterator = dirty.iterator();
+                while (iterator.hasNext() && batch.size() < REFRESH_BATCH_SIZE) {
+                    batch.add(iterator.next());
+                    iterator.remove();
+                }
+                try {
+                    view.refresh(batch);
+                } catch (SQLException e) {
+                    dirty.addAll(batch);
+                    throw e;
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Could not refresh " + name + ", retrying at the next reconciliation", e);
+        }
+    }
+
+    private void scheduleRefresh() {
+        ScheduledExecutorService current = executor;
+        if (current != null && refreshScheduled.compareAndSet(false, true)) {
+            try {
+                current.execute(this::refresh);
+            } catch (RuntimeException e) {
+                refreshScheduled.set(false);
+            }
+        }
+    }
+}
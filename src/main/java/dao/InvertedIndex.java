@@ -0,0 +1,379 @@
+package dao;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * An inverted index over short text documents keyed by an {@code int}, ranked
+ * with BM25. It backs {@link DeviationSearch}, which guards it with a lock: the
+ * index itself is not thread-safe.
+ *
+ * <p>
+ * Each term maps to a posting list of document ids and term frequencies held
+ * in two sorted {@code int} arrays. Each document keeps its terms and their
+ * frequencies, so that it can be removed or replaced without scanning the
+ * dictionary, and the content hash it was indexed from, so that a caller can
+ * tell whether it is stale. The dictionary is sorted, which makes prefix
+ * expansion a range scan.
+ * </p>
+ */
+final class InvertedIndex {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAX_PREFIX_EXPANSIONS = 64;
+    private static final int SNAPSHOT_MAGIC = 0x44534958;
+    private static final int SNAPSHOT_FORMAT = 1;
+
+    /**
+     * A ranked match.
+     */
+    static final class Hit {
+        final int id;
+        final double score;
+
+        private Hit(int id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The documents containing a term, in ascending id order.
+     */
+    private static final class Postings {
+        private int[] ids = new int[2];
+        private int[] frequencies = new int[2];
+        private int size;
+
+        private void put(int id, int frequency) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                frequencies[index] = frequency;
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            System.arraycopy(frequencies, index, frequencies, index + 1, size - index);
+            ids[index] = id;
+            frequencies[index] = frequency;
+            size++;
+        }
+
+        private void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            System.arraycopy(frequencies, index + 1, frequencies, index, size - index - 1);
+            size--;
+            if (size > 0 && size <= ids.length / 4) {
+                ids = Arrays.copyOf(ids, ids.length / 2);
+                frequencies = Arrays.copyOf(frequencies, frequencies.length / 2);
+            }
+        }
+    }
+
+    /**
+     * The forward entry of an indexed document.
+     */
+    private static final class Document {
+        private final int hash;
+        private final int length;
+        private final String[] terms;
+        private final int[] frequencies;
+
+        private Document(int hash, int length, String[] terms, int[] frequencies) {
+            this.hash = hash;
+            this.length = length;
+            this.terms = terms;
+            this.frequencies = frequencies;
+        }
+    }
+
+    private final TreeMap<String, Postings> dictionary = new TreeMap<>();
+    private final Map<Integer, Document> documents = new HashMap<>();
+    private long totalLength;
+
+    /**
+     * Splits text into lower-case terms of letters and digits.
+     *
+     * @param text  the text, or {@code null}
+     * @param terms receives the terms in order
+     */
+    static void tokenize(String text, List<String> terms) {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean inTerm = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Indexes a document, replacing any previous version of it.
+     *
+     * @param id    the document id
+     * @param hash  the hash of the content the terms were taken from
+     * @param terms the terms of the document, in any order, with repetitions
+     */
+    void put(int id, int hash, List<String> terms) {
+        remove(id);
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String term : terms) {
+            counts.merge(term, 1, Integer::sum);
+        }
+        String[] distinct = new String[counts.size()];
+        int[] frequencies = new int[counts.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            Map.Entry<String, Postings> existing = dictionary.ceilingEntry(entry.getKey());
+            Postings postings;
+            if (existing != null && existing.getKey().equals(entry.getKey())) {
+                distinct[i] = existing.getKey();
+                postings = existing.getValue();
+            } else {
+                distinct[i] = entry.getKey();
+                postings = new Postings();
+                dictionary.put(distinct[i], postings);
+            }
+            frequencies[i] = entry.getValue();
+            postings.put(id, frequencies[i]);
+            i++;
+        }
+        documents.put(id, new Document(hash, terms.size(), distinct, frequencies));
+        totalLength += terms.size();
+    }
+
+    /**
+     * Removes a document.
+     *
+     * @param id the document id
+     * @return whether the document was indexed
+     */
+    boolean remove(int id) {
+        Document document = documents.remove(id);
+        if (document == null) {
+            return false;
+        }
+        for (String term : document.terms) {
+            Postings postings = dictionary.get(term);
+            postings.remove(id);
+            if (postings.size == 0) {
+                dictionary.remove(term);
+            }
+        }
+        totalLength -= document.length;
+        return true;
+    }
+
+    /**
+     * Gets the content hash a document was indexed from.
+     *
+     * @param id the document id
+     * @return the hash, or {@code null} if the document is not indexed
+     */
+    Integer hashOf(int id) {
+        Document document = documents.get(id);
+        return document == null ? null : document.hash;
+    }
+
+    /**
+     * @return the ids of the indexed documents
+     */
+    int[] ids() {
+        int[] ids = new int[documents.size()];
+        int i = 0;
+        for (Integer id : documents.keySet()) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * @return the number of indexed documents
+     */
+    int size() {
+        return documents.size();
+    }
+
+    /**
+     * @return the number of distinct terms
+     */
+    int terms() {
+        return dictionary.size();
+    }
+
+    /**
+     * Finds the documents containing every term, the last one taken as a
+     * prefix if {@code prefix} is set, ranked by the sum of their BM25 scores.
+     * A prefix matches at most {@value #MAX_PREFIX_EXPANSIONS} dictionary
+     * terms.
+     *
+     * @param terms  the query terms
+     * @param prefix whether the last term is a prefix
+     * @param limit  the maximum number of hits
+     * @return the hits, best first
+     */
+    List<Hit> search(List<String> terms, boolean prefix, int limit) {
+        if (terms.isEmpty() || documents.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        double averageLength = Math.max(1.0, (double) totalLength / documents.size());
+        Map<Integer, double[]> scores = null;
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            Map<String, Postings> matching;
+            if (prefix && i == terms.size() - 1) {
+                matching = expand(term);
+            } else {
+                Postings postings = dictionary.get(term);
+                matching = postings == null ? Map.of() : Map.of(term, postings);
+            }
+            Map<Integer, double[]> clause = new HashMap<>();
+            for (Postings postings : matching.values()) {
+                double idf = Math.log(1.0 + (documents.size() - postings.size + 0.5) / (postings.size + 0.5));
+                for (int j = 0; j < postings.size; j++) {
+                    int id = postings.ids[j];
+                    if (scores != null && !scores.containsKey(id)) {
+                        continue;
+                    }
+                    double frequency = postings.frequencies[j];
+                    double norm = K1 * (1.0 - B + B * documents.get(id).length / averageLength);
+                    clause.computeIfAbsent(id, key -> new double[1])[0] += idf * frequency * (K1 + 1.0) / (frequency + norm);
+                }
+            }
+            if (scores != null) {
+                for (Map.Entry<Integer, double[]> entry : clause.entrySet()) {
+                    entry.getValue()[0] += scores.get(entry.getKey())[0];
+                }
+            }
+            scores = clause;
+            if (scores.isEmpty()) {
+                break;
+            }
+        }
+
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1,
+                (a, b) -> a.score != b.score ? Double.compare(a.score, b.score) : Integer.compare(b.id, a.id));
+        for (Map.Entry<Integer, double[]> entry : scores.entrySet()) {
+            top.add(new Hit(entry.getKey(), entry.getValue()[0]));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            hits.add(top.poll());
+        }
+        Collections.reverse(hits);
+        return hits;
+    }
+
+    private Map<String, Postings> expand(String prefix) {
+        NavigableMap<String, Postings> range = dictionary.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        if (range.size() <= MAX_PREFIX_EXPANSIONS) {
+            return range;
+        }
+        Map<String, Postings> expanded = new LinkedHashMap<>();
+        for (Map.Entry<String, Postings> entry : range.entrySet()) {
+            expanded.put(entry.getKey(), entry.getValue());
+            if (expanded.size() == MAX_PREFIX_EXPANSIONS) {
+                break;
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Writes the documents, from which {@link #read(DataInputStream)} rebuilds
+     * the posting lists.
+     *
+     * @param output the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    void write(DataOutputStream output) throws IOException {
+        output.writeInt(SNAPSHOT_MAGIC);
+        output.writeInt(SNAPSHOT_FORMAT);
+        output.writeInt(documents.size());
+        for (Map.Entry<Integer, Document> entry : documents.entrySet()) {
+            Document document = entry.getValue();
+            output.writeInt(entry.getKey());
+            output.writeInt(document.hash);
+            output.writeInt(document.length);
+            output.writeInt(document.terms.length);
+            for (int i = 0; i < document.terms.length; i++) {
+                output.writeUTF(document.terms[i]);
+                output.writeInt(document.frequencies[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutputStream)}.
+     *
+     * @param input the stream to read
+     * @return the index
+     * @throws IOException if the stream cannot be read or is not a snapshot of
+     *                     this format
+     */
+    static InvertedIndex read(DataInputStream input) throws IOException {
+        if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_FORMAT) {
+            throw new IOException("Not a search index snapshot of format " + SNAPSHOT_FORMAT);
+        }
+        InvertedIndex index = new InvertedIndex();
+        int count = input.readInt();
+        for (int d = 0; d < count; d++) {
+            int id = input.readInt();
+            int hash = input.readInt();
+            int length = input.readInt();
+            int termCount = input.readInt();
+            String[] terms = new String[termCount];
+            int[] frequencies = new int[termCount];
+            for (int i = 0; i < termCount; i++) {
+                String term = input.readUTF();
+                Postings postings = index.dictionary.get(term);
+                if (postings == null) {
+                    postings = new Postings();
+                    index.dictionary.put(term, postings);
+                } else {
+                    term = index.dictionary.ceilingKey(term);
+                }
+                terms[i] = term;
+                frequencies[i] = input.readInt();
+                postings.put(id, frequencies[i]);
+            }
+            index.documents.put(id, new Document(hash, length, terms, frequencies));
+            index.totalLength += length;
+        }
+        return index;
+    }
+}
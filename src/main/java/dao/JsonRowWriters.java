@@ -0,0 +1,110 @@
+package dao;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.google.gson.stream.JsonWriter;
+
+import model.Comment;
+import model.Deviation;
+import model.DeviationAssessment;
+import utils.JdbcTemplate;
+import utils.JsonRowWriter;
+import utils.ParameterBinder;
+
+/**
+ * JSON writers for the rows behind {@link Deviation},
+ * {@link DeviationAssessment} and {@link Comment}. They read the same columns
+ * as {@link RowMappers} and write the fields under the model's property names,
+ * so a streamed row has the shape Gson gives the model object, except that
+ * dates are written in ISO format.
+ */
+final class JsonRowWriters {
+
+    static final JsonRowWriter DEVIATION = new JsonRowWriter("id", "batch_id", "date_of_occurrence", "description",
+            "deviation_number", "deviation_severity", "deviation_type", "equipment_id", "material_id", "product_id", "remarks", "review_comment",
+            "risk_assessment", "standard_procedure", "status", "time_of_identification", "reason_or_root_cause_for_deviation", "immediate_actions",
+            "impact_on_batches_involved", "justification_for_delay", "version", "updated_at") {
+        @Override
+        protected void write(ResultSet resultSet, int[] columns, JsonWriter json) throws SQLException, IOException {
+            writeInt(json, "id", resultSet, columns[0]);
+            writeInt(json, "batchId", resultSet, columns[1]);
+            writeDate(json, "dateOfOccurrence", resultSet, columns[2]);
+            json.name("description").value(resultSet.getString(columns[3]));
+            json.name("deviationNumber").value(resultSet.getString(columns[4]));
+            writeEnum(json, "deviationSeverity", resultSet, columns[5], RowMappers.DEVIATION_SEVERITY);
+            writeEnum(json, "deviationType", resultSet, columns[6], RowMappers.DEVIATION_TYPE);
+            writeInt(json, "equipmentId", resultSet, columns[7]);
+            writeInt(json, "materialId", resultSet, columns[8]);
+            writeInt(json, "productId", resultSet, columns[9]);
+            json.name("remarks").value(resultSet.getString(columns[10]));
+            json.name("reviewComment").value(resultSet.getString(columns[11]));
+            json.name("riskAssessment").value(resultSet.getString(columns[12]));
+            json.name("standardProcedure").value(resultSet.getString(columns[13]));
+            writeEnum(json, "status", resultSet, columns[14], RowMappers.DEVIATION_STATUS);
+            writeTimestamp(json, "timeOfIdentification", resultSet, columns[15]);
+            json.name("reasonOrRootCauseForDeviation").value(resultSet.getString(columns[16]));
+            json.name("immediateActions").value(resultSet.getString(columns[17]));
+            writeBoolean(json, "impactOnBatchesInvolved", resultSet, columns[18]);
+            json.name("justificationForDelay").value(resultSet.getString(columns[19]));
+            writeInt(json, "version", resultSet, columns[20]);
+            writeTimestamp(json, "updatedAt", resultSet, columns[21]);
+        }
+    };
+
+    static final JsonRowWriter ASSESSMENT = new JsonRowWriter("id", "assessment_date", "assessment_result", "assessment_score",
+            "assessment_type", "deviations_id") {
+        @Override
+        protected void write(ResultSet resultSet, int[] columns, JsonWriter json) throws SQLException, IOException {
+            writeInt(json, "id", resultSet, columns[0]);
+            writeDate(json, "assessmentDate", resultSet, columns[1]);
+            json.name("assessmentResult").value(resultSet.getString(columns[2]));
+            writeDouble(json, "assessmentScore", resultSet, columns[3]);
+            writeEnum(json, "assessmentType", resultSet, columns[4], RowMappers.ASSESSMENT_TYPE);
+            writeInt(json, "deviationsId", resultSet, columns[5]);
+        }
+    };
+
+    static final JsonRowWriter COMMENT = new JsonRowWriter("id", "content", "created_at", "updated_at", "deviations_id") {
+        @Override
+        protected void write(ResultSet resultSet, int[] columns, JsonWriter json) throws SQLException, IOException {
+            writeInt(json, "id", resultSet, columns[0]);
+            json.name("content").value(resultSet.getString(columns[1]));
+            writeTimestamp(json, "createdAt", resultSet, columns[2]);
+            writeTimestamp(json, "updatedAt", resultSet, columns[3]);
+            writeInt(json, "deviationsId", resultSet, columns[4]);
+        }
+    };
+
+    private JsonRowWriters() {
+    }
+
+    /**
+     * Runs a query and writes its rows as a JSON array while the result set
+     * is open, fetching them through a server-side cursor on a read replica
+     * when one is available.
+     *
+     * @param sql       the query
+     * @param binder    binds its parameters
+     * @param fetchSize the number of rows to fetch at a time
+     * @param writer    writes each row
+     * @param json      the writer, positioned where a value may follow
+     * @return the number of rows written
+     * @throws SQLException if the query fails
+     * @throws IOException  if the writer fails
+     */
+    static long writeArray(String sql, ParameterBinder binder, int fetchSize, JsonRowWriter writer, JsonWriter json) throws SQLException, IOException {
+        json.beginArray();
+        long count;
+        try {
+            // pgjdbc only uses a cursor for setFetchSize outside autocommit
+            count = JdbcTemplate.inReadOnlyTransaction(session -> session.forEach(sql, binder, fetchSize, writer.to(json), row -> { }));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        json.endArray();
+        return count;
+    }
+}
@@ -0,0 +1,307 @@
+package dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * MinHash signatures of token sets, indexed with LSH banding so that the sets
+ * most similar to a given one are found without comparing it with every
+ * other. It backs {@link DeviationSimilarity}, which guards it with a lock:
+ * the index itself is not thread-safe.
+ *
+ * <p>
+ * A signature holds {@value #HASHES} minimum hash values; the share of equal
+ * positions between two signatures estimates the Jaccard similarity of their
+ * sets. Signatures are cut into {@value #BANDS} bands of {@value #ROWS} values
+ * and each band is hashed into a bucket, so two sets become candidates when
+ * they agree on a whole band: sets with a similarity of 0.6 do so with a
+ * probability of about 2/3, sets with 0.8 with a probability of about 0.98
+ * and sets with 0.3 with about 0.06. Each entry also carries an order key, so
+ * that matches can be restricted to entries that came before the target.
+ * </p>
+ */
+final class MinHashIndex {
+
+    static final int HASHES = 32;
+    static final int BANDS = 8;
+    static final int ROWS = HASHES / BANDS;
+
+    /**
+     * Bounds the candidates compared for one query; buckets this large only
+     * arise from many near-identical entries, whose best matches are found
+     * well before the bound.
+     */
+    private static final int MAX_CANDIDATES = 20000;
+
+    private static final long[] MULTIPLIERS = new long[HASHES];
+    private static final long[] INCREMENTS = new long[HASHES];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6d696e68617368L);
+        for (int i = 0; i < HASHES; i++) {
+            MULTIPLIERS[i] = random.nextLong() | 1L;
+            INCREMENTS[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * A candidate with its estimated similarity.
+     */
+    static final class Match {
+        final int id;
+        final double similarity;
+
+        private Match(int id, double similarity) {
+            this.id = id;
+            this.similarity = similarity;
+        }
+    }
+
+    /**
+     * An indexed signature.
+     */
+    private static final class Entry {
+        private final int hash;
+        private final long order;
+        private final int[] signature;
+
+        private Entry(int hash, long order, int[] signature) {
+            this.hash = hash;
+            this.order = order;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * The ids in one LSH bucket, unordered.
+     */
+    private static final class Bucket {
+        private int[] ids = new int[2];
+        private int size;
+
+        private void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        private void remove(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Map<Long, Bucket> buckets = new HashMap<>();
+
+    /**
+     * Computes the signature of a token set.
+     *
+     * @param tokens the tokens; duplicates do not change the signature
+     * @return the signature, or {@code null} if there are no tokens
+     */
+    static int[] signature(Collection<String> tokens) {
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        int[] signature = new int[HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (String token : tokens) {
+            long x = hash(token);
+            for (int i = 0; i < HASHES; i++) {
+                int value = (int) ((MULTIPLIERS[i] * x + INCREMENTS[i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Estimates the Jaccard similarity of the sets behind two signatures.
+     *
+     * @param a a signature
+     * @param b another signature
+     * @return the share of equal positions, between 0 and 1
+     */
+    static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < HASHES; i++) {
+            if (a[i] == b[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / HASHES;
+    }
+
+    /**
+     * Indexes a signature, replacing any previous one with the same id.
+     *
+     * @param id        the id
+     * @param hash      the hash of the content the signature was computed from
+     * @param order     the order key, see {@link #candidates(int[], int, long, double)}
+     * @param signature the signature, or {@code null} to index nothing but the
+     *                  hash
+     */
+    void put(int id, int hash, long order, int[] signature) {
+        remove(id);
+        entries.put(id, new Entry(hash, order, signature));
+        if (signature != null) {
+            for (int band = 0; band < BANDS; band++) {
+                buckets.computeIfAbsent(bandKey(signature, band), key -> new Bucket()).add(id);
+            }
+        }
+    }
+
+    /**
+     * Removes a signature.
+     *
+     * @param id the id
+     */
+    void remove(int id) {
+        Entry entry = entries.remove(id);
+        if (entry == null || entry.signature == null) {
+            return;
+        }
+        for (int band = 0; band < BANDS; band++) {
+            Long key = bandKey(entry.signature, band);
+            Bucket bucket = buckets.get(key);
+            bucket.remove(id);
+            if (bucket.size == 0) {
+                buckets.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Gets the content hash a signature was computed from.
+     *
+     * @param id the id
+     * @return the hash, or {@code null} if the id is not indexed
+     */
+    Integer hashOf(int id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.hash;
+    }
+
+    /**
+     * Gets an indexed signature.
+     *
+     * @param id the id
+     * @return the signature, or {@code null} if the id is not indexed or has
+     *         no tokens
+     */
+    int[] signatureOf(int id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.signature;
+    }
+
+    /**
+     * Gets the order key of an indexed id.
+     *
+     * @param id the id
+     * @return the order key, or {@link Long#MAX_VALUE} if the id is not
+     *         indexed
+     */
+    long orderOf(int id) {
+        Entry entry = entries.get(id);
+        return entry == null ? Long.MAX_VALUE : entry.order;
+    }
+
+    /**
+     * @return the indexed ids
+     */
+    int[] ids() {
+        int[] ids = new int[entries.size()];
+        int i = 0;
+        for (Integer id : entries.keySet()) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * @return the number of indexed ids
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Finds the entries that share at least one band with a signature and
+     * whose estimated similarity reaches a minimum.
+     *
+     * @param signature     the signature
+     * @param excludeId     an id to leave out, usually the target's own
+     * @param before        only entries with a lower order key are returned
+     * @param minSimilarity the minimum estimated similarity
+     * @return the matches, unordered
+     */
+    List<Match> candidates(int[] signature, int excludeId, long before, double minSimilarity) {
+        List<Match> matches = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        int compared = 0;
+        for (int band = 0; band < BANDS && compared < MAX_CANDIDATES; band++) {
+            Bucket bucket = buckets.get(bandKey(signature, band));
+            if (bucket == null) {
+                continue;
+            }
+            for (int i = 0; i < bucket.size && compared < MAX_CANDIDATES; i++) {
+                int id = bucket.ids[i];
+                if (id == excludeId || !seen.add(id)) {
+                    continue;
+                }
+                Entry entry = entries.get(id);
+                if (entry.order >= before) {
+                    continue;
+                }
+                compared++;
+                double similarity = similarity(signature, entry.signature);
+                if (similarity >= minSimilarity) {
+                    matches.add(new Match(id, similarity));
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+            key = key * 0x9E3779B97F4A7C15L + signature[i];
+        }
+        return mix(key);
+    }
+
+    /**
+     * Hashes a token to 64 bits with FNV-1a and a final avalanche, so that the
+     * signatures do not depend on {@link String#hashCode()}'s 32 bits.
+     */
+    private static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+}
@@ -0,0 +1,418 @@
+package dao;
+
+import model.*;
+import com.google.gson.Gson;
+import utils.DatabaseUtility;
+import utils.JdbcSession;
+import utils.JdbcTemplate;
+import utils.Metrics;
+import utils.ParameterBinder;
+import utils.PgNotificationListener;
+import utils.RowMapper;
+import utils.TimingWheel;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process dispatcher for the review reminders created by
+ * {@link DeviationDAO#setReviewReminder(int, java.util.Date, int)}.
+ *
+ * <p>
+ * Pending reminders are held in a hierarchical {@link TimingWheel} keyed by
+ * their {@code timestamp}. The wheel is filled incrementally: every
+ * {@code reminder.loadIntervalSeconds} the scheduler loads the unsent
+ * reminders due within the next {@code reminder.lookaheadSeconds}, in id
+ * order, skipping those it already holds; reminders created on this node are
+ * added directly. Overdue reminders, for example those missed while no node
+ * was running, fire on the next tick.
+ * </p>
+ *
+ * <p>
+ * Several nodes may hold the same reminder. When it comes due, each node
+ * claims it with {@code SELECT ... FOR UPDATE SKIP LOCKED} and only the node
+ * that obtained the row lock handles it; a node whose claim fails rolls back
+ * and the reminder is picked up again by the next load. A reminder without a
+ * {@code user_recipient_id} is split into one addressed copy per CFT reviewer
+ * and approver of the deviation, as known when it comes due, which are due at
+ * once; if the deviation has none yet, it is retried later.
+ * </p>
+ *
+ * <p>
+ * Sending is delegated to a {@link Dispatcher}. A reminder is marked with
+ * {@code sent_at} only once its delivery is confirmed, either by the
+ * dispatcher within the claim or later through {@link #acknowledge(int, int)};
+ * until then it is retried after a backoff that doubles with its age, from
+ * {@code reminder.loadIntervalSeconds} up to
+ * {@code reminder.retryMaxMinutes}, kept in {@code retry_at}. Delivery is
+ * therefore at least once. The default dispatcher publishes the reminder as
+ * JSON on the {@code reminder.channel} PostgreSQL channel when the claim
+ * commits; the WebSocket push hub relays it to the recipient's connected
+ * clients and acknowledges it once sent. The scheduler relies on two nullable
+ * {@code notifications} columns:
+ * </p>
+ *
+ * <pre>{@code
+ * ALTER TABLE notifications ADD COLUMN sent_at timestamp;
+ * ALTER TABLE notifications ADD COLUMN retry_at timestamp;
+ * CREATE INDEX notifications_pending_idx ON notifications (coalesce(retry_at, timestamp)) WHERE sent_at IS NULL;
+ * }</pre>
+ */
+public final class ReminderScheduler {
+
+    /**
+     * Delivers a claimed reminder to one recipient.
+     */
+    @FunctionalInterface
+    public interface Dispatcher {
+
+        /**
+         * Called inside the claiming transaction. Throwing rolls the claim
+         * back, so the reminder stays pending and is retried.
+         *
+         * @param connection  the claiming connection
+         * @param reminder    the reminder
+         * @param recipientId the user to notify
+         * @return {@code true} if the reminder was delivered, {@code false} if
+         *         it was handed on and its delivery will be confirmed with
+         *         {@link ReminderScheduler#acknowledge(int, int)}
+         * @throws SQLException if the reminder cannot be delivered
+         */
+        boolean dispatch(Connection connection, Notification reminder, int recipientId) throws SQLException;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ReminderScheduler.class.getName());
+
+    private static final String RECIPIENTS_SQL = "SELECT deviation_id, user_id FROM cft_reviewers WHERE deviation_id = ANY(?)"
+            + " UNION SELECT deviations_id, approver FROM approvals WHERE deviations_id = ANY(?) AND approver IS NOT NULL";
+
+    private static final String LOAD_SQL = "SELECT id, coalesce(retry_at, timestamp) AS due FROM notifications WHERE notification_type = ? AND sent_at IS NULL"
+            + " AND coalesce(retry_at, timestamp) < ? AND id > ? ORDER BY id LIMIT ?";
+    private static final String CLAIM_SQL = "SELECT id, notification_type, message_content, timestamp, user_recipient_id, deviations_id FROM notifications"
+            + " WHERE id = ANY(?) AND sent_at IS NULL AND (retry_at IS NULL OR retry_at <= now() + ? * interval '1 millisecond') FOR UPDATE SKIP LOCKED";
+    private static final String MARK_SENT_SQL = "UPDATE notifications SET sent_at = now() WHERE id = ANY(?)";
+    private static final String ACKNOWLEDGE_SQL = "UPDATE notifications n SET sent_at = now() FROM unnest(?::integer[], ?::integer[]) a(id, recipient)"
+            + " WHERE n.id = a.id AND n.user_recipient_id = a.recipient AND n.sent_at IS NULL";
+    private static final String RETRY_SQL = "UPDATE notifications SET retry_at = now()"
+            + " + least(greatest(now() - timestamp, ? * interval '1 millisecond'), ? * interval '1 millisecond') WHERE id = ANY(?)";
+    private static final String SPLIT_SQL = "INSERT INTO notifications (notification_type, message_content, timestamp, user_recipient_id, deviations_id)"
+            + " SELECT n.notification_type, n.message_content, now(), r.user_id, n.deviations_id FROM notifications n, unnest(?::integer[]) r(user_id)"
+            + " WHERE n.id = ? RETURNING id";
+    private static final int LOAD_PAGE_SIZE = 1000;
+    private static final int CLAIM_BATCH_SIZE = 100;
+    /** Longest message published; {@code pg_notify} payloads are limited to 8000 bytes. */
+    private static final int MAX_PUBLISHED_MESSAGE_LENGTH = 2000;
+    private static final Gson GSON = new Gson();
+
+    private static final ReminderScheduler INSTANCE = new ReminderScheduler();
+
+    private final long tickMillis = Math.max(10, DatabaseUtility.getIntProperty("reminder.tickMillis", 1000));
+    private final long lookaheadMillis = DatabaseUtility.getIntProperty("reminder.lookaheadSeconds", 900) * 1000L;
+    private final long loadIntervalMillis = DatabaseUtility.getIntProperty("reminder.loadIntervalSeconds", 60) * 1000L;
+    private final long retryMaxMillis = Math.max(1, DatabaseUtility.getIntProperty("reminder.retryMaxMinutes", 60)) * 60000L;
+    private final String channel = DatabaseUtility.getProperty("reminder.channel", "deviation_reminders");
+
+    private final TimingWheel<Integer> wheel = new TimingWheel<>(tickMillis, 64, System.currentTimeMillis());
+    private final Set<Integer> scheduled = ConcurrentHashMap.newKeySet();
+    private final LongAdder sent = Metrics.counter("reminders.sent");
+    private final LongAdder claimedElsewhere = Metrics.counter("reminders.claimedElsewhere");
+    private final LongAdder failures = Metrics.counter("reminders.failures");
+    private final LongAdder retried = Metrics.counter("reminders.retried");
+    private final Queue<int[]> acknowledgements = new ConcurrentLinkedQueue<>();
+
+    private volatile Dispatcher dispatcher = this::publish;
+    private volatile long loadedUntil;
+    private ScheduledExecutorService executor;
+
+    private ReminderScheduler() {
+        Metrics.gauge("reminders.scheduled", wheel::size);
+    }
+
+    /**
+     * @return the node-wide scheduler
+     */
+    public static ReminderScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts loading and dispatching reminders, unless
+     * {@code reminder.scheduler.enabled} is {@code false}. Does nothing if the
+     * scheduler is already running.
+     */
+    public synchronized void start() {
+        if (executor != null || !Boolean.parseBoolean(DatabaseUtility.getProperty("reminder.scheduler.enabled", "true").trim())) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reminder-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::load, 0L, loadIntervalMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Reminder scheduler started");
+    }
+
+    /**
+     * Stops the scheduler. Pending reminders stay in the database.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Replaces the way reminders are delivered.
+     *
+     * @param dispatcher the dispatcher
+     */
+    public void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @return the PostgreSQL channel the default dispatcher publishes on
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * Confirms that a reminder handed on by its dispatcher reached its
+     * recipient, so that it is not retried. The reminder is marked sent
+     * asynchronously.
+     *
+     * @param notificationId the reminder
+     * @param recipientId    the user it was addressed to
+     */
+    public void acknowledge(int notificationId, int recipientId) {
+        acknowledgements.add(new int[] { notificationId, recipientId });
+        ScheduledExecutorService current;
+        synchronized (this) {
+            current = executor;
+        }
+        try {
+            if (current != null) {
+                current.execute(this::flushAcknowledgements);
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            // Shutting down; mark them here
+        }
+        flushAcknowledgements();
+    }
+
+    /**
+     * Adds a reminder that was just created on this node. Reminders due
+     * beyond the load horizon are left to a later load.
+     *
+     * @param notificationId the notification id
+     * @param dueAt          the due time in epoch milliseconds
+     */
+    void schedule(int notificationId, long dueAt) {
+        if (dueAt < loadedUntil && scheduled.add(notificationId)) {
+            wheel.schedule(dueAt, notificationId);
+        }
+    }
+
+    /**
+     * Resolves the CFT reviewers and approvers of the given deviations.
+     *
+     * @param session      the session to use
+     * @param deviationIds the deviation ids
+     * @return the recipient user ids by deviation id
+     * @throws SQLException if the query fails
+     */
+    private static Map<Integer, List<Integer>> resolveRecipients(JdbcSession session, Collection<Integer> deviationIds) throws SQLException {
+        Map<Integer, List<Integer>> recipients = new HashMap<>();
+        Array ids = session.getConnection().createArrayOf("integer", deviationIds.toArray());
+        session.forEach(RECIPIENTS_SQL, ParameterBinder.of(ids, ids), 0, resultSet -> new int[] { resultSet.getInt(1), resultSet.getInt(2) },
+                row -> recipients.computeIfAbsent(row[0], id -> new ArrayList<>()).add(row[1]));
+        return recipients;
+    }
+
+    private void load() {
+        long horizon = System.currentTimeMillis() + lookaheadMillis;
+        int loaded = 0;
+        try (JdbcSession session = JdbcTemplate.open()) {
+            int lastId = 0;
+            while (true) {
+                List<long[]> page = session.query(LOAD_SQL,
+                        ParameterBinder.of(Enums.NotificationType.REMINDER, new Timestamp(horizon), lastId, LOAD_PAGE_SIZE),
+                        resultSet -> new long[] { resultSet.getInt("id"), resultSet.getTimestamp("due").getTime() });
+                for (long[] row : page) {
+                    lastId = (int) row[0];
+                    if (scheduled.add(lastId)) {
+                        wheel.schedule(row[1], lastId);
+                        loaded++;
+                    }
+                }
+                if (page.size() < LOAD_PAGE_SIZE) {
+                    break;
+                }
+            }
+            loadedUntil = horizon;
+            if (loaded > 0) {
+                LOGGER.fine("Loaded " + loaded + " reminders due before " + new Timestamp(horizon));
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error loading pending reminders", e);
+        }
+    }
+
+    private void tick() {
+        List<Integer> due = new ArrayList<>();
+        wheel.advance(System.currentTimeMillis(), due::add);
+        for (int from = 0; from < due.size(); from += CLAIM_BATCH_SIZE) {
+            List<Integer> batch = due.subList(from, Math.min(due.size(), from + CLAIM_BATCH_SIZE));
+            try {
+                claimAndDispatch(batch);
+            } catch (SQLException | RuntimeException e) {
+                failures.increment();
+                LOGGER.log(Level.WARNING, "Error dispatching reminders " + batch + ", they will be retried", e);
+            } finally {
+                scheduled.removeAll(batch);
+            }
+        }
+    }
+
+    private void claimAndDispatch(List<Integer> ids) throws SQLException {
+        List<Integer> delivered = new ArrayList<>();
+        List<Integer> retryIds = new ArrayList<>();
+        List<Integer> copies = new ArrayList<>();
+        JdbcTemplate.inTransaction(session -> {
+            Connection connection = session.getConnection();
+            // Skips reminders another node has since put off, allowing for clock skew; a retry is at least a load interval away
+            List<Notification> claimed = session.query(CLAIM_SQL,
+                    ParameterBinder.of(connection.createArrayOf("integer", ids.toArray()), loadIntervalMillis / 2), ReminderScheduler::mapNotification);
+            claimedElsewhere.add(ids.size() - claimed.size());
+            if (claimed.isEmpty()) {
+                return null;
+            }
+
+            List<Integer> unaddressed = new ArrayList<>();
+            for (Notification reminder : claimed) {
+                if (reminder.getUserRecipientId() == null) {
+                    unaddressed.add(reminder.getDeviationsId());
+                }
+            }
+            Map<Integer, List<Integer>> recipients = unaddressed.isEmpty() ? new HashMap<>() : resolveRecipients(session, unaddressed);
+
+            List<Integer> sentIds = new ArrayList<>();
+            for (Notification reminder : claimed) {
+                if (reminder.getUserRecipientId() != null) {
+                    if (dispatcher.dispatch(connection, reminder, reminder.getUserRecipientId())) {
+                        sentIds.add(reminder.getId());
+                        delivered.add(reminder.getId());
+                    } else {
+                        retryIds.add(reminder.getId());
+                    }
+                } else {
+                    List<Integer> users = recipients.get(reminder.getDeviationsId());
+                    if (users == null) {
+                        LOGGER.info("No CFT reviewer or approver to remind for deviation " + reminder.getDeviationsId() + " yet; reminder "
+                                + reminder.getId() + " will be retried");
+                        retryIds.add(reminder.getId());
+                    } else {
+                        copies.addAll(split(session, reminder, users));
+                        sentIds.add(reminder.getId());
+                    }
+                }
+            }
+
+            if (!sentIds.isEmpty()) {
+                session.update(MARK_SENT_SQL, ParameterBinder.of(connection.createArrayOf("integer", sentIds.toArray())));
+            }
+            if (!retryIds.isEmpty()) {
+                session.update(RETRY_SQL, ParameterBinder.of(loadIntervalMillis, retryMaxMillis, connection.createArrayOf("integer", retryIds.toArray())));
+            }
+            return null;
+        });
+        sent.add(delivered.size());
+        retried.add(retryIds.size());
+        long now = System.currentTimeMillis();
+        for (int copy : copies) {
+            schedule(copy, now);
+        }
+    }
+
+    /**
+     * Splits an unaddressed reminder into one copy per recipient, due now.
+     *
+     * @return the ids of the copies
+     */
+    private static List<Integer> split(JdbcSession session, Notification reminder, List<Integer> users) throws SQLException {
+        return session.query(SPLIT_SQL, ParameterBinder.of(session.getConnection().createArrayOf("integer", users.toArray()), reminder.getId()),
+                RowMapper.FIRST_INT);
+    }
+
+    private void flushAcknowledgements() {
+        List<Integer> ids = new ArrayList<>();
+        List<Integer> recipients = new ArrayList<>();
+        for (int[] acknowledgement = acknowledgements.poll(); acknowledgement != null; acknowledgement = acknowledgements.poll()) {
+            ids.add(acknowledgement[0]);
+            recipients.add(acknowledgement[1]);
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            sent.add(JdbcTemplate.execute(session -> session.update(ACKNOWLEDGE_SQL, ParameterBinder.of(
+                    session.getConnection().createArrayOf("integer", ids.toArray()), session.getConnection().createArrayOf("integer", recipients.toArray())))));
+        } catch (SQLException | RuntimeException e) {
+            // The reminders stay pending and are delivered again after their backoff
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Error acknowledging reminders " + ids + ", they will be retried", e);
+        }
+    }
+
+    /**
+     * Publishes a reminder on {@code reminder.channel} as
+     * {@code {"notificationId", "recipientId", "deviationId", "message"}},
+     * delivered when the claim commits, and leaves it to be acknowledged.
+     */
+    private boolean publish(Connection connection, Notification reminder, int recipientId) throws SQLException {
+        String message = reminder.getMessageContent();
+        if (message != null && message.length() > MAX_PUBLISHED_MESSAGE_LENGTH) {
+            message = message.substring(0, MAX_PUBLISHED_MESSAGE_LENGTH);
+        }
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("notificationId", reminder.getId());
+        payload.put("recipientId", recipientId);
+        payload.put("deviationId", reminder.getDeviationsId());
+        payload.put("message", message);
+        PgNotificationListener.publish(connection, channel, GSON.toJson(payload));
+        LOGGER.fine("Reminder " + reminder.getId() + " published for user " + recipientId);
+        return false;
+    }
+
+    private static Notification mapNotification(ResultSet resultSet) throws SQLException {
+        Notification notification = new Notification();
+        notification.setId(resultSet.getInt("id"));
+        notification.setNotificationType(resultSet.getString("notification_type"));
+        notification.setMessageContent(resultSet.getString("message_content"));
+        notification.setTimestamp(resultSet.getTimestamp("timestamp"));
+        int recipient = resultSet.getInt("user_recipient_id");
+        notification.setUserRecipientId(resultSet.wasNull() ? null : recipient);
+        notification.setDeviationsId(resultSet.getInt("deviations_id"));
+        return notification;
+    }
+}
@@ -0,0 +1,101 @@
+package dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import model.Comment;
+import model.Deviation;
+import model.DeviationAssessment;
+import model.Enums;
+import utils.EnumLookup;
+import utils.IndexedRowMapper;
+import utils.RowMapper;
+
+/**
+ * Row mappers for the tables the DAOs read. Columns are resolved to positions
+ * once per result set shape (see {@link IndexedRowMapper}) and the PostgreSQL
+ * enum types are decoded with precomputed {@link EnumLookup} tables, so mapping
+ * a row costs neither column name lookups nor exceptions.
+ */
+final class RowMappers {
+
+    static final EnumLookup<Enums.DeviationStatus> DEVIATION_STATUS = EnumLookup.of(Enums.DeviationStatus.class);
+    static final EnumLookup<Enums.DeviationType> DEVIATION_TYPE = EnumLookup.of(Enums.DeviationType.class);
+    static final EnumLookup<Enums.DeviationSeverity> DEVIATION_SEVERITY = EnumLookup.of(Enums.DeviationSeverity.class);
+    static final EnumLookup<Enums.AssessmentType> ASSESSMENT_TYPE = EnumLookup.of(Enums.AssessmentType.class);
+
+    /**
+     * Maps a {@code deviations} row to a {@link Deviation}.
+     */
+    static final RowMapper<Deviation> DEVIATION = new IndexedRowMapper<Deviation>("id", "batch_id", "date_of_occurrence", "description",
+            "deviation_number", "deviation_severity", "deviation_type", "equipment_id", "material_id", "product_id", "remarks", "review_comment",
+            "risk_assessment", "standard_procedure", "status", "time_of_identification", "reason_or_root_cause_for_deviation", "immediate_actions",
+            "impact_on_batches_involved", "justification_for_delay", "version", "updated_at") {
+        @Override
+        protected Deviation map(ResultSet resultSet, int[] columns) throws SQLException {
+            Deviation deviation = new Deviation();
+            deviation.setId(resultSet.getInt(columns[0]));
+            deviation.setBatchId((Integer) resultSet.getObject(columns[1]));
+            deviation.setDateOfOccurrence(resultSet.getDate(columns[2]));
+            deviation.setDescription(resultSet.getString(columns[3]));
+            deviation.setDeviationNumber(resultSet.getString(columns[4]));
+            deviation.setDeviationSeverity(DEVIATION_SEVERITY.get(resultSet.getString(columns[5])));
+            deviation.setDeviationType(DEVIATION_TYPE.get(resultSet.getString(columns[6])));
+            deviation.setEquipmentId((Integer) resultSet.getObject(columns[7]));
+            deviation.setMaterialId((Integer) resultSet.getObject(columns[8]));
+            deviation.setProductId((Integer) resultSet.getObject(columns[9]));
+            deviation.setRemarks(resultSet.getString(columns[10]));
+            deviation.setReviewComment(resultSet.getString(columns[11]));
+            deviation.setRiskAssessment(resultSet.getString(columns[12]));
+            deviation.setStandardProcedure(resultSet.getString(columns[13]));
+            deviation.setStatus(DEVIATION_STATUS.get(resultSet.getString(columns[14])));
+            deviation.setTimeOfIdentification(resultSet.getTimestamp(columns[15]));
+            deviation.setReasonOrRootCauseForDeviation(resultSet.getString(columns[16]));
+            deviation.setImmediateActions(resultSet.getString(columns[17]));
+            deviation.setImpactOnBatchesInvolved((Boolean) resultSet.getObject(columns[18]));
+            deviation.setJustificationForDelay(resultSet.getString(columns[19]));
+            deviation.setVersion(resultSet.getInt(columns[20]));
+            deviation.setUpdatedAt(resultSet.getTimestamp(columns[21]));
+            return deviation;
+        }
+    };
+
+    /**
+     * Maps a {@code deviation_assessments} row to a {@link DeviationAssessment}.
+     */
+    static final RowMapper<DeviationAssessment> ASSESSMENT = new IndexedRowMapper<DeviationAssessment>("id", "assessment_date",
+            "assessment_result", "assessment_score", "assessment_type", "deviations_id") {
+        @Override
+        protected DeviationAssessment map(ResultSet resultSet, int[] columns) throws SQLException {
+            DeviationAssessment assessment = new DeviationAssessment();
+            assessment.setId(resultSet.getInt(columns[0]));
+            assessment.setAssessmentDate(resultSet.getDate(columns[1]));
+            assessment.setAssessmentResult(resultSet.getString(columns[2]));
+            assessment.setAssessmentScore(resultSet.getDouble(columns[3]));
+            assessment.setAssessmentType(ASSESSMENT_TYPE.get(resultSet.getString(columns[4])));
+            assessment.setDeviationsId(resultSet.getInt(columns[5]));
+            return assessment;
+        }
+    };
+
+    /**
+     * Maps a comment row, with the columns {@code id}, {@code content},
+     * {@code created_at}, {@code updated_at} and {@code deviations_id}, to a
+     * {@link Comment}.
+     */
+    static final RowMapper<Comment> COMMENT = new IndexedRowMapper<Comment>("id", "content", "created_at", "updated_at", "deviations_id") {
+        @Override
+        protected Comment map(ResultSet resultSet, int[] columns) throws SQLException {
+            Comment comment = new Comment();
+            comment.setId(resultSet.getInt(columns[0]));
+            comment.setContent(resultSet.getString(columns[1]));
+            comment.setCreatedAt(resultSet.getTimestamp(columns[2]));
+            comment.setUpdatedAt(resultSet.getTimestamp(columns[3]));
+            comment.setDeviationsId(resultSet.getInt(columns[4]));
+            return comment;
+        }
+    };
+
+    private RowMappers() {
+    }
+}
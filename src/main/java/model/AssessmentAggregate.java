@@ -0,0 +1,79 @@
+package model;
+
+import java.util.Map;
+
+/**
+ * The number of assessments in one group and statistics of their scores.
+ * Assessments without a score count towards {@code count} only.
+ */
+public final class AssessmentAggregate {
+
+    private final Map<String, Object> group;
+    private final long count;
+    private final long scoredCount;
+    private final Double averageScore;
+    private final Double minScore;
+    private final Double maxScore;
+
+    /**
+     * @param group       the value of each grouping dimension, by name
+     * @param count       the number of assessments
+     * @param scoredCount the number of them with a score
+     * @param scoreSum    the sum of their scores
+     * @param minScore    the lowest score, ignored if none is scored
+     * @param maxScore    the highest score, ignored if none is scored
+     */
+    public AssessmentAggregate(Map<String, Object> group, long count, long scoredCount, double scoreSum, double minScore, double maxScore) {
+        this.group = group;
+        this.count = count;
+        this.scoredCount = scoredCount;
+        this.averageScore = scoredCount == 0L ? null : scoreSum / scoredCount;
+        this.minScore = scoredCount == 0L ? null : minScore;
+        this.maxScore = scoredCount == 0L ? null : maxScore;
+    }
+
+    public Map<String, Object> getGroup() {
+        return group;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getScoredCount() {
+        return scoredCount;
+    }
+
+    /**
+     * @return the average score, or {@code null} if none is scored
+     */
+    public Double getAverageScore() {
+        return averageScore;
+    }
+
+    /**
+     * @return the lowest score, or {@code null} if none is scored
+     */
+    public Double getMinScore() {
+        return minScore;
+    }
+
+    /**
+     * @return the highest score, or {@code null} if none is scored
+     */
+    public Double getMaxScore() {
+        return maxScore;
+    }
+
+    @Override
+    public String toString() {
+        return "AssessmentAggregate{" +
+                "group=" + group +
+                ", count=" + count +
+                ", scoredCount=" + scoredCount +
+                ", averageScore=" + averageScore +
+                ", minScore=" + minScore +
+                ", maxScore=" + maxScore +
+                '}';
+    }
+}
@@ -0,0 +1,50 @@
+package model;
+
+/**
+ * The result of creating a deviation assessment: the new assessment and
+ * whether its deviation moved to QA review with it.
+ */
+public class AssessmentCreation {
+
+    private final int assessmentId;
+    private final TransitionResult transition;
+
+    /**
+     * Constructs a result.
+     *
+     * @param assessmentId the ID of the new assessment
+     * @param transition   the outcome of moving the deviation to QA review
+     */
+    public AssessmentCreation(int assessmentId, TransitionResult transition) {
+        this.assessmentId = assessmentId;
+        this.transition = transition;
+    }
+
+    /**
+     * Gets the ID of the new assessment.
+     *
+     * @return the assessment ID
+     */
+    public int getAssessmentId() {
+        return assessmentId;
+    }
+
+    /**
+     * Gets the outcome of moving the deviation to {@code PENDING_QA_REVIEW}.
+     * The assessment is stored either way; a deviation whose status does not
+     * allow the move keeps it.
+     *
+     * @return the transition outcome
+     */
+    public TransitionResult getTransition() {
+        return transition;
+    }
+
+    @Override
+    public String toString() {
+        return "AssessmentCreation{" +
+                "assessmentId=" + assessmentId +
+                ", transition=" + transition +
+                '}';
+    }
+}
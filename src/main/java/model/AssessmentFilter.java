@@ -0,0 +1,149 @@
+package model;
+
+import java.util.Date;
+
+/**
+ * Criteria for aggregating assessments. Every criterion is optional; unset
+ * criteria do not restrict the result. Dates are compared by month.
+ */
+public class AssessmentFilter {
+
+    private Integer productId;
+    private Integer equipmentId;
+    private Enums.AssessmentType assessmentType;
+    private Enums.DeviationSeverity deviationSeverity;
+    private Date assessedFrom;
+    private Date assessedTo;
+
+    /**
+     * Gets the product id of the assessed deviations to match.
+     *
+     * @return the product id, or {@code null} for any
+     */
+    public Integer getProductId() {
+        return productId;
+    }
+
+    /**
+     * Sets the product id of the assessed deviations to match.
+     *
+     * @param productId the product id, or {@code null} for any
+     * @return this filter
+     */
+    public AssessmentFilter setProductId(Integer productId) {
+        this.productId = productId;
+        return this;
+    }
+
+    /**
+     * Gets the equipment id of the assessed deviations to match.
+     *
+     * @return the equipment id, or {@code null} for any
+     */
+    public Integer getEquipmentId() {
+        return equipmentId;
+    }
+
+    /**
+     * Sets the equipment id of the assessed deviations to match.
+     *
+     * @param equipmentId the equipment id, or {@code null} for any
+     * @return this filter
+     */
+    public AssessmentFilter setEquipmentId(Integer equipmentId) {
+        this.equipmentId = equipmentId;
+        return this;
+    }
+
+    /**
+     * Gets the assessment type to match.
+     *
+     * @return the assessment type, or {@code null} for any
+     */
+    public Enums.AssessmentType getAssessmentType() {
+        return assessmentType;
+    }
+
+    /**
+     * Sets the assessment type to match.
+     *
+     * @param assessmentType the assessment type, or {@code null} for any
+     * @return this filter
+     */
+    public AssessmentFilter setAssessmentType(Enums.AssessmentType assessmentType) {
+        this.assessmentType = assessmentType;
+        return this;
+    }
+
+    /**
+     * Gets the assessed severity to match.
+     *
+     * @return the severity, or {@code null} for any
+     */
+    public Enums.DeviationSeverity getDeviationSeverity() {
+        return deviationSeverity;
+    }
+
+    /**
+     * Sets the assessed severity to match.
+     *
+     * @param deviationSeverity the severity, or {@code null} for any
+     * @return this filter
+     */
+    public AssessmentFilter setDeviationSeverity(Enums.DeviationSeverity deviationSeverity) {
+        this.deviationSeverity = deviationSeverity;
+        return this;
+    }
+
+    /**
+     * Gets the earliest assessment month to match.
+     *
+     * @return a date in the first month, or {@code null} for none
+     */
+    public Date getAssessedFrom() {
+        return assessedFrom;
+    }
+
+    /**
+     * Sets the earliest assessment month to match, inclusive.
+     *
+     * @param assessedFrom a date in the first month, or {@code null} for none
+     * @return this filter
+     */
+    public AssessmentFilter setAssessedFrom(Date assessedFrom) {
+        this.assessedFrom = assessedFrom;
+        return this;
+    }
+
+    /**
+     * Gets the latest assessment month to match.
+     *
+     * @return a date in the last month, or {@code null} for none
+     */
+    public Date getAssessedTo() {
+        return assessedTo;
+    }
+
+    /**
+     * Sets the latest assessment month to match, inclusive.
+     *
+     * @param assessedTo a date in the last month, or {@code null} for none
+     * @return this filter
+     */
+    public AssessmentFilter setAssessedTo(Date assessedTo) {
+        this.assessedTo = assessedTo;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "AssessmentFilter{" +
+                "productId=" + productId +
+                ", equipmentId=" + equipmentId +
+                ", assessmentType=" + assessmentType +
+                ", deviationSeverity=" + deviationSeverity +
+                ", assessedFrom=" + assessedFrom +
+                ", assessedTo=" + assessedTo +
+                '}';
+    }
+}
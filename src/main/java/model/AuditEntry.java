@@ -0,0 +1,89 @@
+package model;
+
+/**
+ * Represents one row of the audit trail as recorded by the application,
+ * before it has been written to the {@code audit_trails} table.
+ */
+public class AuditEntry {
+
+    private final long sequence;
+    private final long recordedAt;
+    private final int userId;
+    private final String actionType;
+    private final String description;
+
+    /**
+     * Constructs an audit entry.
+     *
+     * @param sequence    the position of the entry in the local audit log
+     * @param recordedAt  when the audited action completed, in epoch
+     *                    milliseconds
+     * @param userId      the user who performed the action
+     * @param actionType  the action type, as stored in {@code audit_trails}
+     * @param description a description of the action
+     */
+    public AuditEntry(long sequence, long recordedAt, int userId, String actionType, String description) {
+        this.sequence = sequence;
+        this.recordedAt = recordedAt;
+        this.userId = userId;
+        this.actionType = actionType;
+        this.description = description;
+    }
+
+    /**
+     * Gets the position of the entry in the local audit log. Sequence numbers
+     * increase in the order entries were recorded on this node.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets when the audited action completed.
+     *
+     * @return the time in epoch milliseconds
+     */
+    public long getRecordedAt() {
+        return recordedAt;
+    }
+
+    /**
+     * Gets the ID of the user who performed the action.
+     *
+     * @return the user ID
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    /**
+     * Gets the action type.
+     *
+     * @return the action type
+     */
+    public String getActionType() {
+        return actionType;
+    }
+
+    /**
+     * Gets the description of the action.
+     *
+     * @return the description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditEntry{" +
+                "sequence=" + sequence +
+                ", recordedAt=" + recordedAt +
+                ", userId=" + userId +
+                ", actionType='" + actionType + '\'' +
+                ", description='" + description + '\'' +
+                '}';
+    }
+}
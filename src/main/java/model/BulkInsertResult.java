@@ -0,0 +1,91 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of a bulk insert: the generated id of each input row, in input
+ * order, and the error for each row that could not be inserted.
+ */
+public class BulkInsertResult {
+
+    private final List<Integer> ids;
+    private final Map<Integer, String> failures = new TreeMap<>();
+
+    /**
+     * Constructs a result for the given number of input rows, with no ids
+     * assigned yet.
+     *
+     * @param size the number of input rows
+     */
+    public BulkInsertResult(int size) {
+        this.ids = new ArrayList<>(Collections.nCopies(size, (Integer) null));
+    }
+
+    /**
+     * Records the generated id of an input row.
+     *
+     * @param index the position of the row in the input
+     * @param id    the generated id
+     */
+    public void setId(int index, int id) {
+        ids.set(index, id);
+    }
+
+    /**
+     * Records that an input row could not be inserted.
+     *
+     * @param index   the position of the row in the input
+     * @param message the reason the row was rejected
+     */
+    public void addFailure(int index, String message) {
+        ids.set(index, null);
+        failures.put(index, message);
+    }
+
+    /**
+     * Gets the generated ids in input order. Rows that failed have a
+     * {@code null} entry.
+     *
+     * @return the generated ids
+     */
+    public List<Integer> getIds() {
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * Gets the errors of the rejected rows, keyed by their position in the input.
+     *
+     * @return the per-row failures
+     */
+    public Map<Integer, String> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Gets the number of rows that were inserted.
+     *
+     * @return the inserted row count
+     */
+    public int getInsertedCount() {
+        int count = 0;
+        for (Integer id : ids) {
+            if (id != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkInsertResult{" +
+                "rows=" + ids.size() +
+                ", inserted=" + getInsertedCount() +
+                ", failed=" + failures.size() +
+                '}';
+    }
+}
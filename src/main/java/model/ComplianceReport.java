@@ -0,0 +1,143 @@
+package model;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summary of a compliance report over the deviations that occurred in a
+ * period: how many deviations, approvals, assessments, CAPAs and remarks it
+ * covers and the row count of each section.
+ *
+ * <p>
+ * Reports streamed to a writer only carry the summary. Reports built in
+ * memory for a single deviation also carry the rows of each section, keyed by
+ * column label.
+ * </p>
+ */
+public class ComplianceReport {
+
+    private Date startDate;
+    private Date endDate;
+    private Integer deviationId;
+    private Timestamp generatedAt;
+    private final Map<String, Map<String, Long>> summary = new LinkedHashMap<>();
+    private final Map<String, Long> sectionRowCounts = new LinkedHashMap<>();
+    private final Map<String, List<Map<String, Object>>> sections = new LinkedHashMap<>();
+
+    /**
+     * Gets the first day of the reporting period.
+     *
+     * @return the start date
+     */
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    /**
+     * Sets the first day of the reporting period.
+     *
+     * @param startDate the start date
+     */
+    public void setStartDate(Date startDate) {
+        this.startDate = startDate;
+    }
+
+    /**
+     * Gets the last day of the reporting period.
+     *
+     * @return the end date
+     */
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    /**
+     * Sets the last day of the reporting period.
+     *
+     * @param endDate the end date
+     */
+    public void setEndDate(Date endDate) {
+        this.endDate = endDate;
+    }
+
+    /**
+     * Gets the deviation the report is restricted to.
+     *
+     * @return the deviation ID, or {@code null} for every deviation in the
+     *         period
+     */
+    public Integer getDeviationId() {
+        return deviationId;
+    }
+
+    /**
+     * Sets the deviation the report is restricted to.
+     *
+     * @param deviationId the deviation ID, or {@code null}
+     */
+    public void setDeviationId(Integer deviationId) {
+        this.deviationId = deviationId;
+    }
+
+    /**
+     * Gets the time the report was generated.
+     *
+     * @return the generation time
+     */
+    public Timestamp getGeneratedAt() {
+        return generatedAt;
+    }
+
+    /**
+     * Sets the time the report was generated.
+     *
+     * @param generatedAt the generation time
+     */
+    public void setGeneratedAt(Timestamp generatedAt) {
+        this.generatedAt = generatedAt;
+    }
+
+    /**
+     * Gets the summary counts, by dimension (for example {@code deviations by
+     * status}) and then by key (for example {@code APPROVED_BY_QA}).
+     *
+     * @return the summary counts
+     */
+    public Map<String, Map<String, Long>> getSummary() {
+        return summary;
+    }
+
+    /**
+     * Gets the number of rows written for each section.
+     *
+     * @return the row counts by section name
+     */
+    public Map<String, Long> getSectionRowCounts() {
+        return sectionRowCounts;
+    }
+
+    /**
+     * Gets the rows of each section. Empty unless the report was built in
+     * memory.
+     *
+     * @return the rows by section name
+     */
+    public Map<String, List<Map<String, Object>>> getSections() {
+        return sections;
+    }
+
+    @Override
+    public String toString() {
+        return "ComplianceReport{" +
+                "startDate=" + startDate +
+                ", endDate=" + endDate +
+                ", deviationId=" + deviationId +
+                ", generatedAt=" + generatedAt +
+                ", summary=" + summary +
+                ", sectionRowCounts=" + sectionRowCounts +
+                '}';
+    }
+}
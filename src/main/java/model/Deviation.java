@@ -24,6 +24,12 @@ public class Deviation {
     private String standardProcedure;
     private Enums.DeviationStatus status;
     private Timestamp timeOfIdentification;
+    private String reasonOrRootCauseForDeviation;
+    private String immediateActions;
+    private Boolean impactOnBatchesInvolved;
+    private String justificationForDelay;
+    private int version;
+    private Timestamp updatedAt;
 
     /**
      * Gets the unique identifier for the deviation.
@@ -313,6 +319,117 @@ public class Deviation {
         this.timeOfIdentification = timeOfIdentification;
     }
 
+    /**
+     * Gets the reason or root cause for the deviation.
+     * 
+     * @return the reason or root cause
+     */
+    public String getReasonOrRootCauseForDeviation() {
+        return reasonOrRootCauseForDeviation;
+    }
+
+    /**
+     * Sets the reason or root cause for the deviation.
+     * 
+     * @param reasonOrRootCauseForDeviation the reason or root cause to set
+     */
+    public void setReasonOrRootCauseForDeviation(String reasonOrRootCauseForDeviation) {
+        this.reasonOrRootCauseForDeviation = reasonOrRootCauseForDeviation;
+    }
+
+    /**
+     * Gets the immediate actions taken for the deviation.
+     * 
+     * @return the immediate actions
+     */
+    public String getImmediateActions() {
+        return immediateActions;
+    }
+
+    /**
+     * Sets the immediate actions taken for the deviation.
+     * 
+     * @param immediateActions the immediate actions to set
+     */
+    public void setImmediateActions(String immediateActions) {
+        this.immediateActions = immediateActions;
+    }
+
+    /**
+     * Gets whether the deviation impacts the batches involved.
+     * 
+     * @return the batch impact flag
+     */
+    public Boolean getImpactOnBatchesInvolved() {
+        return impactOnBatchesInvolved;
+    }
+
+    /**
+     * Sets whether the deviation impacts the batches involved.
+     * 
+     * @param impactOnBatchesInvolved the batch impact flag to set
+     */
+    public void setImpactOnBatchesInvolved(Boolean impactOnBatchesInvolved) {
+        this.impactOnBatchesInvolved = impactOnBatchesInvolved;
+    }
+
+    /**
+     * Gets the justification for any delay in reporting the deviation.
+     * 
+     * @return the justification for delay
+     */
+    public String getJustificationForDelay() {
+        return justificationForDelay;
+    }
+
+    /**
+     * Sets the justification for any delay in reporting the deviation.
+     * 
+     * @param justificationForDelay the justification for delay to set
+     */
+    public void setJustificationForDelay(String justificationForDelay) {
+        this.justificationForDelay = justificationForDelay;
+    }
+
+    /**
+     * Gets the version of the deviation, incremented by every change to the
+     * deviation, its assessments or its approvals. Pass it back as the
+     * expected version to detect concurrent changes.
+     * 
+     * @return the version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the deviation.
+     * 
+     * @param version the version to set
+     */
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * Gets the time of the last change to the deviation, its assessments or
+     * its approvals.
+     * 
+     * @return the time of the last change, or {@code null} if unknown
+     */
+    public Timestamp getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * Sets the time of the last change.
+     * 
+     * @param updatedAt the time of the last change to set
+     */
+    public void setUpdatedAt(Timestamp updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
     @Override
     public String toString() {
         return "Deviation{" +
@@ -332,6 +449,12 @@ public class Deviation {
                 ", standardProcedure='" + standardProcedure + '\'' +
                 ", status=" + status +
                 ", timeOfIdentification=" + timeOfIdentification +
+                ", reasonOrRootCauseForDeviation='" + reasonOrRootCauseForDeviation + '\'' +
+                ", immediateActions='" + immediateActions + '\'' +
+                ", impactOnBatchesInvolved=" + impactOnBatchesInvolved +
+                ", justificationForDelay='" + justificationForDelay + '\'' +
+                ", version=" + version +
+                ", updatedAt=" + updatedAt +
                 '}';
     }
 }
\ No newline at end of file
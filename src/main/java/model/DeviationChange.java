@@ -0,0 +1,96 @@
+package model;
+
+/**
+ * A committed change to a deviation, or to its assessments or approvals, as
+ * pushed to subscribed clients. It describes the deviation as it was read
+ * after the change; several changes to the same deviation in quick
+ * succession may be delivered as one.
+ */
+public final class DeviationChange {
+
+    private final int deviationId;
+    private final String deviationNumber;
+    private final String status;
+    private final String previousStatus;
+    private final Integer departmentId;
+    private final Integer previousDepartmentId;
+    private final int version;
+    private final boolean deleted;
+
+    /**
+     * @param deviationId          the deviation
+     * @param deviationNumber      its number, or {@code null} if it was
+     *                             deleted
+     * @param status               its status, or {@code null} if it was
+     *                             deleted
+     * @param previousStatus       its status at the previous change seen by
+     *                             this node, or {@code null} if unknown
+     * @param departmentId         the CFT department it is routed to, or
+     *                             {@code null}
+     * @param previousDepartmentId the CFT department at the previous change
+     *                             seen by this node, or {@code null}
+     * @param version              its version, or 0 if it was deleted
+     * @param deleted              whether the deviation no longer exists
+     */
+    public DeviationChange(int deviationId, String deviationNumber, String status, String previousStatus, Integer departmentId,
+            Integer previousDepartmentId, int version, boolean deleted) {
+        this.deviationId = deviationId;
+        this.deviationNumber = deviationNumber;
+        this.status = status;
+        this.previousStatus = previousStatus;
+        this.departmentId = departmentId;
+        this.previousDepartmentId = previousDepartmentId;
+        this.version = version;
+        this.deleted = deleted;
+    }
+
+    public int getDeviationId() {
+        return deviationId;
+    }
+
+    public String getDeviationNumber() {
+        return deviationNumber;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the status before the change, so that a client following a status
+     * learns that a deviation has left it.
+     *
+     * @return the previous status, or {@code null} if unknown
+     */
+    public String getPreviousStatus() {
+        return previousStatus;
+    }
+
+    public Integer getDepartmentId() {
+        return departmentId;
+    }
+
+    public Integer getPreviousDepartmentId() {
+        return previousDepartmentId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviationChange{" +
+                "deviationId=" + deviationId +
+                ", status='" + status + '\'' +
+                ", previousStatus='" + previousStatus + '\'' +
+                ", departmentId=" + departmentId +
+                ", version=" + version +
+                ", deleted=" + deleted +
+                '}';
+    }
+}
@@ -0,0 +1,217 @@
+package model;
+
+import java.util.Date;
+
+/**
+ * Criteria for listing deviations. Every criterion is optional; unset criteria
+ * do not restrict the result.
+ */
+public class DeviationFilter {
+
+    private Enums.DeviationStatus status;
+    private Enums.DeviationType deviationType;
+    private Enums.DeviationSeverity deviationSeverity;
+    private Integer productId;
+    private Integer batchId;
+    private Integer equipmentId;
+    private Date occurredFrom;
+    private Date occurredTo;
+    private boolean includeArchived;
+
+    /**
+     * Gets the status to match.
+     *
+     * @return the status, or {@code null} for any
+     */
+    public Enums.DeviationStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Sets the status to match.
+     *
+     * @param status the status, or {@code null} for any
+     * @return this filter
+     */
+    public DeviationFilter setStatus(Enums.DeviationStatus status) {
+        this.status = status;
+        return this;
+    }
+
+    /**
+     * Gets the deviation type to match.
+     *
+     * @return the deviation type, or {@code null} for any
+     */
+    public Enums.DeviationType getDeviationType() {
+        return deviationType;
+    }
+
+    /**
+     * Sets the deviation type to match.
+     *
+     * @param deviationType the deviation type, or {@code null} for any
+     * @return this filter
+     */
+    public DeviationFilter setDeviationType(Enums.DeviationType deviationType) {
+        this.deviationType = deviationType;
+        return this;
+    }
+
+    /**
+     * Gets the severity to match.
+     *
+     * @return the severity, or {@code null} for any
+     */
+    public Enums.DeviationSeverity getDeviationSeverity() {
+        return deviationSeverity;
+    }
+
+    /**
+     * Sets the severity to match.
+     *
+     * @param deviationSeverity the severity, or {@code null} for any
+     * @return this filter
+     */
+    public DeviationFilter setDeviationSeverity(Enums.DeviationSeverity deviationSeverity) {
+        this.deviationSeverity = deviationSeverity;
+        return this;
+    }
+
+    /**
+     * Gets the product id to match.
+     *
+     * @return the product id, or {@code null} for any
+     */
+    public Integer getProductId() {
+        return productId;
+    }
+
+    /**
+     * Sets the product id to match.
+     *
+     * @param productId the product id, or {@code null} for any
+     * @return this filter
+     */
+    public DeviationFilter setProductId(Integer productId) {
+        this.productId = productId;
+        return this;
+    }
+
+    /**
+     * Gets the batch id to match.
+     *
+     * @return the batch id, or {@code null} for any
+     */
+    public Integer getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * Sets the batch id to match.
+     *
+     * @param batchId the batch id, or {@code null} for any
+     * @return this filter
+     */
+    public DeviationFilter setBatchId(Integer batchId) {
+        this.batchId = batchId;
+        return this;
+    }
+
+    /**
+     * Gets the equipment id to match.
+     *
+     * @return the equipment id, or {@code null} for any
+     */
+    public Integer getEquipmentId() {
+        return equipmentId;
+    }
+
+    /**
+     * Sets the equipment id to match.
+     *
+     * @param equipmentId the equipment id, or {@code null} for any
+     * @return this filter
+     */
+    public DeviationFilter setEquipmentId(Integer equipmentId) {
+        this.equipmentId = equipmentId;
+        return this;
+    }
+
+    /**
+     * Gets the earliest date of occurrence to match, inclusive.
+     *
+     * @return the lower date bound, or {@code null} for none
+     */
+    public Date getOccurredFrom() {
+        return occurredFrom;
+    }
+
+    /**
+     * Sets the earliest date of occurrence to match, inclusive.
+     *
+     * @param occurredFrom the lower date bound, or {@code null} for none
+     * @return this filter
+     */
+    public DeviationFilter setOccurredFrom(Date occurredFrom) {
+        this.occurredFrom = occurredFrom;
+        return this;
+    }
+
+    /**
+     * Gets the latest date of occurrence to match, inclusive.
+     *
+     * @return the upper date bound, or {@code null} for none
+     */
+    public Date getOccurredTo() {
+        return occurredTo;
+    }
+
+    /**
+     * Sets the latest date of occurrence to match, inclusive.
+     *
+     * @param occurredTo the upper date bound, or {@code null} for none
+     * @return this filter
+     */
+    public DeviationFilter setOccurredTo(Date occurredTo) {
+        this.occurredTo = occurredTo;
+        return this;
+    }
+
+    /**
+     * Tells whether archived deviations are listed too.
+     *
+     * @return {@code true} to read historical data from the archive as well
+     */
+    public boolean isIncludeArchived() {
+        return includeArchived;
+    }
+
+    /**
+     * Sets whether archived deviations are listed too. Listings that include
+     * them read both the hot and the archive tables and cost more.
+     *
+     * @param includeArchived {@code true} to read historical data from the
+     *                        archive as well
+     * @return this filter
+     */
+    public DeviationFilter setIncludeArchived(boolean includeArchived) {
+        this.includeArchived = includeArchived;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviationFilter{" +
+                "status=" + status +
+                ", deviationType=" + deviationType +
+                ", deviationSeverity=" + deviationSeverity +
+                ", productId=" + productId +
+                ", batchId=" + batchId +
+                ", equipmentId=" + equipmentId +
+                ", occurredFrom=" + occurredFrom +
+                ", occurredTo=" + occurredTo +
+                ", includeArchived=" + includeArchived +
+                '}';
+    }
+}
@@ -0,0 +1,59 @@
+package model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a deviation listing, with the token to fetch the next page.
+ */
+public class DeviationPage {
+
+    private final List<Deviation> deviations;
+    private final String nextPageToken;
+
+    /**
+     * Constructs a page.
+     *
+     * @param deviations    the deviations on this page
+     * @param nextPageToken the token for the next page, or {@code null} if this is the last page
+     */
+    public DeviationPage(List<Deviation> deviations, String nextPageToken) {
+        this.deviations = Collections.unmodifiableList(deviations);
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * Gets the deviations on this page.
+     *
+     * @return the deviations, newest occurrence first
+     */
+    public List<Deviation> getDeviations() {
+        return deviations;
+    }
+
+    /**
+     * Gets the opaque token that continues the listing after this page.
+     *
+     * @return the next page token, or {@code null} if there are no more pages
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    /**
+     * Checks whether more pages follow this one.
+     *
+     * @return {@code true} if {@link #getNextPageToken()} is set
+     */
+    public boolean hasNextPage() {
+        return nextPageToken != null;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviationPage{" +
+                "deviations=" + deviations.size() +
+                ", nextPageToken='" + nextPageToken + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,48 @@
+package model;
+
+import java.sql.Timestamp;
+
+/**
+ * The row version of a deviation, read without the deviation itself so that
+ * a client's copy can be validated cheaply. It changes with every change to
+ * the deviation, its assessments or its approvals.
+ */
+public final class DeviationVersion {
+
+    private final int deviationId;
+    private final int version;
+    private final Timestamp updatedAt;
+
+    /**
+     * @param deviationId the deviation
+     * @param version     its version
+     * @param updatedAt   the time of its last change, or {@code null} if
+     *                    unknown
+     */
+    public DeviationVersion(int deviationId, int version, Timestamp updatedAt) {
+        this.deviationId = deviationId;
+        this.version = version;
+        this.updatedAt = updatedAt;
+    }
+
+    public int getDeviationId() {
+        return deviationId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public Timestamp getUpdatedAt() {
+        return updatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviationVersion{" +
+                "deviationId=" + deviationId +
+                ", version=" + version +
+                ", updatedAt=" + updatedAt +
+                '}';
+    }
+}
@@ -0,0 +1,138 @@
+package model;
+
+import java.sql.Timestamp;
+
+/**
+ * Represents a row of the {@code notifications} table, such as a review
+ * reminder scheduled for a deviation.
+ */
+public class Notification {
+
+    private int id;
+    private String notificationType;
+    private String messageContent;
+    private Timestamp timestamp;
+    private Integer userRecipientId;
+    private int deviationsId;
+
+    /**
+     * Gets the ID of the notification.
+     *
+     * @return the notification ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Sets the ID of the notification.
+     *
+     * @param id the notification ID
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Gets the type of the notification.
+     *
+     * @return the notification type
+     */
+    public String getNotificationType() {
+        return notificationType;
+    }
+
+    /**
+     * Sets the type of the notification.
+     *
+     * @param notificationType the notification type
+     */
+    public void setNotificationType(String notificationType) {
+        this.notificationType = notificationType;
+    }
+
+    /**
+     * Gets the message of the notification.
+     *
+     * @return the message content
+     */
+    public String getMessageContent() {
+        return messageContent;
+    }
+
+    /**
+     * Sets the message of the notification.
+     *
+     * @param messageContent the message content
+     */
+    public void setMessageContent(String messageContent) {
+        this.messageContent = messageContent;
+    }
+
+    /**
+     * Gets the time at which the notification is due.
+     *
+     * @return the due time
+     */
+    public Timestamp getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Sets the time at which the notification is due.
+     *
+     * @param timestamp the due time
+     */
+    public void setTimestamp(Timestamp timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Gets the ID of the user the notification is addressed to.
+     *
+     * @return the recipient user ID, or {@code null} if the recipients are
+     *         resolved from the deviation when the notification is sent
+     */
+    public Integer getUserRecipientId() {
+        return userRecipientId;
+    }
+
+    /**
+     * Sets the ID of the user the notification is addressed to.
+     *
+     * @param userRecipientId the recipient user ID, or {@code null}
+     */
+    public void setUserRecipientId(Integer userRecipientId) {
+        this.userRecipientId = userRecipientId;
+    }
+
+    /**
+     * Gets the ID of the deviation the notification refers to.
+     *
+     * @return the deviation ID
+     */
+    public int getDeviationsId() {
+        return deviationsId;
+    }
+
+    /**
+     * Sets the ID of the deviation the notification refers to.
+     *
+     * @param deviationsId the deviation ID
+     */
+    public void setDeviationsId(int deviationsId) {
+        this.deviationsId = deviationsId;
+    }
+
+    @Override
+    public String toString() {
+        return "Notification{" +
+                "id=" + id +
+                ", notificationType='" + notificationType + '\'' +
+                ", messageContent='" + messageContent + '\'' +
+                ", timestamp=" + timestamp +
+                ", userRecipientId=" + userRecipientId +
+                ", deviationsId=" + deviationsId +
+                '}';
+    }
+}
@@ -0,0 +1,61 @@
+package model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The recurrence of a deviation as suggested from the prior deviations that
+ * resemble it, for the {@code is_the_deviation_repeated} and
+ * {@code historical_deviations} fields of its assessment.
+ */
+public final class RecurrenceSuggestion {
+
+    private final int historicalDeviations;
+    private final List<SimilarDeviation> similarDeviations;
+
+    /**
+     * @param historicalDeviations the number of prior deviations at or above
+     *                             the similarity threshold
+     * @param similarDeviations    the most similar of them, best first
+     */
+    public RecurrenceSuggestion(int historicalDeviations, List<SimilarDeviation> similarDeviations) {
+        this.historicalDeviations = historicalDeviations;
+        this.similarDeviations = Collections.unmodifiableList(similarDeviations);
+    }
+
+    /**
+     * Tells whether the deviation looks like a repeat of a prior one.
+     *
+     * @return {@code true} if at least one prior deviation is similar enough
+     */
+    public boolean isRepeated() {
+        return historicalDeviations > 0;
+    }
+
+    /**
+     * Gets the number of prior deviations similar enough to count as
+     * occurrences of the same deviation.
+     *
+     * @return the suggested number of historical deviations
+     */
+    public int getHistoricalDeviations() {
+        return historicalDeviations;
+    }
+
+    /**
+     * Gets the most similar prior deviations.
+     *
+     * @return the similar deviations, best first
+     */
+    public List<SimilarDeviation> getSimilarDeviations() {
+        return similarDeviations;
+    }
+
+    @Override
+    public String toString() {
+        return "RecurrenceSuggestion{" +
+                "historicalDeviations=" + historicalDeviations +
+                ", similarDeviations=" + similarDeviations +
+                '}';
+    }
+}
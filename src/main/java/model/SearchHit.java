@@ -0,0 +1,47 @@
+package model;
+
+/**
+ * A deviation matched by a full-text search, with its relevance score. Scores
+ * only order the hits of one search; they are not comparable across searches
+ * or search backends.
+ */
+public final class SearchHit {
+
+    private final int deviationId;
+    private final double score;
+
+    /**
+     * @param deviationId the matching deviation
+     * @param score       the relevance score, higher is better
+     */
+    public SearchHit(int deviationId, double score) {
+        this.deviationId = deviationId;
+        this.score = score;
+    }
+
+    /**
+     * Gets the ID of the matching deviation.
+     *
+     * @return the deviation ID
+     */
+    public int getDeviationId() {
+        return deviationId;
+    }
+
+    /**
+     * Gets the relevance score of the match.
+     *
+     * @return the score, higher is better
+     */
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit{" +
+                "deviationId=" + deviationId +
+                ", score=" + score +
+                '}';
+    }
+}
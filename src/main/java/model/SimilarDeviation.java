@@ -0,0 +1,46 @@
+package model;
+
+/**
+ * A prior deviation found to be similar to another one, with the estimated
+ * similarity of their narratives and product, material and equipment.
+ */
+public final class SimilarDeviation {
+
+    private final int deviationId;
+    private final double similarity;
+
+    /**
+     * @param deviationId the similar deviation
+     * @param similarity  the estimated similarity, between 0 and 1
+     */
+    public SimilarDeviation(int deviationId, double similarity) {
+        this.deviationId = deviationId;
+        this.similarity = similarity;
+    }
+
+    /**
+     * Gets the ID of the similar deviation.
+     *
+     * @return the deviation ID
+     */
+    public int getDeviationId() {
+        return deviationId;
+    }
+
+    /**
+     * Gets the estimated similarity.
+     *
+     * @return the similarity, between 0 and 1
+     */
+    public double getSimilarity() {
+        return similarity;
+    }
+
+    @Override
+    public String toString() {
+        return "SimilarDeviation{" +
+                "deviationId=" + deviationId +
+                ", similarity=" + similarity +
+                '}';
+    }
+}
@@ -0,0 +1,104 @@
+package model;
+
+/**
+ * Outcome of a workflow transition of a deviation. A transition is applied
+ * only if the deviation is still in one of the statuses it may leave and, when
+ * an expected version is given, still at that version; otherwise nothing is
+ * written and the result describes the deviation as it was found.
+ */
+public final class TransitionResult {
+
+    /**
+     * What happened to the transition.
+     */
+    public enum Outcome {
+        /** The status was changed. */
+        APPLIED,
+        /** The deviation has been changed concurrently: its status or version no longer matches. */
+        CONFLICT,
+        /** No deviation matched the given key. */
+        NOT_FOUND,
+        /** The workflow does not allow the requested transition; the database was not consulted. */
+        ILLEGAL
+    }
+
+    private final Outcome outcome;
+    private final Integer deviationId;
+    private final String currentStatus;
+    private final int currentVersion;
+
+    /**
+     * @param outcome        what happened
+     * @param deviationId    the deviation, or {@code null} if it was not found
+     *                       or not looked up
+     * @param currentStatus  the status after the transition if it was applied,
+     *                       otherwise the status found; {@code null} if
+     *                       unknown
+     * @param currentVersion the version after the transition if it was
+     *                       applied, otherwise the version found
+     */
+    public TransitionResult(Outcome outcome, Integer deviationId, String currentStatus, int currentVersion) {
+        this.outcome = outcome;
+        this.deviationId = deviationId;
+        this.currentStatus = currentStatus;
+        this.currentVersion = currentVersion;
+    }
+
+    /**
+     * Gets what happened to the transition.
+     *
+     * @return the outcome
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Tells whether the status was changed.
+     *
+     * @return {@code true} if the transition was applied
+     */
+    public boolean isApplied() {
+        return outcome == Outcome.APPLIED;
+    }
+
+    /**
+     * Gets the ID of the deviation.
+     *
+     * @return the deviation ID, or {@code null} if it was not found
+     */
+    public Integer getDeviationId() {
+        return deviationId;
+    }
+
+    /**
+     * Gets the status of the deviation: the new status if the transition was
+     * applied, otherwise the status that prevented it. Kept as stored, since
+     * not every stored status is a {@link Enums.DeviationStatus}.
+     *
+     * @return the status, or {@code null} if unknown
+     */
+    public String getCurrentStatus() {
+        return currentStatus;
+    }
+
+    /**
+     * Gets the version of the deviation: the new version if the transition
+     * was applied, otherwise the version that was found.
+     *
+     * @return the version
+     */
+    public int getCurrentVersion() {
+        return currentVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "TransitionResult{" +
+                "outcome=" + outcome +
+                ", deviationId=" + deviationId +
+                ", currentStatus='" + currentStatus + '\'' +
+                ", currentVersion=" + currentVersion +
+                '}';
+    }
+}
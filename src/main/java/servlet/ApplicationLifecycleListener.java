@@ -0,0 +1,74 @@
+package servlet;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.websocket.DeploymentException;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
+import dao.AssessmentAnalytics;
+import dao.AuditTrailWriter;
+import dao.DeviationArchiver;
+import dao.DeviationChangeFeed;
+import dao.DeviationNumberAllocator;
+import dao.DeviationSearch;
+import dao.DeviationSimilarity;
+import dao.DeviationStatistics;
+import dao.ReminderScheduler;
+import utils.DatabaseUtility;
+import utils.PgNotificationListener;
+
+/**
+ * Starts the application's background services when the web application is
+ * deployed and stops them, together with the connection pool, when it is
+ * undeployed.
+ */
+public class ApplicationLifecycleListener implements ServletContextListener {
+
+    private static final Logger LOGGER = Logger.getLogger(ApplicationLifecycleListener.class.getName());
+    private static final long AUDIT_SHUTDOWN_TIMEOUT_MILLIS = 10000L;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ReminderScheduler.getInstance().start();
+        DeviationStatistics.getInstance().start();
+        DeviationSearch.getInstance().start();
+        DeviationSimilarity.getInstance().start();
+        DeviationChangeFeed.getInstance().start();
+        DeviationArchiver.getInstance().start();
+        AssessmentAnalytics.getInstance().start();
+        registerPushEndpoint(event);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        Workload.shutdownAll();
+        ReminderScheduler.getInstance().shutdown();
+        DeviationStatistics.getInstance().shutdown();
+        DeviationSearch.getInstance().shutdown();
+        DeviationSimilarity.getInstance().shutdown();
+        DeviationChangeFeed.getInstance().shutdown();
+        DeviationArchiver.getInstance().shutdown();
+        AssessmentAnalytics.getInstance().shutdown();
+        AuditTrailWriter.getInstance().shutdown(AUDIT_SHUTDOWN_TIMEOUT_MILLIS);
+        DeviationNumberAllocator.getInstance().shutdown();
+        PgNotificationListener.getInstance().shutdown();
+        DatabaseUtility.shutdown();
+    }
+
+    private static void registerPushEndpoint(ServletContextEvent event) {
+        ServerContainer container = (ServerContainer) event.getServletContext().getAttribute(ServerContainer.class.getName());
+        if (container == null) {
+            LOGGER.warning("No WebSocket container; deviation changes will not be pushed");
+            return;
+        }
+        try {
+            container.addEndpoint(ServerEndpointConfig.Builder.create(DeviationPushEndpoint.class, DeviationPushEndpoint.PATH).build());
+        } catch (DeploymentException e) {
+            LOGGER.log(Level.SEVERE, "Could not register " + DeviationPushEndpoint.PATH, e);
+        }
+    }
+}
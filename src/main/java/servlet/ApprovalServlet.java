@@ -0,0 +1,66 @@
+package servlet;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import dao.DeviationAssessmentDAO;
+import dao.DeviationDAO;
+import model.Enums;
+
+/**
+ * REST endpoint for approvals, served asynchronously (see
+ * {@link AsyncServlet}):
+ *
+ * <ul>
+ * <li>{@code POST /api/approvals} records an approval of a deviation and
+ * answers with its id;</li>
+ * <li>{@code POST /api/approvals/{id}/final} approves the approval record as
+ * the final approver {@code userId} and moves deviation {@code deviationId}
+ * to final approval, answering 409 if the workflow does not allow that.</li>
+ * </ul>
+ */
+public class ApprovalServlet extends AsyncServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String[] path = path(request);
+        if (path.length == 0) {
+            JsonBody body = JsonBody.read(request);
+            int deviationId = body.requireInt("deviationId");
+            int approverId = body.requireInt("approverId");
+            Enums.ApprovalStatus status = body.getEnum(Enums.ApprovalStatus.class, "approvalStatus");
+            if (status == null) {
+                throw new IllegalArgumentException("approvalStatus is required");
+            }
+            DeviationDAO dao = new DeviationDAO();
+            dispatch(request, response, Workload.WRITE, () -> {
+                int id = dao.recordApproval(body.getDate("approvalDate"), status, approverId, body.getString("approverRole"),
+                        body.getString("approvalComments"), body.getString("approverName"), deviationId);
+                if (id < 0) {
+                    return Reply.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "The approval could not be recorded");
+                }
+                return Reply.created(request.getRequestURI() + "/" + id, Collections.singletonMap("id", id));
+            });
+        } else if (path.length == 2 && path[1].equals("final")) {
+            Integer id = RequestParameters.integer(path[0]);
+            if (id == null) {
+                throw new IllegalArgumentException("An approval id is required");
+            }
+            JsonBody body = JsonBody.read(request);
+            int deviationId = body.requireInt("deviationId");
+            int userId = body.requireInt("userId");
+            DeviationAssessmentDAO dao = new DeviationAssessmentDAO();
+            dispatch(request, response, Workload.WRITE, () -> dao.assignFinalApprover(deviationId, id, userId)
+                    ? Reply.noContent()
+                    : Reply.error(HttpServletResponse.SC_CONFLICT, "Deviation " + deviationId + " cannot move to final approval"));
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import dao.AssessmentAnalytics;
+import model.AssessmentAggregate;
+import model.AssessmentFilter;
+
+/**
+ * Serves assessment trends as JSON: the number of assessments and their
+ * average, lowest and highest scores per combination of the dimensions named
+ * in {@code groupBy} ({@code product}, {@code equipment}, {@code month},
+ * {@code assessment_type}, {@code severity}, comma-separated), restricted by
+ * the parameters of {@link RequestParameters#assessmentFilter}. The figures
+ * come from {@link AssessmentAnalytics} and never touch the database, but a
+ * grouping over many assessments takes a while, so it runs on the
+ * {@link Workload#READ} executor; until the analytics have loaded the servlet
+ * answers 503.
+ */
+public class AssessmentAnalyticsServlet extends AsyncServlet {
+
+    private static final long serialVersionUID = 1L;
+    /** Keeps the missing values of a group as nulls, unlike {@link AsyncServlet#GSON}. */
+    private static final Gson AGGREGATE_GSON = new GsonBuilder().serializeNulls().create();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        AssessmentFilter filter = RequestParameters.assessmentFilter(request);
+        List<AssessmentAnalytics.Dimension> groupBy = groupBy(request.getParameter("groupBy"));
+        stream(request, response, Workload.READ, streamed -> {
+            List<AssessmentAggregate> aggregates;
+            try {
+                aggregates = AssessmentAnalytics.getInstance().aggregate(filter, groupBy);
+            } catch (IllegalStateException e) {
+                streamed.setHeader("Retry-After", "5");
+                streamed.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The assessment analytics are still loading");
+                return;
+            } catch (IllegalArgumentException e) {
+                streamed.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            streamed.setContentType("application/json");
+            streamed.setCharacterEncoding("UTF-8");
+            streamed.setHeader("Cache-Control", "no-store");
+            try (Writer writer = streamed.getWriter()) {
+                AGGREGATE_GSON.toJson(aggregates, writer);
+            }
+        });
+    }
+
+    private static List<AssessmentAnalytics.Dimension> groupBy(String value) {
+        List<AssessmentAnalytics.Dimension> dimensions = new ArrayList<>();
+        if (value != null) {
+            for (String name : value.split(",")) {
+                AssessmentAnalytics.Dimension dimension = RequestParameters.enumValue(AssessmentAnalytics.Dimension.class, name);
+                if (dimension != null) {
+                    dimensions.add(dimension);
+                }
+            }
+        }
+        return dimensions;
+    }
+}
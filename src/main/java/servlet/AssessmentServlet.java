@@ -0,0 +1,128 @@
+package servlet;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import dao.AssessmentBatchLoader;
+import dao.DeviationAssessmentDAO;
+import dao.DeviationDAO;
+import model.AssessmentCreation;
+import model.Deviation;
+import model.DeviationVersion;
+import model.Enums;
+import model.RecurrenceSuggestion;
+import model.TransitionResult;
+
+/**
+ * REST endpoint for deviation assessments, served asynchronously (see
+ * {@link AsyncServlet}):
+ *
+ * <ul>
+ * <li>{@code GET /api/assessments?deviationId=} lists the assessments of a
+ * deviation, with an {@code ETag} and {@code Last-Modified} from the row
+ * version of the deviation, which every assessment change increments; a
+ * request whose validators match is answered with 304 after reading the
+ * version alone;</li>
+ * <li>{@code GET /api/assessments/recurrence?deviationId=} suggests whether
+ * the deviation is a recurrence, answering 503 while the similarity index is
+ * loading;</li>
+ * <li>{@code POST /api/assessments} creates an assessment and moves the
+ * deviation to QA review if the workflow allows it from its current status;
+ * the reply tells whether it moved and gives the deviation's status and
+ * version;</li>
+ * <li>{@code DELETE /api/assessments/{id}} deletes an assessment.</li>
+ * </ul>
+ */
+public class AssessmentServlet extends AsyncServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final String ETAG_KIND = "assessments";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String[] path = path(request);
+        DeviationAssessmentDAO dao = new DeviationAssessmentDAO();
+        int deviationId = RequestParameters.requiredInt(request, "deviationId");
+        if (path.length == 0) {
+            ConditionalRequest conditional = ConditionalRequest.of(request);
+            DeviationDAO deviations = new DeviationDAO();
+            AssessmentBatchLoader assessments = RequestScope.assessmentLoader(request);
+            dispatch(request, response, Workload.READ, () -> {
+                if (conditional.isPresent()) {
+                    DeviationVersion current = deviations.getDeviationVersion(deviationId);
+                    String etag = current == null ? null : ConditionalRequest.etag(ETAG_KIND, deviationId, current.getVersion());
+                    if (etag != null && conditional.isNotModified(etag, current.getUpdatedAt())) {
+                        return Reply.notModified().withValidators(etag, current.getUpdatedAt());
+                    }
+                }
+                // Read the version before the assessments, from the cache that evicts both together, so that the
+                // tag does not run ahead of the list
+                Deviation deviation = deviations.getDeviationById(deviationId);
+                Reply reply = Reply.ok(assessments.get(deviationId));
+                return deviation == null ? reply
+                        : reply.withValidators(ConditionalRequest.etag(ETAG_KIND, deviationId, deviation.getVersion()), deviation.getUpdatedAt());
+            });
+        } else if (path.length == 1 && path[0].equals("recurrence")) {
+            dispatch(request, response, Workload.READ, () -> {
+                RecurrenceSuggestion suggestion = dao.suggestRecurrence(deviationId);
+                return suggestion == null ? Reply.error(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The similarity index is not available")
+                        : Reply.ok(suggestion);
+            });
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (path(request).length != 0) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        JsonBody body = JsonBody.read(request);
+        int deviationsId = body.requireInt("deviationsId");
+        Date assessmentDate = body.getDate("assessmentDate");
+        Date deviationCloserDate = body.getDate("deviationCloserDate");
+        Enums.AssessmentType assessmentType = body.getEnum(Enums.AssessmentType.class, "assessmentType");
+        Enums.DeviationSeverity deviationSeverity = body.getEnum(Enums.DeviationSeverity.class, "deviationSeverity");
+        if (assessmentDate == null || deviationCloserDate == null || assessmentType == null || deviationSeverity == null) {
+            throw new IllegalArgumentException("assessmentDate, deviationCloserDate, assessmentType and deviationSeverity are required");
+        }
+        DeviationAssessmentDAO dao = new DeviationAssessmentDAO();
+        dispatch(request, response, Workload.WRITE, () -> {
+            AssessmentCreation created = dao.createAssessment(body.getInteger("probabilityOfRecurrence"), assessmentDate, deviationCloserDate,
+                    body.getString("assessmentResult"), body.getDouble("assessmentScore"), deviationsId, assessmentType, deviationSeverity,
+                    body.getBoolean("isTheDeviationRepeated"), body.getInteger("historicalDeviations"), body.getString("anyMarketActionsRequired"),
+                    body.getString("comments"), body.getInteger("fileAttachment"));
+            if (created == null) {
+                return Reply.error(HttpServletResponse.SC_NOT_FOUND, "No deviation " + deviationsId);
+            }
+            TransitionResult transition = created.getTransition();
+            Map<String, Object> reply = new LinkedHashMap<>();
+            reply.put("id", created.getAssessmentId());
+            reply.put("movedToQaReview", transition.isApplied());
+            reply.put("deviationStatus", transition.getCurrentStatus());
+            reply.put("deviationVersion", transition.getCurrentVersion());
+            return Reply.created(request.getRequestURI() + "/" + created.getAssessmentId(), reply);
+        });
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String[] path = path(request);
+        Integer id = path.length == 1 ? RequestParameters.integer(path[0]) : null;
+        if (id == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        DeviationAssessmentDAO dao = new DeviationAssessmentDAO();
+        dispatch(request, response, Workload.WRITE,
+                () -> dao.deleteAssessment(id) ? Reply.noContent() : Reply.error(HttpServletResponse.SC_NOT_FOUND, "No assessment " + id));
+    }
+}
@@ -0,0 +1,556 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+
+import utils.DatabaseUnavailableException;
+import utils.DatabaseUtility;
+import utils.Metrics;
+
+/**
+ * Base class of the servlets that run DAO work off the container threads.
+ * A request is parsed on the container thread, then put in asynchronous mode
+ * and handed to the executor of its {@link Workload}; the container thread
+ * returns to the pool while the JDBC calls run.
+ *
+ * <p>
+ * {@link #dispatch} is for replies small enough to serialize in memory: the
+ * handler returns a {@link Reply}, whose JSON is written with a non-blocking
+ * {@link WriteListener}. {@link #stream} is for reports and exports that
+ * write while they read; they write with blocking calls from the executor
+ * thread. Either way, a request that does not get an answer within the
+ * workload's timeout, queueing included, is answered with 503 and its late
+ * result is dropped, and a request rejected by a full queue is answered with
+ * 503 at once. A stream handler owns the response until it returns, so its
+ * timeout is not left to the container, which would recycle the response
+ * while the handler writes; instead every write after the timeout fails, and
+ * the handler completes the request once it stops. Parameters that cannot be
+ * parsed are answered with 400.
+ * </p>
+ *
+ * <p>
+ * When read replicas are configured, a successful {@link Workload#WRITE}
+ * reply sets the {@value #POSITION_COOKIE} cookie to the primary's WAL
+ * position after the write, and the client's later requests only read from
+ * replicas that have replayed it (see
+ * {@link DatabaseUtility#requirePosition(String)}), so a client always reads
+ * its own writes.
+ * </p>
+ */
+abstract class AsyncServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(AsyncServlet.class.getName());
+    private static final int CHUNK_SIZE = 8192;
+    private static final String RETRY_AFTER_SECONDS = "5";
+    private static final LongAdder TIMEOUTS = Metrics.counter("async.timeouts");
+    private static final String POSITION_COOKIE = "db-position";
+    private static final String PRIMARY_POSITION = "primary";
+    private static final int POSITION_COOKIE_MAX_AGE_SECONDS = 300;
+
+    /**
+     * Writes dates as {@code yyyy-MM-dd} and timestamps as ISO local
+     * date-times, as {@link utils.JsonRowWriter} and {@link JsonBody} do.
+     */
+    static final Gson GSON = new GsonBuilder()
+            .registerTypeHierarchyAdapter(Date.class, (JsonSerializer<Date>) (date, type, context) -> new JsonPrimitive(
+                    date instanceof java.sql.Date ? ((java.sql.Date) date).toLocalDate().toString()
+                            : new Timestamp(date.getTime()).toLocalDateTime().toString()))
+            .create();
+
+    /**
+     * A status and an optional body, serialized with {@link #GSON}. Replies
+     * with validators may be cached by the client, which must revalidate them
+     * (see {@link ConditionalRequest}); others are not cached.
+     */
+    static final class Reply {
+        private final int status;
+        private final Object body;
+        private final String location;
+        private String etag;
+        private Date lastModified;
+
+        private Reply(int status, Object body, String location) {
+            this.status = status;
+            this.body = body;
+            this.location = location;
+        }
+
+        static Reply ok(Object body) {
+            return new Reply(HttpServletResponse.SC_OK, body, null);
+        }
+
+        static Reply created(String location, Object body) {
+            return new Reply(HttpServletResponse.SC_CREATED, body, location);
+        }
+
+        static Reply noContent() {
+            return new Reply(HttpServletResponse.SC_NO_CONTENT, null, null);
+        }
+
+        static Reply notModified() {
+            return new Reply(HttpServletResponse.SC_NOT_MODIFIED, null, null);
+        }
+
+        static Reply status(int status, Object body) {
+            return new Reply(status, body, null);
+        }
+
+        static Reply error(int status, String message) {
+            return new Reply(status, Collections.singletonMap("error", message), null);
+        }
+
+        /**
+         * Sets the {@code ETag} and {@code Last-Modified} headers.
+         *
+         * @param etag         the quoted entity tag
+         * @param lastModified the time of the last change, or {@code null}
+         *                     if unknown
+         * @return this reply
+         */
+        Reply withValidators(String etag, Date lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            return this;
+        }
+    }
+
+    /**
+     * DAO work that produces a reply.
+     */
+    @FunctionalInterface
+    interface Handler {
+        Reply handle() throws SQLException;
+    }
+
+    /**
+     * DAO work that writes the response itself.
+     */
+    @FunctionalInterface
+    interface StreamHandler {
+        void handle(HttpServletResponse response) throws SQLException, IOException;
+    }
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        try {
+            super.service(request, response);
+        } catch (IllegalArgumentException e) {
+            if (request.isAsyncStarted()) {
+                throw e;
+            }
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a handler on its workload's executor and writes its reply without
+     * blocking.
+     *
+     * @param request  the request
+     * @param response the response
+     * @param workload where the handler runs
+     * @param handler  the DAO work
+     * @throws IOException if the request cannot be rejected
+     */
+    protected final void dispatch(HttpServletRequest request, HttpServletResponse response, Workload workload, Handler handler) throws IOException {
+        AtomicBoolean answered = new AtomicBoolean();
+        AsyncContext async = start(request, response, workload, workload.getTimeoutMillis(), answered, null);
+        submit(async, response, workload, answered, position(request), () -> {
+            Reply reply;
+            try {
+                reply = handler.handle();
+            } catch (DatabaseUnavailableException e) {
+                LOGGER.log(Level.WARNING, "Database unavailable for " + request.getRequestURI(), e);
+                reply = Reply.error(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The database is unavailable");
+            } catch (IllegalArgumentException e) {
+                reply = Reply.error(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Error handling " + request.getRequestURI(), e);
+                reply = Reply.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "The request could not be completed");
+            }
+            if (!answered.compareAndSet(false, true)) {
+                LOGGER.fine("Dropping the reply to " + request.getRequestURI() + ", which timed out");
+                return;
+            }
+            try {
+                if (workload == Workload.WRITE && reply.status < HttpServletResponse.SC_BAD_REQUEST) {
+                    rememberPosition(request, response);
+                }
+                send(async, response, reply);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error writing the reply to " + request.getRequestURI(), e);
+                async.complete();
+            }
+        });
+    }
+
+    /**
+     * Runs a handler that writes the response itself on its workload's
+     * executor. The request counts as answered once the handler starts, so a
+     * timeout after that makes its writes fail, ending the response early
+     * instead of answering 503.
+     *
+     * @param request  the request
+     * @param response the response
+     * @param workload where the handler runs
+     * @param handler  the DAO work
+     * @throws IOException if the request cannot be rejected
+     */
+    protected final void stream(HttpServletRequest request, HttpServletResponse response, Workload workload, StreamHandler handler) throws IOException {
+        AtomicBoolean answered = new AtomicBoolean();
+        AtomicBoolean stopped = new AtomicBoolean();
+        AsyncContext async = start(request, response, workload, 0L, answered, stopped);
+        ScheduledFuture<?> deadline = workload.deadline(() -> {
+            if (answered.compareAndSet(false, true)) {
+                try {
+                    timedOut(request, response, workload);
+                } catch (IOException | IllegalStateException e) {
+                    LOGGER.log(Level.FINE, "Could not answer " + request.getRequestURI() + " after its timeout", e);
+                } finally {
+                    async.complete();
+                }
+            } else if (stopped.compareAndSet(false, true)) {
+                TIMEOUTS.increment();
+                LOGGER.warning(request.getRequestURI() + " timed out after " + workload.getTimeoutMillis() + " ms while streaming; ending the response");
+            }
+        });
+        boolean queued = submit(async, response, workload, answered, position(request), () -> {
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                handler.handle(new StreamedResponse(response, stopped));
+            } catch (DatabaseUnavailableException e) {
+                fail(request, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e);
+            } catch (SQLException | IOException | RuntimeException e) {
+                if (stopped.get()) {
+                    LOGGER.log(Level.FINE, "Stream of " + request.getRequestURI() + " stopped", e);
+                } else {
+                    fail(request, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
+                }
+            } finally {
+                deadline.cancel(false);
+                async.complete();
+            }
+        });
+        if (!queued) {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * Splits the path info into its segments.
+     *
+     * @param request the request
+     * @return the segments, empty for the servlet's own path
+     */
+    static String[] path(HttpServletRequest request) {
+        String pathInfo = request.getPathInfo();
+        if (pathInfo == null || pathInfo.equals("/")) {
+            return new String[0];
+        }
+        return pathInfo.substring(1).split("/");
+    }
+
+    /**
+     * Puts a request in asynchronous mode.
+     *
+     * @param timeoutMillis the container timeout, or 0 for none
+     * @param stopped       set if the request fails, or {@code null}
+     */
+    private static AsyncContext start(HttpServletRequest request, HttpServletResponse response, Workload workload, long timeoutMillis,
+            AtomicBoolean answered, AtomicBoolean stopped) {
+        AsyncContext async = request.startAsync();
+        async.setTimeout(timeoutMillis);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (answered.compareAndSet(false, true)) {
+                    timedOut(request, response, workload);
+                }
+                event.getAsyncContext().complete();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                answered.set(true);
+                if (stopped != null) {
+                    stopped.set(true);
+                }
+                LOGGER.log(Level.WARNING, "Asynchronous request " + request.getRequestURI() + " failed", event.getThrowable());
+                event.getAsyncContext().complete();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return async;
+    }
+
+    private static void timedOut(HttpServletRequest request, HttpServletResponse response, Workload workload) throws IOException {
+        TIMEOUTS.increment();
+        LOGGER.warning(request.getRequestURI() + " timed out after " + workload.getTimeoutMillis() + " ms");
+        response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The request timed out");
+    }
+
+    /**
+     * @return {@code false} if the queue rejected the task and the request
+     *         was answered with 503
+     */
+    private static boolean submit(AsyncContext async, HttpServletResponse response, Workload workload, AtomicBoolean answered, String position,
+            Runnable task) throws IOException {
+        try {
+            workload.execute(() -> {
+                // Skip the DAO work entirely if the request timed out while queued
+                if (!answered.get()) {
+                    DatabaseUtility.requirePosition(position);
+                    try {
+                        task.run();
+                    } finally {
+                        DatabaseUtility.requirePosition(null);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            answered.set(true);
+            response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The server is busy");
+            async.complete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the WAL position of the client's last write, or {@code null}
+     */
+    private static String position(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (POSITION_COOKIE.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the position cookie after a write. If the position cannot be read
+     * the client reads from the primary until the cookie expires.
+     */
+    private static void rememberPosition(HttpServletRequest request, HttpServletResponse response) {
+        if (!DatabaseUtility.hasReplicas()) {
+            return;
+        }
+        String position;
+        try {
+            position = DatabaseUtility.currentWritePosition();
+        } catch (SQLException | DatabaseUnavailableException e) {
+            LOGGER.log(Level.FINE, "Could not read the WAL position after " + request.getRequestURI(), e);
+            position = PRIMARY_POSITION;
+        }
+        Cookie cookie = new Cookie(POSITION_COOKIE, position);
+        String contextPath = request.getContextPath();
+        cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+        cookie.setMaxAge(POSITION_COOKIE_MAX_AGE_SECONDS);
+        cookie.setHttpOnly(true);
+        response.addCookie(cookie);
+    }
+
+    private static void send(AsyncContext async, HttpServletResponse response, Reply reply) throws IOException {
+        byte[] body = reply.body == null ? new byte[0] : GSON.toJson(reply.body).getBytes(StandardCharsets.UTF_8);
+        response.setStatus(reply.status);
+        if (reply.etag != null) {
+            response.setHeader("Cache-Control", "private, no-cache");
+            response.setHeader("ETag", reply.etag);
+            if (reply.lastModified != null) {
+                response.setDateHeader("Last-Modified", reply.lastModified.getTime());
+            }
+        } else {
+            response.setHeader("Cache-Control", "no-store");
+        }
+        if (reply.status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+            response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+        }
+        if (reply.location != null) {
+            response.setHeader("Location", reply.location);
+        }
+        if (reply.body != null) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+        }
+        response.setContentLength(body.length);
+        ServletOutputStream output = response.getOutputStream();
+        output.setWriteListener(new BodyWriter(async, output, body));
+    }
+
+    private static void fail(HttpServletRequest request, HttpServletResponse response, int status, Exception e) {
+        LOGGER.log(Level.SEVERE, "Error handling " + request.getRequestURI(), e);
+        if (!response.isCommitted()) {
+            try {
+                response.sendError(status, "The request could not be completed");
+            } catch (IOException | IllegalStateException sendFailure) {
+                e.addSuppressed(sendFailure);
+            }
+        }
+    }
+
+    /**
+     * The response a stream handler writes, whose writes fail once
+     * {@code stopped} is set. A {@link PrintWriter} hides the failure, but
+     * still writes nothing more.
+     */
+    private static final class StreamedResponse extends HttpServletResponseWrapper {
+        private final AtomicBoolean stopped;
+        private ServletOutputStream output;
+        private PrintWriter writer;
+
+        private StreamedResponse(HttpServletResponse response, AtomicBoolean stopped) {
+            super(response);
+            this.stopped = stopped;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                output = new StoppableOutputStream(super.getOutputStream(), stopped);
+            }
+            return output;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                String encoding = getCharacterEncoding();
+                Charset charset = encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding);
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset));
+            }
+            return writer;
+        }
+    }
+
+    private static final class StoppableOutputStream extends ServletOutputStream {
+        private final ServletOutputStream output;
+        private final AtomicBoolean stopped;
+
+        private StoppableOutputStream(ServletOutputStream output, AtomicBoolean stopped) {
+            this.output = output;
+            this.stopped = stopped;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkStopped();
+            output.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkStopped();
+            output.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkStopped();
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            checkStopped();
+            output.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return output.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            output.setWriteListener(writeListener);
+        }
+
+        private void checkStopped() throws IOException {
+            if (stopped.get()) {
+                throw new IOException("The response was stopped");
+            }
+        }
+    }
+
+    /**
+     * Writes a body in chunks whenever the container reports the stream
+     * ready, then completes the request.
+     */
+    private static final class BodyWriter implements WriteListener {
+        private final AsyncContext async;
+        private final ServletOutputStream output;
+        private final byte[] body;
+        private int offset;
+
+        private BodyWriter(AsyncContext async, ServletOutputStream output, byte[] body) {
+            this.async = async;
+            this.output = output;
+            this.body = body;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (output.isReady()) {
+                if (offset == body.length) {
+                    async.complete();
+                    return;
+                }
+                int length = Math.min(CHUNK_SIZE, body.length - offset);
+                output.write(body, offset, length);
+                offset += length;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            LOGGER.log(Level.WARNING, "Error writing an asynchronous reply", t);
+            async.complete();
+        }
+    }
+}
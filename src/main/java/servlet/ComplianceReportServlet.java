@@ -0,0 +1,47 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import dao.DeviationDAO;
+import utils.JsonReportWriter;
+import utils.PdfReportWriter;
+import utils.ReportWriter;
+
+/**
+ * Streams the compliance report for the deviations that occurred between the
+ * {@code from} and {@code to} dates ({@code yyyy-MM-dd}, both optional) as
+ * JSON, or as PDF with {@code format=pdf}. The report is generated on the
+ * {@link Workload#REPORT} executor, so slow reports do not hold container
+ * threads. It is written while it is being generated, so errors after the
+ * first bytes can only be logged and end the response early.
+ */
+public class ComplianceReportServlet extends AsyncServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        Date from = RequestParameters.date(request.getParameter("from"));
+        Date to = RequestParameters.date(request.getParameter("to"));
+        boolean pdf = "pdf".equalsIgnoreCase(request.getParameter("format"));
+        stream(request, response, Workload.REPORT, streamed -> {
+            streamed.setHeader("Cache-Control", "no-store");
+            if (pdf) {
+                streamed.setContentType("application/pdf");
+                streamed.setHeader("Content-Disposition", "attachment; filename=\"compliance-report.pdf\"");
+            } else {
+                streamed.setContentType("application/json");
+                streamed.setCharacterEncoding("UTF-8");
+            }
+            OutputStream output = streamed.getOutputStream();
+            ReportWriter writer = pdf ? new PdfReportWriter(output) : new JsonReportWriter(output);
+            new DeviationDAO().writeComplianceReport(from, to, writer);
+        });
+    }
+}
@@ -0,0 +1,87 @@
+package servlet;
+
+import java.util.Date;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The {@code If-None-Match} and {@code If-Modified-Since} validators of a
+ * GET request, read on the container thread before the request goes
+ * asynchronous. Resources derived from a deviation use its row version as a
+ * strong entity tag and its {@code updated_at} as the last-modified time;
+ * see {@link dao.DeviationDAO#getDeviationVersion(int)}.
+ */
+final class ConditionalRequest {
+
+    private final String ifNoneMatch;
+    private final long ifModifiedSince;
+
+    private ConditionalRequest(String ifNoneMatch, long ifModifiedSince) {
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    /**
+     * @param request the request
+     * @return its validators; a malformed date is ignored, as RFC 7232
+     *         requires
+     */
+    static ConditionalRequest of(HttpServletRequest request) {
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            ifModifiedSince = -1L;
+        }
+        return new ConditionalRequest(request.getHeader("If-None-Match"), ifModifiedSince);
+    }
+
+    /**
+     * Builds the strong entity tag of a representation derived from a
+     * deviation.
+     *
+     * @param kind        the representation, such as {@code deviation} or
+     *                    {@code assessments}
+     * @param deviationId the deviation
+     * @param version     its row version
+     * @return the quoted entity tag
+     */
+    static String etag(String kind, int deviationId, int version) {
+        return "\"" + kind + "-" + deviationId + "-" + version + "\"";
+    }
+
+    /**
+     * @return whether the request carries a validator, so that checking it is
+     *         worth a query
+     */
+    boolean isPresent() {
+        return ifNoneMatch != null || ifModifiedSince >= 0L;
+    }
+
+    /**
+     * Tells whether the client's copy is current. {@code If-None-Match} takes
+     * precedence over {@code If-Modified-Since}, which has a resolution of a
+     * second.
+     *
+     * @param etag         the current entity tag
+     * @param lastModified the time of the last change, or {@code null} if
+     *                     unknown
+     * @return {@code true} if the request should be answered with 304
+     */
+    boolean isNotModified(String etag, Date lastModified) {
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                // GET compares entity tags weakly
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return ifModifiedSince >= 0L && lastModified != null && lastModified.getTime() / 1000L <= ifModifiedSince / 1000L;
+    }
+}
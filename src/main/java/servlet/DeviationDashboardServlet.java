@@ -0,0 +1,55 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import dao.DeviationStatistics;
+
+/**
+ * Serves the deviation status dashboard as JSON: the total, the counts by
+ * status, type, severity and department, and the count of every combination
+ * of the four. The counts come from {@link DeviationStatistics} and never
+ * touch the database; until they have been seeded the servlet answers 503.
+ */
+public class DeviationDashboardServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        DeviationStatistics statistics = DeviationStatistics.getInstance();
+        if (!statistics.isSeeded()) {
+            response.setHeader("Retry-After", "5");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The dashboard is still loading");
+            return;
+        }
+        Map<String, Object> dashboard = new LinkedHashMap<>();
+        dashboard.put("total", statistics.getTotal());
+        for (DeviationStatistics.Dimension dimension : DeviationStatistics.Dimension.values()) {
+            String name = dimension.name().toLowerCase(Locale.ROOT);
+            dashboard.put("by" + Character.toUpperCase(name.charAt(0)) + name.substring(1), statistics.countsBy(dimension));
+        }
+        if (!"false".equals(request.getParameter("breakdown"))) {
+            dashboard.put("breakdown", statistics.breakdown());
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        try (Writer writer = response.getWriter()) {
+            GSON.toJson(dashboard, writer);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import dao.DeviationAssessmentDAO;
+import dao.DeviationDAO;
+import model.DeviationFilter;
+
+/**
+ * Exports deviations, assessments and remarks as JSON arrays written straight
+ * from the database cursor (see {@link JsonResponse}), so exports of any size
+ * run in constant memory. Exports run on the {@link Workload#REPORT}
+ * executor:
+ *
+ * <ul>
+ * <li>{@code /export/deviations}, filtered by the optional {@code status},
+ * {@code type}, {@code severity}, {@code productId}, {@code batchId},
+ * {@code equipmentId}, {@code from} and {@code to} ({@code yyyy-MM-dd})
+ * parameters;</li>
+ * <li>{@code /export/assessments?deviationId=} and
+ * {@code /export/comments?deviationId=} for one deviation.</li>
+ * </ul>
+ */
+public class DeviationExportServlet extends AsyncServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String what = request.getPathInfo() == null ? "" : request.getPathInfo();
+        switch (what) {
+        case "/deviations":
+            DeviationFilter filter = RequestParameters.filter(request);
+            stream(request, response, Workload.REPORT,
+                    streamed -> JsonResponse.write(streamed, "deviation export", json -> new DeviationDAO().writeDeviations(filter, json)));
+            break;
+        case "/assessments":
+            int assessed = RequestParameters.requiredInt(request, "deviationId");
+            stream(request, response, Workload.REPORT,
+                    streamed -> JsonResponse.write(streamed, "assessment export", json -> new DeviationAssessmentDAO().writeAssessments(assessed, json)));
+            break;
+        case "/comments":
+            int commented = RequestParameters.requiredInt(request, "deviationId");
+            stream(request, response, Workload.REPORT,
+                    streamed -> JsonResponse.write(streamed, "comment export", json -> new DeviationDAO().writeComments(commented, json)));
+            break;
+        default:
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown export: " + what);
+        }
+    }
+}
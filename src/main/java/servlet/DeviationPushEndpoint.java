@@ -0,0 +1,146 @@
+package servlet;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+import model.Enums;
+
+/**
+ * WebSocket endpoint at {@code /ws/deviations} that pushes committed deviation
+ * changes (see {@link DeviationPushHub}). It is registered by
+ * {@link ApplicationLifecycleListener}, as the servlets are registered in
+ * {@code web.xml}, and the container creates one instance per connection.
+ *
+ * <p>
+ * A client subscribes with the {@code deviationId}, {@code departmentId},
+ * {@code status} and {@code userId} query parameters of the handshake, each of
+ * which may be repeated, and later with messages such as
+ * {@code {"action":"subscribe","status":"PENDING_QA_REVIEW"}} or
+ * {@code {"action":"unsubscribe","deviationId":42}}. Every subscription
+ * request is acknowledged with a {@code subscriptions} message listing the
+ * current subscriptions, or answered with an {@code error} message.
+ * </p>
+ *
+ * <p>
+ * Changes arrive as {@code {"type":"changes","changes":[...]}}, with the
+ * fields of {@link model.DeviationChange}. A {@code resync} message means
+ * changes may have been missed and whatever the client shows should be read
+ * again through the REST endpoints.
+ * </p>
+ *
+ * <p>
+ * A {@code userId} subscription receives that user's reminders as
+ * {@code {"type":"reminders","reminders":[...]}}, each with its
+ * {@code notificationId}, {@code deviationId} and {@code message}; a reminder
+ * may arrive more than once. It is only accepted for the user the handshake
+ * was authenticated as, whose principal name the container realm must set to
+ * the numeric user id.
+ * </p>
+ */
+public class DeviationPushEndpoint extends Endpoint {
+
+    static final String PATH = "/ws/deviations";
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationPushEndpoint.class.getName());
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+
+    private DeviationPushHub.Client client;
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        session.setMaxTextMessageBufferSize(MAX_MESSAGE_LENGTH);
+        client = DeviationPushHub.getInstance().connect(session.getAsyncRemote(), userId(session.getUserPrincipal()));
+        session.addMessageHandler(String.class, (MessageHandler.Whole<String>) this::onMessage);
+        try {
+            Map<String, List<String>> parameters = session.getRequestParameterMap();
+            for (String value : parameters.getOrDefault("deviationId", Collections.emptyList())) {
+                client.subscribe(RequestParameters.integer(value), null, null, null);
+            }
+            for (String value : parameters.getOrDefault("departmentId", Collections.emptyList())) {
+                client.subscribe(null, RequestParameters.integer(value), null, null);
+            }
+            for (String value : parameters.getOrDefault("status", Collections.emptyList())) {
+                client.subscribe(null, null, status(value), null);
+            }
+            for (String value : parameters.getOrDefault("userId", Collections.emptyList())) {
+                client.subscribe(null, null, null, RequestParameters.integer(value));
+            }
+            client.reply(client.subscriptions());
+        } catch (IllegalArgumentException e) {
+            client.reply(error(e.getMessage()));
+        }
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason) {
+        if (client != null) {
+            DeviationPushHub.getInstance().disconnect(client);
+        }
+    }
+
+    @Override
+    public void onError(Session session, Throwable thr) {
+        LOGGER.log(Level.FINE, "WebSocket error on session " + session.getId(), thr);
+    }
+
+    private void onMessage(String text) {
+        try {
+            JsonBody body = JsonBody.parse(text);
+            String action = body.getString("action");
+            Integer deviationId = body.getInteger("deviationId");
+            Integer departmentId = body.getInteger("departmentId");
+            String status = status(body.getString("status"));
+            Integer userId = body.getInteger("userId");
+            if ("subscribe".equals(action)) {
+                client.subscribe(deviationId, departmentId, status, userId);
+            } else if ("unsubscribe".equals(action)) {
+                client.unsubscribe(deviationId, departmentId, status, userId);
+            } else {
+                throw new IllegalArgumentException("action must be subscribe or unsubscribe");
+            }
+            client.reply(client.subscriptions());
+        } catch (IllegalArgumentException e) {
+            client.reply(error(e.getMessage()));
+        }
+    }
+
+    /**
+     * @return the numeric user id that is the principal's name, or
+     *         {@code null} if the connection is anonymous or the name is not
+     *         a user id
+     */
+    private static Integer userId(Principal principal) {
+        if (principal == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(principal.getName().trim());
+        } catch (NumberFormatException e) {
+            LOGGER.fine("WebSocket principal " + principal.getName() + " is not a user id; reminders are not available");
+            return null;
+        }
+    }
+
+    private static String status(String value) {
+        Enums.DeviationStatus status = RequestParameters.enumValue(Enums.DeviationStatus.class, value);
+        return status == null ? null : status.name();
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> reply = new LinkedHashMap<>();
+        reply.put("type", "error");
+        reply.put("message", message);
+        return reply;
+    }
+}
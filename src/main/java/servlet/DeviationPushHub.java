@@ -0,0 +1,434 @@
+package servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendResult;
+
+import dao.DeviationChangeFeed;
+import dao.ReminderScheduler;
+import model.DeviationChange;
+import utils.DatabaseUtility;
+import utils.Metrics;
+import utils.PgNotificationListener;
+
+/**
+ * Fans the {@link DeviationChangeFeed} out to the WebSocket clients of this
+ * node (see {@link DeviationPushEndpoint}).
+ *
+ * <p>
+ * Clients subscribe by deviation id, CFT department or status; subscribers
+ * are indexed by each, so a change is matched against the subscribers that
+ * follow its deviation, department or status rather than against every
+ * client. A change matches a department or status it has left as well as the
+ * one it is in.
+ * </p>
+ *
+ * <p>
+ * A client whose handshake was authenticated may subscribe to its own user id
+ * and then also receives that user's reminders, relayed from the
+ * {@link ReminderScheduler} channel; no client can follow another user's
+ * reminders. A reminder is acknowledged to the scheduler once a send
+ * containing it to its recipient completes; one that no client of this node
+ * could take stays pending and is sent again later.
+ * </p>
+ *
+ * <p>
+ * Each client has its own buffer of at most {@code push.bufferSize}
+ * deviations and one send in flight: changes that arrive while a send is in
+ * flight wait in the buffer, where a newer change to a deviation replaces the
+ * older one, and go out together as the next message. A client too slow to
+ * keep its buffer within bounds has the buffer dropped and is told to
+ * resync, so a slow client never holds back the feed or other clients.
+ * </p>
+ */
+final class DeviationPushHub implements DeviationChangeFeed.Subscriber {
+
+    private static final Logger LOGGER = Logger.getLogger(DeviationPushHub.class.getName());
+    private static final DeviationPushHub INSTANCE = new DeviationPushHub();
+
+    private final int bufferSize = Math.max(1, DatabaseUtility.getIntProperty("push.bufferSize", 256));
+    private final int maxSubscriptions = Math.max(1, DatabaseUtility.getIntProperty("push.maxSubscriptions", 100));
+
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Set<Client>> byDeviation = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Client>> byDepartment = new ConcurrentHashMap<>();
+    private final Map<String, Set<Client>> byStatus = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Client>> byUser = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = Metrics.counter("push.coalesced");
+    private final LongAdder overflows = Metrics.counter("push.overflows");
+    private final LongAdder sent = Metrics.counter("push.sent");
+    private final LongAdder reminders = Metrics.counter("push.reminders");
+
+    private DeviationPushHub() {
+        Metrics.gauge("push.clients", () -> clients.size());
+        DeviationChangeFeed.getInstance().subscribe(this);
+        PgNotificationListener.getInstance().subscribe(ReminderScheduler.getInstance().getChannel(), this::onReminder);
+    }
+
+    static DeviationPushHub getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a client with no subscriptions.
+     *
+     * @param remote where its messages are sent
+     * @param userId the authenticated user of the connection, or
+     *               {@code null} if it is anonymous
+     * @return the client
+     */
+    Client connect(RemoteEndpoint.Async remote, Integer userId) {
+        Client client = new Client(remote, userId);
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Removes a client and all its subscriptions.
+     *
+     * @param client the client
+     */
+    void disconnect(Client client) {
+        clients.remove(client);
+        synchronized (client) {
+            client.closed = true;
+            client.pending.clear();
+            client.pendingReminders.clear();
+            for (Integer id : client.deviations) {
+                remove(byDeviation, id, client);
+            }
+            for (Integer id : client.departments) {
+                remove(byDepartment, id, client);
+            }
+            for (String status : client.statuses) {
+                remove(byStatus, status, client);
+            }
+            for (Integer id : client.users) {
+                remove(byUser, id, client);
+            }
+        }
+    }
+
+    @Override
+    public void onChanges(List<DeviationChange> changes) {
+        for (DeviationChange change : changes) {
+            Set<Client> matched = new HashSet<>();
+            collect(matched, byDeviation, change.getDeviationId());
+            collect(matched, byDepartment, change.getDepartmentId());
+            collect(matched, byDepartment, change.getPreviousDepartmentId());
+            collect(matched, byStatus, change.getStatus());
+            collect(matched, byStatus, change.getPreviousStatus());
+            for (Client client : matched) {
+                client.offer(change);
+            }
+        }
+    }
+
+    @Override
+    public void onResync() {
+        for (Client client : clients) {
+            client.resync();
+        }
+    }
+
+    /**
+     * Relays a reminder published by the default reminder dispatcher to the
+     * clients following its recipient.
+     */
+    private void onReminder(String payload) {
+        try {
+            JsonBody body = JsonBody.parse(payload);
+            Integer recipientId = body.getInteger("recipientId");
+            Integer notificationId = body.getInteger("notificationId");
+            Set<Client> subscribers = recipientId == null || notificationId == null ? null : byUser.get(recipientId);
+            if (subscribers == null) {
+                return;
+            }
+            Map<String, Object> reminder = new LinkedHashMap<>();
+            reminder.put("notificationId", notificationId);
+            reminder.put("deviationId", body.getInteger("deviationId"));
+            reminder.put("message", body.getString("message"));
+            for (Client client : subscribers) {
+                client.offer(new Reminder(notificationId, recipientId, reminder));
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Ignoring a malformed reminder: " + payload, e);
+        }
+    }
+
+    private static <K> void collect(Set<Client> matched, Map<K, Set<Client>> index, K key) {
+        Set<Client> subscribers = key == null ? null : index.get(key);
+        if (subscribers != null) {
+            matched.addAll(subscribers);
+        }
+    }
+
+    private static <K> void add(Map<K, Set<Client>> index, Set<K> own, K key, Client client) {
+        if (own.add(key)) {
+            index.computeIfAbsent(key, ignored -> ConcurrentHashMap.newKeySet()).add(client);
+        }
+    }
+
+    private static <K> void remove(Map<K, Set<Client>> index, K key, Client client) {
+        index.computeIfPresent(key, (ignored, subscribers) -> {
+            subscribers.remove(client);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /**
+     * A reminder waiting to be pushed, and whom to acknowledge it for.
+     */
+    private static final class Reminder {
+        private final int notificationId;
+        private final int recipientId;
+        private final Map<String, Object> message;
+
+        private Reminder(int notificationId, int recipientId, Map<String, Object> message) {
+            this.notificationId = notificationId;
+            this.recipientId = recipientId;
+            this.message = message;
+        }
+    }
+
+    /**
+     * One connected client: its subscriptions and its coalescing buffer.
+     */
+    final class Client {
+        private final RemoteEndpoint.Async remote;
+        private final Integer authenticatedUserId;
+        private final Set<Integer> deviations = new HashSet<>();
+        private final Set<Integer> departments = new HashSet<>();
+        private final Set<String> statuses = new HashSet<>();
+        private final Set<Integer> users = new HashSet<>();
+        /** The latest change per deviation not yet sent, in arrival order. */
+        private final LinkedHashMap<Integer, DeviationChange> pending = new LinkedHashMap<>();
+        /** Reminders not yet sent, by notification id. */
+        private final LinkedHashMap<Integer, Reminder> pendingReminders = new LinkedHashMap<>();
+        /** The reminders in the send in flight, acknowledged when it completes. */
+        private List<Reminder> sendingReminders = Collections.emptyList();
+        private Map<String, Object> reply;
+        private boolean resyncPending;
+        private boolean sending;
+        private boolean closed;
+
+        private Client(RemoteEndpoint.Async remote, Integer authenticatedUserId) {
+            this.remote = remote;
+            this.authenticatedUserId = authenticatedUserId;
+        }
+
+        /**
+         * Follows a deviation, a department, a status and a user's reminders;
+         * any may be {@code null}.
+         *
+         * @param deviationId  the deviation
+         * @param departmentId the CFT department
+         * @param status       the status name
+         * @param userId       the user whose reminders to receive, which must
+         *                     be the authenticated user of the connection
+         * @throws IllegalArgumentException if {@code userId} is not the
+         *                                  authenticated user
+         */
+        synchronized void subscribe(Integer deviationId, Integer departmentId, String status, Integer userId) {
+            if (closed) {
+                return;
+            }
+            if (userId != null && !userId.equals(authenticatedUserId)) {
+                throw new IllegalArgumentException(authenticatedUserId == null ? "Reminders require an authenticated connection"
+                        : "Only the reminders of user " + authenticatedUserId + " may be followed");
+            }
+            int added = (deviationId != null && !deviations.contains(deviationId) ? 1 : 0)
+                    + (departmentId != null && !departments.contains(departmentId) ? 1 : 0)
+                    + (status != null && !statuses.contains(status) ? 1 : 0)
+                    + (userId != null && !users.contains(userId) ? 1 : 0);
+            if (deviations.size() + departments.size() + statuses.size() + users.size() + added > maxSubscriptions) {
+                throw new IllegalArgumentException("At most " + maxSubscriptions + " subscriptions are allowed");
+            }
+            if (deviationId != null) {
+                add(byDeviation, deviations, deviationId, this);
+            }
+            if (departmentId != null) {
+                add(byDepartment, departments, departmentId, this);
+            }
+            if (status != null) {
+                add(byStatus, statuses, status, this);
+            }
+            if (userId != null) {
+                add(byUser, users, userId, this);
+            }
+        }
+
+        /**
+         * Stops following a deviation, a department, a status and a user's
+         * reminders; any may be {@code null}.
+         *
+         * @param deviationId  the deviation
+         * @param departmentId the CFT department
+         * @param status       the status name
+         * @param userId       the user
+         */
+        synchronized void unsubscribe(Integer deviationId, Integer departmentId, String status, Integer userId) {
+            if (deviationId != null && deviations.remove(deviationId)) {
+                remove(byDeviation, deviationId, this);
+            }
+            if (departmentId != null && departments.remove(departmentId)) {
+                remove(byDepartment, departmentId, this);
+            }
+            if (status != null && statuses.remove(status)) {
+                remove(byStatus, status, this);
+            }
+            if (userId != null && users.remove(userId)) {
+                remove(byUser, userId, this);
+            }
+        }
+
+        /**
+         * Sends a message outside the change stream, such as an
+         * acknowledgement or an error, ahead of the buffered changes. Only
+         * the latest such message waits while a send is in flight.
+         *
+         * @param message the message
+         */
+        synchronized void reply(Map<String, Object> message) {
+            if (closed) {
+                return;
+            }
+            reply = message;
+            flush();
+        }
+
+        private synchronized void offer(DeviationChange change) {
+            if (closed || resyncPending) {
+                return;
+            }
+            if (pending.remove(change.getDeviationId()) != null) {
+                coalesced.increment();
+            } else if (pending.size() >= bufferSize) {
+                overflows.increment();
+                pending.clear();
+                resyncPending = true;
+            }
+            if (!resyncPending) {
+                pending.put(change.getDeviationId(), change);
+            }
+            flush();
+        }
+
+        /**
+         * Buffers a reminder. One that does not fit is dropped; it has not
+         * been acknowledged, so it is sent again later.
+         */
+        private synchronized void offer(Reminder reminder) {
+            if (closed || pendingReminders.size() >= bufferSize) {
+                return;
+            }
+            pendingReminders.put(reminder.notificationId, reminder);
+            flush();
+        }
+
+        private synchronized void resync() {
+            if (closed) {
+                return;
+            }
+            pending.clear();
+            resyncPending = true;
+            flush();
+        }
+
+        /**
+         * Sends what is buffered unless a send is in flight, in which case
+         * the completion of that send calls this again.
+         */
+        private void flush() {
+            if (sending || closed) {
+                return;
+            }
+            Map<String, Object> message;
+            if (reply != null) {
+                message = reply;
+                reply = null;
+            } else if (resyncPending) {
+                resyncPending = false;
+                message = Collections.singletonMap("type", "resync");
+            } else if (!pendingReminders.isEmpty()) {
+                sendingReminders = new ArrayList<>(pendingReminders.values());
+                pendingReminders.clear();
+                List<Map<String, Object>> messages = new ArrayList<>(sendingReminders.size());
+                for (Reminder reminder : sendingReminders) {
+                    messages.add(reminder.message);
+                }
+                message = new LinkedHashMap<>();
+                message.put("type", "reminders");
+                message.put("reminders", messages);
+            } else if (!pending.isEmpty()) {
+                message = new LinkedHashMap<>();
+                message.put("type", "changes");
+                message.put("changes", new ArrayList<>(pending.values()));
+                pending.clear();
+            } else {
+                return;
+            }
+            sending = true;
+            sent.increment();
+            try {
+                remote.sendText(AsyncServlet.GSON.toJson(message), this::onSent);
+            } catch (RuntimeException e) {
+                // The session closed under us; onClose disconnects the client
+                LOGGER.log(Level.FINE, "Could not push to a WebSocket client", e);
+                sending = false;
+                sendingReminders = Collections.emptyList();
+                closed = true;
+            }
+        }
+
+        private void onSent(SendResult result) {
+            if (!result.isOK()) {
+                LOGGER.log(Level.FINE, "Could not push to a WebSocket client", result.getException());
+            }
+            List<Reminder> delivered;
+            synchronized (this) {
+                sending = false;
+                delivered = sendingReminders;
+                sendingReminders = Collections.emptyList();
+                if (!result.isOK()) {
+                    // The session is failing; the container closes it and onClose disconnects the client
+                    pending.clear();
+                    pendingReminders.clear();
+                    return;
+                }
+                flush();
+            }
+            for (Reminder reminder : delivered) {
+                if (!Integer.valueOf(reminder.recipientId).equals(authenticatedUserId)) {
+                    continue;
+                }
+                reminders.increment();
+                ReminderScheduler.getInstance().acknowledge(reminder.notificationId, reminder.recipientId);
+            }
+        }
+
+        /**
+         * @return the current subscriptions, for acknowledging a request
+         */
+        synchronized Map<String, Object> subscriptions() {
+            Map<String, Object> message = new LinkedHashMap<>();
+            message.put("type", "subscriptions");
+            message.put("deviationIds", Collections.unmodifiableList(new ArrayList<>(deviations)));
+            message.put("departmentIds", Collections.unmodifiableList(new ArrayList<>(departments)));
+            message.put("statuses", Collections.unmodifiableList(new ArrayList<>(statuses)));
+            message.put("userIds", Collections.unmodifiableList(new ArrayList<>(users)));
+            return message;
+        }
+    }
+}
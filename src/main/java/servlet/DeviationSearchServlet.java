@@ -0,0 +1,102 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+
+import dao.AssessmentBatchLoader;
+import dao.DeviationDAO;
+import model.Deviation;
+import model.SearchHit;
+import utils.DatabaseUnavailableException;
+
+/**
+ * Answers full-text searches over deviation narratives as JSON, for search as
+ * you type: {@code q} holds the query and {@code limit} (default 20) the
+ * maximum number of hits. Each hit carries the deviation's id, number, status
+ * and description, read through the deviation cache, and its score; with
+ * {@code assessments=true} it also carries the deviation's assessments,
+ * loaded for all hits with one query. The servlet answers 503 while the
+ * search index is loading.
+ */
+public class DeviationSearchServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(DeviationSearchServlet.class.getName());
+    private static final Gson GSON = new Gson();
+    private static final int DEFAULT_LIMIT = 20;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String query = request.getParameter("q");
+        int limit;
+        try {
+            String value = request.getParameter("limit");
+            limit = value == null ? DEFAULT_LIMIT : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be a number");
+            return;
+        }
+
+        boolean withAssessments = Boolean.parseBoolean(request.getParameter("assessments"));
+
+        DeviationDAO dao = new DeviationDAO();
+        AssessmentBatchLoader loader = RequestScope.assessmentLoader(request);
+        List<Map<String, Object>> hits = new ArrayList<>();
+        List<AssessmentBatchLoader.Handle> assessments = new ArrayList<>();
+        try {
+            for (SearchHit hit : dao.searchDeviations(query == null ? "" : query, limit)) {
+                Deviation deviation = dao.getDeviationById(hit.getDeviationId());
+                if (deviation == null) {
+                    continue;
+                }
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("id", deviation.getId());
+                row.put("deviationNumber", deviation.getDeviationNumber());
+                row.put("status", deviation.getStatus());
+                row.put("description", deviation.getDescription());
+                row.put("score", hit.getScore());
+                hits.add(row);
+                if (withAssessments) {
+                    assessments.add(loader.load(deviation.getId()));
+                }
+            }
+            // the first get() loads the assessments of every hit
+            for (int i = 0; i < assessments.size(); i++) {
+                hits.get(i).put("assessments", assessments.get(i).get());
+            }
+        } catch (IllegalStateException e) {
+            response.setHeader("Retry-After", "5");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The search index is still loading");
+            return;
+        } catch (DatabaseUnavailableException e) {
+            LOGGER.log(Level.SEVERE, "Error searching deviations", e);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The search could not be run");
+            return;
+        } catch (SQLException e) {
+            LOGGER.log(Level.SEVERE, "Error searching deviations", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "The search could not be run");
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        try (Writer writer = response.getWriter()) {
+            GSON.toJson(hits, writer);
+        }
+    }
+}
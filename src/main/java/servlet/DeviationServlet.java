@@ -0,0 +1,154 @@
+package servlet;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import dao.AssessmentBatchLoader;
+import dao.DeviationDAO;
+import model.Deviation;
+import model.DeviationFilter;
+import model.DeviationPage;
+import model.DeviationVersion;
+import model.Enums;
+import model.TransitionResult;
+
+/**
+ * REST endpoint for deviations, served asynchronously (see
+ * {@link AsyncServlet}):
+ *
+ * <ul>
+ * <li>{@code GET /api/deviations} lists a page of deviations, filtered as by
+ * {@link RequestParameters#filter}, with {@code pageToken} and
+ * {@code pageSize} (default 50); with {@code assessments=true} the reply
+ * also maps each listed deviation's id to its assessments, loaded with one
+ * query for the whole page;</li>
+ * <li>{@code GET /api/deviations/{id}} reads one deviation, with an
+ * {@code ETag} and {@code Last-Modified} from its row version; a request
+ * whose validators match is answered with 304 after reading the version
+ * alone. With {@code archived=true} an archived deviation is read too;</li>
+ * <li>{@code POST /api/deviations} creates a deviation from a JSON body with
+ * the fields of {@link Deviation} and answers with its id;</li>
+ * <li>{@code POST /api/deviations/{id}/transition} moves a deviation from
+ * {@code from} to {@code to} if it is still at {@code version}, answering 409
+ * with the current status and version otherwise.</li>
+ * </ul>
+ */
+public class DeviationServlet extends AsyncServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final String ETAG_KIND = "deviation";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String[] path = path(request);
+        DeviationDAO dao = new DeviationDAO();
+        if (path.length == 0) {
+            DeviationFilter filter = RequestParameters.filter(request);
+            String pageToken = request.getParameter("pageToken");
+            Integer pageSize = RequestParameters.integer(request.getParameter("pageSize"));
+            int size = pageSize == null ? DEFAULT_PAGE_SIZE : pageSize;
+            if (!Boolean.parseBoolean(request.getParameter("assessments"))) {
+                dispatch(request, response, Workload.READ, () -> Reply.ok(dao.listDeviations(filter, pageToken, size)));
+                return;
+            }
+            AssessmentBatchLoader loader = RequestScope.assessmentLoader(request);
+            dispatch(request, response, Workload.READ, () -> {
+                DeviationPage page = dao.listDeviations(filter, pageToken, size);
+                Map<Integer, AssessmentBatchLoader.Handle> handles = new LinkedHashMap<>();
+                for (Deviation deviation : page.getDeviations()) {
+                    handles.put(deviation.getId(), loader.load(deviation.getId()));
+                }
+                // the first get() loads the whole page
+                Map<Integer, Object> assessments = new LinkedHashMap<>();
+                for (Map.Entry<Integer, AssessmentBatchLoader.Handle> handle : handles.entrySet()) {
+                    assessments.put(handle.getKey(), handle.getValue().get());
+                }
+                Map<String, Object> body = new LinkedHashMap<>();
+                body.put("deviations", page.getDeviations());
+                body.put("nextPageToken", page.getNextPageToken());
+                body.put("assessments", assessments);
+                return Reply.ok(body);
+            });
+        } else if (path.length == 1) {
+            int id = id(path[0]);
+            boolean archived = Boolean.parseBoolean(request.getParameter("archived"));
+            ConditionalRequest conditional = ConditionalRequest.of(request);
+            dispatch(request, response, Workload.READ, () -> {
+                if (conditional.isPresent()) {
+                    DeviationVersion current = dao.getDeviationVersion(id);
+                    if (current != null) {
+                        String etag = ConditionalRequest.etag(ETAG_KIND, id, current.getVersion());
+                        if (conditional.isNotModified(etag, current.getUpdatedAt())) {
+                            return Reply.notModified().withValidators(etag, current.getUpdatedAt());
+                        }
+                    } else if (!archived) {
+                        return Reply.error(HttpServletResponse.SC_NOT_FOUND, "No deviation " + id);
+                    }
+                }
+                Deviation deviation = dao.getDeviationById(id, archived);
+                if (deviation == null) {
+                    return Reply.error(HttpServletResponse.SC_NOT_FOUND, "No deviation " + id);
+                }
+                // Tag the deviation with its own version: a cached copy may lag the version just read
+                return Reply.ok(deviation).withValidators(ConditionalRequest.etag(ETAG_KIND, id, deviation.getVersion()), deviation.getUpdatedAt());
+            });
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String[] path = path(request);
+        DeviationDAO dao = new DeviationDAO();
+        if (path.length == 0) {
+            JsonBody body = JsonBody.read(request);
+            dispatch(request, response, Workload.WRITE, () -> {
+                Integer id = dao.createDeviation(body.getTimestamp("timeOfIdentification"), body.getDate("dateOfOccurrence"),
+                        body.getString("description"), body.getString("riskAssessment"), body.getString("standardProcedure"),
+                        body.getString("remarks"), body.getEnum(Enums.DeviationType.class, "deviationType"),
+                        body.getString("reasonOrRootCauseForDeviation"), body.getString("immediateActions"), body.getInteger("productId"),
+                        body.getInteger("batchId"), body.getBoolean("impactOnBatchesInvolved"), body.getInteger("materialId"),
+                        body.getInteger("equipmentId"), body.getString("justificationForDelay"));
+                return Reply.created(request.getRequestURI() + "/" + id, Collections.singletonMap("id", id));
+            });
+        } else if (path.length == 2 && path[1].equals("transition")) {
+            int id = id(path[0]);
+            JsonBody body = JsonBody.read(request);
+            Enums.DeviationStatus from = body.getEnum(Enums.DeviationStatus.class, "from");
+            Enums.DeviationStatus to = body.getEnum(Enums.DeviationStatus.class, "to");
+            int version = body.requireInt("version");
+            if (from == null || to == null) {
+                throw new IllegalArgumentException("from and to are required");
+            }
+            dispatch(request, response, Workload.WRITE, () -> {
+                TransitionResult result = dao.transition(id, from, to, version);
+                switch (result.getOutcome()) {
+                case APPLIED:
+                    return Reply.ok(result);
+                case NOT_FOUND:
+                    return Reply.status(HttpServletResponse.SC_NOT_FOUND, result);
+                default:
+                    return Reply.status(HttpServletResponse.SC_CONFLICT, result);
+                }
+            });
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    private static int id(String segment) {
+        Integer id = RequestParameters.integer(segment);
+        if (id == null) {
+            throw new IllegalArgumentException("A deviation id is required");
+        }
+        return id;
+    }
+}
@@ -0,0 +1,138 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * A JSON object request body with typed accessors. Absent and {@code null}
+ * fields read as {@code null}; malformed ones are reported with an
+ * {@link IllegalArgumentException} whose message can be shown to the client.
+ * Dates are {@code yyyy-MM-dd} and timestamps ISO local date-times, as the
+ * servlets write them.
+ */
+final class JsonBody {
+
+    private final JsonObject object;
+
+    private JsonBody(JsonObject object) {
+        this.object = object;
+    }
+
+    /**
+     * Reads the body of a request. Bodies are small, so they are read on the
+     * container thread before the request goes asynchronous.
+     *
+     * @param request the request
+     * @return the body
+     * @throws IOException if the body cannot be read
+     */
+    static JsonBody read(HttpServletRequest request) throws IOException {
+        try (Reader reader = request.getReader()) {
+            return parse(JsonParser.parseReader(reader));
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("The request body is not valid JSON: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a JSON object message, such as one received over a WebSocket.
+     *
+     * @param text the message
+     * @return the body
+     */
+    static JsonBody parse(String text) {
+        try {
+            return parse(JsonParser.parseString(text));
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("The message is not valid JSON: " + e.getMessage());
+        }
+    }
+
+    private static JsonBody parse(JsonElement element) {
+        if (!element.isJsonObject()) {
+            throw new IllegalArgumentException("The body must be a JSON object");
+        }
+        return new JsonBody(element.getAsJsonObject());
+    }
+
+    String getString(String name) {
+        JsonElement element = field(name);
+        return element == null ? null : element.getAsString();
+    }
+
+    Integer getInteger(String name) {
+        JsonElement element = field(name);
+        try {
+            return element == null ? null : element.getAsInt();
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+    }
+
+    int requireInt(String name) {
+        Integer value = getInteger(name);
+        if (value == null) {
+            throw new IllegalArgumentException(name + " is required");
+        }
+        return value;
+    }
+
+    Double getDouble(String name) {
+        JsonElement element = field(name);
+        try {
+            return element == null ? null : element.getAsDouble();
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    Boolean getBoolean(String name) {
+        JsonElement element = field(name);
+        if (element == null) {
+            return null;
+        }
+        if (!element.isJsonPrimitive() || !element.getAsJsonPrimitive().isBoolean()) {
+            throw new IllegalArgumentException(name + " must be true or false");
+        }
+        return element.getAsBoolean();
+    }
+
+    Date getDate(String name) {
+        String value = getString(name);
+        try {
+            return value == null ? null : Date.valueOf(LocalDate.parse(value));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(name + " must be formatted as yyyy-MM-dd");
+        }
+    }
+
+    Timestamp getTimestamp(String name) {
+        String value = getString(name);
+        try {
+            return value == null ? null : Timestamp.valueOf(LocalDateTime.parse(value));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(name + " must be formatted as yyyy-MM-ddTHH:mm:ss");
+        }
+    }
+
+    <E extends Enum<E>> E getEnum(Class<E> type, String name) {
+        return RequestParameters.enumValue(type, getString(name));
+    }
+
+    private JsonElement field(String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? null : element;
+    }
+}
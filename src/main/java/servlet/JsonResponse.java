@@ -0,0 +1,85 @@
+package servlet;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.stream.JsonWriter;
+
+import utils.DatabaseUnavailableException;
+import utils.Utf8StreamWriter;
+
+/**
+ * Streams a JSON response body written with Gson's {@link JsonWriter} straight
+ * to the servlet output stream, through a {@link Utf8StreamWriter} whose
+ * buffer is reused by the request thread. Null fields are left out, as Gson
+ * leaves them out of model objects.
+ *
+ * <p>
+ * A database failure before the first bytes reach the client is answered
+ * with 503 or 500; after that it can only be logged, and the response ends
+ * early with incomplete JSON.
+ * </p>
+ */
+final class JsonResponse {
+
+    private static final Logger LOGGER = Logger.getLogger(JsonResponse.class.getName());
+
+    /**
+     * Writes a response body.
+     */
+    @FunctionalInterface
+    interface Body {
+
+        /**
+         * @param json the writer, positioned at the start of the document
+         * @throws SQLException if reading the data fails
+         * @throws IOException  if writing fails
+         */
+        void write(JsonWriter json) throws SQLException, IOException;
+    }
+
+    private JsonResponse() {
+    }
+
+    /**
+     * Sets the JSON content type and writes a body.
+     *
+     * @param response    the response
+     * @param description what is being written, for the log and error pages
+     * @param body        writes the body
+     * @throws IOException if the response cannot be written
+     */
+    static void write(HttpServletResponse response, String description, Body body) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        Utf8StreamWriter writer = new Utf8StreamWriter(response.getOutputStream());
+        JsonWriter json = new JsonWriter(writer);
+        json.setSerializeNulls(false);
+        boolean written = false;
+        try {
+            body.write(json);
+            json.close();
+            written = true;
+        } catch (DatabaseUnavailableException e) {
+            fail(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, description, e);
+        } catch (SQLException e) {
+            fail(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, description, e);
+        } finally {
+            if (!written) {
+                writer.discard();
+            }
+        }
+    }
+
+    private static void fail(HttpServletResponse response, int status, String description, Exception e) throws IOException {
+        LOGGER.log(Level.SEVERE, "Error writing " + description, e);
+        if (!response.isCommitted()) {
+            response.sendError(status, "The " + description + " could not be read");
+        }
+    }
+}
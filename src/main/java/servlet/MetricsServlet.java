@@ -0,0 +1,54 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import utils.Metrics;
+
+/**
+ * Serves a JSON snapshot of the {@link Metrics} registry: connection pool
+ * acquisition and per-DAO-method latency percentiles, in-flight and queue
+ * gauges, and statement counters. A {@code POST} with {@code action=reset}
+ * clears timers and counters; it is restricted to users in the
+ * {@value #ADMIN_ROLE} role, which {@code web.xml} also requires for it, so
+ * the check holds if the descriptor's constraint is lost.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final String ADMIN_ROLE = "metrics-admin";
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        try (Writer writer = response.getWriter()) {
+            GSON.toJson(Metrics.snapshot(), writer);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!request.isUserInRole(ADMIN_ROLE)) {
+            response.sendError(request.getUserPrincipal() == null ? HttpServletResponse.SC_UNAUTHORIZED : HttpServletResponse.SC_FORBIDDEN,
+                    "Resetting the metrics requires the " + ADMIN_ROLE + " role");
+            return;
+        }
+        if (!"reset".equals(request.getParameter("action"))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported action");
+            return;
+        }
+        Metrics.reset();
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+}
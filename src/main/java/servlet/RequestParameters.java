@@ -0,0 +1,129 @@
+package servlet;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import model.AssessmentFilter;
+import model.DeviationFilter;
+import model.Enums;
+
+/**
+ * Parses the query parameters shared by the servlets. Every parser treats a
+ * missing or blank parameter as unset and reports a malformed one with an
+ * {@link IllegalArgumentException} whose message can be shown to the client.
+ */
+final class RequestParameters {
+
+    private RequestParameters() {
+    }
+
+    /**
+     * Builds a deviation filter from the optional {@code status}, {@code type},
+     * {@code severity}, {@code productId}, {@code batchId},
+     * {@code equipmentId}, {@code from} and {@code to} ({@code yyyy-MM-dd})
+     * parameters; {@code archived=true} includes archived deviations.
+     *
+     * @param request the request
+     * @return the filter
+     */
+    static DeviationFilter filter(HttpServletRequest request) {
+        return new DeviationFilter()
+                .setStatus(enumValue(Enums.DeviationStatus.class, request.getParameter("status")))
+                .setDeviationType(enumValue(Enums.DeviationType.class, request.getParameter("type")))
+                .setDeviationSeverity(enumValue(Enums.DeviationSeverity.class, request.getParameter("severity")))
+                .setProductId(integer(request.getParameter("productId")))
+                .setBatchId(integer(request.getParameter("batchId")))
+                .setEquipmentId(integer(request.getParameter("equipmentId")))
+                .setOccurredFrom(date(request.getParameter("from")))
+                .setOccurredTo(date(request.getParameter("to")))
+                .setIncludeArchived(Boolean.parseBoolean(request.getParameter("archived")));
+    }
+
+    /**
+     * Builds an assessment filter from the optional {@code productId},
+     * {@code equipmentId}, {@code type}, {@code severity}, {@code from} and
+     * {@code to} ({@code yyyy-MM-dd}) parameters.
+     *
+     * @param request the request
+     * @return the filter
+     */
+    static AssessmentFilter assessmentFilter(HttpServletRequest request) {
+        return new AssessmentFilter()
+                .setProductId(integer(request.getParameter("productId")))
+                .setEquipmentId(integer(request.getParameter("equipmentId")))
+                .setAssessmentType(enumValue(Enums.AssessmentType.class, request.getParameter("type")))
+                .setDeviationSeverity(enumValue(Enums.DeviationSeverity.class, request.getParameter("severity")))
+                .setAssessedFrom(date(request.getParameter("from")))
+                .setAssessedTo(date(request.getParameter("to")));
+    }
+
+    /**
+     * Reads a required integer parameter.
+     *
+     * @param request the request
+     * @param name    the parameter
+     * @return the value
+     */
+    static int requiredInt(HttpServletRequest request, String name) {
+        Integer value = integer(request.getParameter(name));
+        if (value == null) {
+            throw new IllegalArgumentException(name + " is required");
+        }
+        return value;
+    }
+
+    /**
+     * @param value the parameter value, or {@code null}
+     * @return the integer, or {@code null} if unset
+     */
+    static Integer integer(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+
+    /**
+     * Parses an enum constant by name, ignoring case.
+     *
+     * @param <E>   the enum type
+     * @param type  the enum class
+     * @param value the parameter value, or {@code null}
+     * @return the constant, or {@code null} if unset
+     */
+    static <E extends Enum<E>> E enumValue(Class<E> type, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + type.getSimpleName() + ": " + value);
+        }
+    }
+
+    /**
+     * @param value the parameter value as {@code yyyy-MM-dd}, or {@code null}
+     * @return the date, or {@code null} if unset
+     */
+    static Date date(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setLenient(false);
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Dates must be formatted as yyyy-MM-dd: " + value);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package servlet;
+
+import dao.AssessmentBatchLoader;
+import dao.DeviationAssessmentDAO;
+import javax.servlet.ServletRequest;
+
+/**
+ * Request-scoped helpers shared by the servlets. Objects handed out here are
+ * stored as request attributes, so every component that renders part of the
+ * same request sees the same instance and they are discarded with the request.
+ */
+public final class RequestScope {
+
+    private static final String ASSESSMENT_LOADER = RequestScope.class.getName() + ".assessmentLoader";
+
+    private RequestScope() {
+    }
+
+    /**
+     * Returns the assessment loader bound to the request, creating it on first
+     * use. Assessment lookups made through it during the request are coalesced
+     * into batched queries.
+     *
+     * @param request the current request
+     * @return the request's assessment loader
+     */
+    public static AssessmentBatchLoader assessmentLoader(ServletRequest request) {
+        AssessmentBatchLoader loader = (AssessmentBatchLoader) request.getAttribute(ASSESSMENT_LOADER);
+        if (loader == null) {
+            loader = new AssessmentBatchLoader(new DeviationAssessmentDAO());
+            request.setAttribute(ASSESSMENT_LOADER, loader);
+        }
+        return loader;
+    }
+}
@@ -0,0 +1,127 @@
+package servlet;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import utils.DatabaseUtility;
+import utils.Metrics;
+
+/**
+ * The kinds of DAO work the asynchronous servlets hand off the container
+ * threads, each with its own bounded executor, so that a burst of slow
+ * reports cannot starve single-row reads or writes of threads or
+ * connections. Each executor has {@code async.<workload>.threads} threads and
+ * a queue of {@code async.<workload>.queue} tasks; work beyond that is
+ * rejected, and the servlets answer 503. Deadlines that the container does
+ * not enforce run on one shared timer thread. Each thread holds one connection at
+ * a time, except that a compliance report holds up to
+ * {@code 1 + report.parallelism}; the READ and WRITE threads plus
+ * {@code async.report.threads * (1 + report.parallelism)} should stay below
+ * {@code pool.maxSize}, leaving connections for background work.
+ */
+enum Workload {
+
+    /** Single deviations, pages and assessments. */
+    READ(8, 200, 10000),
+    /** Inserts and workflow transitions. */
+    WRITE(4, 100, 10000),
+    /** Compliance reports and other long scans. */
+    REPORT(2, 4, 600000);
+
+    private static final Logger LOGGER = Logger.getLogger(Workload.class.getName());
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "dao-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final LongAdder rejected;
+
+    Workload(int threads, int queue, int timeoutMillis) {
+        String key = "async." + name().toLowerCase(Locale.ROOT);
+        int size = Math.max(1, DatabaseUtility.getIntProperty(key + ".threads", threads));
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, DatabaseUtility.getIntProperty(key + ".queue", queue))), runnable -> {
+                    Thread thread = new Thread(runnable, "dao-" + name().toLowerCase(Locale.ROOT) + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeoutMillis = DatabaseUtility.getIntProperty(key + ".timeoutMillis", timeoutMillis);
+        this.rejected = Metrics.counter(key + ".rejected");
+        Metrics.gauge(key + ".active", executor::getActiveCount);
+        Metrics.gauge(key + ".queued", () -> executor.getQueue().size());
+    }
+
+    /**
+     * @return how long a request of this workload may take, queueing included,
+     *         before it is answered with 503
+     */
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param task the task
+     * @throws RejectedExecutionException if the queue is full or the
+     *                                    application is stopping
+     */
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a task on the timer thread once this workload's timeout has
+     * elapsed. The task must return quickly.
+     *
+     * @param task the task
+     * @return the scheduled task, to cancel once the deadline no longer
+     *         matters
+     */
+    ScheduledFuture<?> deadline(Runnable task) {
+        return DEADLINES.schedule(task, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops every executor, letting running tasks finish for a few seconds.
+     */
+    static void shutdownAll() {
+        DEADLINES.shutdownNow();
+        for (Workload workload : values()) {
+            workload.executor.shutdown();
+        }
+        for (Workload workload : values()) {
+            try {
+                if (!workload.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    LOGGER.warning("DAO tasks of workload " + workload + " still running at shutdown");
+                    workload.executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workload.executor.shutdownNow();
+            }
+        }
+    }
+}
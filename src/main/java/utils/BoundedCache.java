@@ -0,0 +1,394 @@
+package utils;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code BoundedCache} class is a small, thread-safe read-through cache
+ * with a maximum number of entries and a time-to-live per entry.
+ *
+ * <p>
+ * Entries are kept in least-recently-used order; once the cache is full the
+ * eldest entry is evicted. Entries older than the configured TTL are treated
+ * as absent and reloaded on the next read.
+ * </p>
+ *
+ * <p>
+ * Loads run outside the cache lock so a slow database call never blocks other
+ * readers. To avoid re-populating the cache with a value that was read before
+ * a concurrent invalidation, every entry carries the stamp of the last
+ * invalidation of its key, and {@link #invalidate(Object)} leaves a marker
+ * entry with a fresh stamp in place of the value; a load that started before
+ * the stamp of its key returns its value to the caller but does not store it.
+ * Loads of other keys are unaffected. Once a marker or entry is dropped, its
+ * stamp is kept only as a floor for every key, so in the rare case that a
+ * marker is evicted or expires while a load of its key is still running, the
+ * loads that started before it are not stored either.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * BoundedCache<Integer, Deviation> cache = new BoundedCache<>("deviations", 10000, 300000L);
+ * Deviation deviation = cache.get(id, key -> loadDeviation(key));
+ * cache.invalidate(id);
+ * }</pre>
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class BoundedCache<K, V> {
+
+	/**
+	 * Loads the value for a key on a cache miss.
+	 *
+	 * @param <K> the key type
+	 * @param <V> the value type
+	 */
+	@FunctionalInterface
+	public interface Loader<K, V> {
+
+		/**
+		 * Loads the value for the given key.
+		 *
+		 * @param key the key to load
+		 * @return the value, or {@code null} if none exists (null is not cached)
+		 * @throws SQLException if a database access error occurs
+		 */
+		V load(K key) throws SQLException;
+	}
+
+	/**
+	 * Loads the values for several keys in one call on cache misses.
+	 *
+	 * @param <K> the key type
+	 * @param <V> the value type
+	 */
+	@FunctionalInterface
+	public interface BulkLoader<K, V> {
+
+		/**
+		 * Loads the values for the given keys.
+		 *
+		 * @param keys the keys to load
+		 * @return the values found, keyed by key; missing keys are not cached
+		 * @throws SQLException if a database access error occurs
+		 */
+		Map<K, V> loadAll(Collection<K> keys) throws SQLException;
+	}
+
+	private static final class Entry<V> {
+		/** The cached value, or {@code null} for an invalidation marker. */
+		private final V value;
+		private final long loadedAt;
+		/** The stamp of the last invalidation of the key. */
+		private final long invalidatedAt;
+
+		private Entry(V value, long loadedAt, long invalidatedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+			this.invalidatedAt = invalidatedAt;
+		}
+	}
+
+	private final String name;
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private final AtomicLong clock = new AtomicLong();
+	/** The highest stamp of a key no longer in {@code entries}; guarded by {@code entries}. */
+	private long forgottenAt;
+	/** The number of invalidation markers in {@code entries}; guarded by {@code entries}. */
+	private int markers;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param name       a descriptive name, used in {@link #toString()}
+	 * @param maxEntries the maximum number of entries to keep
+	 * @param ttlMillis  the time-to-live of an entry in milliseconds
+	 */
+	public BoundedCache(String name, int maxEntries, long ttlMillis) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.name = name;
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if (size() > BoundedCache.this.maxEntries) {
+					if (eldest.getValue().value != null) {
+						evictions.increment();
+					}
+					forget(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value for the key, loading it with {@code loader} on a
+	 * miss.
+	 *
+	 * @param key    the key to look up
+	 * @param loader the loader invoked on a miss
+	 * @return the value, or {@code null} if the loader found none
+	 * @throws SQLException if the loader fails
+	 */
+	public V get(K key, Loader<? super K, ? extends V> loader) throws SQLException {
+		V cached = getIfPresent(key);
+		if (cached != null) {
+			return cached;
+		}
+		long loadStarted = clock.get();
+		V value = loader.load(key);
+		if (value != null) {
+			synchronized (entries) {
+				store(key, value, loadStarted, System.currentTimeMillis());
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the cached values for the keys, loading all misses with a single
+	 * call to {@code loader}.
+	 *
+	 * @param keys   the keys to look up
+	 * @param loader the loader invoked once with every missing key
+	 * @return the values found, keyed by key, in the iteration order of {@code keys}
+	 * @throws SQLException if the loader fails
+	 */
+	public Map<K, V> getAll(Collection<K> keys, BulkLoader<K, ? extends V> loader) throws SQLException {
+		Map<K, V> result = new LinkedHashMap<>();
+		List<K> missing = new ArrayList<>();
+		for (K key : keys) {
+			V cached = getIfPresent(key);
+			result.put(key, cached);
+			if (cached == null) {
+				missing.add(key);
+			}
+		}
+		if (!missing.isEmpty()) {
+			long loadStarted = clock.get();
+			Map<K, ? extends V> loaded = loader.loadAll(missing);
+			synchronized (entries) {
+				long now = System.currentTimeMillis();
+				for (K key : missing) {
+					V value = loaded.get(key);
+					result.put(key, value);
+					if (value != null) {
+						store(key, value, loadStarted, now);
+					}
+				}
+			}
+		}
+		result.values().removeIf(Objects::isNull);
+		return result;
+	}
+
+	/**
+	 * Returns the cached value for the key without loading it.
+	 *
+	 * @param key the key to look up
+	 * @return the cached value, or {@code null} if absent or expired
+	 */
+	public V getIfPresent(K key) {
+		synchronized (entries) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null && entry.value != null) {
+				if (System.currentTimeMillis() - entry.loadedAt <= ttlMillis) {
+					hits.increment();
+					return entry.value;
+				}
+				forget(entries.remove(key));
+				expirations.increment();
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Stores a value directly, bypassing the loader.
+	 *
+	 * @param key   the key
+	 * @param value the value; ignored if {@code null}
+	 */
+	public void put(K key, V value) {
+		if (value == null) {
+			return;
+		}
+		synchronized (entries) {
+			store(key, value, Long.MAX_VALUE, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Removes the entry for the key, if any, and refuses to store the values
+	 * of loads of the key that are still running.
+	 *
+	 * @param key the key to invalidate
+	 * @return the value that was cached, or {@code null}
+	 */
+	public V invalidate(K key) {
+		synchronized (entries) {
+			invalidations.increment();
+			Entry<V> removed = entries.put(key, new Entry<>(null, System.currentTimeMillis(), clock.incrementAndGet()));
+			if (removed == null || removed.value != null) {
+				markers++;
+			}
+			return removed == null ? null : removed.value;
+		}
+	}
+
+	/**
+	 * Removes every entry.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			invalidations.increment();
+			forgottenAt = clock.incrementAndGet();
+			entries.clear();
+			markers = 0;
+		}
+	}
+
+	/**
+	 * Removes entries whose TTL has elapsed. Expired entries are also dropped
+	 * lazily on read; this only reclaims memory sooner.
+	 */
+	public void purgeExpired() {
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Iterator<Entry<V>> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry<V> entry = it.next();
+				if (now - entry.loadedAt > ttlMillis) {
+					it.remove();
+					forget(entry);
+					if (entry.value != null) {
+						expirations.increment();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of values currently held
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size() - markers;
+		}
+	}
+
+	/**
+	 * Stores a value unless its key was invalidated after the load started.
+	 * The caller holds the lock on {@code entries}.
+	 */
+	private void store(K key, V value, long loadStarted, long now) {
+		Entry<V> existing = entries.get(key);
+		long invalidatedAt = existing != null ? existing.invalidatedAt : forgottenAt;
+		if (loadStarted < invalidatedAt) {
+			return;
+		}
+		if (existing != null && existing.value == null) {
+			markers--;
+		}
+		entries.put(key, new Entry<>(value, now, invalidatedAt));
+	}
+
+	/**
+	 * Keeps the stamp of an entry that leaves the map as the floor for every
+	 * key. The caller holds the lock on {@code entries}.
+	 */
+	private void forget(Entry<V> entry) {
+		forgottenAt = Math.max(forgottenAt, entry.invalidatedAt);
+		if (entry.value == null) {
+			markers--;
+		}
+	}
+
+	/**
+	 * @return the number of reads served from the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of reads that were not served from the cache
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of entries evicted because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the number of entries dropped because their TTL elapsed
+	 */
+	public long getExpirationCount() {
+		return expirations.sum();
+	}
+
+	/**
+	 * @return the number of explicit invalidations
+	 */
+	public long getInvalidationCount() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * @return the fraction of reads served from the cache, between 0 and 1
+	 */
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "BoundedCache{" +
+				"name='" + name + '\'' +
+				", size=" + size() +
+				", maxEntries=" + maxEntries +
+				", ttlMillis=" + ttlMillis +
+				", hits=" + hits.sum() +
+				", misses=" + misses.sum() +
+				", evictions=" + evictions.sum() +
+				", expirations=" + expirations.sum() +
+				", invalidations=" + invalidations.sum() +
+				'}';
+	}
+}
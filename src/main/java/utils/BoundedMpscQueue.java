@@ -0,0 +1,129 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The {@code BoundedMpscQueue} class is a fixed-capacity, lock-free queue for
+ * many producer threads and a single consumer thread.
+ *
+ * <p>
+ * Each slot of a power-of-two ring carries a sequence number. A producer
+ * claims the next slot with a compare-and-set on the tail and publishes its
+ * element by advancing the slot's sequence; the consumer takes the element
+ * once the sequence says it is published. {@link #offer(Object)} never blocks:
+ * when the ring is full it returns {@code false} and the caller decides what
+ * to do with the element.
+ * </p>
+ *
+ * @param <E> the element type
+ */
+public final class BoundedMpscQueue<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * Creates a queue.
+	 *
+	 * @param capacity the minimum capacity; rounded up to a power of two
+	 */
+	public BoundedMpscQueue(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Appends an element if there is room. Safe to call from any thread.
+	 *
+	 * @param element the element, not {@code null}
+	 * @return {@code false} if the queue is full
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException("element");
+		}
+		while (true) {
+			long position = tail.get();
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements.lazySet(slot, element);
+					sequences.set(slot, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest element. Must only be called from the consumer
+	 * thread.
+	 *
+	 * @return the element, or {@code null} if the queue is empty
+	 */
+	public E poll() {
+		long position = head.get();
+		int slot = (int) position & mask;
+		if (sequences.get(slot) != position + 1) {
+			return null;
+		}
+		E element = elements.get(slot);
+		elements.lazySet(slot, null);
+		head.lazySet(position + 1);
+		sequences.set(slot, position + mask + 1);
+		return element;
+	}
+
+	/**
+	 * Removes up to {@code max} elements in order and passes them to
+	 * {@code sink}. Must only be called from the consumer thread.
+	 *
+	 * @param sink receives the elements
+	 * @param max  the maximum number of elements to remove
+	 * @return the number of elements removed
+	 */
+	public int drain(Consumer<? super E> sink, int max) {
+		int count = 0;
+		E element;
+		while (count < max && (element = poll()) != null) {
+			sink.accept(element);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the approximate number of queued elements
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0L, Math.min(size, mask + 1L));
+	}
+
+	/**
+	 * @return the capacity of the queue
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
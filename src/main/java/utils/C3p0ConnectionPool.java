@@ -0,0 +1,118 @@
+package utils;
+
+import java.beans.PropertyVetoException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * {@link ConnectionPool} backed by the C3P0 {@code ComboPooledDataSource}.
+ *
+ * <p>
+ * Leak detection maps to C3P0's unreturned-connection timeout, which also
+ * reclaims the leaked connection once the threshold passes; the stack trace of
+ * the checkout is logged by C3P0 when that happens.
+ * </p>
+ *
+ * <p>
+ * Connections are validated on checkout only when {@code pool.testOnCheckout}
+ * is set, since that costs a round trip per borrow; otherwise they are
+ * validated when returned and every {@code pool.idleTestPeriodSeconds} while
+ * idle. Validations are bounded by {@code pool.validationTimeoutSeconds}
+ * through {@link C3p0ConnectionTester}.
+ * </p>
+ */
+class C3p0ConnectionPool implements ConnectionPool {
+
+	private final ComboPooledDataSource dataSource = new ComboPooledDataSource();
+
+	C3p0ConnectionPool(PoolConfig config) throws PropertyVetoException {
+		dataSource.setDriverClass("org.postgresql.Driver"); // JDBC Driver
+		dataSource.setJdbcUrl(config.getJdbcUrl());
+		dataSource.setUser(config.getUsername());
+		dataSource.setPassword(config.getPassword());
+
+		dataSource.setMinPoolSize(config.getMinSize());
+		dataSource.setInitialPoolSize(config.getMinSize());
+		dataSource.setAcquireIncrement(config.getAcquireIncrement());
+		dataSource.setMaxPoolSize(config.getMaxSize());
+		dataSource.setMaxStatements(config.getMaxStatements());
+		dataSource.setCheckoutTimeout((int) Math.min(Integer.MAX_VALUE, config.getAcquireTimeoutMillis()));
+
+		dataSource.setTestConnectionOnCheckout(config.isTestOnCheckout());
+		dataSource.setTestConnectionOnCheckin(!config.isTestOnCheckout());
+		dataSource.setIdleConnectionTestPeriod(config.getIdleTestPeriodSeconds());
+		C3p0ConnectionTester.useTimeout(config.getValidationTimeoutSeconds());
+		dataSource.setConnectionTesterClassName(C3p0ConnectionTester.class.getName());
+		if (!config.getValidationQuery().isEmpty()) {
+			dataSource.setPreferredTestQuery(config.getValidationQuery());
+		}
+		if (config.getMaxLifetimeMillis() > 0) {
+			dataSource.setMaxConnectionAge(toSeconds(config.getMaxLifetimeMillis()));
+		}
+		if (config.getLeakDetectionThresholdMillis() > 0) {
+			dataSource.setUnreturnedConnectionTimeout(toSeconds(config.getLeakDetectionThresholdMillis()));
+			dataSource.setDebugUnreturnedConnectionStackTraces(true);
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return dataSource.getConnection();
+	}
+
+	@Override
+	public int getBusyCount() {
+		try {
+			return dataSource.getNumBusyConnectionsDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public int getIdleCount() {
+		try {
+			return dataSource.getNumIdleConnectionsDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public int getTotalCount() {
+		try {
+			return dataSource.getNumConnectionsDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public int getWaitingCount() {
+		try {
+			return dataSource.getNumThreadsAwaitingCheckoutDefaultUser();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public int getCachedStatementCount() {
+		try {
+			return dataSource.getStatementCacheNumStatementsAllUsers();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public void close() {
+		dataSource.close();
+	}
+
+	private static int toSeconds(long millis) {
+		return (int) Math.max(1L, Math.min(Integer.MAX_VALUE, millis / 1000L));
+	}
+}
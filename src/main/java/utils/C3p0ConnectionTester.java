@@ -0,0 +1,54 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.mchange.v2.c3p0.impl.DefaultConnectionTester;
+
+/**
+ * The {@code C3p0ConnectionTester} class validates C3P0 connections within
+ * {@code pool.validationTimeoutSeconds}, with
+ * {@link Connection#isValid(int)} or the configured validation query, so
+ * that a connection to an unresponsive server is discarded rather than
+ * holding up a borrower or the pool's helper threads.
+ *
+ * <p>
+ * C3P0 creates testers by class name and shares one per class between its
+ * data sources, so the timeout is kept statically; the longest timeout of the
+ * pools created applies to all of them.
+ * </p>
+ */
+public final class C3p0ConnectionTester extends DefaultConnectionTester {
+
+	private static volatile int timeoutSeconds = 5;
+
+	/**
+	 * Raises the validation timeout to at least the given value.
+	 *
+	 * @param seconds the timeout of one validation
+	 */
+	static synchronized void useTimeout(int seconds) {
+		timeoutSeconds = Math.max(timeoutSeconds, seconds);
+	}
+
+	@Override
+	public int activeCheckConnection(Connection c, String preferredTestQuery, Throwable[] rootCauseOutParamHolder) {
+		try {
+			if (preferredTestQuery == null || preferredTestQuery.isEmpty()) {
+				return c.isValid(timeoutSeconds) ? CONNECTION_IS_OKAY : CONNECTION_IS_INVALID;
+			}
+			try (Statement statement = c.createStatement()) {
+				statement.setQueryTimeout(timeoutSeconds);
+				statement.execute(preferredTestQuery);
+				return CONNECTION_IS_OKAY;
+			}
+		} catch (SQLException e) {
+			if (rootCauseOutParamHolder != null && rootCauseOutParamHolder.length > 0) {
+				rootCauseOutParamHolder[0] = e;
+			}
+			// not statusOnException, which may test the connection again
+			return CONNECTION_IS_INVALID;
+		}
+	}
+}
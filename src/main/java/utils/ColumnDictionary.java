@@ -0,0 +1,73 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Dictionary encoding for a column of a {@link ColumnarTable}: each distinct
+ * value, {@code null} included, is stored once and the column holds its dense
+ * code, so that a scan compares and groups {@code int}s and a filter becomes
+ * a lookup in a {@code boolean[]} indexed by code.
+ *
+ * <p>
+ * Codes are assigned in order of first appearance and never reused. Values
+ * are added by the table's writer before it publishes the rows that use
+ * them, so every code in a snapshot is below the size read after taking the
+ * snapshot.
+ * </p>
+ *
+ * @param <T> the value type
+ */
+public final class ColumnDictionary<T> {
+
+	private final Map<T, Integer> codes = new HashMap<>();
+	private final List<T> values = new ArrayList<>();
+
+	/**
+	 * Gets the code of a value, adding the value if it is new.
+	 *
+	 * @param value the value, possibly {@code null}
+	 * @return its code
+	 */
+	public synchronized int encode(T value) {
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = values.size();
+			codes.put(value, code);
+			values.add(value);
+		}
+		return code;
+	}
+
+	/**
+	 * @param code a code returned by {@link #encode(Object)}
+	 * @return its value
+	 */
+	public synchronized T decode(int code) {
+		return values.get(code);
+	}
+
+	/**
+	 * Tells which codes stand for values that pass a test.
+	 *
+	 * @param test the test
+	 * @return a flag per code, indexed by code
+	 */
+	public synchronized boolean[] matching(Predicate<? super T> test) {
+		boolean[] matching = new boolean[values.size()];
+		for (int code = 0; code < matching.length; code++) {
+			matching[code] = test.test(values.get(code));
+		}
+		return matching;
+	}
+
+	/**
+	 * @return the number of codes assigned so far
+	 */
+	public synchronized int size() {
+		return values.size();
+	}
+}
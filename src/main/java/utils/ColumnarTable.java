@@ -0,0 +1,332 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * An append-only table of {@code int} and {@code double} columns stored
+ * off-heap, for scans over millions of rows that neither create garbage nor
+ * count against the Java heap. Each column is split into segments of
+ * {@value #SEGMENT_ROWS} rows, each a direct buffer, which are also the unit
+ * of parallelism of {@link #scan}. Direct memory is bounded by
+ * {@code -XX:MaxDirectMemorySize}.
+ *
+ * <p>
+ * One thread writes: it appends rows and deletes rows, then calls
+ * {@link #publish()} to make the whole batch of changes visible at once. Any
+ * number of threads read, each through a {@link Snapshot} of the last
+ * published version: every row records the version that created it and the
+ * version that deleted it, so a reader sees a batch either completely or not
+ * at all, and never blocks the writer. Deleted rows keep their space until
+ * the table is rebuilt; see {@link #getDeadRows()}.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * ColumnarTable table = new ColumnarTable(2, 1);
+ * table.append(new int[] { 7, 3 }, new double[] { 0.5 });
+ * table.publish();
+ * long rows = table.scan(ForkJoinPool.commonPool(), table.snapshot(), new ColumnarTable.Scanner<long[]>() { ... });
+ * }</pre>
+ */
+public final class ColumnarTable {
+
+	/**
+	 * Scans the rows of one segment into a partial result; partial results
+	 * are then combined pairwise. Called from several threads at once, each
+	 * with its own result.
+	 *
+	 * @param <R> the partial result type
+	 */
+	public interface Scanner<R> {
+
+		/**
+		 * @return an empty partial result
+		 */
+		R newResult();
+
+		/**
+		 * Adds the visible rows of a segment to a partial result.
+		 *
+		 * @param segment the segment
+		 * @param result  the partial result
+		 */
+		void scan(Segment segment, R result);
+
+		/**
+		 * Combines two partial results.
+		 *
+		 * @param left  a partial result
+		 * @param right another one
+		 * @return the combination, which may be {@code left}
+		 */
+		R combine(R left, R right);
+	}
+
+	/** Rows per segment. */
+	public static final int SEGMENT_ROWS = 1 << 16;
+
+	private static final int NOT_DELETED = Integer.MAX_VALUE;
+
+	private final int intColumns;
+	private final int doubleColumns;
+	private volatile Storage[] storage = new Storage[0];
+	private volatile int size;
+	private volatile int version;
+	private int deadRows;
+
+	/**
+	 * Creates an empty table.
+	 *
+	 * @param intColumns    the number of {@code int} columns
+	 * @param doubleColumns the number of {@code double} columns
+	 */
+	public ColumnarTable(int intColumns, int doubleColumns) {
+		this.intColumns = intColumns;
+		this.doubleColumns = doubleColumns;
+	}
+
+	/**
+	 * Appends a row, visible from the next {@link #publish()}. Writer only.
+	 *
+	 * @param ints    the {@code int} values, one per column
+	 * @param doubles the {@code double} values, one per column
+	 * @return the row number
+	 */
+	public int append(int[] ints, double[] doubles) {
+		int row = size;
+		int segment = row / SEGMENT_ROWS;
+		Storage[] current = storage;
+		if (segment == current.length) {
+			current = Arrays.copyOf(current, segment + 1);
+			current[segment] = new Storage(intColumns, doubleColumns);
+			storage = current;
+		}
+		Storage target = current[segment];
+		int offset = row % SEGMENT_ROWS;
+		for (int column = 0; column < intColumns; column++) {
+			target.ints[column].put(offset, ints[column]);
+		}
+		for (int column = 0; column < doubleColumns; column++) {
+			target.doubles[column].put(offset, doubles[column]);
+		}
+		target.created.put(offset, version + 1);
+		target.deleted.put(offset, NOT_DELETED);
+		size = row + 1;
+		return row;
+	}
+
+	/**
+	 * Deletes a row as of the next {@link #publish()}. Writer only.
+	 *
+	 * @param row the row number
+	 */
+	public void delete(int row) {
+		IntBuffer deleted = storage[row / SEGMENT_ROWS].deleted;
+		if (deleted.get(row % SEGMENT_ROWS) == NOT_DELETED) {
+			deleted.put(row % SEGMENT_ROWS, version + 1);
+			deadRows++;
+		}
+	}
+
+	/**
+	 * Reads an {@code int} value, for the writer; readers scan instead.
+	 *
+	 * @param row    the row number
+	 * @param column the column
+	 * @return the value
+	 */
+	public int getInt(int row, int column) {
+		return storage[row / SEGMENT_ROWS].ints[column].get(row % SEGMENT_ROWS);
+	}
+
+	/**
+	 * Makes the rows appended and deleted since the last call visible to new
+	 * snapshots. Writer only.
+	 */
+	public void publish() {
+		version = version + 1;
+	}
+
+	/**
+	 * Takes a snapshot of the last published version. Anything the writer
+	 * added before publishing it, such as dictionary codes, is visible once
+	 * the snapshot is taken.
+	 *
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		int published = version;
+		return new Snapshot(published, size);
+	}
+
+	/**
+	 * Scans a snapshot in parallel, one task per segment.
+	 *
+	 * @param <R>      the result type
+	 * @param pool     the pool to scan on
+	 * @param snapshot the snapshot
+	 * @param scanner  scans each segment and combines the results
+	 * @return the combined result
+	 */
+	public <R> R scan(ForkJoinPool pool, Snapshot snapshot, Scanner<R> scanner) {
+		int segments = (snapshot.rows + SEGMENT_ROWS - 1) / SEGMENT_ROWS;
+		if (segments == 0) {
+			return scanner.newResult();
+		}
+		return pool.invoke(new ScanTask<>(storage, snapshot, scanner, 0, segments));
+	}
+
+	/**
+	 * @return the number of rows appended, including deleted and unpublished
+	 *         ones; writer only
+	 */
+	public int getRows() {
+		return size;
+	}
+
+	/**
+	 * @return the number of deleted rows still taking space; writer only
+	 */
+	public int getDeadRows() {
+		return deadRows;
+	}
+
+	/**
+	 * @return the direct memory held by the table, in bytes
+	 */
+	public long getMemoryBytes() {
+		return (long) storage.length * SEGMENT_ROWS * (4L * (intColumns + 2) + 8L * doubleColumns);
+	}
+
+	/**
+	 * A published version of the table and the number of rows to scan for
+	 * it.
+	 */
+	public static final class Snapshot {
+		private final int version;
+		private final int rows;
+
+		private Snapshot(int version, int rows) {
+			this.version = version;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * The part of one segment a scan covers, as seen in its snapshot.
+	 */
+	public static final class Segment {
+		private final Storage storage;
+		private final int rows;
+		private final int version;
+
+		private Segment(Storage storage, int rows, int version) {
+			this.storage = storage;
+			this.rows = rows;
+			this.version = version;
+		}
+
+		/**
+		 * @return the number of rows to scan, from 0
+		 */
+		public int getRows() {
+			return rows;
+		}
+
+		/**
+		 * @param row the row within the segment
+		 * @return {@code true} if the row exists in the snapshot
+		 */
+		public boolean isVisible(int row) {
+			return storage.created.get(row) <= version && storage.deleted.get(row) > version;
+		}
+
+		/**
+		 * @param column the column
+		 * @param row    the row within the segment
+		 * @return the value
+		 */
+		public int getInt(int column, int row) {
+			return storage.ints[column].get(row);
+		}
+
+		/**
+		 * @param column the column
+		 * @param row    the row within the segment
+		 * @return the value
+		 */
+		public double getDouble(int column, int row) {
+			return storage.doubles[column].get(row);
+		}
+	}
+
+	/**
+	 * The buffers of one segment.
+	 */
+	private static final class Storage {
+		private final IntBuffer[] ints;
+		private final DoubleBuffer[] doubles;
+		private final IntBuffer created = allocate(4).asIntBuffer();
+		private final IntBuffer deleted = allocate(4).asIntBuffer();
+
+		private Storage(int intColumns, int doubleColumns) {
+			ints = new IntBuffer[intColumns];
+			for (int column = 0; column < intColumns; column++) {
+				ints[column] = allocate(4).asIntBuffer();
+			}
+			doubles = new DoubleBuffer[doubleColumns];
+			for (int column = 0; column < doubleColumns; column++) {
+				doubles[column] = allocate(8).asDoubleBuffer();
+			}
+		}
+
+		private static ByteBuffer allocate(int width) {
+			return ByteBuffer.allocateDirect(SEGMENT_ROWS * width).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Scans a range of segments, splitting it until one segment is left.
+	 */
+	private static final class ScanTask<R> extends RecursiveTask<R> {
+		private static final long serialVersionUID = 1L;
+
+		private final Storage[] storage;
+		private final Snapshot snapshot;
+		private final Scanner<R> scanner;
+		private final int from;
+		private final int to;
+
+		private ScanTask(Storage[] storage, Snapshot snapshot, Scanner<R> scanner, int from, int to) {
+			this.storage = storage;
+			this.snapshot = snapshot;
+			this.scanner = scanner;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected R compute() {
+			if (to - from == 1) {
+				R result = scanner.newResult();
+				int rows = Math.min(SEGMENT_ROWS, snapshot.rows - from * SEGMENT_ROWS);
+				scanner.scan(new Segment(storage[from], rows, snapshot.version), result);
+				return result;
+			}
+			int middle = (from + to) >>> 1;
+			ScanTask<R> right = new ScanTask<>(storage, snapshot, scanner, middle, to);
+			right.fork();
+			R left = new ScanTask<>(storage, snapshot, scanner, from, middle).compute();
+			return scanner.combine(left, right.join());
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A pool of physical database connections behind {@link DatabaseUtility}.
+ * The implementation is chosen with {@code pool.implementation} in
+ * {@code application.properties}; see {@link PoolConfig}.
+ */
+public interface ConnectionPool extends AutoCloseable {
+
+	/**
+	 * Borrows a connection, waiting up to the configured acquisition timeout.
+	 * Closing the returned connection gives it back to the pool.
+	 *
+	 * @return a pooled connection
+	 * @throws SQLException if no connection becomes available in time or one
+	 *                      cannot be opened
+	 */
+	Connection getConnection() throws SQLException;
+
+	/**
+	 * @return the number of connections currently borrowed
+	 */
+	int getBusyCount();
+
+	/**
+	 * @return the number of open connections waiting to be borrowed
+	 */
+	int getIdleCount();
+
+	/**
+	 * @return the number of open connections
+	 */
+	int getTotalCount();
+
+	/**
+	 * @return the number of threads waiting for a connection
+	 */
+	int getWaitingCount();
+
+	/**
+	 * @return the number of cached prepared statements, or -1 if the pool does
+	 *         not cache statements
+	 */
+	int getCachedStatementCount();
+
+	/**
+	 * Closes every connection and releases the pool's resources.
+	 */
+	@Override
+	void close();
+}
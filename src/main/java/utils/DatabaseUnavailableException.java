@@ -0,0 +1,23 @@
+package utils;
+
+/**
+ * Thrown by {@link DatabaseUtility#connect()} when no database connection can
+ * be handed out, either because the connection pool failed to initialize or
+ * because the acquisition timeout elapsed. Callers that can degrade
+ * gracefully (for example by answering 503) may catch it; everything else
+ * lets it propagate instead of failing later on a {@code null} connection.
+ */
+public class DatabaseUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates the exception.
+	 *
+	 * @param message the detail message
+	 * @param cause   the underlying failure, may be {@code null}
+	 */
+	public DatabaseUnavailableException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
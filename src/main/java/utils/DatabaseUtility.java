@@ -2,6 +2,7 @@ package utils;
 
 import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -9,12 +10,10 @@ import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.mchange.v2.c3p0.ComboPooledDataSource;
-
 /**
  * The {@code DatabaseUtility} class is designed to manage database connections
- * efficiently through a connection pooling mechanism provided by the C3P0
- * library. This class is responsible for initializing and configuring the
+ * efficiently through a pluggable connection pool ({@link ConnectionPool}),
+ * backed by the C3P0 library by default. This class is responsible for initializing and configuring the
  * connection pool, obtaining connections, and properly releasing database
  * resources.
  * 
@@ -30,7 +29,21 @@ import com.mchange.v2.c3p0.ComboPooledDataSource;
  * The configuration parameters for the database connection and the pool are
  * read from the {@code application.properties} file. This allows for easy
  * adjustments to settings such as database URL, username, password, and various
- * pooling parameters like minimum and maximum pool sizes.
+ * pooling parameters like minimum and maximum pool sizes, acquisition timeout,
+ * validation, leak detection and connection lifetime (see {@link PoolConfig}).
+ * The {@code pool.implementation} key selects between the C3P0 pool and the
+ * lighter {@code lean} pool, so both can be compared with the
+ * {@code pool.acquire} timer in {@link Metrics}.
+ * </p>
+ *
+ * <p>
+ * When {@code replica.urls} lists read replicas, each gets its own pool and
+ * operations that are explicitly read-only can run on them through
+ * {@code connectReadOnly()} or {@code readRoute()}; everything else, and
+ * every read while no replica is healthy, goes to the primary (see
+ * {@link ReplicaRouter}). A caller that has written can pass
+ * {@code currentWritePosition()} to {@code requirePosition(String)} on its
+ * later requests to read its own writes.
  * </p>
  *
  * <p>
@@ -38,6 +51,8 @@ import com.mchange.v2.c3p0.ComboPooledDataSource;
  * </p>
  * <ul>
  * <li>Establish a connection to the database ({@code connect})</li>
+ * <li>Establish a connection for a read-only operation, to a replica when
+ * possible ({@code connectReadOnly})</li>
  * <li>Disconnect a single connection ({@code disconnect(Connection)})</li>
  * <li>Disconnect all associated resources like connections, prepared
  * statements, and result sets
@@ -60,67 +75,228 @@ import com.mchange.v2.c3p0.ComboPooledDataSource;
  *
  * <p>
  * This class uses the Singleton design pattern to manage the single instance of
- * the {@code ComboPooledDataSource} ensuring that only one pool exists
- * throughout the application's lifecycle.
+ * the {@code ConnectionPool} ensuring that only one pool exists throughout the
+ * application's lifecycle. If the pool cannot be initialized, the failure is
+ * kept and every {@code connect()} call reports it instead of returning
+ * {@code null}.
  * </p>
  */
 public class DatabaseUtility {
 
 	private static final Logger LOGGER = Logger.getLogger(DatabaseUtility.class.getName());
-	private static ComboPooledDataSource dataSource;
+	private static ConnectionPool pool;
+	private static ReplicaRouter replicas;
+	private static Exception initFailure;
+	private static final Properties properties = new Properties();
 
 	static {
 		try {
-			if (dataSource == null) {
-				// Initialize the ComboPooledDataSource
-				dataSource = new ComboPooledDataSource();
-				Properties prop = new Properties();
+			if (pool == null) {
 				InputStream input = DatabaseUtility.class.getClassLoader()
 						.getResourceAsStream("application.properties");
 
 				if (input == null) {
-					LOGGER.log(Level.SEVERE, "Unable to find application.properties");
+					throw new IllegalStateException("Unable to find application.properties");
 				}
 
-				prop.load(input);
-				String jdbcURL = prop.getProperty("database.url");
-				String jdbcUsername = prop.getProperty("database.username");
-				String jdbcPassword = prop.getProperty("database.password");
-
-				dataSource.setDriverClass("org.postgresql.Driver"); // JDBC Driver
-				dataSource.setJdbcUrl(jdbcURL);
-				dataSource.setUser(jdbcUsername);
-				dataSource.setPassword(jdbcPassword);
+				try {
+					properties.load(input);
+				} finally {
+					input.close();
+				}
 
-				// Configure C3P0 connection pool properties
-				dataSource.setMinPoolSize(5);
-				dataSource.setInitialPoolSize(5); // Set it to 5 or a higher value
+				PoolConfig config = PoolConfig.fromProperties(properties);
+				pool = createPool(config);
+				LOGGER.log(Level.INFO, "Initialized connection pool: " + config);
 
-				dataSource.setAcquireIncrement(5);
-				dataSource.setMaxPoolSize(20);
-				dataSource.setMaxStatements(100);
+				registerPoolGauges();
+				initReplicas();
 			}
 
 		} catch (Exception e) {
-			LOGGER.log(Level.SEVERE, "Error initializing C3P0 DataSource", e);
+			initFailure = e;
+			LOGGER.log(Level.SEVERE, "Error initializing connection pool", e);
+		}
+	}
+
+	/**
+	 * Creates the replica pools. A replica that cannot be set up must not
+	 * keep the primary from serving, so a failure is logged and every read
+	 * goes to the primary.
+	 */
+	private static void initReplicas() {
+		try {
+			replicas = ReplicaRouter.fromProperties(properties, pool, DatabaseUtility::createPool);
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, "Error initializing the read replica pools; reading from the primary", e);
+		}
+	}
+
+	private static ConnectionPool createPool(PoolConfig config) throws Exception {
+		switch (config.getImplementation()) {
+		case "c3p0":
+			return new C3p0ConnectionPool(config);
+		case "lean":
+			return new LeanConnectionPool(config);
+		default:
+			throw new IllegalArgumentException("Unknown pool.implementation: " + config.getImplementation());
 		}
 	}
 
 	/**
 	 * Establishes and returns a connection to the database using the configured
-	 * data source.
+	 * connection pool.
 	 * 
-	 * @return a Connection object or null if a connection cannot be established
-	 * @throws SQLException if a database access error occurs
+	 * @return a Connection object, never {@code null}
+	 * @throws DatabaseUnavailableException if the pool failed to initialize or no
+	 *                                      connection could be obtained within
+	 *                                      the acquisition timeout
 	 */
 	public static Connection connect() {
+		if (pool == null) {
+			throw new DatabaseUnavailableException("Connection pool is not initialized", initFailure);
+		}
+		Metrics.Timer acquire = Metrics.timer("pool.acquire");
+		long start = acquire.start();
 		try {
-			return dataSource.getConnection();
+			return instrument(pool.getConnection());
 		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Metrics.counter("pool.acquire.failures").increment();
+			throw new DatabaseUnavailableException("Unable to obtain a database connection", e);
+		} finally {
+			acquire.stop(start);
+		}
+	}
+
+	/**
+	 * Establishes a connection for an operation that only reads, on a healthy
+	 * read replica that has replayed the position required by the calling
+	 * thread, or on the primary. A replica that cannot be reached is marked
+	 * unhealthy and the primary is used instead.
+	 *
+	 * @return a Connection object, never {@code null}
+	 * @throws DatabaseUnavailableException if no connection could be obtained
+	 */
+	public static Connection connectReadOnly() {
+		ReplicaRouter router = replicas;
+		return router == null ? connect() : router.connect();
+	}
+
+	/**
+	 * Chooses the server for a read-only operation that opens several
+	 * connections which must all reach the same server.
+	 *
+	 * @return the route
+	 */
+	public static ReadRoute readRoute() {
+		ReplicaRouter router = replicas;
+		return router == null ? new ReadRoute("primary", false, DatabaseUtility::connect) : router.route();
+	}
+
+	/**
+	 * Reads the position of the primary's write-ahead log, which covers every
+	 * write committed so far, for a caller that wants to read its own writes
+	 * later.
+	 *
+	 * @return the position, or {@code null} if no replica is configured
+	 * @throws SQLException if the primary cannot be queried
+	 */
+	public static String currentWritePosition() throws SQLException {
+		ReplicaRouter router = replicas;
+		return router == null ? null : router.currentWritePosition();
+	}
+
+	/**
+	 * Sets the write-ahead log position that the read-only operations of the
+	 * calling thread must see, until it is cleared.
+	 *
+	 * @param position a position from {@link #currentWritePosition()}, or
+	 *                 {@code null} to clear it; a malformed one sends every
+	 *                 read to the primary
+	 */
+	public static void requirePosition(String position) {
+		ReplicaRouter.requirePosition(position);
+	}
+
+	/**
+	 * @return {@code true} if read replicas are configured
+	 */
+	public static boolean hasReplicas() {
+		return replicas != null;
+	}
+
+	static Connection instrument(Connection connection) {
+		return Metrics.isEnabled() ? InstrumentedConnection.wrap(connection) : connection;
+	}
+
+	/**
+	 * Closes the connection pools. Intended for application shutdown.
+	 */
+	public static void shutdown() {
+		if (replicas != null) {
+			replicas.close();
+		}
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Publishes the state of the connection pool as {@link Metrics} gauges. The
+	 * gauges are read only when metrics are queried.
+	 */
+	private static void registerPoolGauges() {
+		Metrics.gauge("pool.connections.busy", () -> pool.getBusyCount());
+		Metrics.gauge("pool.connections.idle", () -> pool.getIdleCount());
+		Metrics.gauge("pool.connections.total", () -> pool.getTotalCount());
+		Metrics.gauge("pool.threadsAwaitingCheckout", () -> pool.getWaitingCount());
+		Metrics.gauge("pool.statements.cached", () -> pool.getCachedStatementCount());
+	}
+
+	/**
+	 * Opens a dedicated, non-pooled connection to the database. Intended for
+	 * long-lived background work such as {@code LISTEN} sessions, which would
+	 * otherwise pin a pooled connection for the lifetime of the application.
+	 * The caller owns the returned connection and must close it.
+	 *
+	 * @return a new physical Connection
+	 * @throws SQLException if the connection cannot be opened
+	 */
+	public static Connection openDedicatedConnection() throws SQLException {
+		return DriverManager.getConnection(properties.getProperty("database.url"),
+				properties.getProperty("database.username"), properties.getProperty("database.password"));
+	}
+
+	/**
+	 * Returns a value from {@code application.properties}.
+	 *
+	 * @param key          the property key
+	 * @param defaultValue the value to return if the key is not set
+	 * @return the configured value or {@code defaultValue}
+	 */
+	public static String getProperty(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue);
+	}
+
+	/**
+	 * Returns an integer value from {@code application.properties}.
+	 *
+	 * @param key          the property key
+	 * @param defaultValue the value to return if the key is not set or is not a
+	 *                     valid integer
+	 * @return the configured value or {@code defaultValue}
+	 */
+	public static int getIntProperty(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.log(Level.WARNING, "Invalid integer for property " + key + ": " + value);
+			return defaultValue;
 		}
-		return null;
 	}
 
 	/**
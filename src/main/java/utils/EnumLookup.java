@@ -0,0 +1,82 @@
+package utils;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Maps the labels of a PostgreSQL enum type to the constants of the matching
+ * Java enum without exceptions or allocation. Both the lower-case database
+ * label ({@code pending_qa_review}) and the constant name
+ * ({@code PENDING_QA_REVIEW}) are precomputed, so a lookup is a single hash
+ * probe on the string returned by the driver, whose hash code is cached.
+ *
+ * <p>
+ * Labels that match no constant resolve to {@code null} and are logged once
+ * per label, since they usually mean the database enum has gained a value the
+ * code does not know yet.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * private static final EnumLookup<Enums.DeviationStatus> STATUS = EnumLookup.of(Enums.DeviationStatus.class);
+ * deviation.setStatus(STATUS.get(resultSet.getString(column)));
+ * }</pre>
+ *
+ * @param <E> the enum type
+ */
+public final class EnumLookup<E extends Enum<E>> {
+
+	private static final Logger LOGGER = Logger.getLogger(EnumLookup.class.getName());
+
+	private final Class<E> type;
+	private final Map<String, E> constants = new HashMap<>();
+	private final Map<String, Boolean> unknown = new ConcurrentHashMap<>();
+
+	private EnumLookup(Class<E> type) {
+		this.type = type;
+		for (E constant : type.getEnumConstants()) {
+			constants.put(constant.name(), constant);
+			constants.put(constant.name().toLowerCase(Locale.ROOT), constant);
+		}
+	}
+
+	/**
+	 * Creates the lookup table for an enum. Tables are immutable and meant to
+	 * be kept in constants.
+	 *
+	 * @param <E>  the enum type
+	 * @param type the enum class
+	 * @return the lookup table
+	 */
+	public static <E extends Enum<E>> EnumLookup<E> of(Class<E> type) {
+		return new EnumLookup<>(type);
+	}
+
+	/**
+	 * Gets the constant for a database label or constant name. Labels in any
+	 * other case are still resolved, through a slower path.
+	 *
+	 * @param value the label, or {@code null}
+	 * @return the constant, or {@code null} if {@code value} is {@code null} or
+	 *         unknown
+	 */
+	public E get(String value) {
+		if (value == null) {
+			return null;
+		}
+		E constant = constants.get(value);
+		if (constant == null) {
+			constant = constants.get(value.toUpperCase(Locale.ROOT));
+			if (constant == null && unknown.putIfAbsent(value, Boolean.TRUE) == null) {
+				LOGGER.warning("Unknown " + type.getSimpleName() + " value: " + value);
+			}
+		}
+		return constant;
+	}
+}
@@ -0,0 +1,126 @@
+package utils;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link RowMapper} that reads columns by position instead of by name. The
+ * positions of the columns it declares are resolved once for each result set
+ * shape, that is each distinct list of column labels, and then reused for
+ * every row and every later query with the same shape; only the first row of
+ * a result set checks which shape it has.
+ *
+ * <p>
+ * Subclasses declare their columns in the constructor and read row values
+ * with the resolved positions, in declaration order. Instances are
+ * thread-safe and meant to be kept in constants.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * RowMapper<Comment> comment = new IndexedRowMapper<Comment>("id", "content") {
+ * 	protected Comment map(ResultSet rs, int[] columns) throws SQLException {
+ * 		Comment comment = new Comment();
+ * 		comment.setId(rs.getInt(columns[0]));
+ * 		comment.setContent(rs.getString(columns[1]));
+ * 		return comment;
+ * 	}
+ * };
+ * }</pre>
+ *
+ * @param <T> the mapped type
+ */
+public abstract class IndexedRowMapper<T> implements RowMapper<T> {
+
+	/**
+	 * Bounds the shapes remembered per mapper; past it, shapes are still
+	 * resolved but no longer cached.
+	 */
+	private static final int MAX_SHAPES = 64;
+
+	/**
+	 * The positions resolved for the result set currently being mapped.
+	 */
+	private static final class Resolved {
+		private final ResultSet resultSet;
+		private final int[] columns;
+
+		private Resolved(ResultSet resultSet, int[] columns) {
+			this.resultSet = resultSet;
+			this.columns = columns;
+		}
+	}
+
+	private final String[] names;
+	private final Map<String, int[]> shapes = new ConcurrentHashMap<>();
+	private volatile Resolved last;
+
+	/**
+	 * @param names the labels of the columns the mapper reads, in the order of
+	 *              the positions passed to {@link #map(ResultSet, int[])}
+	 */
+	protected IndexedRowMapper(String... names) {
+		this.names = names.clone();
+	}
+
+	@Override
+	public final T map(ResultSet resultSet) throws SQLException {
+		Resolved resolved = last;
+		if (resolved == null || resolved.resultSet != resultSet) {
+			resolved = new Resolved(resultSet, resolve(resultSet.getMetaData()));
+			last = resolved;
+		}
+		return map(resultSet, resolved.columns);
+	}
+
+	/**
+	 * Maps the current row.
+	 *
+	 * @param resultSet a result set positioned on a row
+	 * @param columns   the positions of the declared columns, in declaration
+	 *                  order
+	 * @return the mapped object
+	 * @throws SQLException if a column cannot be read
+	 */
+	protected abstract T map(ResultSet resultSet, int[] columns) throws SQLException;
+
+	private int[] resolve(ResultSetMetaData metaData) throws SQLException {
+		int count = metaData.getColumnCount();
+		String[] labels = new String[count];
+		for (int i = 0; i < count; i++) {
+			labels[i] = metaData.getColumnLabel(i + 1);
+		}
+		String shape = String.join(",", labels);
+		int[] columns = shapes.get(shape);
+		if (columns != null) {
+			return columns;
+		}
+		columns = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			columns[i] = find(labels, names[i]);
+		}
+		if (shapes.size() < MAX_SHAPES) {
+			shapes.put(shape, columns);
+		}
+		return columns;
+	}
+
+	/**
+	 * Finds a column as {@link ResultSet#findColumn(String)} does: the first
+	 * column whose label matches, ignoring case.
+	 */
+	private static int find(String[] labels, String name) throws SQLException {
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i].equalsIgnoreCase(name)) {
+				return i + 1;
+			}
+		}
+		throw new SQLException("The column name " + name + " was not found in this ResultSet.");
+	}
+}
@@ -0,0 +1,95 @@
+package utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code InstrumentedConnection} class wraps a pooled connection handed
+ * out by {@link DatabaseUtility#connect()} to feed {@link Metrics}.
+ *
+ * <p>
+ * The wrapper attributes the connection to the DAO method that checked it out
+ * and, on close, records how long that method held it in the
+ * {@code dao.<Class>.<method>} timer, which approximates the time the method
+ * spent in JDBC. It also counts prepared statements and the number of
+ * connections currently checked out. Every call is forwarded unchanged to the
+ * pooled connection, including {@code unwrap}.
+ * </p>
+ */
+final class InstrumentedConnection implements InvocationHandler {
+
+	private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+	private static final LongAdder OPEN = new LongAdder();
+	private static final LongAdder PREPARED = Metrics.counter("jdbc.statements.prepared");
+
+	static {
+		Metrics.gauge("jdbc.connections.checkedOut", OPEN::sum);
+	}
+
+	private final Connection target;
+	private final Metrics.Timer timer;
+	private final long start;
+	private boolean closed;
+
+	private InstrumentedConnection(Connection target, String caller) {
+		this.target = target;
+		this.timer = Metrics.timer(caller);
+		this.start = timer.start();
+		OPEN.increment();
+	}
+
+	/**
+	 * Wraps a connection, attributing it to the first caller outside this
+	 * package.
+	 *
+	 * @param connection the pooled connection
+	 * @return the instrumented connection
+	 */
+	static Connection wrap(Connection connection) {
+		InstrumentedConnection handler = new InstrumentedConnection(connection, caller());
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, handler);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (name.startsWith("prepare")) {
+			PREPARED.increment();
+		} else if ("close".equals(name)) {
+			release();
+		}
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private synchronized void release() {
+		if (!closed) {
+			closed = true;
+			OPEN.decrement();
+			timer.stop(start);
+		}
+	}
+
+	private static String caller() {
+		Optional<StackWalker.StackFrame> frame = STACK_WALKER.walk(frames -> frames
+				.filter(f -> !f.getClassName().startsWith("utils."))
+				.findFirst());
+		if (!frame.isPresent()) {
+			return "dao.unknown";
+		}
+		String className = frame.get().getClassName();
+		if (className.startsWith("dao.")) {
+			return className + "." + frame.get().getMethodName();
+		}
+		return "dao.other." + className + "." + frame.get().getMethodName();
+	}
+}
@@ -0,0 +1,386 @@
+package utils;
+
+import java.lang.ref.Cleaner;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One pooled connection together with the statements prepared on it, opened
+ * with {@link JdbcTemplate#open()} and closed with {@link #close()}.
+ *
+ * <p>
+ * The session owns every JDBC resource it hands work to: result sets are
+ * closed before a query method returns, and prepared statements are kept in a
+ * small per-session cache keyed by SQL (at most
+ * {@code jdbc.statementCacheSize}, least recently used first out) and closed
+ * with the session. That cache only saves the lookup within a session;
+ * closing returns each statement to the pool, which caches up to
+ * {@code pool.maxStatements} per physical connection with either pool
+ * implementation, so the next session on that connection reuses it. A
+ * statement that is still executing, for example while a
+ * {@link #forEach(String, ParameterBinder, int, RowMapper, Consumer)}
+ * consumer issues the same query, is never shared: a second, uncached one is
+ * prepared instead.
+ * </p>
+ *
+ * <p>
+ * {@link #getConnection()} gives access to the connection for work the
+ * session does not cover, such as {@code COPY}. With {@code jdbc.devMode=true}
+ * that connection records the statements created on it, and statements still
+ * open when the session closes are counted in {@code jdbc.statements.leaked},
+ * logged and closed; sessions that are garbage collected without being closed
+ * are counted in {@code jdbc.sessions.leaked}, logged with the stack that
+ * opened them and their connection is closed.
+ * </p>
+ *
+ * <p>
+ * A session is not thread-safe.
+ * </p>
+ */
+public final class JdbcSession implements AutoCloseable {
+
+	/**
+	 * Work run against a session.
+	 *
+	 * @param <T> the result type
+	 */
+	@FunctionalInterface
+	public interface Work<T> {
+
+		/**
+		 * @param session the session
+		 * @return the result
+		 * @throws SQLException if the work fails
+		 */
+		T run(JdbcSession session) throws SQLException;
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(JdbcSession.class.getName());
+	private static final LongAdder OPEN = new LongAdder();
+	private static final LongAdder CACHE_HITS = Metrics.counter("jdbc.statements.cacheHits");
+	private static final LongAdder LEAKED_SESSIONS = Metrics.counter("jdbc.sessions.leaked");
+	private static final LongAdder LEAKED_STATEMENTS = Metrics.counter("jdbc.statements.leaked");
+
+	static {
+		Metrics.gauge("jdbc.sessions.open", OPEN::sum);
+	}
+
+	/**
+	 * Holds the cleaner only once dev mode needs it, since it owns a thread.
+	 */
+	private static final class Leaks {
+		private static final Cleaner CLEANER = Cleaner.create();
+	}
+
+	/**
+	 * The state released by {@link #close()}, or by the cleaner if the
+	 * session is never closed. It must not refer to the session.
+	 */
+	private static final class Resources implements Runnable {
+		private final Connection connection;
+		private final Throwable openedAt;
+		private final List<Statement> unmanaged = new ArrayList<>();
+		private boolean closed;
+
+		private Resources(Connection connection, Throwable openedAt) {
+			this.connection = connection;
+			this.openedAt = openedAt;
+		}
+
+		@Override
+		public synchronized void run() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			OPEN.decrement();
+			LEAKED_SESSIONS.increment();
+			LOGGER.log(Level.WARNING, "JDBC session was never closed", openedAt);
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOGGER.log(Level.WARNING, "Error closing the connection of a leaked session", e);
+			}
+		}
+	}
+
+	private final Connection connection;
+	private final Connection exposed;
+	private final Resources resources;
+	private final Cleaner.Cleanable cleanable;
+	private final Map<String, PreparedStatement> cache;
+	private final Set<PreparedStatement> busy = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	JdbcSession(Connection connection, int cacheSize, boolean devMode) {
+		this.connection = connection;
+		this.resources = new Resources(connection, devMode ? new Exception("Session opened here") : null);
+		this.cache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= cacheSize || busy.contains(eldest.getValue())) {
+					return false;
+				}
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+		OPEN.increment();
+		if (devMode) {
+			this.exposed = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Tracker());
+			this.cleanable = Leaks.CLEANER.register(this, resources);
+		} else {
+			this.exposed = connection;
+			this.cleanable = null;
+		}
+	}
+
+	/**
+	 * Runs a query and maps every row.
+	 *
+	 * @param <T>    the row type
+	 * @param sql    the query
+	 * @param binder binds its parameters
+	 * @param mapper maps each row
+	 * @return the mapped rows, possibly empty
+	 * @throws SQLException if the query fails
+	 */
+	public <T> List<T> query(String sql, ParameterBinder binder, RowMapper<T> mapper) throws SQLException {
+		List<T> rows = new ArrayList<>();
+		forEach(sql, binder, 0, mapper, rows::add);
+		return rows;
+	}
+
+	/**
+	 * Runs a query and maps its first row.
+	 *
+	 * @param <T>    the row type
+	 * @param sql    the query
+	 * @param binder binds its parameters
+	 * @param mapper maps the row
+	 * @return the mapped row, or {@code null} if there is none
+	 * @throws SQLException if the query fails
+	 */
+	public <T> T queryOne(String sql, ParameterBinder binder, RowMapper<T> mapper) throws SQLException {
+		PreparedStatement statement = acquire(sql);
+		try {
+			binder.bind(statement);
+			statement.setFetchSize(1);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() ? mapper.map(resultSet) : null;
+			}
+		} finally {
+			release(sql, statement);
+		}
+	}
+
+	/**
+	 * Runs a query and passes each mapped row to a consumer while the result
+	 * set is open. With a positive fetch size and outside auto-commit (see
+	 * {@link #inTransaction(Work)}), rows are fetched through a server-side
+	 * cursor in chunks of that size, so memory use does not grow with the
+	 * result.
+	 *
+	 * @param <T>       the row type
+	 * @param sql       the query
+	 * @param binder    binds its parameters
+	 * @param fetchSize the number of rows to fetch at a time, or 0 for all
+	 * @param mapper    maps each row
+	 * @param consumer  receives each mapped row
+	 * @return the number of rows
+	 * @throws SQLException if the query fails
+	 */
+	public <T> long forEach(String sql, ParameterBinder binder, int fetchSize, RowMapper<T> mapper, Consumer<? super T> consumer)
+			throws SQLException {
+		PreparedStatement statement = acquire(sql);
+		try {
+			binder.bind(statement);
+			statement.setFetchSize(fetchSize);
+			long count = 0;
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					consumer.accept(mapper.map(resultSet));
+					count++;
+				}
+			}
+			return count;
+		} finally {
+			release(sql, statement);
+		}
+	}
+
+	/**
+	 * Runs an {@code INSERT}, {@code UPDATE} or {@code DELETE} without a
+	 * result set.
+	 *
+	 * @param sql    the statement
+	 * @param binder binds its parameters
+	 * @return the number of rows affected
+	 * @throws SQLException if the statement fails
+	 */
+	public int update(String sql, ParameterBinder binder) throws SQLException {
+		PreparedStatement statement = acquire(sql);
+		try {
+			binder.bind(statement);
+			return statement.executeUpdate();
+		} finally {
+			release(sql, statement);
+		}
+	}
+
+	/**
+	 * Runs work in a transaction: commits if it returns, rolls back if it
+	 * throws. If a transaction is already open on the session, the work joins
+	 * it and the outer caller decides.
+	 *
+	 * @param <T>  the result type
+	 * @param work the work
+	 * @return the result of the work
+	 * @throws SQLException if the work or the commit fails
+	 */
+	public <T> T inTransaction(Work<T> work) throws SQLException {
+		if (!connection.getAutoCommit()) {
+			return work.run(this);
+		}
+		connection.setAutoCommit(false);
+		try {
+			T result = work.run(this);
+			connection.commit();
+			return result;
+		} catch (SQLException | RuntimeException | Error e) {
+			try {
+				connection.rollback();
+			} catch (SQLException rollbackFailure) {
+				e.addSuppressed(rollbackFailure);
+			}
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Gets the connection, for work the session does not cover. Statements
+	 * created on it are the caller's to close; the connection itself must
+	 * not be closed.
+	 *
+	 * @return the connection
+	 */
+	public Connection getConnection() {
+		return exposed;
+	}
+
+	/**
+	 * Closes the cached statements and returns the connection to the pool.
+	 * Statements created through {@link #getConnection()} and left open are
+	 * counted as leaked in dev mode and closed.
+	 */
+	@Override
+	public void close() {
+		synchronized (resources) {
+			if (resources.closed) {
+				return;
+			}
+			resources.closed = true;
+		}
+		OPEN.decrement();
+		for (Statement statement : resources.unmanaged) {
+			try {
+				if (!statement.isClosed()) {
+					LEAKED_STATEMENTS.increment();
+					LOGGER.log(Level.WARNING, "Statement left open on a JDBC session", resources.openedAt);
+					statement.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.log(Level.WARNING, "Error closing a leaked statement", e);
+			}
+		}
+		for (Iterator<PreparedStatement> it = cache.values().iterator(); it.hasNext();) {
+			closeQuietly(it.next());
+			it.remove();
+		}
+		if (cleanable != null) {
+			cleanable.clean();
+		}
+		DatabaseUtility.disconnect(connection);
+	}
+
+	private PreparedStatement acquire(String sql) throws SQLException {
+		if (resources.closed) {
+			throw new SQLException("The JDBC session is closed");
+		}
+		PreparedStatement statement = cache.get(sql);
+		if (statement == null) {
+			statement = connection.prepareStatement(sql);
+			cache.put(sql, statement);
+		} else if (busy.contains(statement)) {
+			statement = connection.prepareStatement(sql);
+		} else {
+			statement.clearParameters();
+			CACHE_HITS.increment();
+		}
+		busy.add(statement);
+		return statement;
+	}
+
+	private void release(String sql, PreparedStatement statement) {
+		busy.remove(statement);
+		if (cache.get(sql) != statement) {
+			closeQuietly(statement);
+		}
+	}
+
+	private static void closeQuietly(Statement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, "Error closing a statement", e);
+		}
+	}
+
+	/**
+	 * Records the statements created through {@link #getConnection()} in dev
+	 * mode, and keeps callers from closing the session's connection.
+	 */
+	private final class Tracker implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				LOGGER.log(Level.WARNING, "Ignoring close() on the connection of a JDBC session", new Exception("Closed here"));
+				return null;
+			}
+			Object result;
+			try {
+				result = method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (result instanceof Statement) {
+				resources.unmanaged.add((Statement) result);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package utils;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The {@code JdbcTemplate} class is the entry point for running SQL without
+ * handling JDBC resources by hand. Each call checks a connection out of the
+ * pool with {@link DatabaseUtility#connect()}, runs in a {@link JdbcSession}
+ * and closes every statement and result set, and the connection, before it
+ * returns or throws.
+ *
+ * <p>
+ * Single statements use the static shortcuts; several statements on one
+ * connection, or a transaction, use {@link #execute(JdbcSession.Work)} and
+ * {@link #inTransaction(JdbcSession.Work)}, which also let repeated SQL reuse
+ * its prepared statement. {@code jdbc.statementCacheSize} (default 16) bounds
+ * the statements cached per session and {@code jdbc.devMode} enables leak
+ * tracking (see {@link JdbcSession}).
+ * </p>
+ *
+ * <p>
+ * The {@code ReadOnly} variants are for operations that only read and can
+ * tolerate the replication lag of a read replica, such as listings, exports
+ * and reports; they check the connection out with
+ * {@link DatabaseUtility#connectReadOnly()}.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * RowMapper<String> number = rs -> rs.getString("deviation_number");
+ * List<String> numbers = JdbcTemplate.query("SELECT deviation_number FROM deviations WHERE status = ?::deviation_status",
+ * 		ParameterBinder.of(Enums.DeviationStatus.PENDING_QA_REVIEW), number);
+ * }</pre>
+ */
+public final class JdbcTemplate {
+
+	private static final int STATEMENT_CACHE_SIZE = Math.max(1, DatabaseUtility.getIntProperty("jdbc.statementCacheSize", 16));
+	private static final boolean DEV_MODE = Boolean.parseBoolean(DatabaseUtility.getProperty("jdbc.devMode", "false").trim());
+
+	private JdbcTemplate() {
+	}
+
+	/**
+	 * Opens a session on a pooled connection. The caller must close it,
+	 * preferably with try-with-resources.
+	 *
+	 * @return the session
+	 * @throws DatabaseUnavailableException if no connection can be obtained
+	 */
+	public static JdbcSession open() {
+		return new JdbcSession(DatabaseUtility.connect(), STATEMENT_CACHE_SIZE, DEV_MODE);
+	}
+
+	/**
+	 * Opens a session for an operation that only reads, on a read replica
+	 * when one is available. The caller must close it.
+	 *
+	 * @return the session
+	 * @throws DatabaseUnavailableException if no connection can be obtained
+	 */
+	public static JdbcSession openReadOnly() {
+		return new JdbcSession(DatabaseUtility.connectReadOnly(), STATEMENT_CACHE_SIZE, DEV_MODE);
+	}
+
+	/**
+	 * Runs work on a new session in auto-commit mode and closes the session.
+	 *
+	 * @param <T>  the result type
+	 * @param work the work
+	 * @return the result of the work
+	 * @throws SQLException if the work fails
+	 */
+	public static <T> T execute(JdbcSession.Work<T> work) throws SQLException {
+		try (JdbcSession session = open()) {
+			return work.run(session);
+		}
+	}
+
+	/**
+	 * Runs work in a transaction on a new session and closes the session.
+	 *
+	 * @param <T>  the result type
+	 * @param work the work
+	 * @return the result of the work
+	 * @throws SQLException if the work or the commit fails, in which case the
+	 *                      transaction is rolled back
+	 */
+	public static <T> T inTransaction(JdbcSession.Work<T> work) throws SQLException {
+		try (JdbcSession session = open()) {
+			return session.inTransaction(work);
+		}
+	}
+
+	/**
+	 * Runs work that only reads in a transaction, on a read replica when one
+	 * is available, and closes the session. Use it for cursors, which pgjdbc
+	 * only opens outside auto-commit.
+	 *
+	 * @param <T>  the result type
+	 * @param work the work
+	 * @return the result of the work
+	 * @throws SQLException if the work fails
+	 */
+	public static <T> T inReadOnlyTransaction(JdbcSession.Work<T> work) throws SQLException {
+		try (JdbcSession session = openReadOnly()) {
+			return session.inTransaction(work);
+		}
+	}
+
+	/**
+	 * Runs a query and maps every row.
+	 *
+	 * @param <T>    the row type
+	 * @param sql    the query
+	 * @param binder binds its parameters
+	 * @param mapper maps each row
+	 * @return the mapped rows, possibly empty
+	 * @throws SQLException if the query fails
+	 */
+	public static <T> List<T> query(String sql, ParameterBinder binder, RowMapper<T> mapper) throws SQLException {
+		try (JdbcSession session = open()) {
+			return session.query(sql, binder, mapper);
+		}
+	}
+
+	/**
+	 * Runs a query that only reads, on a read replica when one is available,
+	 * and maps every row.
+	 *
+	 * @param <T>    the row type
+	 * @param sql    the query
+	 * @param binder binds its parameters
+	 * @param mapper maps each row
+	 * @return the mapped rows, possibly empty
+	 * @throws SQLException if the query fails
+	 */
+	public static <T> List<T> queryReadOnly(String sql, ParameterBinder binder, RowMapper<T> mapper) throws SQLException {
+		try (JdbcSession session = openReadOnly()) {
+			return session.query(sql, binder, mapper);
+		}
+	}
+
+	/**
+	 * Runs a query and maps its first row.
+	 *
+	 * @param <T>    the row type
+	 * @param sql    the query
+	 * @param binder binds its parameters
+	 * @param mapper maps the row
+	 * @return the mapped row, or {@code null} if there is none
+	 * @throws SQLException if the query fails
+	 */
+	public static <T> T queryOne(String sql, ParameterBinder binder, RowMapper<T> mapper) throws SQLException {
+		try (JdbcSession session = open()) {
+			return session.queryOne(sql, binder, mapper);
+		}
+	}
+
+	/**
+	 * Runs an {@code INSERT}, {@code UPDATE} or {@code DELETE} without a
+	 * result set.
+	 *
+	 * @param sql    the statement
+	 * @param binder binds its parameters
+	 * @return the number of rows affected
+	 * @throws SQLException if the statement fails
+	 */
+	public static int update(String sql, ParameterBinder binder) throws SQLException {
+		try (JdbcSession session = open()) {
+			return session.update(sql, binder);
+		}
+	}
+}
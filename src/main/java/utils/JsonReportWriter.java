@@ -0,0 +1,95 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Renders a report as JSON with Gson's streaming {@link JsonWriter}:
+ *
+ * <pre>{@code
+ * {"title": "...", "attributes": {...},
+ *  "sections": [{"name": "...", "columns": [...], "rows": [[...], ...], "rowCount": n}, ...]}
+ * }</pre>
+ *
+ * <p>
+ * Rows are arrays in column order. Dates and timestamps are written in ISO
+ * format.
+ * </p>
+ */
+public class JsonReportWriter implements ReportWriter {
+
+	private final JsonWriter json;
+	private long rowCount;
+
+	/**
+	 * @param output the stream to write UTF-8 JSON to
+	 */
+	public JsonReportWriter(OutputStream output) {
+		this.json = new JsonWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void beginReport(String title, Map<String, String> attributes) throws IOException {
+		json.beginObject();
+		json.name("title").value(title);
+		json.name("attributes").beginObject();
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			json.name(attribute.getKey()).value(attribute.getValue());
+		}
+		json.endObject();
+		json.name("sections").beginArray();
+	}
+
+	@Override
+	public void beginSection(String name, List<String> columns) throws IOException {
+		rowCount = 0;
+		json.beginObject();
+		json.name("name").value(name);
+		json.name("columns").beginArray();
+		for (String column : columns) {
+			json.value(column);
+		}
+		json.endArray();
+		json.name("rows").beginArray();
+	}
+
+	@Override
+	public void row(Object[] values) throws IOException {
+		json.beginArray();
+		for (Object value : values) {
+			if (value == null) {
+				json.nullValue();
+			} else if (value instanceof Number) {
+				json.value((Number) value);
+			} else if (value instanceof Boolean) {
+				json.value((Boolean) value);
+			} else if (value instanceof java.sql.Timestamp) {
+				json.value(((java.sql.Timestamp) value).toLocalDateTime().toString());
+			} else {
+				json.value(value.toString());
+			}
+		}
+		json.endArray();
+		rowCount++;
+	}
+
+	@Override
+	public void endSection() throws IOException {
+		json.endArray();
+		json.name("rowCount").value(rowCount);
+		json.endObject();
+	}
+
+	@Override
+	public void endReport() throws IOException {
+		json.endArray();
+		json.endObject();
+		json.flush();
+	}
+}
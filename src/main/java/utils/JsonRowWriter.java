@@ -0,0 +1,166 @@
+package utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes the current row of a result set as a JSON object with Gson's
+ * streaming {@link JsonWriter}, without mapping it to a model object first.
+ * Columns are declared and resolved to positions as by
+ * {@link IndexedRowMapper}, once per result set shape. Dates and timestamps are
+ * written in ISO format, as by {@link JsonReportWriter}.
+ *
+ * <p>
+ * Subclasses declare their columns in the constructor and write the fields
+ * with the resolved positions and the helpers below. Instances are thread-safe
+ * and meant to be kept in constants.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * JsonRowWriter comment = new JsonRowWriter("id", "content") {
+ * 	protected void write(ResultSet rs, int[] columns, JsonWriter json) throws SQLException, IOException {
+ * 		writeInt(json, "id", rs, columns[0]);
+ * 		json.name("content").value(rs.getString(columns[1]));
+ * 	}
+ * };
+ * session.forEach(sql, binder, 1000, comment.to(json), row -> { });
+ * }</pre>
+ */
+public abstract class JsonRowWriter {
+
+	private final IndexedRowMapper<int[]> positions;
+
+	/**
+	 * @param names the labels of the columns the writer reads, in the order of
+	 *              the positions passed to
+	 *              {@link #write(ResultSet, int[], JsonWriter)}
+	 */
+	protected JsonRowWriter(String... names) {
+		this.positions = new IndexedRowMapper<int[]>(names) {
+			@Override
+			protected int[] map(ResultSet resultSet, int[] columns) {
+				return columns;
+			}
+		};
+	}
+
+	/**
+	 * Writes the current row as an object.
+	 *
+	 * @param resultSet a result set positioned on a row
+	 * @param json      the writer, positioned where a value may follow
+	 * @throws SQLException if a column cannot be read
+	 * @throws IOException  if the writer fails
+	 */
+	public final void write(ResultSet resultSet, JsonWriter json) throws SQLException, IOException {
+		json.beginObject();
+		write(resultSet, positions.map(resultSet), json);
+		json.endObject();
+	}
+
+	/**
+	 * Adapts the writer to the row mapper methods of {@link JdbcSession}, for
+	 * example {@link JdbcSession#forEach}: each mapped row is written to
+	 * {@code json} and mapped to {@code null}. Failures of the writer are
+	 * thrown as {@link UncheckedIOException}.
+	 *
+	 * @param json the writer, inside an array
+	 * @return the row mapper
+	 */
+	public final RowMapper<Void> to(JsonWriter json) {
+		return resultSet -> {
+			try {
+				write(resultSet, json);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return null;
+		};
+	}
+
+	/**
+	 * Writes the fields of the current row.
+	 *
+	 * @param resultSet a result set positioned on a row
+	 * @param columns   the positions of the declared columns, in declaration
+	 *                  order
+	 * @param json      the writer, inside the row's object
+	 * @throws SQLException if a column cannot be read
+	 * @throws IOException  if the writer fails
+	 */
+	protected abstract void write(ResultSet resultSet, int[] columns, JsonWriter json) throws SQLException, IOException;
+
+	/**
+	 * Writes an {@code integer} column, or {@code null}, without boxing it.
+	 */
+	protected static void writeInt(JsonWriter json, String name, ResultSet resultSet, int column) throws SQLException, IOException {
+		int value = resultSet.getInt(column);
+		if (resultSet.wasNull()) {
+			json.name(name).nullValue();
+		} else {
+			json.name(name).value(value);
+		}
+	}
+
+	/**
+	 * Writes a {@code double precision} column, or {@code null}, without
+	 * boxing it.
+	 */
+	protected static void writeDouble(JsonWriter json, String name, ResultSet resultSet, int column) throws SQLException, IOException {
+		double value = resultSet.getDouble(column);
+		if (resultSet.wasNull()) {
+			json.name(name).nullValue();
+		} else {
+			json.name(name).value(value);
+		}
+	}
+
+	/**
+	 * Writes a {@code boolean} column, or {@code null}.
+	 */
+	protected static void writeBoolean(JsonWriter json, String name, ResultSet resultSet, int column) throws SQLException, IOException {
+		boolean value = resultSet.getBoolean(column);
+		if (resultSet.wasNull()) {
+			json.name(name).nullValue();
+		} else {
+			json.name(name).value(value);
+		}
+	}
+
+	/**
+	 * Writes a {@code date} column as {@code yyyy-MM-dd}, or {@code null}.
+	 */
+	protected static void writeDate(JsonWriter json, String name, ResultSet resultSet, int column) throws SQLException, IOException {
+		Date value = resultSet.getDate(column);
+		json.name(name).value(value == null ? null : value.toLocalDate().toString());
+	}
+
+	/**
+	 * Writes a {@code timestamp} column in ISO format, or {@code null}.
+	 */
+	protected static void writeTimestamp(JsonWriter json, String name, ResultSet resultSet, int column) throws SQLException, IOException {
+		Timestamp value = resultSet.getTimestamp(column);
+		json.name(name).value(value == null ? null : value.toLocalDateTime().toString());
+	}
+
+	/**
+	 * Writes an enum column as the name of the matching constant, as Gson
+	 * writes the enum fields of the model, or {@code null}.
+	 */
+	protected static <E extends Enum<E>> void writeEnum(JsonWriter json, String name, ResultSet resultSet, int column, EnumLookup<E> lookup)
+			throws SQLException, IOException {
+		String label = resultSet.getString(column);
+		E value = label == null ? null : lookup.get(label);
+		json.name(name).value(value == null ? null : value.name());
+	}
+}
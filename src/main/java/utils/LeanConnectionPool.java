@@ -0,0 +1,612 @@
+package utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small {@link ConnectionPool} with lock-free borrowing, selected with
+ * {@code pool.implementation=lean}.
+ *
+ * <p>
+ * Each pooled connection carries an atomic state. Borrowers claim an idle
+ * connection with a compare-and-set over the (at most {@code pool.maxSize})
+ * entries; if none is idle and the pool is below its maximum, the borrower
+ * opens a new connection itself. Otherwise it waits on a direct hand-off queue
+ * and a returning connection is passed straight to a waiting thread, so
+ * neither path takes a lock.
+ * </p>
+ *
+ * <p>
+ * Connections idle for more than half a second are validated before they are
+ * handed out, connections older than {@code pool.maxLifetimeMillis} are
+ * retired, and a background housekeeper keeps {@code pool.minSize} connections
+ * open and logs connections held longer than
+ * {@code pool.leakDetectionThresholdMillis} together with the stack that
+ * borrowed them. On return, a connection is stripped of statements its
+ * borrower forgot to close, rolled back if a transaction was left open, and
+ * reset to auto-commit and to the transaction isolation, read-only flag,
+ * holdability, catalog and schema it was opened with, if the borrower changed
+ * them; a connection that cannot be reset is retired.
+ * </p>
+ *
+ * <p>
+ * Like C3P0, the pool keeps up to {@code pool.maxStatements} prepared
+ * statements per physical connection, keyed by SQL, least recently used first
+ * out: a {@link PreparedStatement} prepared with
+ * {@link Connection#prepareStatement(String)} and closed by its borrower is
+ * reset and kept for the next borrower that prepares the same SQL, so its
+ * server-side prepared statement survives the return of the connection. A
+ * cached statement is lent to one caller at a time. The cache of a connection
+ * is dropped if its borrower changed the catalog or schema.
+ * </p>
+ */
+class LeanConnectionPool implements ConnectionPool {
+
+	private static final Logger LOGGER = Logger.getLogger(LeanConnectionPool.class.getName());
+
+	private static final int STATE_REMOVED = -1;
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_IN_USE = 1;
+
+	private static final int CHANGED_ISOLATION = 1;
+	private static final int CHANGED_READ_ONLY = 1 << 1;
+	private static final int CHANGED_HOLDABILITY = 1 << 2;
+	private static final int CHANGED_CATALOG = 1 << 3;
+	private static final int CHANGED_SCHEMA = 1 << 4;
+
+	private static final long VALIDATION_SKIP_MILLIS = 500L;
+	private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long HOUSEKEEPING_PERIOD_SECONDS = 5L;
+
+	private final class Entry {
+		private final Connection physical;
+		private final long createdAt = System.currentTimeMillis();
+		private final AtomicInteger state = new AtomicInteger(STATE_IN_USE);
+		private volatile long lastUsedAt = createdAt;
+		private volatile long borrowedAt;
+		private volatile Throwable borrowSite;
+		private volatile boolean leakReported;
+		private final int defaultIsolation;
+		private final boolean defaultReadOnly;
+		private final int defaultHoldability;
+		private final String defaultCatalog;
+		private final String defaultSchema;
+		/** Statements not lent out, by SQL; only used by the borrower. */
+		private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= config.getMaxStatements()) {
+					return false;
+				}
+				cachedStatements.decrementAndGet();
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+
+		private Entry(Connection physical) throws SQLException {
+			this.physical = physical;
+			defaultIsolation = physical.getTransactionIsolation();
+			defaultReadOnly = physical.isReadOnly();
+			defaultHoldability = physical.getHoldability();
+			defaultCatalog = physical.getCatalog();
+			defaultSchema = physical.getSchema();
+		}
+	}
+
+	private final PoolConfig config;
+	private final Driver driver;
+	private final Properties connectionProperties = new Properties();
+	private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<>();
+	private final SynchronousQueue<Entry> handoff = new SynchronousQueue<>(true);
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final AtomicInteger cachedStatements = new AtomicInteger();
+	private final ScheduledExecutorService housekeeper;
+	private volatile boolean closed;
+
+	LeanConnectionPool(PoolConfig config) {
+		this(config, new org.postgresql.Driver());
+	}
+
+	/**
+	 * Creates a pool that opens its connections with the given driver.
+	 *
+	 * @param config the settings
+	 * @param driver the driver
+	 */
+	LeanConnectionPool(PoolConfig config, Driver driver) {
+		this.config = config;
+		this.driver = driver;
+		if (config.getUsername() != null) {
+			connectionProperties.setProperty("user", config.getUsername());
+		}
+		if (config.getPassword() != null) {
+			connectionProperties.setProperty("password", config.getPassword());
+		}
+		housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "lean-pool-housekeeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		housekeeper.scheduleWithFixedDelay(this::housekeep, 0L, HOUSEKEEPING_PERIOD_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getAcquireTimeoutMillis());
+		waiters.incrementAndGet();
+		try {
+			while (true) {
+				Entry entry = claimIdle();
+				if (entry == null) {
+					entry = tryCreate();
+				}
+				if (entry == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new SQLTransientConnectionException("Timed out after " + config.getAcquireTimeoutMillis()
+								+ " ms waiting for a connection (" + getBusyCount() + " busy, " + waiters.get() + " waiting)");
+					}
+					entry = handoff.poll(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+					if (entry != null && !entry.state.compareAndSet(STATE_IDLE, STATE_IN_USE)) {
+						entry = null;
+					}
+				}
+				if (entry != null) {
+					if (isUsable(entry)) {
+						return lend(entry);
+					}
+					retire(entry);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	@Override
+	public int getBusyCount() {
+		return countInState(STATE_IN_USE);
+	}
+
+	@Override
+	public int getIdleCount() {
+		return countInState(STATE_IDLE);
+	}
+
+	@Override
+	public int getTotalCount() {
+		return entries.size();
+	}
+
+	@Override
+	public int getWaitingCount() {
+		return waiters.get();
+	}
+
+	@Override
+	public int getCachedStatementCount() {
+		return config.getMaxStatements() > 0 ? cachedStatements.get() : -1;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		housekeeper.shutdownNow();
+		for (Entry entry : entries) {
+			if (entry.state.compareAndSet(STATE_IDLE, STATE_REMOVED)) {
+				retire(entry);
+			}
+		}
+	}
+
+	private Entry claimIdle() {
+		for (Entry entry : entries) {
+			if (entry.state.compareAndSet(STATE_IDLE, STATE_IN_USE)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private Entry tryCreate() throws SQLException {
+		while (true) {
+			int current = total.get();
+			if (current >= config.getMaxSize()) {
+				return null;
+			}
+			if (total.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		try {
+			Connection physical = driver.connect(config.getJdbcUrl(), connectionProperties);
+			if (physical == null) {
+				throw new SQLException("Driver does not accept URL " + config.getJdbcUrl());
+			}
+			Entry entry;
+			try {
+				entry = new Entry(physical);
+			} catch (SQLException | RuntimeException e) {
+				physical.close();
+				throw e;
+			}
+			entries.add(entry);
+			return entry;
+		} catch (SQLException | RuntimeException e) {
+			total.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private boolean isUsable(Entry entry) {
+		long now = System.currentTimeMillis();
+		if (config.getMaxLifetimeMillis() > 0 && now - entry.createdAt > config.getMaxLifetimeMillis()) {
+			return false;
+		}
+		if (now - entry.lastUsedAt < VALIDATION_SKIP_MILLIS) {
+			return true;
+		}
+		try {
+			if (config.getValidationQuery().isEmpty()) {
+				return entry.physical.isValid(config.getValidationTimeoutSeconds());
+			}
+			try (Statement statement = entry.physical.createStatement()) {
+				statement.setQueryTimeout(config.getValidationTimeoutSeconds());
+				statement.execute(config.getValidationQuery());
+				return true;
+			}
+		} catch (SQLException e) {
+			LOGGER.log(Level.FINE, "Discarding connection that failed validation", e);
+			return false;
+		}
+	}
+
+	private Connection lend(Entry entry) {
+		entry.borrowedAt = System.currentTimeMillis();
+		entry.leakReported = false;
+		entry.borrowSite = config.getLeakDetectionThresholdMillis() > 0 ? new Exception("Connection borrowed here") : null;
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+				new Handle(entry));
+	}
+
+	/**
+	 * Resets a returned connection and makes it idle, handing it to a waiting
+	 * borrower if one is polling; borrowers that miss the hand-off find it
+	 * idle on their next pass.
+	 *
+	 * @param entry          the connection
+	 * @param openStatements statements its borrower left open
+	 * @param changed        the {@code CHANGED_*} settings its borrower set
+	 */
+	private void release(Entry entry, Set<Statement> openStatements, int changed) {
+		try {
+			for (Statement statement : openStatements) {
+				statement.close();
+			}
+			if (!entry.physical.getAutoCommit()) {
+				entry.physical.rollback();
+			}
+			if ((changed & (CHANGED_CATALOG | CHANGED_SCHEMA)) != 0) {
+				// cached plans may resolve names against the borrower's search path
+				dropStatements(entry);
+			}
+			restoreDefaults(entry, changed);
+			if (!entry.physical.getAutoCommit()) {
+				entry.physical.setAutoCommit(true);
+			}
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Discarding connection that could not be reset", e);
+			retire(entry);
+			return;
+		}
+		entry.lastUsedAt = System.currentTimeMillis();
+		entry.borrowSite = null;
+		if (closed || (config.getMaxLifetimeMillis() > 0
+				&& entry.lastUsedAt - entry.createdAt > config.getMaxLifetimeMillis())) {
+			retire(entry);
+			return;
+		}
+		entry.state.set(STATE_IDLE);
+		if (waiters.get() > 0) {
+			handoff.offer(entry);
+		}
+	}
+
+	/**
+	 * Puts back the session settings a borrower changed. Runs outside a
+	 * transaction, where PostgreSQL accepts them.
+	 */
+	private static void restoreDefaults(Entry entry, int changed) throws SQLException {
+		Connection physical = entry.physical;
+		if ((changed & CHANGED_ISOLATION) != 0 && physical.getTransactionIsolation() != entry.defaultIsolation) {
+			physical.setTransactionIsolation(entry.defaultIsolation);
+		}
+		if ((changed & CHANGED_READ_ONLY) != 0 && physical.isReadOnly() != entry.defaultReadOnly) {
+			physical.setReadOnly(entry.defaultReadOnly);
+		}
+		if ((changed & CHANGED_HOLDABILITY) != 0 && physical.getHoldability() != entry.defaultHoldability) {
+			physical.setHoldability(entry.defaultHoldability);
+		}
+		if ((changed & CHANGED_CATALOG) != 0 && !Objects.equals(physical.getCatalog(), entry.defaultCatalog)) {
+			physical.setCatalog(entry.defaultCatalog);
+		}
+		if ((changed & CHANGED_SCHEMA) != 0 && !Objects.equals(physical.getSchema(), entry.defaultSchema)) {
+			physical.setSchema(entry.defaultSchema);
+		}
+	}
+
+	private void retire(Entry entry) {
+		entry.state.set(STATE_REMOVED);
+		if (entries.remove(entry)) {
+			total.decrementAndGet();
+		}
+		dropStatements(entry);
+		try {
+			entry.physical.close();
+		} catch (SQLException e) {
+			LOGGER.log(Level.FINE, "Error closing retired connection", e);
+		}
+	}
+
+	private void housekeep() {
+		try {
+			long now = System.currentTimeMillis();
+			for (Entry entry : entries) {
+				if (config.getMaxLifetimeMillis() > 0 && now - entry.createdAt > config.getMaxLifetimeMillis()
+						&& entry.state.compareAndSet(STATE_IDLE, STATE_REMOVED)) {
+					retire(entry);
+				} else if (config.getLeakDetectionThresholdMillis() > 0 && entry.state.get() == STATE_IN_USE
+						&& !entry.leakReported && entry.borrowSite != null
+						&& now - entry.borrowedAt > config.getLeakDetectionThresholdMillis()) {
+					entry.leakReported = true;
+					LOGGER.log(Level.WARNING, "Possible connection leak: connection held for " + (now - entry.borrowedAt)
+							+ " ms", entry.borrowSite);
+				}
+			}
+			while (!closed && total.get() < config.getMinSize()) {
+				Entry entry = tryCreate();
+				if (entry == null) {
+					break;
+				}
+				release(entry, Collections.emptySet(), 0);
+			}
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Connection pool housekeeping failed", e);
+		}
+	}
+
+	private void dropStatements(Entry entry) {
+		for (PreparedStatement statement : entry.statements.values()) {
+			cachedStatements.decrementAndGet();
+			closeQuietly(statement);
+		}
+		entry.statements.clear();
+	}
+
+	private static void closeQuietly(Statement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			LOGGER.log(Level.FINE, "Error closing a cached statement", e);
+		}
+	}
+
+	private int countInState(int state) {
+		int count = 0;
+		for (Entry entry : entries) {
+			if (entry.state.get() == state) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The connection handed to a borrower. Closing it returns the physical
+	 * connection to the pool; any other call after that fails. Statements are
+	 * handed out wrapped, so that closing one stops tracking it or puts it back
+	 * in the statement cache.
+	 */
+	private final class Handle implements InvocationHandler {
+		private final Entry entry;
+		private final Set<Statement> openStatements = Collections.newSetFromMap(new IdentityHashMap<>());
+		private int changed;
+		private boolean returned;
+
+		private Handle(Entry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "close":
+				if (!returned) {
+					returned = true;
+					release(entry, openStatements, changed);
+				}
+				return null;
+			case "isClosed":
+				return returned;
+			case "toString":
+				return "LeanConnectionPool.Handle[" + entry.physical + "]";
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "setTransactionIsolation":
+				changed |= CHANGED_ISOLATION;
+				break;
+			case "setReadOnly":
+				changed |= CHANGED_READ_ONLY;
+				break;
+			case "setHoldability":
+				changed |= CHANGED_HOLDABILITY;
+				break;
+			case "setCatalog":
+				changed |= CHANGED_CATALOG;
+				break;
+			case "setSchema":
+				changed |= CHANGED_SCHEMA;
+				break;
+			default:
+				break;
+			}
+			if (returned) {
+				throw new SQLException("Connection is closed");
+			}
+			if (config.getMaxStatements() > 0 && method.getName().equals("prepareStatement") && args.length == 1) {
+				String sql = (String) args[0];
+				PreparedStatement statement = entry.statements.remove(sql);
+				if (statement == null) {
+					statement = entry.physical.prepareStatement(sql);
+				} else {
+					cachedStatements.decrementAndGet();
+				}
+				openStatements.add(statement);
+				return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+						new StatementHandle(this, (Connection) proxy, statement, sql));
+			}
+			Object result;
+			try {
+				result = method.invoke(entry.physical, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+				Statement statement = (Statement) result;
+				openStatements.add(statement);
+				return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { method.getReturnType() },
+						new StatementHandle(this, (Connection) proxy, statement, null));
+			}
+			return result;
+		}
+
+		/**
+		 * Resets a statement its borrower closed and caches it.
+		 *
+		 * @return {@code false} if it could not be reset and must be closed
+		 */
+		private boolean recycle(String sql, PreparedStatement statement) {
+			if (returned) {
+				return false;
+			}
+			try {
+				ResultSet resultSet = statement.getResultSet();
+				if (resultSet != null) {
+					resultSet.close();
+				}
+				statement.clearParameters();
+				statement.clearBatch();
+				statement.clearWarnings();
+				statement.setFetchSize(0);
+				statement.setMaxRows(0);
+				statement.setQueryTimeout(0);
+			} catch (SQLException | RuntimeException e) {
+				LOGGER.log(Level.FINE, "Closing a statement that could not be reset", e);
+				return false;
+			}
+			PreparedStatement replaced = entry.statements.put(sql, statement);
+			if (replaced == null) {
+				cachedStatements.incrementAndGet();
+			} else {
+				closeQuietly(replaced);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A statement handed to a borrower: closing it removes it from the
+	 * statements the pool closes on return and, if it is cacheable, puts it
+	 * back in the statement cache instead of closing it.
+	 */
+	private static final class StatementHandle implements InvocationHandler {
+		private final Handle owner;
+		private final Connection connection;
+		private final Statement statement;
+		/** The SQL a cacheable statement is cached under, or {@code null}. */
+		private final String sql;
+		private boolean closed;
+
+		private StatementHandle(Handle owner, Connection connection, Statement statement, String sql) {
+			this.owner = owner;
+			this.connection = connection;
+			this.statement = statement;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "close":
+				if (closed) {
+					return null;
+				}
+				closed = true;
+				owner.openStatements.remove(statement);
+				if (sql != null && owner.recycle(sql, (PreparedStatement) statement)) {
+					return null;
+				}
+				break;
+			case "isClosed":
+				if (closed) {
+					return true;
+				}
+				break;
+			case "getConnection":
+				return connection;
+			case "toString":
+				return statement.toString();
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			default:
+				if (closed) {
+					throw new SQLException("Statement is closed");
+				}
+				break;
+			}
+			try {
+				return method.invoke(statement, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
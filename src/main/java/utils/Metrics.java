@@ -0,0 +1,268 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * The {@code Metrics} class is the application-wide registry of timers,
+ * counters and gauges used to observe the connection pool and the DAOs.
+ *
+ * <p>
+ * Metrics are created on first use and live for the lifetime of the
+ * application. Recording is lock-free and allocation-free, so instrumentation
+ * can stay enabled in production; setting {@code metrics.enabled=false} in
+ * {@code application.properties} turns recording into a no-op.
+ * </p>
+ *
+ * <p>
+ * The registry is published over JMX as {@code qms:type=Metrics} (see
+ * {@link MetricsMXBean}) and as JSON by {@code servlet.MetricsServlet}.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * Metrics.Timer timer = Metrics.timer("dao.DeviationDAO.createDeviation");
+ * long start = timer.start();
+ * try {
+ * 	// timed work
+ * } finally {
+ * 	timer.stop(start);
+ * }
+ * Metrics.counter("jdbc.statements.prepared").increment();
+ * }</pre>
+ */
+public final class Metrics {
+
+	/**
+	 * A latency histogram together with the number of timed operations
+	 * currently in progress.
+	 */
+	public static final class Timer {
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final LongAdder inFlight = new LongAdder();
+
+		/**
+		 * Marks the start of an operation.
+		 *
+		 * @return the start time to pass to {@link #stop(long)}
+		 */
+		public long start() {
+			if (!ENABLED) {
+				return 0L;
+			}
+			inFlight.increment();
+			return System.nanoTime();
+		}
+
+		/**
+		 * Marks the end of an operation started with {@link #start()}.
+		 *
+		 * @param startNanos the value returned by {@link #start()}
+		 */
+		public void stop(long startNanos) {
+			if (!ENABLED) {
+				return;
+			}
+			inFlight.decrement();
+			histogram.record(System.nanoTime() - startNanos);
+		}
+
+		/**
+		 * Records an operation whose duration was measured elsewhere.
+		 *
+		 * @param nanos the duration in nanoseconds
+		 */
+		public void record(long nanos) {
+			if (ENABLED) {
+				histogram.record(nanos);
+			}
+		}
+
+		/**
+		 * @return the number of operations started but not yet stopped
+		 */
+		public long getInFlight() {
+			return inFlight.sum();
+		}
+
+		/**
+		 * @return the underlying histogram
+		 */
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+
+	// Declared before ENABLED: reading the configuration initializes
+	// DatabaseUtility, which registers its pool gauges here.
+	private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+	private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+	private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+	private static final boolean ENABLED = Boolean
+			.parseBoolean(DatabaseUtility.getProperty("metrics.enabled", "true"));
+
+	static {
+		try {
+			ObjectName name = new ObjectName("qms:type=Metrics");
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMXBeanImpl(), name);
+			}
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to register metrics MBean", e);
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @return {@code true} unless recording was disabled in configuration
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Returns the timer with the given name, creating it on first use.
+	 *
+	 * @param name the metric name
+	 * @return the timer
+	 */
+	public static Timer timer(String name) {
+		Timer timer = TIMERS.get(name);
+		return timer != null ? timer : TIMERS.computeIfAbsent(name, n -> new Timer());
+	}
+
+	/**
+	 * Returns the counter with the given name, creating it on first use.
+	 *
+	 * @param name the metric name
+	 * @return the counter
+	 */
+	public static LongAdder counter(String name) {
+		LongAdder counter = COUNTERS.get(name);
+		return counter != null ? counter : COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+	}
+
+	/**
+	 * Registers a gauge, replacing any gauge of the same name. The supplier is
+	 * only called when metrics are read.
+	 *
+	 * @param name  the metric name
+	 * @param gauge supplies the current value
+	 */
+	public static void gauge(String name, LongSupplier gauge) {
+		GAUGES.put(name, gauge);
+	}
+
+	/**
+	 * Takes a snapshot of every metric, suitable for serialization to JSON.
+	 * Timer values are reported in milliseconds.
+	 *
+	 * @return the snapshot, with {@code timers}, {@code counters} and
+	 *         {@code gauges} sections sorted by metric name
+	 */
+	public static Map<String, Object> snapshot() {
+		Map<String, Object> timers = new TreeMap<>();
+		TIMERS.forEach((name, timer) -> timers.put(name, describe(timer)));
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("enabled", ENABLED);
+		snapshot.put("timers", timers);
+		snapshot.put("counters", counters());
+		snapshot.put("gauges", gauges());
+		return snapshot;
+	}
+
+	/**
+	 * Clears every timer and counter. Gauges are not affected.
+	 */
+	public static void reset() {
+		TIMERS.values().forEach(timer -> timer.getHistogram().reset());
+		COUNTERS.values().forEach(LongAdder::reset);
+	}
+
+	static Map<String, Long> counters() {
+		Map<String, Long> counters = new TreeMap<>();
+		COUNTERS.forEach((name, counter) -> counters.put(name, counter.sum()));
+		return counters;
+	}
+
+	static Map<String, Long> gauges() {
+		Map<String, Long> gauges = new TreeMap<>();
+		GAUGES.forEach((name, gauge) -> {
+			try {
+				gauges.put(name, gauge.getAsLong());
+			} catch (RuntimeException e) {
+				gauges.put(name, -1L);
+			}
+		});
+		return gauges;
+	}
+
+	static Map<String, Double> percentiles(double percentile) {
+		Map<String, Double> values = new TreeMap<>();
+		TIMERS.forEach((name, timer) -> values.put(name, millis(timer.getHistogram().getValueAtPercentile(percentile))));
+		return values;
+	}
+
+	private static Map<String, Object> describe(Timer timer) {
+		LatencyHistogram histogram = timer.getHistogram();
+		Map<String, Object> values = new LinkedHashMap<>();
+		values.put("count", histogram.getCount());
+		values.put("inFlight", timer.getInFlight());
+		values.put("mean", millis(histogram.getMeanNanos()));
+		values.put("p50", millis(histogram.getValueAtPercentile(50.0)));
+		values.put("p90", millis(histogram.getValueAtPercentile(90.0)));
+		values.put("p99", millis(histogram.getValueAtPercentile(99.0)));
+		values.put("p999", millis(histogram.getValueAtPercentile(99.9)));
+		values.put("max", millis(histogram.getMaxNanos()));
+		return values;
+	}
+
+	private static double millis(double nanos) {
+		return Math.round(nanos / TimeUnit.MILLISECONDS.toNanos(1) * 1000.0) / 1000.0;
+	}
+
+	private static final class MetricsMXBeanImpl implements MetricsMXBean {
+		@Override
+		public Map<String, Long> getCounters() {
+			return counters();
+		}
+
+		@Override
+		public Map<String, Long> getGauges() {
+			return gauges();
+		}
+
+		@Override
+		public Map<String, Double> getP50Millis() {
+			return percentiles(50.0);
+		}
+
+		@Override
+		public Map<String, Double> getP99Millis() {
+			return percentiles(99.0);
+		}
+
+		@Override
+		public void reset() {
+			Metrics.reset();
+		}
+	}
+}
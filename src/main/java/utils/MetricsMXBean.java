@@ -0,0 +1,35 @@
+package utils;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link Metrics} registry, registered as
+ * {@code qms:type=Metrics}.
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * @return every counter by name
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * @return the current value of every gauge by name
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * @return the median latency of every timer in milliseconds, by name
+	 */
+	Map<String, Double> getP50Millis();
+
+	/**
+	 * @return the 99th percentile latency of every timer in milliseconds, by name
+	 */
+	Map<String, Double> getP99Millis();
+
+	/**
+	 * Clears every timer and counter.
+	 */
+	void reset();
+}
@@ -0,0 +1,68 @@
+package utils;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Binds the parameters of a prepared statement. Binders that do not capture
+ * per-call values can be kept in constants and shared.
+ */
+@FunctionalInterface
+public interface ParameterBinder {
+
+	/**
+	 * Binds the parameters. The statement may be a cached one whose previous
+	 * parameters have been cleared.
+	 *
+	 * @param statement the statement
+	 * @throws SQLException if a parameter cannot be bound
+	 */
+	void bind(PreparedStatement statement) throws SQLException;
+
+	/**
+	 * Binds nothing, for statements without parameters.
+	 */
+	ParameterBinder NONE = statement -> {
+	};
+
+	/**
+	 * Binds values by position. {@code null} is bound as an untyped null,
+	 * enums by name and {@link java.util.Date}s that are not already JDBC
+	 * types as {@link java.sql.Date}s; anything else is passed to
+	 * {@link PreparedStatement#setObject(int, Object)}. Parameters whose type
+	 * the server cannot infer from the statement need an explicit cast in
+	 * the SQL.
+	 *
+	 * @param values the values, in parameter order
+	 * @return the binder
+	 */
+	static ParameterBinder of(Object... values) {
+		return statement -> {
+			for (int i = 0; i < values.length; i++) {
+				bindValue(statement, i + 1, values[i]);
+			}
+		};
+	}
+
+	/**
+	 * Binds one value with the conversions of {@link #of(Object...)}.
+	 *
+	 * @param statement the statement
+	 * @param index     the parameter index, from 1
+	 * @param value     the value, or {@code null}
+	 * @throws SQLException if the value cannot be bound
+	 */
+	static void bindValue(PreparedStatement statement, int index, Object value) throws SQLException {
+		if (value == null) {
+			statement.setNull(index, Types.NULL);
+		} else if (value instanceof Enum) {
+			statement.setString(index, ((Enum<?>) value).name());
+		} else if (value instanceof java.util.Date && !(value instanceof java.sql.Date)
+				&& !(value instanceof java.sql.Timestamp) && !(value instanceof java.sql.Time)) {
+			statement.setDate(index, new java.sql.Date(((java.util.Date) value).getTime()));
+		} else {
+			statement.setObject(index, value);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders a report as a plain PDF document, written page by page as rows
+ * arrive.
+ *
+ * <p>
+ * The document uses the built-in Courier font on landscape A4 pages, so no
+ * font data is embedded and columns line up without measuring text. Each
+ * section starts on a new page whose header repeats the report title, the
+ * section name and the column labels; the width of the page is shared evenly
+ * between the columns and longer values are cut off. Only the current page is
+ * buffered: completed pages go straight to the output stream and just their
+ * byte offsets are kept to build the cross-reference table at the end.
+ * Characters outside Latin-1 are replaced with {@code ?}.
+ * </p>
+ */
+public class PdfReportWriter implements ReportWriter {
+
+	private static final int PAGE_WIDTH = 842;
+	private static final int PAGE_HEIGHT = 595;
+	private static final int MARGIN = 36;
+	private static final float FONT_SIZE = 7f;
+	private static final float LEADING = 9f;
+	private static final float CHAR_WIDTH = FONT_SIZE * 0.6f;
+	private static final int LINE_CHARS = (int) ((PAGE_WIDTH - 2 * MARGIN) / CHAR_WIDTH);
+	private static final int LINES_PER_PAGE = (int) ((PAGE_HEIGHT - 2 * MARGIN) / LEADING) - 1;
+
+	private static final int CATALOG = 1;
+	private static final int PAGES = 2;
+	private static final int FONT = 3;
+	private static final int FONT_BOLD = 4;
+	private static final int FIRST_PAGE_OBJECT = 5;
+
+	private final CountingStream out;
+	private long[] offsets = new long[64];
+	private int nextObject = FIRST_PAGE_OBJECT;
+	private final List<Integer> pageObjects = new ArrayList<>();
+
+	private String title = "";
+	private String section = "";
+	private List<String> header = new ArrayList<>();
+	private int[] widths = new int[0];
+	private final ByteArrayOutputStream page = new ByteArrayOutputStream(16384);
+	private int linesOnPage;
+
+	/**
+	 * @param output the stream to write the PDF to
+	 */
+	public PdfReportWriter(OutputStream output) {
+		this.out = new CountingStream(output);
+	}
+
+	@Override
+	public void beginReport(String title, Map<String, String> attributes) throws IOException {
+		this.title = title;
+		out.write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n".getBytes(StandardCharsets.ISO_8859_1));
+		startPage();
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			line(attribute.getKey() + ": " + attribute.getValue(), false);
+		}
+	}
+
+	@Override
+	public void beginSection(String name, List<String> columns) throws IOException {
+		section = name;
+		widths = new int[columns.size()];
+		int width = columns.isEmpty() ? LINE_CHARS : Math.max(4, LINE_CHARS / columns.size());
+		Arrays.fill(widths, width);
+		header = new ArrayList<>(columns);
+		finishPage();
+		startPage();
+	}
+
+	@Override
+	public void row(Object[] values) throws IOException {
+		if (linesOnPage >= LINES_PER_PAGE) {
+			finishPage();
+			startPage();
+		}
+		line(format(values), false);
+	}
+
+	@Override
+	public void endSection() {
+		header = new ArrayList<>();
+	}
+
+	@Override
+	public void endReport() throws IOException {
+		finishPage();
+		beginObject(FONT);
+		ascii("<< /Type /Font /Subtype /Type1 /BaseFont /Courier /Encoding /WinAnsiEncoding >>\nendobj\n");
+		beginObject(FONT_BOLD);
+		ascii("<< /Type /Font /Subtype /Type1 /BaseFont /Courier-Bold /Encoding /WinAnsiEncoding >>\nendobj\n");
+		beginObject(PAGES);
+		StringBuilder kids = new StringBuilder("<< /Type /Pages /Count ").append(pageObjects.size()).append(" /Kids [");
+		for (int pageObject : pageObjects) {
+			kids.append(pageObject).append(" 0 R ");
+		}
+		ascii(kids.append("] >>\nendobj\n").toString());
+		beginObject(CATALOG);
+		ascii("<< /Type /Catalog /Pages " + PAGES + " 0 R >>\nendobj\n");
+
+		long xref = out.count;
+		StringBuilder table = new StringBuilder("xref\n0 ").append(nextObject).append("\n0000000000 65535 f \n");
+		for (int i = 1; i < nextObject; i++) {
+			table.append(String.format("%010d 00000 n \n", offsets[i]));
+		}
+		table.append("trailer\n<< /Size ").append(nextObject).append(" /Root ").append(CATALOG).append(" 0 R >>\nstartxref\n")
+				.append(xref).append("\n%%EOF\n");
+		ascii(table.toString());
+		out.flush();
+	}
+
+	private void startPage() throws IOException {
+		page.reset();
+		linesOnPage = 0;
+		write(page, "BT\n" + MARGIN + " " + (PAGE_HEIGHT - MARGIN) + " Td\n" + LEADING + " TL\n");
+		line(title + (section.isEmpty() ? "" : " - " + section) + "    page " + (pageObjects.size() + 1), true);
+		if (!header.isEmpty()) {
+			line(format(header.toArray()), true);
+		}
+	}
+
+	private void finishPage() throws IOException {
+		write(page, "ET\n");
+		int contents = nextObject++;
+		int pageObject = nextObject++;
+		beginObject(contents);
+		ascii("<< /Length " + page.size() + " >>\nstream\n");
+		page.writeTo(out);
+		ascii("\nendstream\nendobj\n");
+		beginObject(pageObject);
+		ascii("<< /Type /Page /Parent " + PAGES + " 0 R /MediaBox [0 0 " + PAGE_WIDTH + " " + PAGE_HEIGHT + "] /Contents "
+				+ contents + " 0 R /Resources << /Font << /F1 " + FONT + " 0 R /F2 " + FONT_BOLD + " 0 R >> >> >>\nendobj\n");
+		pageObjects.add(pageObject);
+		page.reset();
+	}
+
+	private void line(String text, boolean bold) throws IOException {
+		write(page, (bold ? "/F2 " : "/F1 ") + FONT_SIZE + " Tf (");
+		String clipped = text.length() > LINE_CHARS ? text.substring(0, LINE_CHARS) : text;
+		for (int i = 0; i < clipped.length(); i++) {
+			char c = clipped.charAt(i);
+			if (c == '(' || c == ')' || c == '\\') {
+				page.write('\\');
+				page.write(c);
+			} else if (c < 32) {
+				page.write(' ');
+			} else {
+				page.write(c <= 255 ? c : '?');
+			}
+		}
+		write(page, ") Tj T*\n");
+		linesOnPage++;
+	}
+
+	private String format(Object[] values) {
+		StringBuilder text = new StringBuilder(LINE_CHARS);
+		for (int i = 0; i < values.length && i < widths.length; i++) {
+			String value = values[i] == null ? "" : values[i].toString();
+			int width = widths[i] - 1;
+			if (value.length() > width) {
+				value = value.substring(0, Math.max(0, width - 1)) + "~";
+			}
+			text.append(value);
+			for (int pad = value.length(); pad <= width; pad++) {
+				text.append(' ');
+			}
+		}
+		return text.toString();
+	}
+
+	private void beginObject(int number) throws IOException {
+		if (number >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, Math.max(number + 1, offsets.length * 2));
+		}
+		offsets[number] = out.count;
+		ascii(number + " 0 obj\n");
+	}
+
+	private void ascii(String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static void write(ByteArrayOutputStream buffer, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+		buffer.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Tracks the byte offset of the output for the cross-reference table.
+	 */
+	private static final class CountingStream extends OutputStream {
+		private final OutputStream target;
+		private long count;
+
+		private CountingStream(OutputStream target) {
+			this.target = target;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target.flush();
+		}
+	}
+}
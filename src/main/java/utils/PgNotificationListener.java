@@ -0,0 +1,228 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * The {@code PgNotificationListener} class receives PostgreSQL
+ * {@code LISTEN/NOTIFY} messages on a single dedicated connection per
+ * application node and dispatches them to registered handlers.
+ *
+ * <p>
+ * The listener runs on one daemon thread that owns the connection. Handlers
+ * subscribe by channel name; the first subscription starts the thread. If the
+ * connection drops, the thread reconnects, re-issues {@code LISTEN} for every
+ * channel and calls {@link Handler#onReconnect()} so handlers can resynchronize
+ * whatever state they may have missed notifications for.
+ * </p>
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * PgNotificationListener.getInstance().subscribe("deviation_cache", payload -> cache.evict(payload));
+ *
+ * Connection conn = DatabaseUtility.connect();
+ * try {
+ * 	PgNotificationListener.publish(conn, "deviation_cache", "id:42");
+ * } finally {
+ * 	DatabaseUtility.disconnect(conn);
+ * }
+ * }</pre>
+ */
+public class PgNotificationListener implements Runnable {
+
+	/**
+	 * Receives the payloads published on a channel.
+	 */
+	@FunctionalInterface
+	public interface Handler {
+
+		/**
+		 * Called on the listener thread for each notification.
+		 *
+		 * @param payload the notification payload, possibly empty
+		 */
+		void onNotification(String payload);
+
+		/**
+		 * Called after the listener connection has been re-established.
+		 * Notifications sent while it was down are lost, so handlers that keep
+		 * derived state should discard or reload it here.
+		 */
+		default void onReconnect() {
+		}
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(PgNotificationListener.class.getName());
+	private static final Pattern CHANNEL_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+	private static final int POLL_TIMEOUT_MILLIS = 500;
+	private static final long RECONNECT_DELAY_MILLIS = 5000L;
+
+	private static final PgNotificationListener INSTANCE = new PgNotificationListener();
+
+	private final Map<String, List<Handler>> handlers = new ConcurrentHashMap<>();
+	private final Queue<String> pendingListens = new ConcurrentLinkedQueue<>();
+	private volatile Thread thread;
+	private volatile boolean running;
+
+	private PgNotificationListener() {
+	}
+
+	/**
+	 * @return the node-wide listener
+	 */
+	public static PgNotificationListener getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers a handler for a channel and starts the listener thread if it is
+	 * not running yet.
+	 *
+	 * @param channel the channel name (lower-case identifier)
+	 * @param handler the handler to invoke
+	 */
+	public void subscribe(String channel, Handler handler) {
+		checkChannel(channel);
+		handlers.computeIfAbsent(channel, c -> {
+			pendingListens.add(c);
+			return new CopyOnWriteArrayList<>();
+		}).add(handler);
+		start();
+	}
+
+	/**
+	 * Sends a notification on the given connection. Inside a transaction the
+	 * notification is delivered on commit and discarded on rollback.
+	 *
+	 * @param connection the connection to send on
+	 * @param channel    the channel name
+	 * @param payload    the payload
+	 * @throws SQLException if the notification cannot be sent
+	 */
+	public static void publish(Connection connection, String channel, String payload) throws SQLException {
+		checkChannel(channel);
+		try (PreparedStatement statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+			statement.setString(1, channel);
+			statement.setString(2, payload);
+			statement.execute();
+		}
+	}
+
+	/**
+	 * Starts the listener thread if it is not already running.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "pg-notification-listener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the listener thread and closes its connection.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		boolean reconnecting = false;
+		while (running) {
+			Connection connection = null;
+			try {
+				connection = DatabaseUtility.openDedicatedConnection();
+				PGConnection pgConnection = connection.unwrap(PGConnection.class);
+				pendingListens.clear();
+				for (String channel : handlers.keySet()) {
+					listen(connection, channel);
+				}
+				if (reconnecting) {
+					for (List<Handler> list : handlers.values()) {
+						for (Handler handler : list) {
+							handler.onReconnect();
+						}
+					}
+				}
+				reconnecting = true;
+
+				while (running) {
+					String channel;
+					while ((channel = pendingListens.poll()) != null) {
+						listen(connection, channel);
+					}
+					PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+					if (notifications != null) {
+						for (PGNotification notification : notifications) {
+							dispatch(notification.getName(), notification.getParameter());
+						}
+					}
+				}
+			} catch (SQLException e) {
+				LOGGER.log(Level.WARNING, "Notification listener connection lost, reconnecting", e);
+				sleepQuietly(RECONNECT_DELAY_MILLIS);
+			} finally {
+				DatabaseUtility.disconnect(connection);
+			}
+		}
+	}
+
+	private void dispatch(String channel, String payload) {
+		List<Handler> list = handlers.get(channel);
+		if (list == null) {
+			return;
+		}
+		for (Handler handler : list) {
+			try {
+				handler.onNotification(payload);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Notification handler failed on channel " + channel, e);
+			}
+		}
+	}
+
+	private static void listen(Connection connection, String channel) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("LISTEN " + channel);
+		}
+	}
+
+	private static void checkChannel(String channel) {
+		if (channel == null || !CHANNEL_NAME.matcher(channel).matches()) {
+			throw new IllegalArgumentException("Invalid notification channel: " + channel);
+		}
+	}
+
+	private void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package utils;
+
+import java.util.Properties;
+
+/**
+ * The {@code PoolConfig} class holds the connection pool settings read from
+ * the {@code pool.*} keys of {@code application.properties}. Every key is
+ * optional and falls back to the defaults listed below.
+ *
+ * <ul>
+ * <li>{@code pool.implementation} - {@code c3p0} (default) or {@code lean}</li>
+ * <li>{@code pool.minSize} / {@code pool.maxSize} - pool bounds (5 / 20)</li>
+ * <li>{@code pool.acquireIncrement} - connections opened at a time by C3P0 (5)</li>
+ * <li>{@code pool.maxStatements} - prepared statements cached per connection,
+ * by either pool; 0 disables the cache of the lean pool (100)</li>
+ * <li>{@code pool.acquireTimeoutMillis} - how long {@code connect()} waits for
+ * a free connection before failing (30000)</li>
+ * <li>{@code pool.validationQuery} - query used to test connections; when
+ * empty, {@link java.sql.Connection#isValid(int)} is used</li>
+ * <li>{@code pool.validationTimeoutSeconds} - timeout of a validation (5)</li>
+ * <li>{@code pool.testOnCheckout} - have C3P0 validate every connection it
+ * lends; when {@code false} it validates them when they are returned and
+ * while idle instead (false). The lean pool validates a connection it lends
+ * whenever it has been idle for more than half a second.</li>
+ * <li>{@code pool.idleTestPeriodSeconds} - how often C3P0 validates idle
+ * connections; 0 disables it (60)</li>
+ * <li>{@code pool.leakDetectionThresholdMillis} - log connections held longer
+ * than this; 0 disables detection (0)</li>
+ * <li>{@code pool.maxLifetimeMillis} - retire connections older than this; 0
+ * keeps them forever (1800000)</li>
+ * </ul>
+ *
+ * <p>
+ * The pools of read replicas (see {@link #forReplica(Properties, String)})
+ * read the same keys prefixed with {@code replica.}, such as
+ * {@code replica.pool.maxSize} or {@code replica.database.username}, and fall
+ * back to the primary's value for any key that is not set.
+ * </p>
+ */
+public class PoolConfig {
+
+	private final String implementation;
+	private final String jdbcUrl;
+	private final String username;
+	private final String password;
+	private final int minSize;
+	private final int maxSize;
+	private final int acquireIncrement;
+	private final int maxStatements;
+	private final long acquireTimeoutMillis;
+	private final String validationQuery;
+	private final int validationTimeoutSeconds;
+	private final boolean testOnCheckout;
+	private final int idleTestPeriodSeconds;
+	private final long leakDetectionThresholdMillis;
+	private final long maxLifetimeMillis;
+
+	private PoolConfig(Properties properties, String prefix, String jdbcUrl) {
+		this.implementation = property(properties, prefix, "pool.implementation", "c3p0").trim();
+		this.jdbcUrl = jdbcUrl;
+		this.username = property(properties, prefix, "database.username", null);
+		this.password = property(properties, prefix, "database.password", null);
+		this.minSize = intValue(properties, prefix, "pool.minSize", 5);
+		this.maxSize = intValue(properties, prefix, "pool.maxSize", 20);
+		this.acquireIncrement = intValue(properties, prefix, "pool.acquireIncrement", 5);
+		this.maxStatements = intValue(properties, prefix, "pool.maxStatements", 100);
+		this.acquireTimeoutMillis = longValue(properties, prefix, "pool.acquireTimeoutMillis", 30000L);
+		this.validationQuery = property(properties, prefix, "pool.validationQuery", "").trim();
+		this.validationTimeoutSeconds = intValue(properties, prefix, "pool.validationTimeoutSeconds", 5);
+		this.testOnCheckout = Boolean.parseBoolean(property(properties, prefix, "pool.testOnCheckout", "false").trim());
+		this.idleTestPeriodSeconds = intValue(properties, prefix, "pool.idleTestPeriodSeconds", 60);
+		this.leakDetectionThresholdMillis = longValue(properties, prefix, "pool.leakDetectionThresholdMillis", 0L);
+		this.maxLifetimeMillis = longValue(properties, prefix, "pool.maxLifetimeMillis", 1800000L);
+
+		if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+			throw new IllegalArgumentException(
+					"Invalid pool bounds: pool.minSize=" + minSize + ", pool.maxSize=" + maxSize);
+		}
+	}
+
+	/**
+	 * Reads the pool settings.
+	 *
+	 * @param properties the loaded {@code application.properties}
+	 * @return the settings
+	 * @throws IllegalArgumentException if a value is missing or invalid
+	 */
+	public static PoolConfig fromProperties(Properties properties) {
+		return new PoolConfig(properties, "", required(properties, "database.url"));
+	}
+
+	/**
+	 * Reads the pool settings of a read replica.
+	 *
+	 * @param properties the loaded {@code application.properties}
+	 * @param jdbcUrl    the URL of the replica
+	 * @return the settings
+	 * @throws IllegalArgumentException if a value is invalid
+	 */
+	public static PoolConfig forReplica(Properties properties, String jdbcUrl) {
+		return new PoolConfig(properties, "replica.", jdbcUrl);
+	}
+
+	public String getImplementation() {
+		return implementation;
+	}
+
+	public String getJdbcUrl() {
+		return jdbcUrl;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getAcquireIncrement() {
+		return acquireIncrement;
+	}
+
+	public int getMaxStatements() {
+		return maxStatements;
+	}
+
+	public long getAcquireTimeoutMillis() {
+		return acquireTimeoutMillis;
+	}
+
+	public String getValidationQuery() {
+		return validationQuery;
+	}
+
+	public int getValidationTimeoutSeconds() {
+		return validationTimeoutSeconds;
+	}
+
+	public boolean isTestOnCheckout() {
+		return testOnCheckout;
+	}
+
+	public int getIdleTestPeriodSeconds() {
+		return idleTestPeriodSeconds;
+	}
+
+	public long getLeakDetectionThresholdMillis() {
+		return leakDetectionThresholdMillis;
+	}
+
+	public long getMaxLifetimeMillis() {
+		return maxLifetimeMillis;
+	}
+
+	private static String required(Properties properties, String key) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			throw new IllegalArgumentException("Missing required property " + key);
+		}
+		return value.trim();
+	}
+
+	private static String property(Properties properties, String prefix, String key, String defaultValue) {
+		String value = prefix.isEmpty() ? null : properties.getProperty(prefix + key);
+		return value != null ? value : properties.getProperty(key, defaultValue);
+	}
+
+	private static int intValue(Properties properties, String prefix, String key, int defaultValue) {
+		return (int) longValue(properties, prefix, key, defaultValue);
+	}
+
+	private static long longValue(Properties properties, String prefix, String key, long defaultValue) {
+		String value = property(properties, prefix, key, null);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			String source = !prefix.isEmpty() && properties.getProperty(prefix + key) != null ? prefix + key : key;
+			throw new IllegalArgumentException("Invalid value for " + source + ": " + value, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PoolConfig{" +
+				"implementation='" + implementation + '\'' +
+				", jdbcUrl='" + jdbcUrl + '\'' +
+				", minSize=" + minSize +
+				", maxSize=" + maxSize +
+				", acquireIncrement=" + acquireIncrement +
+				", maxStatements=" + maxStatements +
+				", acquireTimeoutMillis=" + acquireTimeoutMillis +
+				", validationQuery='" + validationQuery + '\'' +
+				", validationTimeoutSeconds=" + validationTimeoutSeconds +
+				", testOnCheckout=" + testOnCheckout +
+				", idleTestPeriodSeconds=" + idleTestPeriodSeconds +
+				", leakDetectionThresholdMillis=" + leakDetectionThresholdMillis +
+				", maxLifetimeMillis=" + maxLifetimeMillis +
+				'}';
+	}
+}
@@ -0,0 +1,64 @@
+package utils;
+
+import java.sql.Connection;
+import java.util.function.Supplier;
+
+/**
+ * The server a read-only operation runs on: a read replica chosen by
+ * {@link DatabaseUtility#readRoute()}, or the primary. An operation that
+ * needs all of its connections on the same server, such as parallel queries
+ * sharing an exported snapshot, takes one route and opens every connection
+ * from it; a connection that cannot be opened then fails instead of falling
+ * back to another server.
+ *
+ * <p>
+ * Usage example:
+ * </p>
+ *
+ * <pre>{@code
+ * ReadRoute route = DatabaseUtility.readRoute();
+ * Connection coordinator = route.connect();
+ * Connection worker = route.connect(); // same server as the coordinator
+ * }</pre>
+ */
+public final class ReadRoute {
+
+	private final String name;
+	private final boolean replica;
+	private final Supplier<Connection> opener;
+
+	ReadRoute(String name, boolean replica, Supplier<Connection> opener) {
+		this.name = name;
+		this.replica = replica;
+		this.opener = opener;
+	}
+
+	/**
+	 * Opens a pooled connection to the route's server.
+	 *
+	 * @return the connection, never {@code null}
+	 * @throws DatabaseUnavailableException if no connection could be obtained
+	 */
+	public Connection connect() {
+		return opener.get();
+	}
+
+	/**
+	 * @return {@code true} if the route leads to a read replica
+	 */
+	public boolean isReplica() {
+		return replica;
+	}
+
+	/**
+	 * @return {@code primary} or the name of the replica
+	 */
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return "ReadRoute{" + name + '}';
+	}
+}
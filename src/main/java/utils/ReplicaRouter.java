@@ -0,0 +1,300 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@code ReplicaRouter} class routes read-only operations between the
+ * primary and the read replicas listed in {@code replica.urls}, each with its
+ * own pool (see {@link PoolConfig#forReplica(Properties, String)}).
+ *
+ * <p>
+ * Every {@code replica.checkIntervalMillis} a background thread reads the
+ * WAL insert position of the primary and the replay position of every
+ * replica. A replica is healthy while it answers, is still in recovery and
+ * lags the primary by at most {@code replica.maxLagBytes}; a replica whose
+ * connection fails is marked unhealthy at once. A replica is not used before
+ * its lag has been measured once; while the primary's position cannot be
+ * read, the last measured lag stands. Reads are spread round-robin
+ * over the healthy replicas and go to the primary when there is none.
+ * </p>
+ *
+ * <p>
+ * A thread may require a WAL position, typically the one returned by
+ * {@link #currentWritePosition()} after the caller's last write: only
+ * replicas known to have replayed that position are used for it, so a client
+ * reads its own writes. Replay positions are sampled, so a replica is at
+ * least as far as recorded and never used too early.
+ * </p>
+ */
+final class ReplicaRouter implements AutoCloseable {
+
+	/**
+	 * Creates a pool from its settings.
+	 */
+	@FunctionalInterface
+	interface PoolFactory {
+		ConnectionPool create(PoolConfig config) throws Exception;
+	}
+
+	/** Required position that no replica satisfies. */
+	static final long PRIMARY_ONLY = Long.MAX_VALUE;
+
+	private static final Logger LOGGER = Logger.getLogger(ReplicaRouter.class.getName());
+	private static final String POSITION_SQL = "SELECT pg_current_wal_insert_lsn()::text";
+	private static final String REPLICA_STATUS_SQL = "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn()::text";
+	private static final int CHECK_TIMEOUT_SECONDS = 5;
+	private static final ThreadLocal<Long> REQUIRED_POSITION = new ThreadLocal<>();
+
+	private final ConnectionPool primary;
+	private final ReadRoute primaryRoute;
+	private final List<Replica> replicas;
+	private final long maxLagBytes;
+	private final ScheduledExecutorService checker;
+	private final AtomicInteger next = new AtomicInteger();
+	private final LongAdder replicaReads = Metrics.counter("replica.reads");
+	private final LongAdder primaryReads = Metrics.counter("replica.primaryReads");
+	private final LongAdder fallbacks = Metrics.counter("replica.fallbacks");
+
+	private ReplicaRouter(ConnectionPool primary, List<Replica> replicas, long maxLagBytes, long checkIntervalMillis) {
+		this.primary = primary;
+		this.primaryRoute = new ReadRoute("primary", false, DatabaseUtility::connect);
+		this.replicas = replicas;
+		this.maxLagBytes = maxLagBytes;
+		Metrics.gauge("replica.healthy", () -> replicas.stream().filter(replica -> replica.healthy).count());
+		for (Replica replica : replicas) {
+			Metrics.gauge("replica." + replica.name + ".lagBytes", () -> replica.lagBytes);
+		}
+		this.checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "replica-health-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		checker.scheduleWithFixedDelay(this::check, 0L, checkIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates the replica pools listed in {@code replica.urls} and starts
+	 * checking them.
+	 *
+	 * @param properties the loaded {@code application.properties}
+	 * @param primary    the primary pool
+	 * @param factory    creates each replica pool
+	 * @return the router, or {@code null} if no replica is configured
+	 * @throws Exception if a replica pool cannot be created
+	 */
+	static ReplicaRouter fromProperties(Properties properties, ConnectionPool primary, PoolFactory factory) throws Exception {
+		List<Replica> replicas = new ArrayList<>();
+		for (String url : properties.getProperty("replica.urls", "").split(",")) {
+			if (!url.trim().isEmpty()) {
+				PoolConfig config = PoolConfig.forReplica(properties, url.trim());
+				replicas.add(new Replica("replica" + (replicas.size() + 1), factory.create(config)));
+				LOGGER.info("Initialized read replica pool: " + config);
+			}
+		}
+		if (replicas.isEmpty()) {
+			return null;
+		}
+		long maxLagBytes = longProperty(properties, "replica.maxLagBytes", 16L * 1024 * 1024);
+		long checkIntervalMillis = Math.max(100L, longProperty(properties, "replica.checkIntervalMillis", 2000L));
+		return new ReplicaRouter(primary, Collections.unmodifiableList(replicas), maxLagBytes, checkIntervalMillis);
+	}
+
+	/**
+	 * Chooses where the calling thread reads.
+	 *
+	 * @return a healthy replica that has replayed the required position, or
+	 *         the primary
+	 */
+	ReadRoute route() {
+		Long required = REQUIRED_POSITION.get();
+		int size = replicas.size();
+		int start = Math.floorMod(next.getAndIncrement(), size);
+		for (int i = 0; i < size; i++) {
+			Replica replica = replicas.get((start + i) % size);
+			if (replica.healthy && (required == null || replica.replayed >= required)) {
+				replicaReads.increment();
+				return replica.route;
+			}
+		}
+		primaryReads.increment();
+		return primaryRoute;
+	}
+
+	/**
+	 * Opens a connection for a single read-only operation, falling back to
+	 * the primary if the chosen replica cannot be reached.
+	 *
+	 * @return the connection
+	 */
+	Connection connect() {
+		ReadRoute route = route();
+		if (!route.isReplica()) {
+			return route.connect();
+		}
+		try {
+			return route.connect();
+		} catch (DatabaseUnavailableException e) {
+			fallbacks.increment();
+			return primaryRoute.connect();
+		}
+	}
+
+	/**
+	 * Reads the primary's current WAL position, which covers every write
+	 * committed so far.
+	 *
+	 * @return the position
+	 * @throws SQLException if the primary cannot be queried
+	 */
+	String currentWritePosition() throws SQLException {
+		try (Connection connection = primary.getConnection();
+				Statement statement = connection.createStatement();
+				ResultSet resultSet = statement.executeQuery(POSITION_SQL)) {
+			resultSet.next();
+			return resultSet.getString(1);
+		}
+	}
+
+	/**
+	 * Sets the WAL position the calling thread's reads must see.
+	 *
+	 * @param position a position as PostgreSQL prints it, {@code null} for
+	 *                 none; anything else routes every read to the primary
+	 */
+	static void requirePosition(String position) {
+		if (position == null) {
+			REQUIRED_POSITION.remove();
+		} else {
+			REQUIRED_POSITION.set(parse(position));
+		}
+	}
+
+	@Override
+	public void close() {
+		checker.shutdownNow();
+		for (Replica replica : replicas) {
+			replica.pool.close();
+		}
+	}
+
+	private void check() {
+		long primaryPosition = -1L;
+		try (Connection connection = primary.getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.setQueryTimeout(CHECK_TIMEOUT_SECONDS);
+			try (ResultSet resultSet = statement.executeQuery(POSITION_SQL)) {
+				resultSet.next();
+				primaryPosition = parse(resultSet.getString(1));
+			}
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "Could not read the primary WAL position; checking replica lag is skipped", e);
+		}
+		for (Replica replica : replicas) {
+			replica.check(primaryPosition, maxLagBytes);
+		}
+	}
+
+	/**
+	 * Parses a WAL position such as {@code 16/B374D848}.
+	 */
+	private static long parse(String position) {
+		int slash = position.indexOf('/');
+		try {
+			return slash < 0 ? PRIMARY_ONLY
+					: (Long.parseLong(position.substring(0, slash), 16) << 32) | Long.parseLong(position.substring(slash + 1), 16);
+		} catch (NumberFormatException e) {
+			return PRIMARY_ONLY;
+		}
+	}
+
+	private static long longProperty(Properties properties, String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.log(Level.WARNING, "Invalid value for property " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * One replica: its pool and what the last check found.
+	 */
+	private static final class Replica {
+		private final String name;
+		private final ConnectionPool pool;
+		private final ReadRoute route;
+		private volatile boolean healthy;
+		private volatile long replayed = -1L;
+		private volatile long lagBytes = -1L;
+
+		private Replica(String name, ConnectionPool pool) {
+			this.name = name;
+			this.pool = pool;
+			this.route = new ReadRoute(name, true, this::connect);
+		}
+
+		private Connection connect() {
+			try {
+				return DatabaseUtility.instrument(pool.getConnection());
+			} catch (SQLException e) {
+				markUnhealthy("its connection failed", e);
+				throw new DatabaseUnavailableException("Unable to obtain a connection to read " + name, e);
+			}
+		}
+
+		private void check(long primaryPosition, long maxLagBytes) {
+			try (Connection connection = pool.getConnection();
+					Statement statement = connection.createStatement()) {
+				statement.setQueryTimeout(CHECK_TIMEOUT_SECONDS);
+				try (ResultSet resultSet = statement.executeQuery(REPLICA_STATUS_SQL)) {
+					resultSet.next();
+					String position = resultSet.getString(2);
+					if (!resultSet.getBoolean(1) || position == null) {
+						markUnhealthy("it is not in recovery", null);
+						return;
+					}
+					replayed = parse(position);
+				}
+			} catch (SQLException | RuntimeException e) {
+				markUnhealthy("its health check failed", e);
+				return;
+			}
+			if (primaryPosition >= 0L) {
+				lagBytes = Math.max(0L, primaryPosition - replayed);
+			}
+			if (lagBytes < 0L) {
+				markUnhealthy("its lag behind the primary is not known", null);
+			} else if (lagBytes > maxLagBytes) {
+				markUnhealthy("it lags the primary by " + lagBytes + " bytes", null);
+			} else if (!healthy) {
+				healthy = true;
+				LOGGER.info("Read replica " + name + " is healthy; routing reads to it");
+			}
+		}
+
+		private void markUnhealthy(String reason, Exception cause) {
+			if (healthy) {
+				healthy = false;
+				LOGGER.log(Level.WARNING, "Read replica " + name + " is unhealthy because " + reason + "; reading from the other servers", cause);
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives a tabular report one row at a time so it can be rendered while it
+ * is being produced, without holding the whole report in memory.
+ *
+ * <p>
+ * Calls arrive in the order {@code beginReport}, then for each section
+ * {@code beginSection}, any number of {@code row} and {@code endSection}, and
+ * finally {@code endReport}. Row values are JDBC values ({@code Number},
+ * {@code Boolean}, {@code java.sql.Date}, {@code java.sql.Timestamp},
+ * {@code String} or {@code null}); anything else is rendered with
+ * {@code toString()}.
+ * </p>
+ */
+public interface ReportWriter {
+
+	/**
+	 * Starts the report.
+	 *
+	 * @param title      the report title
+	 * @param attributes descriptive attributes such as the reporting period, in
+	 *                   display order
+	 * @throws IOException if the output cannot be written
+	 */
+	void beginReport(String title, Map<String, String> attributes) throws IOException;
+
+	/**
+	 * Starts a section.
+	 *
+	 * @param name    the section name
+	 * @param columns the column labels
+	 * @throws IOException if the output cannot be written
+	 */
+	void beginSection(String name, List<String> columns) throws IOException;
+
+	/**
+	 * Writes one row of the current section.
+	 *
+	 * @param values the values, one per column
+	 * @throws IOException if the output cannot be written
+	 */
+	void row(Object[] values) throws IOException;
+
+	/**
+	 * Ends the current section.
+	 *
+	 * @throws IOException if the output cannot be written
+	 */
+	void endSection() throws IOException;
+
+	/**
+	 * Ends the report and flushes the output. The underlying stream is not
+	 * closed.
+	 *
+	 * @throws IOException if the output cannot be written
+	 */
+	void endReport() throws IOException;
+}
@@ -0,0 +1,29 @@
+package utils;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to an object. Mappers are stateless and
+ * can be kept in constants and shared between queries and threads.
+ *
+ * @param <T> the mapped type
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+	/**
+	 * Maps the current row. The mapper must not move the cursor or close the
+	 * result set.
+	 *
+	 * @param resultSet a result set positioned on a row
+	 * @return the mapped object
+	 * @throws SQLException if a column cannot be read
+	 */
+	T map(ResultSet resultSet) throws SQLException;
+
+	/**
+	 * Maps the first column of the row as an {@code int}.
+	 */
+	RowMapper<Integer> FIRST_INT = resultSet -> resultSet.getInt(1);
+}
@@ -0,0 +1,169 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The {@code TimingWheel} class is a hierarchical timing wheel that holds
+ * tasks until their deadline.
+ *
+ * <p>
+ * The lowest wheel has {@code wheelSize} buckets of {@code tickMillis} each;
+ * every further wheel has buckets as wide as one full turn of the wheel below
+ * it and is created only when a deadline is that far away. Scheduling a task
+ * and expiring a bucket are constant-time regardless of how many tasks are
+ * held. When a bucket of a higher wheel comes due, its tasks are cascaded into
+ * the finer wheels. A bucket expires once its whole tick has passed, so a task
+ * never fires before its deadline and at most one tick after it.
+ * </p>
+ *
+ * <p>
+ * Deadlines are in epoch milliseconds. The wheel does not keep time itself:
+ * the owner calls {@link #advance(long, Consumer)} periodically, typically
+ * once per tick, and receives the expired tasks. All methods are thread-safe.
+ * </p>
+ *
+ * @param <T> the task type
+ */
+public final class TimingWheel<T> {
+
+	private static final class Timeout<T> {
+		private final long deadline;
+		private final T task;
+
+		private Timeout(long deadline, T task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	private final class Level {
+		private final long tick;
+		private final long interval;
+		private final ArrayDeque<Timeout<T>>[] buckets;
+		private long currentTime;
+		private Level overflow;
+
+		@SuppressWarnings("unchecked")
+		private Level(long tick, long startTime) {
+			this.tick = tick;
+			this.interval = tick * wheelSize;
+			this.buckets = new ArrayDeque[wheelSize];
+			this.currentTime = startTime - (startTime % tick);
+		}
+
+		private boolean add(Timeout<T> timeout) {
+			if (timeout.deadline < currentTime) {
+				return false;
+			}
+			if (timeout.deadline < currentTime + interval) {
+				int index = (int) ((timeout.deadline / tick) % wheelSize);
+				if (buckets[index] == null) {
+					buckets[index] = new ArrayDeque<>();
+				}
+				buckets[index].add(timeout);
+				return true;
+			}
+			if (overflow == null) {
+				overflow = new Level(interval, currentTime);
+			}
+			return overflow.add(timeout);
+		}
+
+		private ArrayDeque<Timeout<T>> take(long time) {
+			int index = (int) ((time / tick) % wheelSize);
+			ArrayDeque<Timeout<T>> bucket = buckets[index];
+			buckets[index] = null;
+			return bucket;
+		}
+	}
+
+	private final int wheelSize;
+	private final Level root;
+	private final List<Timeout<T>> ready = new ArrayList<>();
+	private int size;
+
+	/**
+	 * Creates a timing wheel.
+	 *
+	 * @param tickMillis the resolution of the lowest wheel
+	 * @param wheelSize  the number of buckets per wheel
+	 * @param startTime  the current time in epoch milliseconds
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, long startTime) {
+		if (tickMillis <= 0 || wheelSize < 2) {
+			throw new IllegalArgumentException("Invalid timing wheel: tick=" + tickMillis + ", size=" + wheelSize);
+		}
+		this.wheelSize = wheelSize;
+		this.root = new Level(tickMillis, startTime);
+	}
+
+	/**
+	 * Schedules a task. A deadline in the past makes the task fire on the next
+	 * {@link #advance(long, Consumer)}.
+	 *
+	 * @param deadline the deadline in epoch milliseconds
+	 * @param task     the task
+	 */
+	public synchronized void schedule(long deadline, T task) {
+		Timeout<T> timeout = new Timeout<>(deadline, task);
+		if (!root.add(timeout)) {
+			ready.add(timeout);
+		}
+		size++;
+	}
+
+	/**
+	 * Moves the wheel forward to {@code now} and hands every task whose
+	 * deadline has passed to {@code expired}, on the calling thread.
+	 *
+	 * @param now     the current time in epoch milliseconds
+	 * @param expired receives the expired tasks
+	 * @return the number of expired tasks
+	 */
+	public int advance(long now, Consumer<? super T> expired) {
+		List<T> due = new ArrayList<>();
+		synchronized (this) {
+			while (root.currentTime + root.tick <= now) {
+				ArrayDeque<Timeout<T>> bucket = root.take(root.currentTime);
+				if (bucket != null) {
+					ready.addAll(bucket);
+				}
+				root.currentTime += root.tick;
+				cascade(root.overflow, root.currentTime);
+			}
+			for (Timeout<T> timeout : ready) {
+				due.add(timeout.task);
+			}
+			ready.clear();
+			size -= due.size();
+		}
+		due.forEach(expired);
+		return due.size();
+	}
+
+	/**
+	 * @return the number of tasks waiting for their deadline
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void cascade(Level level, long time) {
+		if (level == null || time % level.tick != 0) {
+			return;
+		}
+		level.currentTime = time;
+		cascade(level.overflow, time);
+		ArrayDeque<Timeout<T>> bucket = level.take(time);
+		if (bucket != null) {
+			for (Timeout<T> timeout : bucket) {
+				if (!root.add(timeout)) {
+					ready.add(timeout);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A {@link Writer} that encodes UTF-8 straight into an {@link OutputStream}
+ * through a byte buffer owned by the calling thread, for responses written by
+ * pooled request threads. Unlike an {@link java.io.OutputStreamWriter}, it
+ * allocates no encoder and no buffers per response, and it encodes strings
+ * without copying them into a {@code char[]} first.
+ *
+ * <p>
+ * The buffer is lent to one writer at a time per thread: a second writer
+ * opened on the same thread while the first is still open gets a buffer of
+ * its own. Instances are not thread-safe.
+ * </p>
+ */
+public final class Utf8StreamWriter extends Writer {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Leaves room for the longest encoded character, four bytes for a
+	 * surrogate pair.
+	 */
+	private static final int FLUSH_AT = BUFFER_SIZE - 4;
+
+	private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+	private final OutputStream output;
+	private byte[] buffer;
+	private int position;
+	private char pendingHighSurrogate;
+
+	/**
+	 * @param output the stream to write to
+	 */
+	public Utf8StreamWriter(OutputStream output) {
+		this.output = output;
+		this.buffer = BUFFERS.get();
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		} else {
+			BUFFERS.set(null);
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		encode((char) c);
+	}
+
+	@Override
+	public void write(char[] chars, int offset, int length) throws IOException {
+		ensureOpen();
+		for (int i = offset; i < offset + length; i++) {
+			encode(chars[i]);
+		}
+	}
+
+	@Override
+	public void write(String text, int offset, int length) throws IOException {
+		ensureOpen();
+		for (int i = offset; i < offset + length; i++) {
+			encode(text.charAt(i));
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		drain();
+		output.flush();
+	}
+
+	/**
+	 * Flushes and closes the stream and returns the buffer to the thread. A
+	 * high surrogate still waiting for its pair is written as {@code ?}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buffer == null) {
+			return;
+		}
+		try {
+			if (pendingHighSurrogate != 0) {
+				pendingHighSurrogate = 0;
+				buffer[position++] = '?';
+			}
+			drain();
+			output.close();
+		} finally {
+			BUFFERS.set(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Returns the buffer to the thread without writing what it still holds
+	 * and without closing the stream, for output abandoned after an error
+	 * that the caller reports otherwise.
+	 */
+	public void discard() {
+		if (buffer != null) {
+			BUFFERS.set(buffer);
+			buffer = null;
+			position = 0;
+		}
+	}
+
+	private void encode(char c) throws IOException {
+		if (position >= FLUSH_AT) {
+			drain();
+		}
+		if (pendingHighSurrogate != 0) {
+			char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+				return;
+			}
+			buffer[position++] = '?';
+		}
+		if (c < 0x80) {
+			buffer[position++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[position++] = (byte) (0xC0 | (c >> 6));
+			buffer[position++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c)) {
+			pendingHighSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buffer[position++] = '?';
+		} else {
+			buffer[position++] = (byte) (0xE0 | (c >> 12));
+			buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[position++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void drain() throws IOException {
+		if (position > 0) {
+			output.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (buffer == null) {
+			throw new IOException("Writer closed");
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package dao;
+
+import model.AuditEntry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how {@link AuditReplayQueue} hands out entries when the in-memory
+ * queue overflows and after a restart, against a temporary spill log.
+ */
+public class AuditReplayQueueTest extends TestCase {
+
+    private Path directory;
+    private AuditSpillLog log;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("audit-replay-test");
+        log = new AuditSpillLog(directory);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public void testOverflowedEntriesAreReplayedFromLogOnce() throws IOException {
+        AuditReplayQueue queue = new AuditReplayQueue(log, 2);
+        assertTrue(next(queue).isEmpty());
+
+        assertTrue(queue.append(1000L, 1, "CREATE", "1"));
+        assertTrue(queue.append(2000L, 1, "CREATE", "2"));
+        assertFalse(queue.append(3000L, 1, "CREATE", "3"));
+        assertFalse(queue.append(4000L, 1, "CREATE", "4"));
+        assertFalse(queue.append(5000L, 1, "CREATE", "5"));
+        assertTrue(queue.isReplayPending());
+
+        List<AuditEntry> replayed = next(queue);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), AuditSpillLogTest.sequences(replayed));
+        queue.completed(replayed);
+
+        // the queued copies of 1 and 2 were written by the replay
+        assertTrue(next(queue).isEmpty());
+        assertTrue(queue.append(6000L, 1, "CREATE", "6"));
+        List<AuditEntry> queued = next(queue);
+        assertEquals(List.of(6L), AuditSpillLogTest.sequences(queued));
+        queue.completed(queued);
+        assertEquals(0L, log.getBacklog());
+        assertFalse(queue.isReplayPending());
+    }
+
+    public void testOverflowAfterQueuedBatchReplaysOnlyTheRest() throws IOException {
+        AuditReplayQueue queue = new AuditReplayQueue(log, 2);
+        assertTrue(next(queue).isEmpty());
+
+        queue.append(1000L, 1, "CREATE", "1");
+        queue.append(2000L, 1, "CREATE", "2");
+        List<AuditEntry> queued = next(queue);
+        assertEquals(List.of(1L, 2L), AuditSpillLogTest.sequences(queued));
+        queue.completed(queued);
+
+        assertTrue(queue.append(3000L, 1, "CREATE", "3"));
+        assertTrue(queue.append(4000L, 1, "CREATE", "4"));
+        assertFalse(queue.append(5000L, 1, "CREATE", "5"));
+        List<AuditEntry> replayed = next(queue);
+        assertEquals(List.of(3L, 4L, 5L), AuditSpillLogTest.sequences(replayed));
+        queue.completed(replayed);
+        assertTrue(next(queue).isEmpty());
+        assertEquals(0L, log.getBacklog());
+    }
+
+    public void testUnflushedEntriesAreReplayedAfterRestart() throws IOException {
+        AuditReplayQueue queue = new AuditReplayQueue(log, 8);
+        assertTrue(next(queue).isEmpty());
+        queue.append(1000L, 1, "CREATE", "1");
+        queue.append(2000L, 1, "CREATE", "2");
+        queue.append(3000L, 1, "CREATE", "3");
+        List<AuditEntry> first = new ArrayList<>();
+        queue.fill(first, 1);
+        queue.completed(first);
+        // the JVM stops before the rest is written
+        log.close();
+        log = new AuditSpillLog(directory);
+
+        AuditReplayQueue restarted = new AuditReplayQueue(log, 8);
+        assertTrue(restarted.isReplayPending());
+        List<AuditEntry> replayed = next(restarted);
+        assertEquals(List.of(2L, 3L), AuditSpillLogTest.sequences(replayed));
+        assertEquals(2000L, replayed.get(0).getRecordedAt());
+        restarted.completed(replayed);
+        assertTrue(next(restarted).isEmpty());
+    }
+
+    private static List<AuditEntry> next(AuditReplayQueue queue) throws IOException {
+        List<AuditEntry> batch = new ArrayList<>();
+        queue.fill(batch, 10);
+        return batch;
+    }
+}
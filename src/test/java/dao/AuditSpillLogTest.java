@@ -0,0 +1,137 @@
+package dao;
+
+import model.AuditEntry;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link AuditSpillLog} against a temporary spill directory, including
+ * recovery from records torn or corrupted by a crash.
+ */
+public class AuditSpillLogTest extends TestCase {
+
+    private Path directory;
+    private AuditSpillLog log;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("audit-spill-test");
+        log = new AuditSpillLog(directory);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public void testEntriesAreReadBackAfterSequence() throws IOException {
+        log.append(1000L, 7, "CREATE", "first");
+        log.append(2000L, 8, "UPDATE", "zweite \u00e4nderung");
+        log.append(3000L, 9, "DELETE", "");
+
+        List<AuditEntry> entries = log.readAfter(1L, 10);
+        assertEquals(2, entries.size());
+        AuditEntry second = entries.get(0);
+        assertEquals(2L, second.getSequence());
+        assertEquals(2000L, second.getRecordedAt());
+        assertEquals(8, second.getUserId());
+        assertEquals("UPDATE", second.getActionType());
+        assertEquals("zweite \u00e4nderung", second.getDescription());
+        assertEquals(3L, entries.get(1).getSequence());
+        assertEquals(1, log.readAfter(0L, 1).size());
+    }
+
+    public void testEntriesPastCheckpointSurviveRestart() throws IOException {
+        log.append(1000L, 1, "CREATE", "a");
+        log.append(2000L, 1, "CREATE", "b");
+        log.append(3000L, 1, "CREATE", "c");
+        log.checkpoint(1L);
+        reopen();
+
+        assertEquals(1L, log.getCheckpoint());
+        assertEquals(2L, log.getBacklog());
+        assertEquals(List.of(2L, 3L), sequences(log.readAfter(1L, 10)));
+        assertEquals(4L, log.append(4000L, 1, "CREATE", "d").getSequence());
+    }
+
+    public void testTornTailIsDroppedOnOpen() throws IOException {
+        log.append(1000L, 1, "CREATE", "kept");
+        log.append(2000L, 1, "CREATE", "torn by a crash");
+        log.close();
+        Path file = directory.resolve("audit-spill.log");
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.setLength(raw.length() - 3);
+        }
+        log = new AuditSpillLog(directory);
+
+        assertEquals(1L, log.getBacklog());
+        assertEquals(List.of(1L), sequences(log.readAfter(0L, 10)));
+        assertEquals(2L, log.append(3000L, 1, "CREATE", "after recovery").getSequence());
+        assertEquals(List.of(1L, 2L), sequences(log.readAfter(0L, 10)));
+        assertEquals("after recovery", log.readAfter(1L, 10).get(0).getDescription());
+    }
+
+    public void testRecordWithBadChecksumIsDroppedOnOpen() throws IOException {
+        log.append(1000L, 1, "CREATE", "kept");
+        log.append(2000L, 1, "CREATE", "corrupted");
+        log.close();
+        Path file = directory.resolve("audit-spill.log");
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(raw.length() - 1);
+            int last = raw.read();
+            raw.seek(raw.length() - 1);
+            raw.write(last ^ 0xFF);
+        }
+        log = new AuditSpillLog(directory);
+
+        assertEquals(List.of(1L), sequences(log.readAfter(0L, 10)));
+        assertEquals(2L, log.append(3000L, 1, "CREATE", "replacement").getSequence());
+    }
+
+    public void testCheckpointTruncatesCaughtUpLog() throws IOException {
+        log.append(1000L, 1, "CREATE", "a");
+        log.append(2000L, 1, "CREATE", "b");
+        log.checkpoint(2L);
+
+        assertEquals(0L, Files.size(directory.resolve("audit-spill.log")));
+        assertEquals("2", new String(Files.readAllBytes(directory.resolve("audit-spill.checkpoint")), StandardCharsets.US_ASCII));
+        assertFalse(Files.exists(directory.resolve("audit-spill.checkpoint.tmp")));
+        assertEquals(0L, log.getBacklog());
+
+        reopen();
+        assertEquals(2L, log.getCheckpoint());
+        assertTrue(log.readAfter(0L, 10).isEmpty());
+        assertEquals(3L, log.append(3000L, 1, "CREATE", "c").getSequence());
+    }
+
+    public void testOlderCheckpointIsIgnored() throws IOException {
+        log.append(1000L, 1, "CREATE", "a");
+        log.append(2000L, 1, "CREATE", "b");
+        log.checkpoint(2L);
+        log.checkpoint(1L);
+        assertEquals(2L, log.getCheckpoint());
+    }
+
+    private void reopen() throws IOException {
+        log.close();
+        log = new AuditSpillLog(directory);
+    }
+
+    static List<Long> sequences(List<AuditEntry> entries) {
+        return entries.stream().map(AuditEntry::getSequence).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,77 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link BoundedCache}.
+ */
+public class BoundedCacheTest extends TestCase {
+
+	private final BoundedCache<Integer, String> cache = new BoundedCache<>("test", 3, 60000L);
+
+	public void testLoadIsStoredAndServedFromCache() throws Exception {
+		assertEquals("one", cache.get(1, key -> "one"));
+		assertEquals("one", cache.get(1, key -> "reloaded"));
+		assertEquals(1, cache.size());
+	}
+
+	public void testLoadOfInvalidatedKeyIsNotStored() throws Exception {
+		assertEquals("stale", cache.get(1, key -> {
+			cache.invalidate(1);
+			return "stale";
+		}));
+		assertNull(cache.getIfPresent(1));
+		assertEquals("fresh", cache.get(1, key -> "fresh"));
+		assertEquals("fresh", cache.getIfPresent(1));
+	}
+
+	public void testInvalidationOfOtherKeyDoesNotRefuseLoad() throws Exception {
+		cache.put(2, "two");
+		assertEquals("one", cache.get(1, key -> {
+			cache.invalidate(2);
+			return "one";
+		}));
+		assertEquals("one", cache.getIfPresent(1));
+		assertNull(cache.getIfPresent(2));
+		assertEquals(1, cache.size());
+	}
+
+	public void testBulkLoadRefusesOnlyInvalidatedKeys() throws Exception {
+		Map<Integer, String> loaded = cache.getAll(Arrays.asList(1, 2), keys -> {
+			cache.invalidate(2);
+			Map<Integer, String> values = new HashMap<>();
+			values.put(1, "one");
+			values.put(2, "stale");
+			return values;
+		});
+		assertEquals(2, loaded.size());
+		assertEquals("one", cache.getIfPresent(1));
+		assertNull(cache.getIfPresent(2));
+	}
+
+	public void testInvalidateAllRefusesEveryRunningLoad() throws Exception {
+		assertEquals("stale", cache.get(1, key -> {
+			cache.invalidateAll();
+			return "stale";
+		}));
+		assertNull(cache.getIfPresent(1));
+		assertEquals(0, cache.size());
+	}
+
+	public void testEvictedMarkerStillRefusesLoadOfItsKey() throws Exception {
+		assertEquals("stale", cache.get(1, key -> {
+			cache.invalidate(1);
+			// pushes the marker of key 1 out of the three slots
+			cache.put(2, "two");
+			cache.put(3, "three");
+			cache.put(4, "four");
+			return "stale";
+		}));
+		assertNull(cache.getIfPresent(1));
+		assertEquals(3, cache.size());
+	}
+}
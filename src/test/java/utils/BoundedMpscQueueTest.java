@@ -0,0 +1,126 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link BoundedMpscQueue}.
+ */
+public class BoundedMpscQueueTest extends TestCase {
+
+	public void testCapacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(1, new BoundedMpscQueue<String>(1).capacity());
+		assertEquals(8, new BoundedMpscQueue<String>(5).capacity());
+		assertEquals(8, new BoundedMpscQueue<String>(8).capacity());
+	}
+
+	public void testInvalidCapacityIsRejected() {
+		try {
+			new BoundedMpscQueue<String>(0);
+			fail("A queue needs room for one element");
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+	}
+
+	public void testElementsAreTakenInOrder() {
+		BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(4);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertEquals(3, queue.size());
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertEquals(Integer.valueOf(1), queue.poll());
+		assertEquals(Integer.valueOf(2), queue.poll());
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+	}
+
+	public void testOfferFailsWhenFullAndSucceedsOnceDrained() {
+		BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(4));
+		assertEquals(4, queue.size());
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertTrue(queue.offer(4));
+		List<Integer> drained = new ArrayList<>();
+		assertEquals(4, queue.drain(drained::add, 10));
+		assertEquals(List.of(1, 2, 3, 4), drained);
+	}
+
+	public void testDrainStopsAtMax() {
+		BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(8);
+		for (int i = 0; i < 5; i++) {
+			queue.offer(i);
+		}
+		List<Integer> drained = new ArrayList<>();
+		assertEquals(2, queue.drain(drained::add, 2));
+		assertEquals(List.of(0, 1), drained);
+		assertEquals(3, queue.size());
+	}
+
+	public void testNullIsRejected() {
+		try {
+			new BoundedMpscQueue<String>(2).offer(null);
+			fail("Null marks an empty slot");
+		} catch (NullPointerException expected) {
+			// expected
+		}
+	}
+
+	public void testConcurrentProducersLoseNothing() throws Exception {
+		int producers = 8;
+		int perProducer = 20000;
+		BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(64);
+		ExecutorService executor = Executors.newFixedThreadPool(producers);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int p = 0; p < producers; p++) {
+				int producer = p;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < perProducer; i++) {
+						Integer element = producer * perProducer + i;
+						while (!queue.offer(element)) {
+							Thread.yield();
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			int[] next = new int[producers];
+			int taken = 0;
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60L);
+			while (taken < producers * perProducer) {
+				assertTrue("The consumer stalled", System.nanoTime() < deadline);
+				Integer element = queue.poll();
+				if (element == null) {
+					Thread.yield();
+					continue;
+				}
+				int producer = element / perProducer;
+				// each producer's elements arrive in the order it offered them
+				assertEquals(next[producer], element % perProducer);
+				next[producer]++;
+				taken++;
+			}
+			for (Future<?> future : futures) {
+				future.get(10L, TimeUnit.SECONDS);
+			}
+			assertNull(queue.poll());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package utils;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link LeanConnectionPool} against in-memory connections that record
+ * their session settings and fail if two borrowers use one at once.
+ */
+public class LeanConnectionPoolTest extends TestCase {
+
+	private final FakeDriver driver = new FakeDriver();
+	private LeanConnectionPool pool;
+
+	@Override
+	protected void tearDown() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	public void testReturnedConnectionIsReused() throws SQLException {
+		pool = pool(2, 1000L);
+		Connection first = pool.getConnection();
+		first.close();
+		Connection second = pool.getConnection();
+		second.close();
+		assertEquals(1, driver.opened.size());
+		assertEquals(0, pool.getBusyCount());
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	public void testSessionSettingsAreRestoredOnReturn() throws SQLException {
+		pool = pool(1, 1000L);
+		Connection connection = pool.getConnection();
+		connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+		connection.setReadOnly(true);
+		connection.setHoldability(ResultSet.HOLD_CURSORS_OVER_COMMIT);
+		connection.setCatalog("other");
+		connection.setSchema("audit");
+		connection.setAutoCommit(false);
+		connection.close();
+
+		FakeConnection physical = driver.opened.get(0);
+		assertEquals(1, physical.rollbacks.get());
+		assertTrue(physical.autoCommit);
+		assertEquals(Connection.TRANSACTION_READ_COMMITTED, physical.isolation);
+		assertFalse(physical.readOnly);
+		assertEquals(ResultSet.CLOSE_CURSORS_AT_COMMIT, physical.holdability);
+		assertEquals("qms", physical.catalog);
+		assertEquals("public", physical.schema);
+	}
+
+	public void testUnchangedSettingsAreNotReset() throws SQLException {
+		pool = pool(1, 1000L);
+		pool.getConnection().close();
+		assertEquals(0, driver.opened.get(0).settingsChanged.get());
+	}
+
+	public void testConnectionThatCannotBeResetIsRetired() throws SQLException {
+		pool = pool(1, 1000L);
+		Connection connection = pool.getConnection();
+		connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+		driver.opened.get(0).failSettings = true;
+		connection.close();
+
+		assertTrue(driver.opened.get(0).closed);
+		assertEquals(0, pool.getTotalCount());
+		pool.getConnection().close();
+		assertEquals(2, driver.opened.size());
+	}
+
+	public void testOnlyStatementsLeftOpenAreClosedOnReturn() throws SQLException {
+		pool = pool(1, 1000L);
+		Connection connection = pool.getConnection();
+		for (int i = 0; i < 100; i++) {
+			Statement statement = connection.createStatement();
+			assertSame(connection, statement.getConnection());
+			statement.close();
+		}
+		connection.createStatement();
+		connection.close();
+
+		FakeConnection physical = driver.opened.get(0);
+		assertEquals(101, physical.statements.size());
+		for (AtomicInteger closes : physical.statements) {
+			assertEquals(1, closes.get());
+		}
+	}
+
+	public void testClosedPreparedStatementIsReusedByNextBorrower() throws SQLException {
+		pool = pool(1, 1000L);
+		Connection connection = pool.getConnection();
+		PreparedStatement first = connection.prepareStatement("SELECT 1");
+		first.close();
+		assertTrue(first.isClosed());
+		try {
+			first.setInt(1, 1);
+			fail("A closed statement must not be usable");
+		} catch (SQLException expected) {
+			// expected
+		}
+		connection.close();
+		assertEquals(1, pool.getCachedStatementCount());
+
+		connection = pool.getConnection();
+		PreparedStatement second = connection.prepareStatement("SELECT 1");
+		assertSame(connection, second.getConnection());
+		assertEquals(0, pool.getCachedStatementCount());
+		connection.prepareStatement("SELECT 2");
+		second.close();
+		connection.close();
+
+		FakeConnection physical = driver.opened.get(0);
+		assertEquals(2, physical.statements.size());
+		// the cached statement stays open, the one left open is closed on return
+		assertEquals(0, physical.statements.get(0).get());
+		assertEquals(1, physical.statements.get(1).get());
+		assertEquals(1, pool.getCachedStatementCount());
+
+		pool.close();
+		assertEquals(1, physical.statements.get(0).get());
+		assertEquals(0, pool.getCachedStatementCount());
+	}
+
+	public void testReturnedHandleCannotBeUsed() throws SQLException {
+		pool = pool(1, 1000L);
+		Connection connection = pool.getConnection();
+		connection.close();
+		connection.close();
+		assertTrue(connection.isClosed());
+		try {
+			connection.createStatement();
+			fail("A returned connection must not be usable");
+		} catch (SQLException expected) {
+			// expected
+		}
+	}
+
+	public void testBorrowTimesOutWhenExhausted() throws SQLException {
+		pool = pool(1, 100L);
+		Connection held = pool.getConnection();
+		long start = System.nanoTime();
+		try {
+			pool.getConnection();
+			fail("The pool has no connection to lend");
+		} catch (SQLTransientConnectionException expected) {
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100L);
+		}
+		held.close();
+	}
+
+	public void testReturnedConnectionIsHandedToWaiter() throws Exception {
+		pool = pool(1, 5000L);
+		Connection held = pool.getConnection();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch waiting = new CountDownLatch(1);
+			Future<Connection> waiter = executor.submit(() -> {
+				waiting.countDown();
+				return pool.getConnection();
+			});
+			waiting.await();
+			while (pool.getWaitingCount() == 0) {
+				Thread.sleep(1L);
+			}
+			long start = System.nanoTime();
+			held.close();
+			long releaseMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			Connection handedOff = waiter.get(1L, TimeUnit.SECONDS);
+			assertTrue("Returning a connection must not wait for the waiter: " + releaseMillis + " ms", releaseMillis < 50L);
+			assertEquals(1, driver.opened.size());
+			assertEquals(1, pool.getBusyCount());
+			handedOff.close();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testConcurrentBorrowersNeverShareConnection() throws Exception {
+		int maxSize = 4;
+		int threads = 16;
+		int borrows = 500;
+		pool = pool(maxSize, 10000L);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<?>> futures = new CopyOnWriteArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < borrows; i++) {
+						try (Connection connection = pool.getConnection()) {
+							connection.setAutoCommit(false);
+							connection.commit();
+							if (i % 10 == 0) {
+								connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+							}
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(60L, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertFalse("A connection was lent to two borrowers at once", driver.shared.get());
+		assertTrue(driver.opened.size() <= maxSize);
+		assertEquals(0, pool.getBusyCount());
+		assertEquals(0, pool.getWaitingCount());
+		for (FakeConnection physical : driver.opened) {
+			assertEquals(Connection.TRANSACTION_READ_COMMITTED, physical.isolation);
+			assertTrue(physical.autoCommit);
+		}
+	}
+
+	public void testExpiredConnectionIsRetiredOnReturn() throws Exception {
+		Properties properties = properties(1, 1000L);
+		properties.setProperty("pool.maxLifetimeMillis", "1");
+		pool = new LeanConnectionPool(PoolConfig.fromProperties(properties), driver);
+		Connection connection = pool.getConnection();
+		Thread.sleep(5L);
+		connection.close();
+
+		assertTrue(driver.opened.get(0).closed);
+		assertEquals(0, pool.getTotalCount());
+	}
+
+	private LeanConnectionPool pool(int maxSize, long acquireTimeoutMillis) {
+		return new LeanConnectionPool(PoolConfig.fromProperties(properties(maxSize, acquireTimeoutMillis)), driver);
+	}
+
+	private static Properties properties(int maxSize, long acquireTimeoutMillis) {
+		Properties properties = new Properties();
+		properties.setProperty("database.url", "jdbc:postgresql://localhost/qms");
+		properties.setProperty("pool.minSize", "0");
+		properties.setProperty("pool.maxSize", Integer.toString(maxSize));
+		properties.setProperty("pool.acquireTimeoutMillis", Long.toString(acquireTimeoutMillis));
+		return properties;
+	}
+
+	/**
+	 * Opens {@link FakeConnection}s.
+	 */
+	private static final class FakeDriver implements Driver {
+		private final List<FakeConnection> opened = new CopyOnWriteArrayList<>();
+		private final AtomicBoolean shared = new AtomicBoolean();
+
+		@Override
+		public Connection connect(String url, Properties info) {
+			FakeConnection connection = new FakeConnection(shared);
+			opened.add(connection);
+			return connection.proxy;
+		}
+
+		@Override
+		public boolean acceptsURL(String url) {
+			return true;
+		}
+
+		@Override
+		public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+			return new DriverPropertyInfo[0];
+		}
+
+		@Override
+		public int getMajorVersion() {
+			return 1;
+		}
+
+		@Override
+		public int getMinorVersion() {
+			return 0;
+		}
+
+		@Override
+		public boolean jdbcCompliant() {
+			return false;
+		}
+
+		@Override
+		public Logger getParentLogger() {
+			return Logger.getGlobal();
+		}
+	}
+
+	/**
+	 * A physical connection that only keeps its session settings. Every call
+	 * marks it in use for its duration and flags overlapping calls.
+	 */
+	private static final class FakeConnection {
+		private final AtomicBoolean shared;
+		private final AtomicBoolean inUse = new AtomicBoolean();
+		private final AtomicInteger rollbacks = new AtomicInteger();
+		private final AtomicInteger settingsChanged = new AtomicInteger();
+		private final List<AtomicInteger> statements = new CopyOnWriteArrayList<>();
+		private final Connection proxy;
+		private volatile boolean autoCommit = true;
+		private volatile int isolation = Connection.TRANSACTION_READ_COMMITTED;
+		private volatile boolean readOnly;
+		private volatile int holdability = ResultSet.CLOSE_CURSORS_AT_COMMIT;
+		private volatile String catalog = "qms";
+		private volatile String schema = "public";
+		private volatile boolean failSettings;
+		private volatile boolean closed;
+
+		private FakeConnection(AtomicBoolean shared) {
+			this.shared = shared;
+			proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+					(target, method, args) -> {
+						if (!inUse.compareAndSet(false, true)) {
+							shared.set(true);
+						}
+						try {
+							return invoke(method.getName(), args);
+						} finally {
+							inUse.set(false);
+						}
+					});
+		}
+
+		private Object invoke(String method, Object[] args) throws SQLException {
+			if (method.startsWith("set") && !method.equals("setAutoCommit")) {
+				if (failSettings) {
+					throw new SQLException("Settings cannot be changed");
+				}
+				settingsChanged.incrementAndGet();
+			}
+			switch (method) {
+			case "getAutoCommit":
+				return autoCommit;
+			case "setAutoCommit":
+				autoCommit = (Boolean) args[0];
+				return null;
+			case "commit":
+				return null;
+			case "rollback":
+				rollbacks.incrementAndGet();
+				return null;
+			case "getTransactionIsolation":
+				return isolation;
+			case "setTransactionIsolation":
+				isolation = (Integer) args[0];
+				return null;
+			case "isReadOnly":
+				return readOnly;
+			case "setReadOnly":
+				readOnly = (Boolean) args[0];
+				return null;
+			case "getHoldability":
+				return holdability;
+			case "setHoldability":
+				holdability = (Integer) args[0];
+				return null;
+			case "getCatalog":
+				return catalog;
+			case "setCatalog":
+				catalog = (String) args[0];
+				return null;
+			case "getSchema":
+				return schema;
+			case "setSchema":
+				schema = (String) args[0];
+				return null;
+			case "isValid":
+				return !closed;
+			case "close":
+				closed = true;
+				return null;
+			case "createStatement":
+			case "prepareStatement":
+				AtomicInteger closes = new AtomicInteger();
+				statements.add(closes);
+				Class<?> type = method.equals("createStatement") ? Statement.class : PreparedStatement.class;
+				return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { type },
+						(statement, statementMethod, statementArgs) -> {
+							if (statementMethod.getName().equals("close")) {
+								closes.incrementAndGet();
+							}
+							return null;
+						});
+			default:
+				throw new UnsupportedOperationException(method);
+			}
+		}
+	}
+}